@@ -0,0 +1,15 @@
+#!/bin/bash
+
+# Runs the JMH benchmarks in src/jmh/java. Arguments are passed to JMH, e.g.:
+#
+#  $ ./bench.sh CatenaValidationBenchmark -f 1 -wi 3 -i 5
+#  $ ./bench.sh -l                 (lists the benchmarks)
+#
+# Allocation rates are reported by '-prof gc', which is the default when no arguments are given.
+
+args="$@"
+if [ -z "$args" ]; then
+    args="-prof gc"
+fi
+
+mvn -Pjmh test-compile exec:exec -Djmh.args="$args"
@@ -0,0 +1,20 @@
+#!/bin/bash
+
+# Runs the LoadHarness (see src/test/java/org/catena/common/LoadHarness.java) against an in-process simulated bitcoind.
+# Arguments are its options, e.g.:
+#
+#  $ ./load.sh clients=100 preload=10000 statements=1000 rate=50 reorgEvery=5 report=load.json
+#  $ ./load.sh clients=20 forked=true jvmArgs='-Xmx256m' report=load-forked.json
+#
+# The JSON report is printed unless report=<file> is given. Exits with status 2 if any client diverged.
+
+scriptdir=$(cd $(dirname $0); pwd -P)
+version=$(cd $scriptdir; git describe --always --dirty 2>/dev/null || echo unknown)
+
+args=
+for arg in "$@"; do
+    args="$args \"$arg\""
+done
+
+mvn -q test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test \
+    -Dexec.args="-Dcatena.version=$version -classpath %classpath org.catena.common.LoadHarness $args"
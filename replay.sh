@@ -0,0 +1,17 @@
+#!/bin/bash
+
+# Replays the wallet events recorded by a Catena client (run it with -Dcatena.recordWalletEvents=<file>, see
+# WalletEventRecorder) on a fresh wallet, as fast as possible, and prints how long each replay took, e.g.:
+#
+#  $ ./replay.sh wallet-events.bin 10
+#  $ JAVA_OPTS="-XX:+UnlockCommercialFeatures -XX:+FlightRecorder" ./replay.sh wallet-events.bin 100
+#
+# JAVA_OPTS are passed to the JVM, e.g., to profile the replays.
+
+if [ $# -lt 1 ]; then
+    echo "Usage: $0 <wallet-events-file> [<num-replays>]"
+    exit 1
+fi
+
+mvn -q compile exec:exec -Dexec.executable=java \
+    -Dexec.args="$JAVA_OPTS -classpath %classpath org.catena.client.WalletEventReplayer $*"
@@ -64,6 +64,11 @@ conffile=$datadir/config.ini
 #pubkey=...
 #txid=...
 #btc_env=mainnet
+## Optional, lets the client skip the blocks before the root-of-trust TX (generated by the Catena server)
+#root_height=...
+#root_block=...
+#root_time=...
+#root_checkpoint=...
 
 if [ ! -f "$conffile" ]; then
     echo "ERROR: No '$conffile' config file found, please create one."
@@ -97,7 +102,13 @@ echo " * directory: $datadir"
 echo " * chain address: $pubkey"
 echo " * root-of-trust TXID: $txid"
 echo " * btc net: '$btc_env'"
+root=-
+if [ -n "$root_height" -a -n "$root_block" -a -n "$root_time" ]; then
+    root=$root_height:$root_block:$root_time
+    [ -n "$root_checkpoint" ] && root=$root:$root_checkpoint
+    echo " * root-of-trust block: #$root_height $root_block"
+fi
 [ -n "$*" ] && echo " * extra args: $*"
 echo
-mvn exec:java -Dexec.mainClass=org.catena.client.ClientApp -Dexec.cleanupDaemonThreads=false -Dexec.args="$txid $pubkey $btc_env $datadir $*"
+mvn exec:java -Dexec.mainClass=org.catena.client.ClientApp -Dexec.cleanupDaemonThreads=false -Dexec.args="$txid $pubkey $btc_env $datadir $root $*"
 echo
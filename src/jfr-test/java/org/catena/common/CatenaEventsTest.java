@@ -0,0 +1,62 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.Test;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Checks that the Catena JFR events are recorded, with their fields.
+ */
+public class CatenaEventsTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+
+    @Test
+    public void testVerifyEvents() throws Exception {
+        assumeTrue(CatenaEvents.get().isEnabled());
+
+        Context.propagate(new Context(params));
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "testchain");
+        Transaction good = chain.append("s1".getBytes());
+        Transaction bad = chain.createCatenaTx(good.getOutput(0), new ECKey(), "bad".getBytes());
+
+        File file = File.createTempFile("catena", ".jfr");
+        try (Recording r = new Recording()) {
+            r.enable("org.catena.VerifyCatenaTx");
+            r.start();
+            assertTrue(CatenaUtils.isSignedCatenaTx(good, chain.getChainAddress(), 
+                    chain.getRootOfTrustTx().getOutput(0), true));
+            assertFalse(CatenaUtils.isSignedCatenaTx(bad, chain.getChainAddress(), good.getOutput(0), true));
+            r.stop();
+            r.dump(file.toPath());
+        }
+
+        Map<String, Boolean> verdicts = new HashMap<String, Boolean>();
+        try {
+            for(RecordedEvent e : RecordingFile.readAllEvents(file.toPath())) {
+                if(e.getEventType().getName().equals("org.catena.VerifyCatenaTx"))
+                    verdicts.put(e.getString("txid"), e.getBoolean("isValid"));
+            }
+        } finally {
+            file.delete();
+        }
+
+        assertEquals(2, verdicts.size());
+        assertTrue(verdicts.get(good.getHashAsString()));
+        assertFalse(verdicts.get(bad.getHashAsString()));
+    }
+}
@@ -0,0 +1,311 @@
+package org.catena.common;
+
+import org.bitcoinj.core.Transaction;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Records CatenaEvents as Java Flight Recorder events. Only ever loaded by name from CatenaEvents::get(), on JVMs that
+ * have JFR, so nothing else may refer to this class or its events.
+ *
+ * The events have no stack traces, which are what makes events expensive, and their fields are only computed if JFR
+ * is recording them (i.e., if shouldCommit() says so).
+ */
+class JfrCatenaEvents extends CatenaEvents {
+
+    @Name("org.catena.AppendStatement")
+    @Label("Append Statement")
+    @Description("SimpleWallet::appendStatement(): building, signing and committing a Catena TXN")
+    @Category({"Catena", "Server"})
+    @StackTrace(false)
+    static class AppendEvent extends Event implements Span {
+        @Label("TXID")
+        String txid;
+
+        @Label("Statement Size")
+        @DataAmount
+        int statementBytes;
+
+        @Label("TXN Size")
+        @DataAmount
+        int txnBytes;
+
+        @Label("Root-of-trust TXN")
+        boolean isRootOfTrustTxn;
+    }
+
+    @Name("org.catena.SendCatenaTx")
+    @Label("Send Catena TXN")
+    @Description("SimpleWallet::sendCatenaTxOffline(): signing and committing a Catena TXN")
+    @Category({"Catena", "Server"})
+    @StackTrace(false)
+    static class SendEvent extends Event implements Span {
+        @Label("TXID")
+        String txid;
+
+        @Label("Committed")
+        boolean committed;
+    }
+
+    @Name("org.catena.CompleteCatenaTx")
+    @Label("Complete Catena TXN")
+    @Description("SimpleWallet::completeCatenaTx(): paying the fee and signing a Catena TXN")
+    @Category({"Catena", "Server"})
+    @StackTrace(false)
+    static class SignEvent extends Event implements Span {
+        @Label("TXID")
+        String txid;
+    }
+
+    @Name("org.catena.UpdateCatenaLog")
+    @Label("Update Catena Log")
+    @Description("ClientWallet::updateCatenaLog(), including the wait for the wallet's lock")
+    @Category({"Catena", "Client"})
+    @StackTrace(false)
+    static class UpdateEvent extends Event implements Span {
+        @Label("Chain Length")
+        @Description("The number of statements in BQ, counting the root-of-trust TXN")
+        int bqSize;
+
+        @Label("PQ Size")
+        int pqSize;
+
+        @Label("TXNs Inspected")
+        int txnsInspected;
+
+        @Label("Statements Pushed")
+        int pushed;
+
+        @Label("Statements Popped")
+        int popped;
+
+        @Label("Pop BQ")
+        @Timespan
+        long popBqNanos;
+
+        @Label("Push BQ")
+        @Timespan
+        long pushBqNanos;
+
+        @Label("Lie Detection")
+        @Timespan
+        long lieDetectionNanos;
+
+        @Label("Notify")
+        @Timespan
+        long notifyNanos;
+    }
+
+    @Name("org.catena.VerifyCatenaTx")
+    @Label("Verify Catena TXN")
+    @Description("CatenaUtils::isSignedCatenaTx(): checking a Catena TXN's format and signature")
+    @Category({"Catena", "Client"})
+    @StackTrace(false)
+    static class VerifyEvent extends Event implements Span {
+        @Label("TXID")
+        String txid;
+
+        @Label("Valid")
+        boolean isValid;
+    }
+
+    @Name("org.catena.Reorganize")
+    @Label("Reorganize")
+    @Description("A Catena wallet or chain tracker handling a block chain reorganization")
+    @Category({"Catena", "Client"})
+    @StackTrace(false)
+    static class ReorgEvent extends Event implements Span {
+        @Label("Old Blocks")
+        int oldBlocks;
+
+        @Label("New Blocks")
+        int newBlocks;
+
+        @Label("Split Height")
+        int splitHeight;
+    }
+
+    @Name("org.catena.ListenerCall")
+    @Label("Listener Call")
+    @Description("A call to a Catena listener, on its executor")
+    @Category({"Catena", "Client"})
+    @StackTrace(false)
+    static class ListenerEvent extends Event implements Span {
+        @Label("Listener")
+        String listener;
+
+        @Label("Lag")
+        @Description("From when the call was queued until it started")
+        @Timespan
+        long lagNanos;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return true;
+    }
+
+    @Override
+    public Span beginAppend() {
+        AppendEvent e = new AppendEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endAppend(Span s, Transaction tx, int statementBytes, boolean isRootOfTrustTxn) {
+        AppendEvent e = (AppendEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.txid = tx.getHashAsString();
+        e.statementBytes = statementBytes;
+        e.txnBytes = tx.getMessageSize();
+        e.isRootOfTrustTxn = isRootOfTrustTxn;
+        e.commit();
+    }
+
+    @Override
+    public Span beginSend() {
+        SendEvent e = new SendEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endSend(Span s, Transaction tx, boolean committed) {
+        SendEvent e = (SendEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.txid = tx.getHashAsString();
+        e.committed = committed;
+        e.commit();
+    }
+
+    @Override
+    public Span beginSign() {
+        SignEvent e = new SignEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endSign(Span s, Transaction tx) {
+        SignEvent e = (SignEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.txid = tx.getHashAsString();
+        e.commit();
+    }
+
+    @Override
+    public Span beginUpdate() {
+        UpdateEvent e = new UpdateEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endUpdate(Span s, int bqSize, int pqSize, int txnsInspected, int pushed, int popped,
+            long popBqNanos, long pushBqNanos, long lieDetectionNanos, long notifyNanos) {
+        UpdateEvent e = (UpdateEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.bqSize = bqSize;
+        e.pqSize = pqSize;
+        e.txnsInspected = txnsInspected;
+        e.pushed = pushed;
+        e.popped = popped;
+        e.popBqNanos = popBqNanos;
+        e.pushBqNanos = pushBqNanos;
+        e.lieDetectionNanos = lieDetectionNanos;
+        e.notifyNanos = notifyNanos;
+        e.commit();
+    }
+
+    @Override
+    public Span beginVerify() {
+        VerifyEvent e = new VerifyEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endVerify(Span s, Transaction tx, boolean isValid) {
+        VerifyEvent e = (VerifyEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.txid = tx.getHashAsString();
+        e.isValid = isValid;
+        e.commit();
+    }
+
+    @Override
+    public Span beginReorg() {
+        ReorgEvent e = new ReorgEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endReorg(Span s, int oldBlocks, int newBlocks, int splitHeight) {
+        ReorgEvent e = (ReorgEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.oldBlocks = oldBlocks;
+        e.newBlocks = newBlocks;
+        e.splitHeight = splitHeight;
+        e.commit();
+    }
+
+    @Override
+    public Span beginListener() {
+        ListenerEvent e = new ListenerEvent();
+        e.begin();
+        return e;
+    }
+
+    @Override
+    public void endListener(Span s, String listener, long lagNanos) {
+        ListenerEvent e = (ListenerEvent)s;
+        if(e == null)
+            return;
+        e.end();
+        if(e.shouldCommit() == false)
+            return;
+
+        e.listener = listener;
+        e.lagNanos = lagNanos;
+        e.commit();
+    }
+}
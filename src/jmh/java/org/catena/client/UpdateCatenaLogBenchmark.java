@@ -0,0 +1,255 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.catena.common.SyntheticCatenaChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * ClientWallet::updateCatenaLog as a function of the chain length, the size of the DEAD pool and the depth of reorgs,
+ * over an in-memory wallet that follows a synthetic, properly signed chain. Each scenario changes the wallet before
+ * every call (untimed) and measures the one update that catches up with the change:
+ *
+ *  - idle: nothing changed since the last update
+ *  - appendOne: a new block with one new statement
+ *  - reorg: a fork moves the last k statements one block later (they are popped from BQ and pushed back)
+ *  - reissue: the last k statements were withdrawn by a fork and now come back in new TXs with the same data
+ *  - lie: a correctly signed double spend of some statement with different data was just killed (DEAD)
+ *
+ * Updates are stateful, so each JMH iteration is one call (Mode.SingleShotTime). Run with '-prof gc' (the default in
+ * bench.sh) to get the bytes allocated per update. The (untimed) changes get slower with the chain length, since
+ * bitcoinj checks the whole wallet for consistency after every TX it receives, and the 1M statement wallet takes a
+ * few minutes and a few GBs of heap to build, e.g.:
+ *
+ *  $ ./bench.sh "UpdateCatenaLogBenchmark -p numStatements=1000000 -jvmArgsAppend -Xmx8g -prof gc"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 20)
+@Measurement(iterations = 100)
+@Fork(1)
+public class UpdateCatenaLogBenchmark {
+
+    /**
+     * A ClientWallet that is caught up with a chain of numStatements statements, along with numDead lies that were
+     * already whistleblown about. (Lies stay in the DEAD pool, so every update looks at them again.) Each scenario
+     * extends it, since JMH would give states that depend on it their own copy.
+     */
+    @State(Scope.Thread)
+    public abstract static class Client {
+        private static final int NUM_BLOCKS = 100;
+
+        @Param({"1000", "100000", "1000000"})
+        public int numStatements;
+
+        @Param({"0", "100"})
+        public int numDead;
+
+        SyntheticCatenaChain chain;
+        ClientWallet wallet;
+        StoredBlock tip;
+
+        private final Random rand = new Random(1);
+        private int numLies = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            NetworkParameters params = RegTestParams.get();
+            Context.propagate(new Context(params));
+
+            // Lie detection logs a few warnings for every DEAD TXN on every update (and bitcoinj for every double
+            // spend it sees), which would have us measure the console instead
+            LogManager.getLogger(ClientWallet.class).setLevel(org.apache.log4j.Level.ERROR);
+            LogManager.getLogger(Wallet.class).setLevel(org.apache.log4j.Level.ERROR);
+
+            chain = new SyntheticCatenaChain(params, "benchchain");
+            wallet = chain.newWatchingWallet();
+
+            // Like a client that restarts with the chain in its wallet file
+            String[] stmts = new String[numStatements];
+            for(int i = 0; i < numStatements; i++)
+                stmts[i] = "statement #" + i;
+            chain.append(stmts);
+            tip = chain.load(wallet, chain.genesis(), Math.max(1, numStatements / NUM_BLOCKS));
+
+            checkState(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+            for(int i = 0; i < numDead; i++)
+                addLie();
+            wallet.updateCatenaLog(true);
+            checkState(wallet.getNumStatements() == numStatements);
+
+            setUpScenario();
+        }
+
+        /**
+         * Called once the wallet is caught up with the chain.
+         */
+        void setUpScenario() {
+        }
+
+        ClientWallet update() {
+            wallet.updateCatenaLog(true);
+            return wallet;
+        }
+
+        /**
+         * The wallet receives a correctly signed double spend of a random statement, which bitcoinj kills right away
+         * since the statement is BUILDING.
+         */
+        void addLie() {
+            int i = rand.nextInt(chain.getTxs().size());
+            Transaction lie = chain.doubleSpend(i, ("lie #" + numLies++).getBytes(), chain.getChainKey());
+            wallet.receivePending(chain.copy(lie), null);
+            checkState(wallet.getTransactionPool(Pool.DEAD).containsKey(lie.getHash()), "lie was not killed");
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Idle extends Client {
+    }
+
+    @State(Scope.Thread)
+    public static class NewStatement extends Client {
+        private int numAppended = 0;
+
+        @Setup(Level.Iteration)
+        public void mine() {
+            Transaction tx = chain.append(("new statement #" + numAppended++).getBytes());
+            tip = chain.mine(wallet, tip, ImmutableList.of(tx));
+        }
+    }
+
+    /**
+     * The last reorgDepth statements in their own block, which forks keep moving around.
+     */
+    @State(Scope.Thread)
+    public abstract static class Forked extends Client {
+        @Param({"1", "6"})
+        public int reorgDepth;
+
+        StoredBlock split, last;
+
+        @Override
+        void setUpScenario() {
+            String[] stmts = new String[reorgDepth];
+            for(int i = 0; i < stmts.length; i++)
+                stmts[i] = "forked statement #" + i;
+
+            split = tip;
+            last = tip = chain.mine(wallet, split, chain.append(stmts));
+            wallet.updateCatenaLog(true);
+        }
+
+        /**
+         * A fork of numBlocks blocks from the split point takes over, with the given TXs in its last block. The fork's
+         * last block and its parent become the new last block and split point.
+         */
+        void reorganize(int numBlocks, List<Transaction> lastBlockTxs) {
+            List<StoredBlock> newBlocks = Lists.newArrayList();
+            StoredBlock forkPoint = split, b = split;
+            for(int i = 0; i < numBlocks; i++) {
+                if(i == numBlocks - 1)
+                    split = b;
+                b = chain.mineSideChain(wallet, b, i == numBlocks - 1 ? lastBlockTxs :
+                    ImmutableList.<Transaction>of());
+                newBlocks.add(0, b);
+            }
+            // NOTE: Wallet::reorganize reverses the lists in place
+            wallet.reorganize(forkPoint, Lists.newArrayList(last), newBlocks);
+            last = tip = b;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reorg extends Forked {
+        /**
+         * Moves the forked statements one block higher, so the update pops them and pushes them back.
+         */
+        @Setup(Level.Iteration)
+        public void fork() {
+            List<Transaction> txs = chain.getTxs();
+            reorganize(2, ImmutableList.copyOf(txs.subList(txs.size() - reorgDepth, txs.size())));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reissue extends Forked {
+        private int numReissues = 0;
+
+        /**
+         * A fork without the forked statements withdraws them (untimed update), then the server reissues them and
+         * they make it into the next block. The withdrawn TXs are killed by their reissued versions, so the DEAD pool
+         * grows by reorgDepth TXs per iteration.
+         */
+        @Setup(Level.Iteration)
+        public void withdrawAndReissue() {
+            reorganize(2, ImmutableList.<Transaction>of());
+            wallet.updateCatenaLog(true);
+            checkState(wallet.getPendingQueueSize() == reorgDepth);
+
+            List<Transaction> reissued = chain.reissue(reorgDepth, Coin.valueOf(++numReissues));
+            split = last;
+            last = tip = chain.mine(wallet, last, reissued);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Lie extends Client {
+        @Setup(Level.Iteration)
+        public void receive() {
+            addLie();
+        }
+    }
+
+    @Benchmark
+    public ClientWallet idle(Idle s) {
+        return s.update();
+    }
+
+    @Benchmark
+    public ClientWallet appendOne(NewStatement s) {
+        return s.update();
+    }
+
+    @Benchmark
+    public ClientWallet reorg(Reorg s) {
+        return s.update();
+    }
+
+    @Benchmark
+    public ClientWallet reissue(Reissue s) {
+        return s.update();
+    }
+
+    @Benchmark
+    public ClientWallet lie(Lie s) {
+        return s.update();
+    }
+}
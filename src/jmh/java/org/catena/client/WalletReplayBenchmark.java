@@ -0,0 +1,136 @@
+package org.catena.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.LogManager;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.Wallet;
+import org.catena.common.SyntheticCatenaChain;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Replays a recording of a client wallet's events (see WalletEventRecorder) on a fresh ClientWallet, as fast as
+ * possible, so the exact sequence of TXs, blocks and reorgs some client saw can be benchmarked and profiled. Each
+ * iteration is one replay. Without a recording, replays a synthetic one: numStatements statements that are announced
+ * by a peer while pending and then mined one per block, with a fork moving the last statement one block later every
+ * reorgEvery blocks. (Replays get slower with the number of TXs in the wallet, since bitcoinj checks the whole wallet
+ * for consistency after every TX it receives.) To replay a live client's recording:
+ *
+ *  $ ./bench.sh "WalletReplayBenchmark -p file=wallet-events.bin -prof gc"
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class WalletReplayBenchmark {
+
+    @State(Scope.Thread)
+    public static class Recording {
+        /**
+         * The recording to replay, or empty for a synthetic one.
+         */
+        @Param({""})
+        public String file;
+
+        /**
+         * The synthetic recording's length, if no file is given.
+         */
+        @Param({"300"})
+        public int numStatements;
+
+        @Param({"10"})
+        public int reorgEvery;
+
+        WalletEventReplayer replayer;
+        ClientWallet wallet;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            LogManager.getLogger(ClientWallet.class).setLevel(org.apache.log4j.Level.ERROR);
+            LogManager.getLogger(Wallet.class).setLevel(org.apache.log4j.Level.ERROR);
+
+            File f;
+            if(file.isEmpty()) {
+                f = File.createTempFile("catena-wallet-events-", ".bin");
+                f.deleteOnExit();
+                recordSyntheticChain(f, numStatements, reorgEvery);
+            } else {
+                f = new File(file);
+            }
+            replayer = new WalletEventReplayer(f);
+        }
+
+        @Setup(Level.Iteration)
+        public void newWallet() throws UnreadableWalletException {
+            wallet = replayer.newWallet();
+        }
+    }
+
+    /**
+     * Records a client wallet that follows a synthetic chain, like a live one would (see the class comment).
+     */
+    static void recordSyntheticChain(File file, int numStatements, int reorgEvery) throws IOException {
+        NetworkParameters params = RegTestParams.get();
+        Context.propagate(new Context(params));
+        PeerAddress peer = new PeerAddress(params, InetAddress.getLoopbackAddress(), params.getPort());
+
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "benchchain");
+        ClientWallet wallet = chain.newWatchingWallet();
+        wallet.setRebootingHint(false);
+
+        try (WalletEventRecorder recorder = new WalletEventRecorder(file, wallet, false)) {
+            wallet.setEventRecorder(recorder);
+            CatenaWalletListener listener = new CatenaWalletListener(wallet);
+            wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+            wallet.addReorganizeEventListener(Threading.SAME_THREAD, listener);
+
+            StoredBlock prev = null, tip = chain.mineRoot(wallet);
+            for(int i = 0; i < numStatements; i++) {
+                Transaction tx = chain.append(("statement #" + i).getBytes());
+                wallet.receivePending(chain.copy(tx), null);
+                Context.get().getConfidenceTable().seen(tx.getHash(), peer);
+                prev = tip;
+                tip = chain.mine(wallet, prev, ImmutableList.of(tx));
+
+                if(reorgEvery > 0 && (i + 1) % reorgEvery == 0) {
+                    StoredBlock fork = chain.mineSideChain(wallet, prev, ImmutableList.<Transaction>of());
+                    StoredBlock last = chain.mineSideChain(wallet, fork, ImmutableList.of(tx));
+                    // NOTE: Wallet::reorganize reverses the lists in place
+                    wallet.reorganize(prev, Lists.newArrayList(tip), Lists.newArrayList(last, fork));
+                    tip = last;
+                }
+            }
+            wallet.setEventRecorder(null);
+        }
+    }
+
+    @Benchmark
+    public WalletEventReplayer.Result replay(Recording r) throws IOException {
+        return r.replayer.replay(r.wallet);
+    }
+}
@@ -0,0 +1,184 @@
+package org.catena.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.Files;
+
+/**
+ * How fast a server can append statements: SimpleWallet::appendStatement on an in-memory wallet with no PeerGroup,
+ * which already has numTxs Catena TXs (confirmed, as if read from its wallet file) and is saved to a file like
+ * WalletAppKit's. Appended TXs stay PENDING, so each iteration starts over with a fresh copy of the wallet.
+ *
+ * Along with the appends per second, every iteration prints the latency of each stage of the appends (see
+ * AppendStage). BUILD includes finding the last UTXO and waiting for the wallet lock, and SIGN is completeCatenaTx.
+ * Note that bitcoinj saves the wallet right away on every commit rather than leaving it to autosave, so SAVE is part
+ * of COMMIT. The other benchmarks time the stages on their own, on the unchanged wallet.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AppendStatementBenchmark {
+
+    private static final int NUM_BLOCKS = 100;
+
+    private static final NetworkParameters params = RegTestParams.get();
+
+    /**
+     * The one bitcoinj context that every thread uses, so that they all see the same TX confidences.
+     */
+    private static final Context context = new Context(params);
+
+    /**
+     * How long autosave waits before saving changes, as in WalletAppKit.
+     */
+    private static final long AUTOSAVE_MILLIS = 5000;
+
+    @Param({"0", "1000", "10000", "100000"})
+    public int numTxs;
+
+    private SyntheticCatenaChain chain;
+    private File dir;
+
+    private SimpleWallet wallet;
+    private Map<AppendStage, LatencyHistogram> stages;
+    private final AtomicLong numAppended = new AtomicLong();
+
+    @State(Scope.Thread)
+    public static class BenchmarkThread {
+        @Setup(Level.Trial)
+        public void setUp() {
+            Context.propagate(context);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Context.propagate(context);
+
+        chain = new SyntheticCatenaChain(params, new ECKey(), "benchchain");
+        String[] stmts = new String[numTxs];
+        for(int i = 0; i < numTxs; i++)
+            stmts[i] = "statement #" + i;
+        chain.append(stmts);
+
+        dir = Files.createTempDir();
+    }
+
+    @Setup(Level.Iteration)
+    public void loadWallet() {
+        Context.propagate(context);
+
+        // Like CatenaServer::onSetupCompleted on restart
+        wallet = new SimpleWallet(params);
+        wallet.importKey(chain.getChainKey());
+        chain.watch(wallet);
+        chain.load(wallet, chain.genesis(), Math.max(1, numTxs / NUM_BLOCKS));
+        wallet.autosaveToFile(new File(dir, "bench.wallet"), AUTOSAVE_MILLIS, TimeUnit.MILLISECONDS, null);
+
+        stages = new EnumMap<AppendStage, LatencyHistogram>(AppendStage.class);
+        for(AppendStage s : AppendStage.values())
+            stages.put(s, new LatencyHistogram());
+        wallet.setStageTimer(new SimpleWallet.StageTimer() {
+            @Override
+            public void onStageTimed(AppendStage stage, long nanos) {
+                stages.get(stage).record(nanos);
+            }
+        });
+    }
+
+    @TearDown(Level.Iteration)
+    public void printStages() {
+        wallet.shutdownAutosaveAndWait();
+
+        if(stages.get(AppendStage.COMMIT).getCount() > 0) {
+            System.out.println();
+            for(AppendStage s : AppendStage.values()) {
+                if(stages.get(s).getCount() > 0)
+                    System.out.println("  " + s + ": " + stages.get(s).snapshot());
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for(File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private byte[] nextStatement() {
+        return ("new statement #" + numAppended.getAndIncrement()).getBytes();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Transaction append(BenchmarkThread t) throws InsufficientMoneyException {
+        return wallet.appendStatement(nextStatement());
+    }
+
+    /**
+     * Appends from several threads, like a server taking statements from several clients would. They all contend for
+     * the wallet lock.
+     */
+    @Benchmark
+    @Threads(4)
+    public Transaction appendContended(BenchmarkThread t) throws InsufficientMoneyException {
+        return wallet.appendStatement(nextStatement());
+    }
+
+    @Benchmark
+    public TransactionOutput getLastUtxo(BenchmarkThread t) {
+        return wallet.getLastUtxo();
+    }
+
+    /**
+     * Builds and signs the next TX, but does not commit it.
+     */
+    @Benchmark
+    public Transaction buildAndSign(BenchmarkThread t) throws InsufficientMoneyException {
+        return wallet.appendStatement(nextStatement(), false);
+    }
+
+    /**
+     * What every commit (and autosave) does.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public SimpleWallet save(BenchmarkThread t) throws IOException {
+        wallet.saveToFile(new File(dir, "save.wallet"));
+        return wallet;
+    }
+}
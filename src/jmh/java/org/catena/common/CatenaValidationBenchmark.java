@@ -0,0 +1,157 @@
+package org.catena.common;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The Catena validation and data extraction path that clients run on every TXN they see, over a synthetic, properly
+ * signed chain. Each call looks at the next TXN in the chain, so that the JIT cannot specialize on one of them. Run
+ * with '-prof gc' (the default in bench.sh) to get allocation rates along with the throughput.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CatenaValidationBenchmark {
+
+    /**
+     * The number of statements in the chain, which is also the number of (DEAD) double spends that
+     * findDoubleSpendsAgainst looks through.
+     */
+    @Param({"1000"})
+    public int numStatements;
+
+    private Address chainAddr;
+    private Transaction[] txs;
+    private TransactionOutput[] prevLinks;
+    private SignatureCache sigCache;
+
+    private List<Transaction> building;
+    private Map<Sha256Hash, Transaction> deadTxns;
+    private List<Transaction> allTxns;
+
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        NetworkParameters params = RegTestParams.get();
+        Context.propagate(new Context(params));
+
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "benchchain");
+        for(int i = 0; i < numStatements; i++)
+            chain.append(("statement #" + i).getBytes());
+        chainAddr = chain.getChainAddress();
+
+        txs = new Transaction[numStatements];
+        prevLinks = new TransactionOutput[numStatements];
+        for(int i = 0; i < numStatements; i++) {
+            txs[i] = chain.getTxs().get(i);
+            prevLinks[i] = (i == 0 ? chain.getRootOfTrustTx() : txs[i - 1]).getOutput(0);
+        }
+
+        // Every statement was double spent by a lie, like after a malicious fork
+        building = new ArrayList<Transaction>(chain.getTxs());
+        deadTxns = new HashMap<Sha256Hash, Transaction>();
+        for(int i = 0; i < numStatements; i++) {
+            Transaction lie = chain.doubleSpend(i, ("lie #" + i).getBytes(), chain.getChainKey());
+            deadTxns.put(lie.getHash(), lie);
+        }
+        allTxns = new ArrayList<Transaction>(building);
+        allTxns.addAll(deadTxns.values());
+
+        // Warm signature cache, as after the first update
+        sigCache = new SignatureCache();
+        for(int i = 0; i < numStatements; i++)
+            CatenaUtils.isSignedCatenaTx(txs[i], chainAddr, prevLinks[i], true, sigCache);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = i + 1 == numStatements ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public boolean maybeCatenaTx() {
+        return CatenaUtils.maybeCatenaTx(txs[nextIndex()], chainAddr);
+    }
+
+    @Benchmark
+    public boolean isCatenaTxNoSig() {
+        int i = nextIndex();
+        return CatenaUtils.isCatenaTxNoSig(txs[i], chainAddr, prevLinks[i], true);
+    }
+
+    /**
+     * Verifies the ECDSA signature every time, as for a TXN we have never seen.
+     */
+    @Benchmark
+    public boolean isSignedCatenaTx() {
+        int i = nextIndex();
+        return CatenaUtils.isSignedCatenaTx(txs[i], chainAddr, prevLinks[i], true);
+    }
+
+    /**
+     * Looks the signature verdict up in the cache, as for a TXN added back to BQ after a reorg.
+     */
+    @Benchmark
+    public boolean isSignedCatenaTxCached() {
+        int i = nextIndex();
+        return CatenaUtils.isSignedCatenaTx(txs[i], chainAddr, prevLinks[i], true, sigCache);
+    }
+
+    @Benchmark
+    public byte[] getCatenaTxData() {
+        return CatenaUtils.getCatenaTxData(txs[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean checkConnectedTo() {
+        int i = nextIndex();
+        return CatenaUtils.checkConnectedTo(txs[i], prevLinks[i]);
+    }
+
+    @Benchmark
+    public CatenaStatement statementFromTxn() {
+        return CatenaStatement.fromTxn(txs[nextIndex()]);
+    }
+
+    /**
+     * What ClientWallet's lie detection step does on every update when there are DEAD TXNs: the whole chain against
+     * the whole DEAD pool.
+     */
+    @Benchmark
+    public Map<TransactionOutPoint, List<Transaction>> findDoubleSpendsAgainst() {
+        return TxUtils.findDoubleSpendsAgainst(building.iterator(), deadTxns);
+    }
+
+    @Benchmark
+    public Map<TransactionOutPoint, List<Transaction>> findDoubleSpendsAmongst() {
+        return TxUtils.findDoubleSpendsAmongst(allTxns);
+    }
+}
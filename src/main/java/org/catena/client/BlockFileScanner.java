@@ -0,0 +1,517 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VerificationException;
+import org.catena.common.CatenaApp;
+import org.catena.common.CatenaStatement;
+import org.catena.common.CatenaUtils;
+import org.catena.common.ParallelTxVerifier;
+import org.catena.common.RawCatenaTx;
+import org.catena.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Reconstructs a Catena log straight from the blk*.dat files of a local bitcoind, which is a lot faster than walking
+ * the chain over P2P when a full node is at hand. The output is either a CatenaSnapshot, which new clients can import
+ * (see CatenaClient::importSnapshot), or an audit report of the statements and of any problems we found.
+ *
+ * Block files are memory-mapped and scanned in parallel, one file per task. For every block we only parse its header;
+ * its TXs are stepped over on their raw bytes and checked with RawCatenaTx, so that only the few TXs that look like
+ * Catena TXs for our chain address are ever turned into bitcoinj Transactions. Once all files are scanned, we pick the
+ * chain with the most work (bitcoind stores blocks in the order it receives them, including stale ones), chain the
+ * Catena TXs on it starting from the root-of-trust TX, and verify them with a ParallelTxVerifier.
+ *
+ * NOTE: We trust the block files as far as TX validity goes (i.e., that bitcoind verified the blocks before storing
+ * them), but we do check the proof of work of every header.
+ */
+public class BlockFileScanner extends CatenaApp {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileScanner.class);
+
+    /**
+     * Every block in a block file is preceded by the network's magic bytes and the block's size.
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BLOCK_HEADER_SIZE = Block.HEADER_SIZE;
+
+    private final NetworkParameters scanParams;
+    private final Sha256Hash rootOfTrustTxid;
+    private final Address chainAddr;
+    private final byte[] chainHash160;
+    private final int parallelism;
+
+    /**
+     * Creates a scanner that uses one thread per core.
+     */
+    public BlockFileScanner(NetworkParameters params, Sha256Hash rootOfTrustTxid, Address chainAddr) {
+        this(params, rootOfTrustTxid, chainAddr, Runtime.getRuntime().availableProcessors());
+    }
+
+    public BlockFileScanner(NetworkParameters params, Sha256Hash rootOfTrustTxid, Address chainAddr,
+            int parallelism) {
+        checkArgument(parallelism > 0);
+        this.scanParams = checkNotNull(params);
+        this.rootOfTrustTxid = checkNotNull(rootOfTrustTxid);
+        this.chainAddr = checkNotNull(chainAddr);
+        this.chainHash160 = chainAddr.getHash160();
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Returns the blk*.dat files in bitcoind's blocks directory (e.g., ~/.bitcoin/regtest/blocks), in order.
+     */
+    public static List<File> listBlockFiles(File blocksDir) throws IOException {
+        File[] files = blocksDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("blk") && name.endsWith(".dat");
+            }
+        });
+        if(files == null)
+            throw new IOException("Not a directory: " + blocksDir);
+
+        Arrays.sort(files);
+        return Arrays.asList(files);
+    }
+
+    /**
+     * Scans the block files and reconstructs the Catena log from the best chain in them.
+     *
+     * @throws IOException if a block file cannot be read
+     */
+    public Result scan(List<File> blockFiles) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                Utils.daemonThreads("catena-block-file-scanner-%d"));
+
+        List<FileIndex> indices = new ArrayList<FileIndex>(blockFiles.size());
+        try {
+            List<Future<FileIndex>> futures = new ArrayList<Future<FileIndex>>(blockFiles.size());
+            for(final File file : blockFiles) {
+                futures.add(executor.submit(new Callable<FileIndex>() {
+                    @Override
+                    public FileIndex call() throws IOException {
+                        return scanFile(file);
+                    }
+                }));
+            }
+
+            for(Future<FileIndex> f : futures)
+                indices.add(f.get());
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning block files", e);
+        } catch(ExecutionException e) {
+            Throwables.propagateIfPossible(e.getCause(), IOException.class);
+            throw Throwables.propagate(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        Result result = new Result(blockFiles.size());
+        for(FileIndex index : indices) {
+            result.numBlocks += index.headers.size();
+            result.numTxs += index.numTxs;
+            result.problems.addAll(index.problems);
+        }
+
+        Map<Sha256Hash, StoredBlock> bestChain = findBestChain(indices, result);
+        chainStatements(indices, bestChain, result);
+        return result;
+    }
+
+    /**
+     * Indexes one block file: the headers of all its blocks and the TXs that look like Catena TXs for our chain.
+     */
+    private FileIndex scanFile(File file) throws IOException {
+        FileIndex index = new FileIndex();
+        ByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            if(size > Integer.MAX_VALUE)
+                throw new IOException("Block file too large: " + file);
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+
+        int magic = (int)scanParams.getPacketMagic();
+        int p = 0;
+        while(p + RECORD_HEADER_SIZE <= buf.limit()) {
+            int recordMagic = buf.getInt(p);
+            if(recordMagic != magic) {
+                // bitcoind preallocates its block files, so the rest of the file is usually just zeros
+                if(recordMagic != 0)
+                    index.problems.add(Utils.fmt("{}: unexpected bytes at offset {}, skipping rest of file",
+                            file.getName(), p));
+                break;
+            }
+
+            long blockSize = Integer.reverseBytes(buf.getInt(p + 4)) & 0xffffffffL;
+            p += RECORD_HEADER_SIZE;
+            if(blockSize < BLOCK_HEADER_SIZE || blockSize > buf.limit() - p) {
+                index.problems.add(Utils.fmt("{}: truncated block at offset {}", file.getName(), p));
+                break;
+            }
+
+            ByteBuffer block = buf.duplicate();
+            block.limit(p + (int)blockSize);
+            block.position(p);
+            scanBlock(block.slice(), file, p, index);
+            p += (int)blockSize;
+        }
+
+        log.debug("Scanned {}: {} blocks, {} candidate Catena TXs", file.getName(), index.headers.size(),
+                index.candidates.size());
+        return index;
+    }
+
+    private void scanBlock(ByteBuffer block, File file, int offset, FileIndex index) {
+        byte[] headerBytes = new byte[BLOCK_HEADER_SIZE];
+        block.get(headerBytes);
+
+        Block header;
+        try {
+            header = scanParams.getDefaultSerializer().makeBlock(headerBytes);
+            header.verifyHeader();
+        } catch(VerificationException e) {
+            index.problems.add(Utils.fmt("{}: invalid block header at offset {}: {}", file.getName(), offset,
+                    e.getMessage()));
+            return;
+        }
+        index.headers.add(header);
+
+        int p = BLOCK_HEADER_SIZE;
+        long numTxs = p < block.limit() ? RawCatenaTx.readVarInt(block, p) : -1;
+        if(numTxs < 0) {
+            index.problems.add(Utils.fmt("{}: block {} has no TXs", file.getName(), header.getHash()));
+            return;
+        }
+        p += RawCatenaTx.varIntSize(block, p);
+
+        // One buffer over the whole block, whose position and limit we move to each TX, so we don't allocate per TX
+        ByteBuffer tx = block.duplicate();
+        for(int i = 0; i < numTxs; i++) {
+            int len = RawCatenaTx.getTxLength(block, p);
+            if(len < 0) {
+                index.problems.add(Utils.fmt("{}: malformed TX #{} in block {}", file.getName(), i,
+                        header.getHash()));
+                return;
+            }
+
+            tx.limit(block.limit());
+            tx.position(p);
+            tx.limit(p + len);
+            if(RawCatenaTx.isCatenaTx(tx, chainHash160)) {
+                byte[] txBytes = new byte[len];
+                tx.get(txBytes);
+                index.candidates.add(new Candidate(header.getHash(), txBytes));
+            }
+
+            index.numTxs++;
+            p += len;
+        }
+    }
+
+    /**
+     * Links up the headers from all files, starting at the genesis block, and returns the blocks on the chain with the
+     * most work.
+     */
+    private Map<Sha256Hash, StoredBlock> findBestChain(List<FileIndex> indices, Result result) {
+        Map<Sha256Hash, List<Block>> children = new HashMap<Sha256Hash, List<Block>>();
+        for(FileIndex index : indices) {
+            for(Block header : index.headers) {
+                List<Block> siblings = children.get(header.getPrevBlockHash());
+                if(siblings == null) {
+                    siblings = new ArrayList<Block>(1);
+                    children.put(header.getPrevBlockHash(), siblings);
+                }
+                siblings.add(header);
+            }
+        }
+
+        Block genesis = scanParams.getGenesisBlock();
+        StoredBlock best = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+        Map<Sha256Hash, StoredBlock> blocks = new HashMap<Sha256Hash, StoredBlock>();
+        blocks.put(best.getHeader().getHash(), best);
+
+        // NOTE: Breadth-first, since a recursive walk would overflow the stack on a long chain
+        Deque<StoredBlock> queue = new ArrayDeque<StoredBlock>();
+        queue.add(best);
+        while(queue.isEmpty() == false) {
+            StoredBlock prev = queue.poll();
+            List<Block> next = children.get(prev.getHeader().getHash());
+            if(next == null)
+                continue;
+
+            for(Block header : next) {
+                if(blocks.containsKey(header.getHash()))
+                    continue;   // same block stored twice
+
+                StoredBlock b = prev.build(header);
+                blocks.put(header.getHash(), b);
+                queue.add(b);
+                if(b.getChainWork().compareTo(best.getChainWork()) > 0)
+                    best = b;
+            }
+        }
+
+        int numUnconnected = 0;
+        for(FileIndex index : indices)
+            for(Block header : index.headers)
+                if(blocks.containsKey(header.getHash()) == false)
+                    numUnconnected++;
+        if(numUnconnected > 0)
+            log.warn("{} blocks in the block files do not connect to the genesis block", numUnconnected);
+
+        Map<Sha256Hash, StoredBlock> bestChain = new HashMap<Sha256Hash, StoredBlock>();
+        for(StoredBlock b = best; b != null; b = blocks.get(b.getHeader().getPrevBlockHash()))
+            bestChain.put(b.getHeader().getHash(), b);
+
+        result.bestChainHead = best;
+        return bestChain;
+    }
+
+    /**
+     * Chains the candidate TXs on the best chain starting from the root-of-trust TX, and verifies them.
+     */
+    private void chainStatements(List<FileIndex> indices, Map<Sha256Hash, StoredBlock> bestChain, Result result) {
+        Transaction root = null;
+        StoredBlock rootBlock = null;
+        // The TX spending the first output of each candidate TX on the best chain
+        Map<Sha256Hash, Transaction> spenders = new HashMap<Sha256Hash, Transaction>();
+        Map<Sha256Hash, StoredBlock> blockOf = new HashMap<Sha256Hash, StoredBlock>();
+
+        for(FileIndex index : indices) {
+            for(Candidate c : index.candidates) {
+                StoredBlock block = bestChain.get(c.blockHash);
+                if(block == null) {
+                    result.numStaleCandidates++;
+                    continue;
+                }
+
+                Transaction tx = new Transaction(scanParams, c.txBytes);
+                // A TX is in one best-chain block only, so we've seen it before if its block is stored twice
+                if(blockOf.put(tx.getHash(), block) != null)
+                    continue;
+                if(tx.getHash().equals(rootOfTrustTxid)) {
+                    root = tx;
+                    rootBlock = block;
+                    continue;
+                }
+
+                TransactionOutPoint spent = tx.getInput(0).getOutpoint();
+                if(spent.getIndex() != 0)
+                    continue;
+                if(spenders.put(spent.getHash(), tx) != null)
+                    result.problems.add(Utils.fmt("Output 0 of {} is spent twice on the best chain", spent.getHash()));
+            }
+        }
+
+        if(root == null || CatenaUtils.maybeCatenaTx(root, chainAddr) == false) {
+            result.problems.add(Utils.fmt("Root-of-trust TX {} is not on the best chain, or it does not pay to {}",
+                    rootOfTrustTxid, chainAddr));
+            return;
+        }
+
+        List<Transaction> txs = new ArrayList<Transaction>();
+        List<TransactionOutput> prevLinks = new ArrayList<TransactionOutput>();
+        for(Transaction prev = root, next; (next = spenders.get(prev.getHash())) != null; prev = next) {
+            txs.add(next);
+            prevLinks.add(prev.getOutput(0));
+        }
+
+        boolean[] verdicts;
+        try (ParallelTxVerifier verifier = new ParallelTxVerifier(parallelism)) {
+            verdicts = verifier.verifySpending(txs, prevLinks, chainAddr);
+        }
+
+        result.statements.add(CatenaStatement.fromTxn(root));
+        result.txs.add(root);
+        result.blocks.add(rootBlock);
+        for(int i = 0; i < txs.size(); i++) {
+            if(verdicts[i] == false) {
+                result.problems.add(Utils.fmt("Statement #{} (TX {}) is not signed by {}, ignoring it and the {} " +
+                        "statements after it", i + 1, txs.get(i).getHash(), chainAddr, txs.size() - i - 1));
+                break;
+            }
+
+            result.statements.add(CatenaStatement.fromTxn(txs.get(i)));
+            result.txs.add(txs.get(i));
+            result.blocks.add(blockOf.get(txs.get(i).getHash()));
+        }
+    }
+
+    /**
+     * The headers and candidate Catena TXs in one block file.
+     */
+    private static class FileIndex {
+        private final List<Block> headers = new ArrayList<Block>();
+        private final List<Candidate> candidates = new ArrayList<Candidate>();
+        private final List<String> problems = new ArrayList<String>();
+        private long numTxs = 0;
+    }
+
+    /**
+     * A TX that looks like a Catena TX for our chain address, in the block with the specified hash.
+     */
+    private static class Candidate {
+        private final Sha256Hash blockHash;
+        private final byte[] txBytes;
+
+        private Candidate(Sha256Hash blockHash, byte[] txBytes) {
+            this.blockHash = blockHash;
+            this.txBytes = txBytes;
+        }
+    }
+
+    /**
+     * The Catena log found in the block files, up to the first statement that did not verify, if any.
+     */
+    public static class Result {
+        private final int numFiles;
+        private int numBlocks = 0;
+        private long numTxs = 0;
+        private int numStaleCandidates = 0;
+        private StoredBlock bestChainHead;
+
+        /**
+         * The statements, their TXs and their blocks, starting with the root-of-trust one.
+         */
+        private final List<CatenaStatement> statements = new ArrayList<CatenaStatement>();
+        private final List<Transaction> txs = new ArrayList<Transaction>();
+        private final List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+
+        private final List<String> problems = new ArrayList<String>();
+
+        private Result(int numFiles) {
+            this.numFiles = numFiles;
+        }
+
+        public boolean hasRootOfTrustTxn() { return txs.isEmpty() == false; }
+
+        /**
+         * Returns the number of statements, not counting the root-of-trust one.
+         */
+        public int getNumStatements() { return Math.max(statements.size() - 1, 0); }
+
+        /**
+         * Returns the i-th statement, where the 0th one is the root-of-trust statement.
+         */
+        public CatenaStatement getStatement(int i) { return statements.get(i); }
+
+        public StoredBlock getBlock(int i) { return blocks.get(i); }
+
+        public StoredBlock getBestChainHead() { return bestChainHead; }
+
+        public int getNumBlocks() { return numBlocks; }
+
+        public List<String> getProblems() { return Collections.unmodifiableList(problems); }
+
+        /**
+         * Returns a snapshot of the statements confirmed at or below maxHeight, for new clients to import.
+         *
+         * @throws IllegalStateException if the root-of-trust TX was not found
+         * @throws IllegalArgumentException if the root-of-trust TX is above maxHeight
+         */
+        public CatenaSnapshot toSnapshot(int maxHeight) {
+            checkState(hasRootOfTrustTxn(), "root-of-trust TX was not found");
+            checkArgument(blocks.get(0).getHeight() <= maxHeight, "root-of-trust TX is above height " + maxHeight);
+
+            int n = 1;
+            while(n < blocks.size() && blocks.get(n).getHeight() <= maxHeight)
+                n++;
+
+            int[] heights = new int[n];
+            long[] times = new long[n];
+            List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>(n);
+            for(int i = 0; i < n; i++) {
+                StoredBlock b = blocks.get(i);
+                heights[i] = b.getHeight();
+                times[i] = b.getHeader().getTimeSeconds();
+                blockHashes.add(b.getHeader().getHash());
+            }
+
+            return new CatenaSnapshot(txs.get(0), statements.subList(0, n), heights, times, blockHashes,
+                    txs.get(n - 1), blocks.get(n - 1));
+        }
+
+        public void writeReport(PrintStream out) {
+            out.printf("Scanned %d block files: %d blocks, %d TXs\n", numFiles, numBlocks, numTxs);
+            out.printf("Best chain: height %d, tip %s\n", bestChainHead.getHeight(), bestChainHead.getHeader().getHash());
+
+            if(hasRootOfTrustTxn()) {
+                out.printf("Root-of-trust TX %s in block #%d: %s\n", txs.get(0).getHash(), blocks.get(0).getHeight(),
+                        statements.get(0).getAsString());
+                for(int i = 1; i < statements.size(); i++) {
+                    out.printf("Statement #%d: %s (tx %s, block #%d %s)\n", i, statements.get(i).getAsString(),
+                            txs.get(i).getHash(), blocks.get(i).getHeight(), blocks.get(i).getHeader().getHash());
+                }
+            }
+            if(numStaleCandidates > 0)
+                out.printf("%d Catena TXs for this chain are only in stale blocks\n", numStaleCandidates);
+
+            if(problems.isEmpty()) {
+                out.printf("No problems found, %d statements verified.\n", getNumStatements());
+            } else {
+                out.printf("%d problems found:\n", problems.size());
+                for(String problem : problems)
+                    out.println(" * " + problem);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 4) {
+            System.err.println("Usage: <bitcoind-blocks-dir> <root-of-trust-txid> <expected-chain-addr> " +
+                    "mainnet|testnet|regtest [<snapshot-file>]");
+            return;
+        }
+
+        parseBitcoinNetwork(args, 3, "-scanner");
+        Sha256Hash txid = Sha256Hash.wrap(args[1]);
+        Address chainAddr = Address.fromBase58(params, args[2]);
+
+        BlockFileScanner scanner = new BlockFileScanner(params, txid, chainAddr);
+        Result result = scanner.scan(listBlockFiles(new File(args[0])));
+        result.writeReport(System.out);
+
+        if(args.length > 4) {
+            // Leave out the last few blocks, which could still be reorged out (same as ClientApp)
+            int height = result.getBestChainHead().getHeight() - 6;
+            CatenaSnapshot snapshot = result.toSnapshot(height);
+            snapshot.writeTo(new File(args[4]));
+            System.out.printf("\nExported %d statements up to height %d (digest %s) to %s\n", snapshot.size() - 1,
+                    snapshot.getHeight(), snapshot.getDigest(), args[4]);
+        }
+    }
+}
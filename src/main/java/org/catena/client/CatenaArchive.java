@@ -0,0 +1,101 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+
+/**
+ * What a CatenaChainTracker with a tip window keeps of the statements it archived: their number, their digest (see
+ * CatenaChainTracker::foldDigest) and the last archived TX (the "anchor", which the next statement spends), along with
+ * the height and time of the anchor's block.
+ *
+ * A tracker saves it after every statement it hands to its sink, so that it can resume from the anchor after a
+ * restart, rather than from the root-of-trust TX (see CatenaChainTracker::setTipWindow).
+ */
+public class CatenaArchive {
+
+    private static final int MAGIC = 0x43544e41;     // "CTNA"
+    private static final int VERSION = 1;
+
+    private final long numArchived;
+    private final Sha256Hash digest;
+    private final Transaction anchorTxn;
+    private final int anchorHeight;
+    private final long anchorTimeSecs;
+
+    public CatenaArchive(long numArchived, Sha256Hash digest, Transaction anchorTxn, int anchorHeight,
+            long anchorTimeSecs) {
+        checkArgument(numArchived > 0, "nothing was archived");
+        checkArgument(anchorHeight >= 0);
+
+        this.numArchived = numArchived;
+        this.digest = checkNotNull(digest);
+        this.anchorTxn = checkNotNull(anchorTxn);
+        this.anchorHeight = anchorHeight;
+        this.anchorTimeSecs = anchorTimeSecs;
+    }
+
+    public long getNumArchived() { return numArchived; }
+
+    public Sha256Hash getDigest() { return digest; }
+
+    public Transaction getAnchorTxn() { return anchorTxn; }
+
+    public int getAnchorHeight() { return anchorHeight; }
+
+    public long getAnchorTimeSecs() { return anchorTimeSecs; }
+
+    /**
+     * Writes the archive to a temporary file first, so that a crash leaves either the old or the new archive behind.
+     */
+    public void writeTo(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(numArchived);
+            out.write(digest.getBytes());
+            byte[] tx = anchorTxn.bitcoinSerialize();
+            out.writeInt(tx.length);
+            out.write(tx);
+            out.writeInt(anchorHeight);
+            out.writeLong(anchorTimeSecs);
+        }
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static CatenaArchive readFrom(NetworkParameters params, File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a Catena archive file: " + file);
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported Catena archive version " + version + ": " + file);
+
+            long numArchived = in.readLong();
+            byte[] digest = new byte[32];
+            in.readFully(digest);
+            byte[] tx = new byte[in.readInt()];
+            in.readFully(tx);
+            int anchorHeight = in.readInt();
+            long anchorTimeSecs = in.readLong();
+
+            return new CatenaArchive(numArchived, Sha256Hash.wrap(digest), new Transaction(params, tx), anchorHeight,
+                    anchorTimeSecs);
+        }
+    }
+}
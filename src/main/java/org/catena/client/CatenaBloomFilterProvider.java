@@ -0,0 +1,438 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.RawCatenaTx;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Bloom filter provider for any number of Catena chains (root-of-trust TXID and chain address) and extra TXIDs,
+ * unlike TxidBloomFilterProvider, which only matches one TXID.
+ *
+ * The chains' trackers also add the continuation outputs of their Catena TXs (see CatenaChainTracker::shareFilter), so
+ * that TXs which double spend them match the filter even if they pay elsewhere.
+ *
+ * Since a peer only keeps one filter per connection, the provider cannot give every chain its own false positive rate.
+ * Instead, every chain has a target rate and the provider sets the peer group's rate to the strictest one.
+ *
+ * NOTE: Every new element still makes the peer group recalculate the filter (merging all its providers) and send it
+ * to every peer with a new filterload message, since a new element almost always sets new bits. bitcoinj 0.14 has no
+ * filteradd message to send just the new element with. (Its serializer only knows its own message classes, so we
+ * can't add one either.) What the provider does save is recalculations for elements it already has, which are
+ * skipped, and the filter's size stays the same for most additions, since the provider claims room for more elements
+ * than it has and doubles that as needed.
+ *
+ * The provider can also listen to the TXs the block chain and the peers hand over to us, to measure how many of them
+ * were false positives (i.e., matched none of our elements), which is what the false positive rates are paid in.
+ */
+public class CatenaBloomFilterProvider implements PeerFilterProvider, TransactionReceivedInBlockListener,
+    OnTransactionBroadcastListener
+{
+    private static final Logger log = LoggerFactory.getLogger(CatenaBloomFilterProvider.class);
+
+    /**
+     * The number of elements we claim room for, at least.
+     */
+    public static final int MIN_CAPACITY = 16;
+
+    protected final ReentrantLock lock = Threading.lock("catena-bloom-filter");
+
+    /**
+     * The chain address and the target false positive rate of every chain, by root-of-trust TXID.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, Address> chains = new LinkedHashMap<Sha256Hash, Address>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Double> targetRates = new LinkedHashMap<Sha256Hash, Double>();
+
+    /**
+     * Every element in the filter, as it is inserted (i.e., reversed TXIDs, HASH160s and serialized outpoints).
+     */
+    @GuardedBy("lock") private final Set<ByteArray> elements = new LinkedHashSet<ByteArray>();
+
+    @GuardedBy("lock") private int capacity = MIN_CAPACITY;
+
+    @GuardedBy("lock") private long earliestTimeSecs = Long.MAX_VALUE;
+
+    /**
+     * Set when an element was added since the last filter we handed to the peer group (or if there was none yet).
+     */
+    @GuardedBy("lock") private boolean isDirty = true;
+
+    @GuardedBy("lock") private PeerGroup peerGroup;
+
+    @GuardedBy("lock") private long numTxns = 0, numFalsePositives = 0;
+    @GuardedBy("lock") private long numBytes = 0, numFalsePositiveBytes = 0;
+
+    /**
+     * Registers this provider with the peer group, and sets the peer group's false positive rate to the strictest of
+     * our chains' targets, if any.
+     */
+    public void connect(PeerGroup peerGroup) {
+        lock.lock();
+        try {
+            this.peerGroup = peerGroup;
+        } finally {
+            lock.unlock();
+        }
+
+        peerGroup.addPeerFilterProvider(this);
+        updateFalsePositiveRate();
+    }
+
+    /**
+     * Adds a Catena chain to the filter, with the peer group's false positive rate as its target.
+     */
+    public void addChain(Sha256Hash rootOfTrustTxid, Address chainAddr, long earliestTimeSecs) {
+        addChain(rootOfTrustTxid, chainAddr, earliestTimeSecs, PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+    }
+
+    /**
+     * Adds a Catena chain to the filter.
+     *
+     * @param rootOfTrustTxid
+     * @param chainAddr
+     * @param earliestTimeSecs	a time before the root-of-trust TX was issued (or 1 if unknown)
+     * @param falsePositiveRate	the target false positive rate for this chain
+     */
+    public void addChain(Sha256Hash rootOfTrustTxid, Address chainAddr, long earliestTimeSecs,
+            double falsePositiveRate) {
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1, "invalid false positive rate");
+        checkArgument(earliestTimeSecs > 0);
+
+        boolean isStricter;
+        lock.lock();
+        try {
+            chains.put(rootOfTrustTxid, chainAddr);
+            isStricter = falsePositiveRate < getTargetFalsePositiveRate();
+            targetRates.put(rootOfTrustTxid, falsePositiveRate);
+            this.earliestTimeSecs = Math.min(this.earliestTimeSecs, earliestTimeSecs);
+
+            // NOTE: Must reverse the TXID bytes to match them in the Bloom filter.
+            addElement(rootOfTrustTxid.getReversedBytes());
+            // Matches the continuation output of every Catena TX
+            addElement(chainAddr.getHash160());
+        } finally {
+            lock.unlock();
+        }
+
+        // A stricter rate makes the peer group recalculate the filter anyway
+        if(isStricter)
+            updateFalsePositiveRate();
+        else
+            maybeUpdateFilter();
+    }
+
+    /**
+     * Adds a TXID to the filter.
+     */
+    public void addTxid(Sha256Hash txid) {
+        lock.lock();
+        try {
+            addElement(txid.getReversedBytes());
+        } finally {
+            lock.unlock();
+        }
+
+        maybeUpdateFilter();
+    }
+
+    /**
+     * Adds an outpoint to the filter, so that the TXs that spend it match.
+     */
+    public void addOutpoint(TransactionOutPoint outp) {
+        lock.lock();
+        try {
+            addElement(outp.unsafeBitcoinSerialize());
+        } finally {
+            lock.unlock();
+        }
+
+        maybeUpdateFilter();
+    }
+
+    /**
+     * Removes an outpoint from the filter. The peers keep matching it until the filter is recalculated for some other
+     * reason, since a stale element only costs us false positives.
+     */
+    public void removeOutpoint(TransactionOutPoint outp) {
+        lock.lock();
+        try {
+            elements.remove(new ByteArray(outp.unsafeBitcoinSerialize()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void addElement(byte[] element) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(elements.add(new ByteArray(element)))
+            isDirty = true;
+        while(elements.size() > capacity)
+            capacity *= 2;
+    }
+
+    /**
+     * Asks the peer group to recalculate the filter and send it to all its peers, unless no element was added since the
+     * last filter we computed (see the class comment).
+     */
+    private void maybeUpdateFilter() {
+        PeerGroup pg;
+        lock.lock();
+        try {
+            pg = peerGroup;
+            if(pg == null || isDirty == false)
+                return;
+        } finally {
+            lock.unlock();
+        }
+
+        pg.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    private void updateFalsePositiveRate() {
+        PeerGroup pg;
+        double rate;
+        lock.lock();
+        try {
+            pg = peerGroup;
+            rate = getTargetFalsePositiveRate();
+        } finally {
+            lock.unlock();
+        }
+
+        // NOTE: This recalculates the filter and sends it to the peers
+        if(pg != null && rate < 1.0) {
+            log.debug("Setting the peer group's Bloom filter false positive rate to {}", rate);
+            pg.setBloomFilterFalsePositiveRate(rate);
+        }
+    }
+
+    /**
+     * Returns the strictest false positive rate among our chains, or 1.0 if there are no chains.
+     */
+    public double getTargetFalsePositiveRate() {
+        lock.lock();
+        try {
+            double rate = 1.0;
+            for(double r : targetRates.values())
+                rate = Math.min(rate, r);
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public double getTargetFalsePositiveRate(Sha256Hash rootOfTrustTxid) {
+        lock.lock();
+        try {
+            Double rate = targetRates.get(rootOfTrustTxid);
+            checkArgument(rate != null, "unknown chain " + rootOfTrustTxid);
+            return rate;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getNumElements() {
+        lock.lock();
+        try {
+            return elements.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        lock.lock();
+        try {
+            return earliestTimeSecs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        return capacity;
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        for(ByteArray e : elements)
+            filter.insert(e.bytes);
+
+        isDirty = false;
+        log.trace("Computed Bloom filter for {} chain(s), {} element(s), room for {}", chains.size(), elements.size(),
+                capacity);
+        return filter;
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, NewBlockType blockType, int relativityOffset) {
+        countTxn(tx);
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) {
+        return false;
+    }
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        countTxn(tx);
+    }
+
+    private void countTxn(Transaction tx) {
+        lock.lock();
+        try {
+            int size = tx.getMessageSize();
+            numTxns++;
+            numBytes += size;
+            if(isMatch(tx) == false) {
+                numFalsePositives++;
+                numFalsePositiveBytes += size;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the TX is one of our TXIDs, pays one of our chain addresses or spends one of our TXIDs or
+     * outpoints.
+     */
+    private boolean isMatch(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(elements.contains(new ByteArray(tx.getHash().getReversedBytes())))
+            return true;
+
+        for(TransactionOutput out : tx.getOutputs()) {
+            byte[] script = out.getScriptBytes();
+            if(RawCatenaTx.isP2PKH(script)) {
+                for(Address addr : chains.values()) {
+                    if(RawCatenaTx.isP2PKHTo(script, addr.getHash160()))
+                        return true;
+                }
+            }
+        }
+
+        for(TransactionInput in : tx.getInputs()) {
+            TransactionOutPoint outp = in.getOutpoint();
+            if(elements.contains(new ByteArray(outp.getHash().getReversedBytes())))
+                return true;
+            if(elements.contains(new ByteArray(outp.unsafeBitcoinSerialize())))
+                return true;
+        }
+        return false;
+    }
+
+    public long getNumReceivedTxns() {
+        lock.lock();
+        try {
+            return numTxns;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNumFalsePositives() {
+        lock.lock();
+        try {
+            return numFalsePositives;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the fraction of the received TX bytes that were spent on false positives.
+     */
+    public double getFalsePositiveByteRatio() {
+        lock.lock();
+        try {
+            return numBytes == 0 ? 0.0 : (double)numFalsePositiveBytes / numBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the chains' root-of-trust TXIDs, in the order they were added.
+     */
+    public List<Sha256Hash> getChains() {
+        lock.lock();
+        try {
+            return new ArrayList<Sha256Hash>(chains.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Byte arrays with value semantics, so we can keep them in a set.
+     */
+    private static final class ByteArray {
+        final byte[] bytes;
+
+        ByteArray(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ByteArray && Arrays.equals(bytes, ((ByteArray)o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(bytes);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.catena.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+
+/**
+ * Forwards the events of one block chain to many CatenaChainTrackers, so that many Catena chains can be followed with
+ * a single set of block chain listeners.
+ *
+ * TXs are handed to every tracker on the calling thread, since each tracker only checks if they are relevant. New
+ * best blocks and reorgs, which is when trackers verify and chain the new Catena TXs, are handed to all trackers in
+ * parallel, since the trackers do not share any state. We still wait for all of them to finish before returning, so
+ * that every tracker sees the blocks in the same order the block chain processes them.
+ */
+class CatenaChainDispatcher implements TransactionReceivedInBlockListener, NewBestBlockListener, ReorganizeListener,
+    OnTransactionBroadcastListener
+{
+    private static final Logger log = LoggerFactory.getLogger(CatenaChainDispatcher.class);
+
+    private final CopyOnWriteArrayList<CatenaChainTracker> trackers = new CopyOnWriteArrayList<CatenaChainTracker>();
+
+    private final ExecutorService executor;
+
+    /**
+     * Creates a dispatcher that uses one thread per core.
+     */
+    public CatenaChainDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public CatenaChainDispatcher(int parallelism) {
+        checkArgument(parallelism > 0);
+        this.executor = Executors.newFixedThreadPool(parallelism, Utils.daemonThreads("catena-chain-dispatcher-%d"));
+    }
+
+    public void addTracker(CatenaChainTracker tracker) {
+        trackers.add(tracker);
+    }
+
+    public List<CatenaChainTracker> getTrackers() {
+        return trackers;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, NewBlockType blockType, int relativityOffset) {
+        for(CatenaChainTracker t : trackers)
+            t.receiveFromBlock(tx, block, blockType, relativityOffset);
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) {
+        boolean isKnown = false;
+        for(CatenaChainTracker t : trackers)
+            isKnown |= t.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+        return isKnown;
+    }
+
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        for(CatenaChainTracker t : trackers)
+            t.onTransaction(peer, tx);
+    }
+
+    @Override
+    public void notifyNewBestBlock(final StoredBlock block) {
+        forEachInParallel(new TrackerTask() {
+            @Override
+            public void run(CatenaChainTracker t) {
+                t.notifyNewBestBlock(block);
+            }
+        });
+    }
+
+    @Override
+    public void reorganize(final StoredBlock splitPoint, final List<StoredBlock> oldBlocks,
+            final List<StoredBlock> newBlocks) {
+        forEachInParallel(new TrackerTask() {
+            @Override
+            public void run(CatenaChainTracker t) {
+                t.reorganize(splitPoint, oldBlocks, newBlocks);
+            }
+        });
+    }
+
+    private interface TrackerTask {
+        public void run(CatenaChainTracker t);
+    }
+
+    /**
+     * Runs the task on every tracker, on the executor's threads, and waits for all of them to finish. Rethrows the
+     * first exception thrown by a tracker, if any.
+     */
+    private void forEachInParallel(final TrackerTask task) {
+        // Not worth a round trip through the executor
+        if(trackers.size() == 1) {
+            task.run(trackers.get(0));
+            return;
+        }
+
+        final Context context = Context.get();
+        List<Callable<Void>> calls = new ArrayList<Callable<Void>>(trackers.size());
+        for(final CatenaChainTracker t : trackers) {
+            calls.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    Context.propagate(context);
+                    task.run(t);
+                    return null;
+                }
+            });
+        }
+
+        try {
+            for(Future<Void> f : executor.invokeAll(calls)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for Catena chain trackers");
+        } catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+}
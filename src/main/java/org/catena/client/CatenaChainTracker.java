@@ -0,0 +1,1147 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+import java.util.Vector;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.AbstractBlockChain;
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.PeerFilterProvider;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.PeerGroup.FilterRecalculateMode;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.OnTransactionBroadcastListener;
+import org.bitcoinj.core.listeners.ReorganizeListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaEvents;
+import org.catena.common.CatenaStatement;
+import org.catena.common.CatenaUtils;
+import org.catena.common.ParallelTxVerifier;
+import org.catena.common.RawCatenaTx;
+import org.catena.common.SignatureCache;
+import org.catena.common.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.SetMultimap;
+
+/**
+ * Follows a Catena chain without a bitcoinj Wallet, by listening to BlockChain and PeerGroup events directly.
+ *
+ * ClientWallet gets every TX through Wallet::isTransactionRelevant, bitcoinj's double spend scans, confidence
+ * bookkeeping and pool moves, and then re-derives the Catena log from the wallet's pools. This tracker only keeps the
+ * Catena TXs of one chain (and the TXs that double spend them), indexed by the outpoint they spend and by the blocks
+ * they appeared in, and derives the same building queue (BQ) and pending queue (PQ) from that. Reorgs are handled
+ * through the blocks that the BlockChain disconnects and connects.
+ *
+ * Long-running monitors can bound the memory used by calling setTipWindow(): only the last N statements are then kept
+ * in BQ (and their TXs in memory), while older ones are folded into a running hash-chain digest and handed to a
+ * CatenaStatementSink. The TXs that were whistleblown on are forgotten along with the archived TXs they double spend.
+ *
+ * Our Bloom filter matches the root-of-trust TX, every Catena TX of our chain (through the chain address in their
+ * continuation output) and every TX that spends the continuation output of the root-of-trust TX, of a tracked Catena
+ * TX or of the archive's anchor TX, so that non-Catena TXs double spending our chain are relayed to us too.
+ *
+ * NOTE: Only the archive is persisted (if setTipWindow() is given a file), so the BlockChain this tracker listens to
+ * must (re)download the blocks after the root-of-trust TX, or after the archive's anchor TX, on every start (e.g., use
+ * a MemoryBlockStore or a fresh SPVBlockStore, together with getEarliestKeyCreationTime() as the earliest key time).
+ */
+public class CatenaChainTracker implements TransactionReceivedInBlockListener, NewBestBlockListener,
+    ReorganizeListener, OnTransactionBroadcastListener, PeerFilterProvider
+{
+    private static final Logger log = LoggerFactory.getLogger(CatenaChainTracker.class);
+
+    protected final ReentrantLock lock = Threading.lock("catena-chain-tracker");
+
+    private final NetworkParameters params;
+
+    private final Sha256Hash rootOfTrustTxid;
+
+    private final Address chainAddr;
+
+    /**
+     * Blocks older than this (in seconds since the epoch) cannot have TXs from our chain, so peers only need to send
+     * us their headers. (See TxidBloomFilterProvider::getEarliestKeyCreationTime.)
+     */
+    private final long earliestTimeSecs;
+
+    /**
+     * Listeners of CatenaChainTracker events will be executed on this thread.
+     */
+    private Executor executor = Threading.USER_THREAD;
+
+    private final CopyOnWriteArrayList<ListenerRegistration<CatenaStatementListener>> stmtListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<CatenaStatementListener>>();
+    private final CopyOnWriteArrayList<ListenerRegistration<CatenaReorganizeListener>> reorgListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<CatenaReorganizeListener>>();
+    private final CopyOnWriteArrayList<ListenerRegistration<CatenaWhistleblowListener>> whistleblowListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<CatenaWhistleblowListener>>();
+
+    /**
+     * The TXs we track, by TXID: the root-of-trust TX, the Catena TXs of our chain (in a block or not) and any TX that
+     * spends their outputs.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, Transaction> txs = new HashMap<Sha256Hash, Transaction>();
+
+    /**
+     * Outpoint index: the tracked TXs that spend each outpoint. More than one TX means a double spend.
+     */
+    @GuardedBy("lock") private final ListMultimap<TransactionOutPoint, Transaction> spenders =
+            ArrayListMultimap.create();
+
+    /**
+     * The outpoints that more than one tracked TX spends. There should hardly ever be any, so we look at all of them
+     * on every update rather than scanning all of BQ like ClientWallet does.
+     */
+    @GuardedBy("lock") private final Set<TransactionOutPoint> doubleSpent = new HashSet<TransactionOutPoint>();
+
+    /**
+     * The hashes of all the blocks each tracked TX appeared in, on the best chain or not.
+     */
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Sha256Hash> appearsIn = HashMultimap.create();
+
+    /**
+     * The reverse of appearsIn: the tracked TXs in each block, so we can forget blocks along with their TXs.
+     */
+    @GuardedBy("lock") private final SetMultimap<Sha256Hash, Sha256Hash> blockTxs = HashMultimap.create();
+
+    /**
+     * The blocks that have tracked TXs in them, on the best chain or not.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, StoredBlock> blocks = new HashMap<Sha256Hash, StoredBlock>();
+
+    /**
+     * The hashes of the blocks in the blocks map that are on the best chain.
+     */
+    @GuardedBy("lock") private final Set<Sha256Hash> bestChain = new HashSet<Sha256Hash>();
+
+    @GuardedBy("lock") private StoredBlock chainHead;
+
+    /**
+     * The confirmed Catena statements, starting with the root-of-trust one (see ClientWallet::bq).
+     */
+    @GuardedBy("lock") private final Stack<CatenaStatement> bq = new Stack<CatenaStatement>();
+
+    /**
+     * The withdrawn statements that have not been confirmed again yet (see ClientWallet::pq).
+     */
+    @GuardedBy("lock") private final Deque<CatenaStatement> pq = new LinkedList<CatenaStatement>();
+
+    /**
+     * Set when something happened that could change BQ or PQ, so we don't update them on every new block.
+     */
+    @GuardedBy("lock") private boolean isDirty = false;
+
+    /**
+     * The TXs we have already whistleblown on, so we only do it once per TX. They are all tracked TXs, so they are
+     * removed in forgetTxn().
+     */
+    @GuardedBy("lock") private final Set<Sha256Hash> whistleblown = new HashSet<Sha256Hash>();
+
+    /**
+     * Scratch structures reused by every update() call.
+     */
+    @GuardedBy("lock") private final Stack<CatenaStatement> withdrawnStack = new Stack<CatenaStatement>();
+    @GuardedBy("lock") private final List<Transaction> candidateTxns = new ArrayList<Transaction>();
+    @GuardedBy("lock") private final List<TransactionOutput> candidatePrevLinks = new ArrayList<TransactionOutput>();
+
+    /**
+     * If positive, only this many statements are kept in BQ and older ones are archived (see setTipWindow).
+     */
+    @GuardedBy("lock") private int tipWindow = 0;
+
+    @GuardedBy("lock") private ListenerRegistration<CatenaStatementSink> sink;
+
+    /**
+     * The newest TX that was archived out of BQ (starting with the root-of-trust TX), or null if nothing was archived
+     * yet. The first TX in BQ spends its first output. We assume it can't be reorganized out of the best chain
+     * anymore.
+     */
+    @GuardedBy("lock") private Transaction anchorTxn;
+
+    /**
+     * The height and time of the anchor TX's block, or -1 and 0 if nothing was archived yet. TXs in older blocks are
+     * ignored, since they can only be archived TXs that we see again (e.g., after a restart).
+     */
+    @GuardedBy("lock") private int anchorHeight = -1;
+    @GuardedBy("lock") private long anchorTimeSecs = 0;
+
+    @GuardedBy("lock") private long numArchived = 0;
+
+    /**
+     * Where the archive is saved after every archived statement (see setTipWindow), or null.
+     */
+    @GuardedBy("lock") private File archiveFile;
+
+    /**
+     * The hash-chain digest of all archived statements: starts as the root-of-trust TXID and is then updated with
+     * foldDigest() for every archived statement.
+     */
+    @GuardedBy("lock") private Sha256Hash archiveDigest;
+
+    private final SignatureCache sigCache = new SignatureCache();
+
+    /**
+     * The peer group we give our Bloom filter to, or null, so we can have it recalculated when we track a new Catena
+     * TX whose continuation output must be matched.
+     */
+    private volatile PeerGroup peerGroup;
+
+    /**
+     * The filter provider we share with other chains' trackers (see shareFilter), or null.
+     */
+    private volatile CatenaBloomFilterProvider sharedFilter;
+
+    private final ParallelTxVerifier sigVerifier = new ParallelTxVerifier(sigCache);
+
+    private static final boolean[] NO_VERDICTS = new boolean[0];
+
+    private static final CatenaEvents events = CatenaEvents.get();
+
+    public CatenaChainTracker(NetworkParameters params, Sha256Hash rootOfTrustTxid, Address chainAddr) {
+        this(params, rootOfTrustTxid, chainAddr, 1);
+    }
+
+    /**
+     * @param params
+     * @param rootOfTrustTxid
+     * @param chainAddr
+     * @param earliestTimeSecs	no TX of the chain was issued before this time
+     */
+    public CatenaChainTracker(NetworkParameters params, Sha256Hash rootOfTrustTxid, Address chainAddr,
+            long earliestTimeSecs) {
+        this.params = checkNotNull(params);
+        this.rootOfTrustTxid = checkNotNull(rootOfTrustTxid);
+        this.chainAddr = checkNotNull(chainAddr);
+        this.earliestTimeSecs = earliestTimeSecs;
+        this.archiveDigest = rootOfTrustTxid;
+    }
+
+    /**
+     * Only keeps the last numStmts statements (and their TXs) in memory. Older statements are passed, in order, to
+     * the sink and folded into the archive digest. The window should be large enough to cover any reorg we expect to
+     * see, since statements and lies that are archived cannot be looked at again.
+     *
+     * @param numStmts
+     * @param sink	called on the same executor as the other listeners
+     */
+    public void setTipWindow(int numStmts, CatenaStatementSink sink) {
+        checkArgument(numStmts > 0);
+        checkNotNull(sink);
+
+        lock.lock();
+        try {
+            this.tipWindow = numStmts;
+            this.sink = new ListenerRegistration<CatenaStatementSink>(sink, executor);
+            archiveOldStatements();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Same as above, but also saves the archive to the file after every statement the sink is called with, and
+     * resumes from the archive in the file, if there is one, so that a restarted tracker neither replays the
+     * archived statements nor hands them to the sink again. Must be called before the tracker sees any TX.
+     *
+     * NOTE: The archive is saved after the sink returns, so a tracker that is stopped in between calls the sink again
+     * for the same statement after a restart (with the same seqNum).
+     *
+     * @throws IOException if the file cannot be read
+     */
+    public void setTipWindow(int numStmts, CatenaStatementSink sink, File archiveFile) throws IOException {
+        checkNotNull(archiveFile);
+
+        lock.lock();
+        try {
+            checkState(txs.isEmpty() && bq.isEmpty() && anchorTxn == null, "tracker has already seen TXs");
+
+            if(archiveFile.exists()) {
+                CatenaArchive a = CatenaArchive.readFrom(params, archiveFile);
+                checkState(looksLikeCatenaTx(a.getAnchorTxn()), "anchor TX in archive is not a Catena TX for " +
+                        chainAddr);
+
+                anchorTxn = a.getAnchorTxn();
+                anchorHeight = a.getAnchorHeight();
+                anchorTimeSecs = a.getAnchorTimeSecs();
+                numArchived = a.getNumArchived();
+                archiveDigest = a.getDigest();
+                log.info("Resuming from archive with {} statement(s), anchored at TX {} (height {})", numArchived,
+                        anchorTxn.getHash(), anchorHeight);
+            }
+            this.archiveFile = archiveFile;
+            setTipWindow(numStmts, sink);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Computes the next digest in the archive's hash chain: H(digest | txid | data).
+     */
+    public static Sha256Hash foldDigest(Sha256Hash digest, CatenaStatement s) {
+        MessageDigest md = Sha256Hash.newDigest();
+        md.update(digest.getBytes());
+        md.update(s.getTxHash().getBytes());
+        md.update(s.getData());
+        return Sha256Hash.wrap(md.digest());
+    }
+
+    /**
+     * Registers this tracker with the block chain, for new blocks and reorgs, and with the peer group, for the Bloom
+     * filter and for pending TXs. Call this before starting the peer group.
+     *
+     * @param chain
+     * @param peerGroup	can be null
+     */
+    public void connect(AbstractBlockChain chain, PeerGroup peerGroup) {
+        // Same as for wallets: we need to see the blocks in the order the block chain processes them.
+        chain.addTransactionReceivedListener(Threading.SAME_THREAD, this);
+        chain.addNewBestBlockListener(Threading.SAME_THREAD, this);
+        chain.addReorganizeListener(Threading.SAME_THREAD, this);
+
+        if(peerGroup != null) {
+            this.peerGroup = peerGroup;
+            peerGroup.addPeerFilterProvider(this);
+            peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD, this);
+        }
+    }
+
+    /**
+     * Has this tracker add the continuation outputs of its Catena TXs to a filter provider it shares with other
+     * chains, as it tracks them, instead of giving the peer group its own filter (i.e., use this instead of passing a
+     * peer group to connect()). The outputs of archived TXs are removed again.
+     */
+    public void shareFilter(CatenaBloomFilterProvider provider) {
+        checkState(peerGroup == null, "already gives its own filter to a peer group");
+
+        lock.lock();
+        try {
+            this.sharedFilter = checkNotNull(provider);
+            // NOTE: The anchor TX, once there is one, is a watched TX.
+            if(anchorTxn == null)
+                provider.addOutpoint(new TransactionOutPoint(params, 0, rootOfTrustTxid));
+            for(Transaction tx : getWatchedOutputTxns())
+                provider.addOutpoint(new TransactionOutPoint(params, 0, tx));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public NetworkParameters getParams() { return params; }
+
+    public Sha256Hash getRootOfTrustTxid() { return rootOfTrustTxid; }
+
+    public Address getChainAddress() { return chainAddr; }
+
+    /**
+     * Returns the name of the chain, once we have the root-of-trust TX, or null otherwise.
+     */
+    public String getName() {
+        lock.lock();
+        try {
+            Transaction root = txs.get(rootOfTrustTxid);
+            return root != null && looksLikeCatenaTx(root) ? new String(CatenaUtils.getCatenaTxData(root)) : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, NewBlockType blockType, int relativityOffset) {
+        lock.lock();
+        try {
+            if(isArchived(tx.getHash(), block))
+                return;
+
+            Transaction known = txs.get(tx.getHash());
+            if(known == null) {
+                if(isRelevant(tx) == false)
+                    return;
+
+                track(tx);
+            }
+
+            addAppearance(tx.getHash(), block, blockType);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) {
+        lock.lock();
+        try {
+            // Peers only send us the hashes of the TXs they've sent us before (e.g., when they were broadcast)
+            if(txs.containsKey(txHash) == false)
+                return false;
+
+            addAppearance(txHash, block, blockType);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) {
+        lock.lock();
+        try {
+            chainHead = block;
+            update(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The block chain calls this after it has sent us the TXs in the new best chain's blocks (as SIDE_CHAIN blocks),
+     * so all we have to do is to move the blocks in and out of the best chain.
+     */
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) {
+        CatenaEvents.Span span = events.beginReorg();
+        lock.lock();
+        try {
+            log.info("Reorganizing: split at height {}, {} old block(s), {} new block(s)", splitPoint.getHeight(),
+                    oldBlocks.size(), newBlocks.size());
+
+            for(StoredBlock b : oldBlocks) {
+                bestChain.remove(b.getHeader().getHash());
+            }
+            for(StoredBlock b : newBlocks) {
+                Sha256Hash hash = b.getHeader().getHash();
+                if(blocks.containsKey(hash))
+                    bestChain.add(hash);
+            }
+
+            // NOTE: Both lists start with their chain's head
+            BigInteger oldChainWork = oldBlocks.isEmpty() ? splitPoint.getChainWork() : oldBlocks.get(0).getChainWork();
+            if(newBlocks.isEmpty() == false)
+                chainHead = newBlocks.get(0);
+
+            queueOnReorganize(oldBlocks.size(), newBlocks.size(), oldChainWork, chainHead.getChainWork());
+
+            isDirty = true;
+            update(true);
+        } finally {
+            lock.unlock();
+            events.endReorg(span, oldBlocks.size(), newBlocks.size(), splitPoint.getHeight());
+        }
+    }
+
+    /**
+     * Pending TXs: we use these to catch lies earlier, before they are confirmed.
+     */
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        lock.lock();
+        try {
+            if(txs.containsKey(tx.getHash()) || isRelevant(tx) == false)
+                return;
+
+            track(tx);
+            update(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A TX is relevant if it is the root-of-trust TX, if it looks like a Catena TX of our chain or if it spends a TX
+     * that we track (e.g., a non-Catena TX double spending a Catena TX).
+     */
+    private boolean isRelevant(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(tx.getHash().equals(rootOfTrustTxid) || looksLikeCatenaTx(tx))
+            return true;
+
+        for(TransactionInput in : tx.getInputs()) {
+            if(getTxn(in.getOutpoint().getHash()) != null)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the TX (in the specified block) is known to be archived, since it is either the anchor TX or in
+     * a block older than the anchor TX's.
+     */
+    private boolean isArchived(Sha256Hash txid, StoredBlock block) {
+        checkState(lock.isHeldByCurrentThread());
+
+        return anchorTxn != null && (block.getHeight() < anchorHeight || anchorTxn.getHash().equals(txid));
+    }
+
+    /**
+     * Returns the tracked TX (or the archive's anchor TX) with the specified TXID, or null.
+     */
+    private Transaction getTxn(Sha256Hash txid) {
+        Transaction tx = txs.get(txid);
+        if(tx == null && anchorTxn != null && anchorTxn.getHash().equals(txid))
+            return anchorTxn;
+        return tx;
+    }
+
+    /**
+     * Checks the shape of the TX, without logging anything, since most TXs we are asked about are Bloom filter false
+     * positives.
+     */
+    private boolean looksLikeCatenaTx(Transaction tx) {
+        return tx.getInputs().size() == 1 && tx.getOutputs().size() == 2 &&
+                RawCatenaTx.isP2PKHTo(tx.getOutput(0).getScriptBytes(), chainAddr.getHash160()) &&
+                RawCatenaTx.isOpReturn(tx.getOutput(1).getScriptBytes());
+    }
+
+    private void track(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        log.debug("Tracking TX {}", tx.getHash());
+        txs.put(tx.getHash(), tx);
+
+        for(TransactionInput in : tx.getInputs()) {
+            TransactionOutPoint outp = in.getOutpoint();
+            spenders.put(outp, tx);
+
+            if(spenders.get(outp).size() > 1) {
+                log.warn("Outpoint {} was double spent by TX {}", outp, tx.getHash());
+                doubleSpent.add(outp);
+            }
+        }
+
+        // Double spends of the new TX's continuation output must match our Bloom filter too. (The peer group
+        // recalculates it asynchronously, so it won't call us back while we hold the lock.)
+        if(looksLikeCatenaTx(tx)) {
+            CatenaBloomFilterProvider shared = sharedFilter;
+            PeerGroup pg = peerGroup;
+            if(shared != null)
+                shared.addOutpoint(new TransactionOutPoint(params, 0, tx));
+            else if(pg != null)
+                pg.recalculateFastCatchupAndFilter(FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        isDirty = true;
+    }
+
+    private void addAppearance(Sha256Hash txHash, StoredBlock block, NewBlockType blockType) {
+        checkState(lock.isHeldByCurrentThread());
+
+        Sha256Hash blockHash = block.getHeader().getHash();
+        appearsIn.put(txHash, blockHash);
+        blockTxs.put(blockHash, txHash);
+        blocks.put(blockHash, block);
+
+        if(blockType == NewBlockType.BEST_CHAIN)
+            bestChain.add(blockHash);
+
+        isDirty = true;
+    }
+
+    /**
+     * Returns the best-chain block the TX is in, or null if it's not in the best chain.
+     */
+    private StoredBlock getConfirmingBlock(Sha256Hash txHash) {
+        checkState(lock.isHeldByCurrentThread());
+
+        for(Sha256Hash blockHash : appearsIn.get(txHash)) {
+            if(bestChain.contains(blockHash))
+                return blocks.get(blockHash);
+        }
+        return null;
+    }
+
+    private boolean isConfirmed(Transaction tx) {
+        return getConfirmingBlock(tx.getHash()) != null;
+    }
+
+    /**
+     * Returns the TX in the best chain that spends the first output of prev, if any.
+     */
+    private Transaction getConfirmedSpender(Transaction prev) {
+        checkState(lock.isHeldByCurrentThread());
+
+        for(Transaction tx : spenders.get(new TransactionOutPoint(params, 0, prev.getHash()))) {
+            if(isConfirmed(tx))
+                return tx;
+        }
+        return null;
+    }
+
+    /**
+     * Brings BQ and PQ up to date with the tracked TXs and the best chain. Same as ClientWallet::updateCatenaLog,
+     * except that "BUILDING" means "in a best-chain block" here.
+     *
+     * @param callListeners
+     */
+    @VisibleForTesting
+    void update(boolean callListeners) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(isDirty == false)
+            return;
+        isDirty = false;
+
+        withdrawnStack.clear();
+
+        // Step 1: Pop the statements whose TXs are not in the best chain anymore from BQ and remember them in PQ, so
+        // that we can tell if they are reissued with different data.
+        while(!bq.isEmpty()) {
+            CatenaStatement tailStmt = bq.peek();
+            if(getConfirmingBlock(tailStmt.getTxHash()) != null)
+                break;
+
+            if(log.isDebugEnabled())
+                log.debug("Pop BQ: Popping statement '{}' (from tx {})", Utils.toHex(tailStmt.getData()),
+                        tailStmt.getTxHash());
+            bq.pop();
+            withdrawnStack.push(tailStmt);
+            pq.addFirst(CatenaStatement.fromData(tailStmt.getData()));
+        }
+
+        // Step 2.1: Find the last confirmed TX in BQ, pushing the root-of-trust TX if needed.
+        Transaction lastTxn = null;
+        if(bq.isEmpty() && anchorTxn != null) {
+            lastTxn = anchorTxn;
+        } else if(bq.isEmpty()) {
+            Transaction root = txs.get(rootOfTrustTxid);
+
+            if(root != null && isConfirmed(root) && checkRootOfTrustTxn(root)) {
+                log.debug("Push BQ: Pushing root-of-trust TXN {}", rootOfTrustTxid);
+                bq.push(CatenaStatement.fromTxn(root));
+
+                // The root-of-trust TX is not a proper statement, so we don't notify about it.
+                if(!withdrawnStack.isEmpty())
+                    withdrawnStack.pop();
+                if(!pq.isEmpty())
+                    pq.pollFirst();
+
+                lastTxn = root;
+            }
+        } else {
+            lastTxn = txs.get(bq.peek().getTxHash());
+        }
+
+        // Step 2.2: Push the confirmed TXs that chain off of the last TX in BQ, checking them against PQ.
+        if(lastTxn != null) {
+            TransactionOutput prevOutput = lastTxn.getOutput(0);
+            Transaction nextTxn = getConfirmedSpender(lastTxn);
+
+            boolean[] verdicts = verifyCandidateTxns(nextTxn, prevOutput);
+            int numVerified = 0;
+
+            while(nextTxn != null) {
+                boolean isValid = numVerified < verdicts.length ? verdicts[numVerified] :
+                    CatenaUtils.isSignedCatenaTxSpending(nextTxn, chainAddr, prevOutput, sigCache);
+                numVerified++;
+
+                if(isValid == false) {
+                    whistleblow(nextTxn, "ill-formated or incorrectly signed Catena TXN: " + nextTxn.getHash());
+                    break;
+                }
+
+                CatenaStatement tailStmt = CatenaStatement.fromTxn(nextTxn);
+                bq.push(tailStmt);
+
+                if(log.isDebugEnabled())
+                    log.debug("Push BQ: Pushed statement {} (tx {})", Utils.toHex(tailStmt.getData()),
+                            nextTxn.getHash());
+
+                if(!pq.isEmpty()) {
+                    CatenaStatement headStmt = pq.peekFirst();
+
+                    if(headStmt.hasSameData(tailStmt) == false) {
+                        bq.pop();
+                        whistleblow(nextTxn, Utils.fmt("expected statement '{}' (hex) but got '{}' (hex) in tx {}",
+                                Utils.toHex(headStmt.getData()), Utils.toHex(tailStmt.getData()), nextTxn.getHash()));
+                        break;
+                    }
+
+                    pq.pollFirst();
+
+                    // Reissued statements were already appended once, so we don't notify about them again
+                    if(withdrawnStack.isEmpty() == false) {
+                        withdrawnStack.pop();
+                    } else if(callListeners) {
+                        queueOnAppend(tailStmt);
+                    }
+                } else if(callListeners) {
+                    queueOnAppend(tailStmt);
+                }
+
+                prevOutput = nextTxn.getOutput(0);
+                nextTxn = getConfirmedSpender(nextTxn);
+            }
+        }
+
+        // Step 3: Check for lies. Any TX that double spends a confirmed Catena TX must commit the same data.
+        checkDoubleSpends();
+
+        // Step 4: Notify about the statements popped in Step 1 that were not added back in Step 2.2
+        if(callListeners)
+            queueOnWithdrawn(withdrawnStack);
+        withdrawnStack.clear();
+
+        archiveOldStatements();
+    }
+
+    /**
+     * Moves the statements that fell out of the tip window from BQ to the sink, and forgets their TXs.
+     */
+    private void archiveOldStatements() {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(tipWindow <= 0)
+            return;
+
+        // NOTE: The root-of-trust TX is in BQ until it's archived, but it's not a statement.
+        while(bq.size() - (anchorTxn == null ? 1 : 0) > tipWindow) {
+            CatenaStatement oldest = bq.remove(0);
+            boolean isRoot = anchorTxn == null;
+
+            // The new anchor spends the old one's continuation output, so no one can double spend it anymore.
+            unshareOutpoint(isRoot ? rootOfTrustTxid : anchorTxn.getHash());
+            anchorTxn = txs.get(oldest.getTxHash());
+            checkState(anchorTxn != null, "broken invariant: TX of statement in BQ is not tracked");
+            StoredBlock anchorBlock = getConfirmingBlock(anchorTxn.getHash());
+            checkState(anchorBlock != null, "broken invariant: TX of statement in BQ is not confirmed");
+            anchorHeight = anchorBlock.getHeight();
+            anchorTimeSecs = anchorBlock.getHeader().getTimeSeconds();
+            forget(anchorTxn);
+
+            if(isRoot == false) {
+                numArchived++;
+                archiveDigest = foldDigest(archiveDigest, oldest);
+                queueOnArchived(numArchived, oldest, archiveDigest, archiveFile == null ? null :
+                    new CatenaArchive(numArchived, archiveDigest, anchorTxn, anchorHeight, anchorTimeSecs));
+            }
+        }
+    }
+
+    /**
+     * Forgets an archived TX, the TXs that double spend it and the blocks that have no other tracked TXs.
+     */
+    private void forget(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        forgetTxn(tx.getHash());
+        for(TransactionInput in : tx.getInputs()) {
+            TransactionOutPoint outp = in.getOutpoint();
+            doubleSpent.remove(outp);
+
+            for(Transaction ds : spenders.removeAll(outp)) {
+                if(ds != tx) {
+                    forgetTxn(ds.getHash());
+                    unshareOutpoint(ds.getHash());
+                }
+            }
+        }
+    }
+
+    private void unshareOutpoint(Sha256Hash txid) {
+        CatenaBloomFilterProvider shared = sharedFilter;
+        if(shared != null)
+            shared.removeOutpoint(new TransactionOutPoint(params, 0, txid));
+    }
+
+    private void forgetTxn(Sha256Hash txid) {
+        txs.remove(txid);
+        whistleblown.remove(txid);
+        for(Sha256Hash blockHash : appearsIn.removeAll(txid)) {
+            blockTxs.remove(blockHash, txid);
+
+            if(blockTxs.containsKey(blockHash) == false) {
+                blocks.remove(blockHash);
+                bestChain.remove(blockHash);
+            }
+        }
+    }
+
+    /**
+     * Makes sure the root-of-trust TX pays to the chain address we were given.
+     */
+    private boolean checkRootOfTrustTxn(Transaction root) {
+        if(looksLikeCatenaTx(root))
+            return true;
+
+        whistleblow(root, "invalid root-of-trust TXN (not a Catena TX for chain address " + chainAddr + "): " + root);
+        return false;
+    }
+
+    /**
+     * See ClientWallet::verifyCandidateTxns.
+     */
+    private boolean[] verifyCandidateTxns(Transaction firstTxn, TransactionOutput prevOutput) {
+        try {
+            Transaction txn = firstTxn;
+            while(txn != null) {
+                candidateTxns.add(txn);
+                candidatePrevLinks.add(prevOutput);
+
+                prevOutput = txn.getOutput(0);
+                txn = getConfirmedSpender(txn);
+            }
+
+            if(candidateTxns.size() < ParallelTxVerifier.MIN_PARALLEL_BATCH)
+                return NO_VERDICTS;
+
+            return sigVerifier.verifySpending(candidateTxns, candidatePrevLinks, chainAddr);
+        } finally {
+            candidateTxns.clear();
+            candidatePrevLinks.clear();
+        }
+    }
+
+    private void checkDoubleSpends() {
+        checkState(lock.isHeldByCurrentThread());
+
+        for(TransactionOutPoint outp : doubleSpent) {
+            // Lies are only defined w.r.t. the TX that made it in the best chain
+            Transaction tx = null;
+            for(Transaction t : spenders.get(outp)) {
+                if(isConfirmed(t)) {
+                    tx = t;
+                    break;
+                }
+            }
+            if(tx == null || looksLikeCatenaTx(tx) == false)
+                continue;
+
+            Transaction prev = getTxn(outp.getHash());
+
+            for(Transaction ds : spenders.get(outp)) {
+                if(ds == tx || whistleblown.contains(ds.getHash()))
+                    continue;
+
+                if(looksLikeCatenaTx(ds) == false) {
+                    whistleblow(ds, "non-Catena TX " + ds.getHash() + " double spent outpoint " + outp);
+                    continue;
+                }
+
+                if(CatenaStatement.hasSameData(tx, ds) == false) {
+                    boolean isCorrectlySigned = prev != null &&
+                            CatenaUtils.isSignedCatenaTxSpending(ds, chainAddr, prev.getOutput(0), sigCache);
+
+                    whistleblow(ds, Utils.fmt(
+                            "Lie detected w.r.t. Catena txid={}, stmt={}: lying txid={}, stmt={}, isCorrectlySigned={}",
+                            tx.getHash(), Utils.toHex(CatenaUtils.getCatenaTxData(tx)), ds.getHash(),
+                            Utils.toHex(CatenaUtils.getCatenaTxData(ds)), isCorrectlySigned));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of statements in the chain, including the archived ones.
+     */
+    public int getNumStatements() {
+        lock.lock();
+        try {
+            if(anchorTxn != null)
+                return (int)numArchived + bq.size();
+            else
+                return bq.isEmpty() ? 0 : bq.size() - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getNumArchivedStatements() {
+        lock.lock();
+        try {
+            return numArchived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the digest of all archived statements (see foldDigest), which is the root-of-trust TXID if nothing was
+     * archived yet.
+     */
+    public Sha256Hash getArchiveDigest() {
+        lock.lock();
+        try {
+            return archiveDigest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of TXs this tracker keeps in memory.
+     */
+    public int getNumTrackedTxns() {
+        lock.lock();
+        try {
+            return txs.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the height of the best-chain block the TX is in, or -1 if it's not in the best chain.
+     */
+    public int getHeight(Sha256Hash txid) {
+        lock.lock();
+        try {
+            StoredBlock b = getConfirmingBlock(txid);
+            return b != null ? b.getHeight() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the height of the best chain, or -1 if we haven't seen any block yet.
+     */
+    public int getChainHeadHeight() {
+        lock.lock();
+        try {
+            return chainHead != null ? chainHead.getHeight() : -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over the confirmed Catena statements in order of issuance if isFwd is true and in reverse
+     * otherwise. Does not include the root-of-trust TXN, nor the archived statements.
+     *
+     * @param isFwd
+     * @return
+     */
+    public Iterator<CatenaStatement> statementIterator(boolean isFwd) {
+        final Vector<CatenaStatement> bqCopy;
+
+        lock.lock();
+        try {
+            int first = anchorTxn == null ? 1 : 0;
+            if(bq.size() <= first)
+                return Collections.emptyIterator();
+
+            bqCopy = new Vector<CatenaStatement>(bq.size());
+            if(isFwd) {
+                for(int i = first; i < bq.size(); i++)
+                    bqCopy.add(bq.get(i));
+            } else {
+                for(int i = bq.size()-1; i >= first; i--)
+                    bqCopy.add(bq.get(i));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return Iterators.unmodifiableIterator(bqCopy.iterator());
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        lock.lock();
+        try {
+            // No need for the archived TXs' blocks anymore
+            return Math.max(earliestTimeSecs, anchorTimeSecs);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+        lock.lock();
+    }
+
+    @Override
+    public int getBloomFilterElementCount() {
+        checkState(lock.isHeldByCurrentThread());
+
+        return 3 + getWatchedOutputTxns().size();
+    }
+
+    @Override
+    public BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        checkState(lock.isHeldByCurrentThread());
+
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        // NOTE: Must reverse the TXID bytes to match them in the Bloom filter.
+        filter.insert(rootOfTrustTxid.getReversedBytes());
+        // Matches the continuation output of every Catena TX
+        filter.insert(chainAddr.getHash160());
+
+        // Matches every TX spending a continuation output, Catena TX or not, since peers match the outpoints in a TX's
+        // inputs against the filter too.
+        filter.insert(new TransactionOutPoint(params, 0, rootOfTrustTxid).unsafeBitcoinSerialize());
+        for(Transaction tx : getWatchedOutputTxns())
+            filter.insert(new TransactionOutPoint(params, 0, tx).unsafeBitcoinSerialize());
+        return filter;
+    }
+
+    /**
+     * Returns the TXs, other than the root-of-trust TX, whose continuation output our Bloom filter matches the
+     * spenders of: the archive's anchor TX and the Catena TXs we track.
+     */
+    private List<Transaction> getWatchedOutputTxns() {
+        checkState(lock.isHeldByCurrentThread());
+
+        List<Transaction> watched = new ArrayList<Transaction>();
+        if(anchorTxn != null && anchorTxn.getHash().equals(rootOfTrustTxid) == false)
+            watched.add(anchorTxn);
+        for(Transaction tx : txs.values()) {
+            if(tx.getHash().equals(rootOfTrustTxid) == false && looksLikeCatenaTx(tx))
+                watched.add(tx);
+        }
+        return watched;
+    }
+
+    @VisibleForTesting
+    int getNumWhistleblownTxns() {
+        lock.lock();
+        try {
+            return whistleblown.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+        lock.unlock();
+    }
+
+    public void addWhistleblowListener(CatenaWhistleblowListener listener) {
+        whistleblowListeners.add(new ListenerRegistration<CatenaWhistleblowListener>(listener, executor));
+    }
+
+    public void addStatementListener(CatenaStatementListener listener) {
+        stmtListeners.add(new ListenerRegistration<CatenaStatementListener>(listener, executor));
+    }
+
+    public void addReorganizeListener(CatenaReorganizeListener listener) {
+        reorgListeners.add(new ListenerRegistration<CatenaReorganizeListener>(listener, executor));
+    }
+
+    private void whistleblow(Transaction tx, String message) {
+        if(whistleblown.add(tx.getHash()) == false)
+            return;
+
+        log.warn("Whistleblowing on TX {}: {}", tx.getHash(), message);
+        queueOnWhistleblow(tx, message);
+    }
+
+    private void queueOnAppend(final CatenaStatement s) {
+        for (final ListenerRegistration<CatenaStatementListener> registration : stmtListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStatementAppended(s);
+                }
+            });
+        }
+    }
+
+    private void queueOnWithdrawn(Stack<CatenaStatement> withdrawnStack) {
+        while(!withdrawnStack.isEmpty()) {
+            final CatenaStatement s = withdrawnStack.pop();
+
+            for (final ListenerRegistration<CatenaStatementListener> registration : stmtListeners) {
+                registration.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.listener.onStatementWithdrawn(s);
+                    }
+                });
+            }
+        }
+    }
+
+    private void queueOnWhistleblow(final Transaction tx, final String message) {
+        for (final ListenerRegistration<CatenaWhistleblowListener> registration : whistleblowListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onWhistleblow(tx, message);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param archive	saved to the archive file once the sink returns, or null
+     */
+    private void queueOnArchived(final long seqNum, final CatenaStatement s, final Sha256Hash digest,
+            final CatenaArchive archive) {
+        final ListenerRegistration<CatenaStatementSink> registration = sink;
+        final File file = archiveFile;
+        registration.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                registration.listener.onStatementArchived(seqNum, s, digest);
+
+                if(archive != null) {
+                    try {
+                        archive.writeTo(file);
+                    } catch(IOException e) {
+                        log.error("Could not save the archive to " + file, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void queueOnReorganize(final int oldNumBlocks, final int newNumBlocks, final BigInteger oldChainWork,
+            final BigInteger newChainWork)
+    {
+        for (final ListenerRegistration<CatenaReorganizeListener> registration : reorgListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onReorganize(oldNumBlocks, newNumBlocks, oldChainWork, newChainWork);
+                }
+            });
+        }
+    }
+}
@@ -5,9 +5,18 @@ import static com.google.common.base.Preconditions.*;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
 import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Peer;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.WalletProtobufSerializer.WalletFactory;
 import org.catena.common.CatenaService;
@@ -15,10 +24,17 @@ import org.catena.common.CatenaWalletExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Throwables;
+
 public class CatenaClient extends CatenaService {
     
     private static final Logger log = LoggerFactory.getLogger(CatenaClient.class);
     protected static final String BITCOINJ_FILE_PREFIX = "catena-client";
+    
+    /**
+     * The number of snapshot statements whose blocks we fetch from a peer and check, after importing a snapshot.
+     */
+    public static final int NUM_SNAPSHOT_SPOT_CHECKS = 3;
         
     /**
      * We need this until bitcoinj allows us to rewind the blockchain and redownload
@@ -31,6 +47,33 @@ public class CatenaClient extends CatenaService {
      */
     protected Sha256Hash rootOfTrustTxid;
     
+    /**
+     * The block that confirmed the root-of-trust TXN, if given (see setRootOfTrustBlock()).
+     */
+    private int rootBlockHeight = -1;
+    private Sha256Hash rootBlockHash;
+    private long rootBlockTimeSecs;
+    
+    /**
+     * The block right before the root-of-trust block, if given, which new clients start syncing headers from.
+     */
+    private StoredBlock rootCheckpoint;
+    
+    /**
+     * The snapshot a new client starts from (see importSnapshot()), or the one an old client started from, if any.
+     */
+    private CatenaSnapshot snapshot;
+    
+    /**
+     * True if we adopted the snapshot in this run, so the block store must be seeded with its last block.
+     */
+    private boolean isSnapshotNew = false;
+    
+    /**
+     * True if the snapshot has not passed its spot check yet, in this run or before a restart (see SnapshotFile).
+     */
+    private boolean isSnapshotUnchecked = false;
+    
     /**
      * The number of confirmations needed before a Catena statement is considered
      * valid.
@@ -49,6 +92,11 @@ public class CatenaClient extends CatenaService {
      */
     private CatenaWalletExtension ext;
     
+    /**
+     * Where to record the wallet's events to (see recordWalletEvents()), if anywhere.
+     */
+    private File walletEventsFile;
+    
     /**
      * Creates a Catena client from scratch given a root-of-trust TXID.
      * 
@@ -95,6 +143,186 @@ public class CatenaClient extends CatenaService {
         return new ClientWallet.Factory();
     }
     
+    /**
+     * Tells a new client which block confirmed the root-of-trust TXN (e.g., from the config file the Catena server
+     * generated), so it does not have to sync from the genesis block: the block store is seeded with the checkpoint
+     * (the block right before the root-of-trust block), or with bitcoinj's bundled checkpoints before the root block's
+     * time, if there are any, and full blocks are only downloaded starting around the root block's time. Ignored when
+     * restarting an old client, which keeps the root-of-trust block in its wallet. Must be called before the client is
+     * started.
+     *
+     * @param height
+     * @param hash
+     * @param timeSecs
+     * @param checkpoint    the block right before the root-of-trust block, or null if not known
+     */
+    public void setRootOfTrustBlock(int height, Sha256Hash hash, long timeSecs, StoredBlock checkpoint) {
+        checkState(state() == State.NEW, "root-of-trust block must be set before the client is started");
+        checkArgument(height > 0 && timeSecs > 0);
+        checkArgument(checkpoint == null || checkpoint.getHeight() == height - 1, 
+                "checkpoint must be the block before the root-of-trust block");
+        
+        this.rootBlockHeight = height;
+        this.rootBlockHash = checkNotNull(hash);
+        this.rootBlockTimeSecs = timeSecs;
+        this.rootCheckpoint = checkpoint;
+    }
+    
+    /**
+     * Tells a new client to start from a snapshot of the Catena log exported by another client (see 
+     * exportSnapshot()), rather than from the root-of-trust TXN: the client adopts the snapshot's statements without
+     * verifying their signatures, and syncs and verifies only the blocks after the snapshot's height, much like
+     * Bitcoin Core's "assume-valid". Once the client has synced, it checks that the snapshot's last block is on the
+     * best chain, and fetches the blocks of a few of the snapshot's statements from a peer to check that the
+     * statements are really in them (see NUM_SNAPSHOT_SPOT_CHECKS), failing to start if they are not. 
+     * 
+     * The snapshot is kept in the client's directory, since the client needs it after restarts too. A client restarted
+     * before the snapshot passed its spot check checks it again (see SnapshotFile). Ignored when restarting an old
+     * client. Must be called before the client is started.
+     *
+     * @throws VerificationException if the snapshot is not consistent with itself or with our chain
+     */
+    public void importSnapshot(CatenaSnapshot s) throws VerificationException {
+        checkState(state() == State.NEW, "snapshot must be imported before the client is started");
+        checkArgument(s.getRootOfTrustTxid().equals(rootOfTrustTxid), "snapshot is for a different chain: " + 
+                s.getRootOfTrustTxid());
+        s.verify(expectedChainAddr);
+        
+        this.snapshot = s;
+    }
+    
+    /**
+     * Records the blocks, TXs and reorgs the wallet is told about from now on to a file, along with the wallet's 
+     * state when the client starts, so that WalletEventReplayer can replay them on a fresh wallet to benchmark or 
+     * profile the client offline. Not supported for clients that started from a snapshot, since their statements up to
+     * the snapshot are not in the wallet. Must be called before the client is started.
+     */
+    public void recordWalletEvents(File file) {
+        checkState(state() == State.NEW, "wallet events must be recorded from before the client is started");
+        this.walletEventsFile = checkNotNull(file);
+    }
+    
+    /**
+     * Exports the statements confirmed at or below the specified height as a snapshot for new clients to import.
+     * 
+     * @throws BlockStoreException
+     */
+    public CatenaSnapshot exportSnapshot(int maxHeight) throws BlockStoreException {
+        return getCatenaWallet().exportSnapshot(maxHeight, store());
+    }
+    
+    private SnapshotFile getSnapshotFile() {
+        return new SnapshotFile(directory, BITCOINJ_FILE_PREFIX);
+    }
+    
+    /**
+     * WalletAppKit calls this after loading the wallet, but before deciding whether to checkpoint the block store
+     * (which it does based on ClientWallet::getEarliestKeyCreationTime), so this is where we record the root-of-trust
+     * block in a new wallet, adopt a snapshot, and seed a new block store with our own checkpoint.
+     */
+    @Override
+    protected BlockStore provideBlockStore(File file) throws BlockStoreException {
+        ClientWallet wallet = getCatenaWallet();
+        CatenaWalletExtension ext = wallet.getCatenaExtension();
+        boolean isNewWallet = ext.hasRootOfTrustTxid() == false;
+        
+        // NOTE: Before creating the store, since a shared one starts from the wallet's earliest key time
+        maybeAdoptSnapshot(wallet, isNewWallet);
+        if(isNewWallet && rootBlockHeight != -1 && ext.hasRootOfTrustBlock() == false) {
+            log.info("Syncing from root-of-trust block #" + rootBlockHeight + " " + rootBlockHash);
+            ext.setRootOfTrustBlock(rootBlockHeight, rootBlockHash, rootBlockTimeSecs);
+        }
+        
+        BlockStore store = super.provideBlockStore(file);
+        // A snapshot's last block is a later checkpoint than the root-of-trust one
+        StoredBlock checkpoint = isSnapshotNew ? snapshot.getAnchorBlock() : rootCheckpoint;
+        if(checkpoint != null && store.getChainHead().getHeight() == 0) {
+            log.info("Seeding block store with checkpoint #" + checkpoint.getHeight() + " " + 
+                    checkpoint.getHeader().getHash());
+            store.put(checkpoint);
+            store.setChainHead(checkpoint);
+        }
+        return store;
+    }
+    
+    private void maybeAdoptSnapshot(ClientWallet wallet, boolean isNewWallet) {
+        SnapshotFile snapshotFile = getSnapshotFile();
+        try {
+            if(isNewWallet && snapshot != null) {
+                snapshotFile.writeUnchecked(snapshot);
+                isSnapshotNew = true;
+                isSnapshotUnchecked = true;
+                
+                CatenaWalletExtension ext = wallet.getCatenaExtension();
+                if(ext.hasRootOfTrustBlock() == false)
+                    ext.setRootOfTrustBlock(snapshot.getHeight(0), snapshot.getBlockHash(0), snapshot.getTimeSecs(0));
+            } else if(isNewWallet == false && snapshotFile.exists()) {
+                snapshot = snapshotFile.read(params);
+                isSnapshotUnchecked = snapshotFile.isChecked() == false;
+                if(isSnapshotUnchecked)
+                    log.warn("The snapshot we started from did not pass its spot check yet, checking it again");
+            } else if(snapshot != null) {
+                log.warn("Ignoring snapshot, since we are restarting a client that did not start from one");
+                snapshot = null;
+            }
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        }
+        
+        if(snapshot != null)
+            wallet.adoptSnapshot(snapshot);
+    }
+    
+    /**
+     * With blocking startup, WalletAppKit has synced the block chain by the time this returns, so this is where we
+     * spot-check a snapshot we adopted against the live chain. Only then is the snapshot marked as checked, so a
+     * client that fails here fails again after a restart, rather than trusting the snapshot.
+     */
+    @Override
+    protected void startUp() throws Exception {
+        super.startUp();
+        
+        isSnapshotNew = false;
+        if(isSnapshotUnchecked) {
+            spotCheckSnapshot(NUM_SNAPSHOT_SPOT_CHECKS);
+            getSnapshotFile().markChecked();
+            isSnapshotUnchecked = false;
+        }
+    }
+    
+    private void spotCheckSnapshot(int numChecks) throws Exception {
+        StoredBlock anchorBlock = snapshot.getAnchorBlock();
+        
+        // The snapshot's last block must be on the best chain. We seeded the block store with it, so if we can't walk
+        // back to it, we can't tell and we don't adopt the snapshot.
+        StoredBlock cursor = store().getChainHead();
+        while(cursor != null && cursor.getHeight() > anchorBlock.getHeight())
+            cursor = cursor.getPrev(store());
+        if(cursor == null)
+            throw new VerificationException("could not check that the snapshot's last block " + 
+                    anchorBlock.getHeader().getHash() + " is on the best chain, since the block store does not go " +
+                    "back to height " + anchorBlock.getHeight() + "; start without the snapshot to do a full sync");
+        if(cursor.getHeader().getHash().equals(anchorBlock.getHeader().getHash()) == false)
+            throw new VerificationException("snapshot's last block " + anchorBlock.getHeader().getHash() + 
+                    " is not on the best chain, which has block " + cursor.getHeader().getHash() + " instead");
+        
+        Peer peer = peerGroup().getDownloadPeer();
+        if(peer == null)
+            throw new VerificationException("no peer to fetch snapshot blocks from, so we could not spot-check the " +
+                    "snapshot's statements; start without the snapshot to do a full sync");
+        
+        // Always check the last statement, since everything after it builds on it, and then a few random ones
+        Random rand = new Random();
+        for(int c = 0; c < Math.min(numChecks, snapshot.size()); c++) {
+            int i = c == 0 ? snapshot.size() - 1 : rand.nextInt(snapshot.size());
+            Block block = peer.getBlock(snapshot.getBlockHash(i)).get(60, TimeUnit.SECONDS);
+            snapshot.spotCheck(i, block);
+            log.debug("Spot-checked snapshot statement #{} in block {}", i, block.getHash());
+        }
+        log.info("Spot-checked {} snapshot statements against blocks from {}", Math.min(numChecks, snapshot.size()), 
+                peer);
+    }
+    
     public void setNumConfirmationsRequired(int num) {
         checkState(num > 0);
         this.numConfirmationsRequired = num;
@@ -105,7 +333,40 @@ public class CatenaClient extends CatenaService {
      * TXs and keys from the wallet are also available by this point. 
      */
     protected void onSetupCompleted() {
+        super.onSetupCompleted();
+        getCatenaWallet().setStatementTracer(getStatementTracer());
+        boolean isRebooting = wallet().getWatchedAddresses().isEmpty() == false;
         beforeBlockChainDownload();
+        registerMBean(wallet.getStats(), "ClientWalletStats");
+        
+        if(walletEventsFile != null)
+            startRecordingWalletEvents(isRebooting);
+    }
+    
+    private void startRecordingWalletEvents(boolean isRebooting) {
+        if(snapshot != null) {
+            log.warn("Not recording wallet events to " + walletEventsFile + ", since we started from a snapshot");
+            return;
+        }
+        
+        try {
+            wallet.setEventRecorder(new WalletEventRecorder(walletEventsFile, wallet, isRebooting));
+        } catch(IOException e) {
+            log.error("Could not record wallet events to " + walletEventsFile, e);
+        }
+    }
+    
+    @Override
+    protected void shutDown() throws Exception {
+        try {
+            super.shutDown();
+        } finally {
+            WalletEventRecorder recorder = wallet != null ? wallet.getEventRecorder() : null;
+            if(recorder != null) {
+                wallet.setEventRecorder(null);
+                recorder.close();
+            }
+        }
     }
     
     /**
@@ -131,12 +392,17 @@ public class CatenaClient extends CatenaService {
             // Here we Bloom filter for the root-of-trust TXID but because bitcoinj is limited and cannot redownload
             // the chain after it matched this TXN, we have to also specify the chain address here to make sure we don't
             // miss relevant blocks and TXs.
-            peerGroup().addPeerFilterProvider(new TxidBloomFilterProvider(rootOfTrustTxid));
+            long earliestTimeSecs = ext.hasRootOfTrustBlock() ? ext.getRootOfTrustBlockTimeSecs() : 1;
+            peerGroup().addPeerFilterProvider(new TxidBloomFilterProvider(rootOfTrustTxid, earliestTimeSecs));
             wallet.addWatchedAddress(expectedChainAddr);
             ext.setRootOfTrustTxid(rootOfTrustTxid);
             
             // NOTE: Cannot set name of chain here because don't have the root-of-trust TX with the name yet
             
+            // Unless we started from a snapshot, which has the root-of-trust TX and the statements up to its height
+            if(snapshot != null)
+                listener.onWalletChanged(wallet);
+            
         // Otherwise, we have the chain's address in our watched addresses list which means we can read back the 
         // root-of-trust txid saved in our CatenaWalletExtension.
         } else {
@@ -0,0 +1,240 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.catena.common.CatenaStatement;
+import org.catena.common.CatenaUtils;
+
+/**
+ * A snapshot of a Catena log up to some block height, exported by a client that has verified it, so that new clients
+ * can adopt it instead of replaying the whole chain from the root-of-trust TX (see CatenaClient::importSnapshot).
+ * Think of it as Bitcoin Core's "assume-valid", but for Catena logs: we do not re-verify the signatures of the
+ * statements in the snapshot, but everything after it is verified as usual.
+ *
+ * A snapshot has the statements in BQ (including the root-of-trust one), along with the height, header timestamp and
+ * hash of the blocks that confirmed them, the digest of the statements (see CatenaChainTracker::foldDigest), the
+ * root-of-trust TX and the snapshot's last TX (its "anchor", which new statements will spend), and the anchor's block,
+ * which new clients start syncing headers from.
+ */
+public class CatenaSnapshot {
+
+    private static final int MAGIC = 0x43544e53;     // "CTNS"
+    private static final int VERSION = 1;
+
+    private final Transaction rootTxn;
+    private final List<CatenaStatement> statements;
+    private final int[] heights;
+    private final long[] times;
+    private final List<Sha256Hash> blockHashes;
+    private final Sha256Hash digest;
+    private final Transaction anchorTxn;
+    private final StoredBlock anchorBlock;
+
+    public CatenaSnapshot(Transaction rootTxn, List<CatenaStatement> statements, int[] heights, long[] times,
+            List<Sha256Hash> blockHashes, Transaction anchorTxn, StoredBlock anchorBlock) {
+        checkArgument(statements.isEmpty() == false, "snapshot must have at least the root-of-trust statement");
+        checkArgument(heights.length == statements.size() && times.length == statements.size() &&
+                blockHashes.size() == statements.size());
+
+        this.rootTxn = checkNotNull(rootTxn);
+        this.statements = Collections.unmodifiableList(new ArrayList<CatenaStatement>(statements));
+        this.heights = heights.clone();
+        this.times = times.clone();
+        this.blockHashes = Collections.unmodifiableList(new ArrayList<Sha256Hash>(blockHashes));
+        this.anchorTxn = checkNotNull(anchorTxn);
+        this.anchorBlock = checkNotNull(anchorBlock);
+
+        Sha256Hash d = rootTxn.getHash();
+        for(int i = 1; i < statements.size(); i++)
+            d = CatenaChainTracker.foldDigest(d, statements.get(i));
+        this.digest = d;
+    }
+
+    public Sha256Hash getRootOfTrustTxid() { return rootTxn.getHash(); }
+
+    public Transaction getRootOfTrustTxn() { return rootTxn; }
+
+    /**
+     * Returns the number of statements, including the root-of-trust one.
+     */
+    public int size() { return statements.size(); }
+
+    public CatenaStatement getStatement(int i) { return statements.get(i); }
+
+    public int getHeight(int i) { return heights[i]; }
+
+    public long getTimeSecs(int i) { return times[i]; }
+
+    public Sha256Hash getBlockHash(int i) { return blockHashes.get(i); }
+
+    public Sha256Hash getDigest() { return digest; }
+
+    public Transaction getAnchorTxn() { return anchorTxn; }
+
+    public StoredBlock getAnchorBlock() { return anchorBlock; }
+
+    /**
+     * Returns the height of the snapshot, which is the height of its last statement.
+     */
+    public int getHeight() { return heights[heights.length - 1]; }
+
+    /**
+     * Cheap checks that the snapshot is consistent with itself and with the chain we expect: that the TXs are the
+     * ones the statements claim, that they pay the chain's address, and that heights and blocks line up.
+     *
+     * @throws VerificationException
+     */
+    public void verify(Address chainAddr) throws VerificationException {
+        int last = statements.size() - 1;
+
+        if(CatenaUtils.maybeCatenaTx(rootTxn, chainAddr) == false)
+            throw new VerificationException("root-of-trust TX in snapshot is not a Catena TX for " + chainAddr);
+        if(statements.get(0).getTxHash().equals(rootTxn.getHash()) == false ||
+           statements.get(0).hasSameData(CatenaStatement.fromTxn(rootTxn)) == false)
+            throw new VerificationException("first statement in snapshot is not the root-of-trust statement");
+
+        if(CatenaUtils.maybeCatenaTx(anchorTxn, chainAddr) == false)
+            throw new VerificationException("anchor TX in snapshot is not a Catena TX for " + chainAddr);
+        if(statements.get(last).getTxHash().equals(anchorTxn.getHash()) == false ||
+           statements.get(last).hasSameData(CatenaStatement.fromTxn(anchorTxn)) == false)
+            throw new VerificationException("last statement in snapshot is not the anchor TX's statement");
+
+        for(int i = 1; i <= last; i++) {
+            if(heights[i] < heights[i - 1])
+                throw new VerificationException("statement heights decrease at statement #" + i);
+        }
+
+        if(anchorBlock.getHeight() != heights[last] ||
+           anchorBlock.getHeader().getHash().equals(blockHashes.get(last)) == false)
+            throw new VerificationException("anchor block " + anchorBlock + " does not match the last statement");
+    }
+
+    /**
+     * Checks the i-th statement against a full block we fetched from a peer: the block must be the one the snapshot
+     * says, its header and TXs must check out, and it must have the statement's TX in it.
+     *
+     * @throws VerificationException
+     */
+    public void spotCheck(int i, Block block) throws VerificationException {
+        if(block.getHash().equals(blockHashes.get(i)) == false)
+            throw new VerificationException("expected block " + blockHashes.get(i) + " but got " + block.getHash());
+
+        block.verify(heights[i], EnumSet.noneOf(Block.VerifyFlag.class));
+
+        CatenaStatement s = statements.get(i);
+        for(Transaction tx : block.getTransactions()) {
+            if(tx.getHash().equals(s.getTxHash())) {
+                if(CatenaUtils.maybeCatenaTx(tx) && s.hasSameData(CatenaStatement.fromTxn(tx)))
+                    return;
+                break;
+            }
+        }
+        throw new VerificationException("block " + block.getHash() + " does not have statement #" + i);
+    }
+
+    public void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBytes(out, rootTxn.bitcoinSerialize());
+            out.writeInt(statements.size());
+            for(int i = 0; i < statements.size(); i++) {
+                out.write(statements.get(i).getTxHash().getBytes());
+                writeBytes(out, statements.get(i).getData());
+                out.writeInt(heights[i]);
+                out.writeLong(times[i]);
+                out.write(blockHashes.get(i).getBytes());
+            }
+            out.write(digest.getBytes());
+            writeBytes(out, anchorTxn.bitcoinSerialize());
+            ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            anchorBlock.serializeCompact(buf);
+            out.write(buf.array());
+        }
+    }
+
+    /**
+     * Reads back a snapshot written by writeTo(). Checks that the digest matches the statements, but does not call
+     * verify().
+     *
+     * @throws IOException
+     * @throws VerificationException
+     */
+    public static CatenaSnapshot readFrom(NetworkParameters params, File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if(in.readInt() != MAGIC)
+                throw new IOException("Not a Catena snapshot file: " + file);
+            int version = in.readInt();
+            if(version != VERSION)
+                throw new IOException("Unsupported Catena snapshot version " + version + ": " + file);
+
+            Transaction rootTxn = new Transaction(params, readBytes(in));
+            int n = in.readInt();
+            checkArgument(n > 0, "snapshot has no statements");
+
+            List<CatenaStatement> statements = new ArrayList<CatenaStatement>(n);
+            List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>(n);
+            int[] heights = new int[n];
+            long[] times = new long[n];
+            for(int i = 0; i < n; i++) {
+                Sha256Hash txid = readHash(in);
+                statements.add(CatenaStatement.fromTxnHash(txid, readBytes(in)));
+                heights[i] = in.readInt();
+                times[i] = in.readLong();
+                blockHashes.add(readHash(in));
+            }
+            Sha256Hash digest = readHash(in);
+            Transaction anchorTxn = new Transaction(params, readBytes(in));
+            byte[] block = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            in.readFully(block);
+            StoredBlock anchorBlock = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(block));
+
+            CatenaSnapshot snapshot = new CatenaSnapshot(rootTxn, statements, heights, times, blockHashes, anchorTxn,
+                    anchorBlock);
+            if(snapshot.getDigest().equals(digest) == false)
+                throw new VerificationException("snapshot digest " + digest + " does not match its statements");
+            return snapshot;
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if(len < 0 || len > Block.MAX_BLOCK_SIZE)
+            throw new IOException("Invalid length in Catena snapshot: " + len);
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+
+    private static Sha256Hash readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        in.readFully(hash);
+        return Sha256Hash.wrap(hash);
+    }
+}
@@ -0,0 +1,25 @@
+package org.catena.client;
+
+import org.catena.common.CatenaStatement;
+
+/**
+ * Opt-in listener for statements whose TXs are correctly signed and chained after the last confirmed statement, but
+ * are still PENDING. Every speculated statement is eventually followed by exactly one onStatementConfirmed or
+ * onStatementRetracted call. Consumers that cannot afford to act on a statement that might be retracted should use
+ * CatenaStatementListener instead.
+ */
+public interface CatenaSpeculativeListener {
+
+    public void onStatementSpeculated(CatenaStatement s);
+
+    /**
+     * Called when a speculated statement made it into the chain of confirmed statements. The statement passed here
+     * might come from a different TX than the speculated one (e.g., one with a higher fee), but commits the same data.
+     */
+    public void onStatementConfirmed(CatenaStatement s);
+
+    /**
+     * Called when a speculated statement's TX was double spent or forked out before it got confirmed.
+     */
+    public void onStatementRetracted(CatenaStatement s);
+}
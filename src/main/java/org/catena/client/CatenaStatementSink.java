@@ -0,0 +1,18 @@
+package org.catena.client;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.catena.common.CatenaStatement;
+
+/**
+ * Receives the statements that a bounded-memory CatenaChainTracker stops keeping in memory, in order of issuance.
+ */
+public interface CatenaStatementSink {
+
+    /**
+     * @param seqNum	the statement's position in the chain, starting at 1 for the first statement after the
+     * root-of-trust TX
+     * @param s
+     * @param digest	the hash-chain digest of all statements up to and including s
+     */
+    public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest);
+}
@@ -89,9 +89,11 @@ public class CatenaWalletListener implements WalletCoinsSentEventListener, Walle
     public void onCoinsReceived(Wallet wallet, Transaction tx, Coin prevbal, Coin newbal) {
         Context.propagate(wallet.getContext());
         
-        log.trace("(" + prevbal.toFriendlyString() + " -> " + newbal.toFriendlyString() + ")" + 
-                ", txid=" + tx.getHashAsString() +
-                ", spends[0]=" + tx.getInput(0).getOutpoint());
+        if(log.isTraceEnabled()) {
+            log.trace("(" + prevbal.toFriendlyString() + " -> " + newbal.toFriendlyString() + ")" + 
+                    ", txid=" + tx.getHashAsString() +
+                    ", spends[0]=" + tx.getInput(0).getOutpoint());
+        }
     }
     
     /**
@@ -104,9 +106,11 @@ public class CatenaWalletListener implements WalletCoinsSentEventListener, Walle
         // Do not proceed updating the Catena chain until we have received and processed the root-of-trust TXN (we
         // cannot reason about a Catena chain without a root-of-trust TXN). 
         // NOTE: Even rebooted wallets might not have received the root of trust TXN.
-        Transaction tx = wallet.getTransaction(wallet.getCatenaExtension().getRootOfTrustTxid());
-        if(wallet.processRootOfTrustTxn(tx) == false) {
-            return;
+        if(wallet.processedRootOfTrustTxn == false) {
+            Transaction tx = wallet.getTransaction(wallet.getCatenaExtension().getRootOfTrustTxid());
+            if(wallet.processRootOfTrustTxn(tx) == false) {
+                return;
+            }
         }
 
         // Don't call statement listeners during wallet reboots unless told to do so specifically
@@ -3,11 +3,15 @@ package org.catena.client;
 import org.bitcoinj.core.*;
 
 import org.catena.common.CatenaApp;
+import org.catena.common.CatenaStatement;
+import org.catena.common.CatenaUtils;
 import org.catena.common.Utils;
 
 import com.google.common.base.Throwables;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
 import java.util.Scanner;
 
 public class ClientApp extends CatenaApp {
@@ -20,7 +24,8 @@ public class ClientApp extends CatenaApp {
         //BriefLogFormatter.init();
         
         if (args.length < 3) {
-            System.err.println("Usage: <root-of-trust-txid> <expected-chain-addr> mainnet|testnet|regtest");
+            System.err.println("Usage: <root-of-trust-txid> <expected-chain-addr> mainnet|testnet|regtest [<datadir>] " +
+                    "[<root-height>:<root-block-hash>:<root-block-time>[:<checkpoint>]]");
             return;
         }
 
@@ -54,10 +59,57 @@ public class ClientApp extends CatenaApp {
             return;
         }
 
+        // Only monitor the chain instead, keeping its last N statements in memory and appending older ones to a file
+        // (e.g., with -Dcatena.tipWindow=<N> and -Dcatena.archiveTo=<file>, or to stdout if no file is given)
+        String tipWindow = System.getProperty("catena.tipWindow");
+        if(tipWindow != null) {
+            long earliestTimeSecs = 1;
+            if(args.length > 4 && args[4].equals("-") == false)
+                earliestTimeSecs = Long.parseLong(args[4].split(":")[2]);
+
+            monitor(Integer.parseInt(tipWindow), System.getProperty("catena.archiveTo"), earliestTimeSecs);
+            return;
+        }
+
         // Client can tell if it needs the chainAddr and txid or not, by looking in its wallet
         client = new CatenaClient(params, new File(directory), txid, chainAddr, null);
         svc = client;
         
+        // Parse the (optional) root-of-trust block, so we don't sync from the genesis block
+        if(args.length > 4 && args[4].equals("-") == false) {
+            try {
+                String[] parts = args[4].split(":");
+                StoredBlock checkpoint = parts.length > 3 ? CatenaUtils.decodeCheckpoint(params, parts[3]) : null;
+                client.setRootOfTrustBlock(Integer.parseInt(parts[0]), Sha256Hash.wrap(parts[1]), 
+                        Long.parseLong(parts[2]), checkpoint);
+            } catch(Exception e) {
+                System.err.println(Utils.fmt("Error decoding root-of-trust block '{}': {}.\n", args[4], e.getMessage()));
+                System.err.println("Stack trace from exception: " + Throwables.getStackTraceAsString(e));
+                System.exit(1);
+                return;
+            }
+        }
+        
+        // Start from a snapshot of the chain exported by another client, if given (e.g., with 
+        // -Dcatena.importSnapshot=<file>)
+        String snapshotPath = System.getProperty("catena.importSnapshot");
+        if(snapshotPath != null) {
+            try {
+                client.importSnapshot(CatenaSnapshot.readFrom(params, new File(snapshotPath)));
+            } catch(Exception e) {
+                System.err.println(Utils.fmt("Error importing snapshot '{}': {}.\n", snapshotPath, e.getMessage()));
+                System.err.println("Stack trace from exception: " + Throwables.getStackTraceAsString(e));
+                System.exit(1);
+                return;
+            }
+        }
+        
+        // Record the wallet's events for WalletEventReplayer, if asked to (e.g., with 
+        // -Dcatena.recordWalletEvents=<file>)
+        String eventsPath = System.getProperty("catena.recordWalletEvents");
+        if(eventsPath != null)
+            client.recordWalletEvents(new File(eventsPath));
+        
         connectAndStart(new Runnable() {
             @Override
             public void run() {
@@ -67,7 +119,7 @@ public class ClientApp extends CatenaApp {
     }
 
     private static void cmdlineUi() {
-        final int LIST_FIRST = 1, LIST_LAST = 2, PRINT_CONFIG = 3, EXIT = 4;
+        final int LIST_FIRST = 1, LIST_LAST = 2, PRINT_CONFIG = 3, EXPORT_SNAPSHOT = 4, EXIT = 5;
         
         Scanner scanner = new Scanner(System.in);
         
@@ -76,9 +128,10 @@ public class ClientApp extends CatenaApp {
             System.out.println("1. List first statements");
             System.out.println("2. List last statements");
             System.out.println("3. Print Catena client config and stats");
-            System.out.println("4. Exit");
+            System.out.println("4. Export snapshot of the chain for new clients");
+            System.out.println("5. Exit");
             System.out.println("");
-            System.out.print("Please enter your command (from 1-4): ");
+            System.out.print("Please enter your command (from 1-5): ");
             
             int opt;
             try {
@@ -88,7 +141,7 @@ public class ClientApp extends CatenaApp {
                 }
                 opt = Integer.parseInt(line);
             } catch(NumberFormatException e) {
-                System.out.println("\nERROR: You must enter a number between 1 and 4! Try again...");
+                System.out.println("\nERROR: You must enter a number between 1 and 5! Try again...");
                 continue;
             }
             
@@ -105,10 +158,13 @@ public class ClientApp extends CatenaApp {
                 case PRINT_CONFIG:
                     printConfigHandler();
                     break;
+                case EXPORT_SNAPSHOT:
+                    exportSnapshotHandler(scanner);
+                    break;
                 case EXIT:
                     break uiloop;
                 default:
-                    System.out.println("\nERROR: You must enter a number between 1 and 4! Try again...");
+                    System.out.println("\nERROR: You must enter a number between 1 and 5! Try again...");
                     break;
                 }
             } catch(Throwable e) {
@@ -118,4 +174,50 @@ public class ClientApp extends CatenaApp {
         
         scanner.close();
     }
+
+    /**
+     * Follows the chain with a bounded-memory MultiChainCatenaClient until the user presses Enter. The archived
+     * statements are written one per line, as: <seqNum> <txid> <hex data> <digest>. After a restart, the monitor
+     * resumes from its archive, so it only writes the statements it did not write before.
+     */
+    private static void monitor(int tipWindow, String archivePath, long earliestTimeSecs) throws Exception {
+        final PrintStream out = archivePath == null ? System.out :
+            new PrintStream(new FileOutputStream(archivePath, true), true);
+
+        MultiChainCatenaClient monitor = new MultiChainCatenaClient(params, new File(directory));
+        if(isRegtestEnv)
+            monitor.connectToLocalHost();
+
+        monitor.follow(txid, chainAddr, earliestTimeSecs, tipWindow, new CatenaStatementSink() {
+            @Override
+            public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest) {
+                out.println(seqNum + " " + s.getTxHash() + " " + Utils.toHex(s.getData()) + " " + digest);
+            }
+        });
+        monitor.startAsync();
+        monitor.awaitRunning();
+
+        System.out.printf("Following chain %s with a tip window of %d statement(s). Press Enter to exit.\n", txid,
+                tipWindow);
+        Scanner scanner = new Scanner(System.in);
+        scanner.nextLine();
+        scanner.close();
+
+        monitor.stopAsync();
+        monitor.awaitTerminated();
+        if(out != System.out)
+            out.close();
+    }
+
+    private static void exportSnapshotHandler(Scanner scanner) throws Exception {
+        System.out.print("Please enter the file to export the snapshot to: ");
+        File file = new File(scanner.nextLine());
+        
+        // Leave out the last few blocks, which could still be reorged out
+        int height = svc.chain().getBestChainHeight() - 6;
+        CatenaSnapshot snapshot = client.exportSnapshot(height);
+        snapshot.writeTo(file);
+        System.out.printf("\nExported %d statements up to height %d (digest %s) to %s\n", snapshot.size() - 1, 
+                snapshot.getHeight(), snapshot.getDigest(), file);
+    }
 }
\ No newline at end of file
@@ -1,41 +1,61 @@
 package org.catena.client;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.Date;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.concurrent.GuardedBy;
 
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.utils.ListenerRegistration;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.KeyChainGroup;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletProtobufSerializer.WalletFactory;
+import org.bitcoinj.wallet.WalletTransaction;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.catena.common.CatenaEvents;
 import org.catena.common.CatenaStatement;
 import org.catena.common.CatenaUtils;
 import org.catena.common.CatenaWalletExtension;
+import org.catena.common.ParallelTxVerifier;
+import org.catena.common.RawCatenaTx;
+import org.catena.common.SignatureCache;
 import org.catena.common.SimpleWallet;
+import org.catena.common.StatementTracer;
+import org.catena.common.SyncProgress;
 import org.catena.common.TxUtils;
 import org.catena.common.Utils;
 import org.slf4j.Logger;
@@ -44,7 +64,7 @@ import org.slf4j.LoggerFactory;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Iterators;
 
-public class ClientWallet extends SimpleWallet {
+public class ClientWallet extends SimpleWallet implements SyncProgress.Counters {
     private static final Logger log = LoggerFactory.getLogger(ClientWallet.class);
     
     /**
@@ -62,11 +82,32 @@ public class ClientWallet extends SimpleWallet {
         = new CopyOnWriteArrayList<ListenerRegistration<CatenaReorganizeListener>>();
     private CopyOnWriteArrayList<ListenerRegistration<CatenaWhistleblowListener>> whistleblowListeners
         = new CopyOnWriteArrayList<ListenerRegistration<CatenaWhistleblowListener>>();
+    private final CopyOnWriteArrayList<ListenerRegistration<CatenaSpeculativeListener>> specListeners
+        = new CopyOnWriteArrayList<ListenerRegistration<CatenaSpeculativeListener>>();
     
     /**
      * The chain of confirmed Catena statements (i.e., their TXNs are in BUILDING status), aka the building queue (BQ).
      */
     @GuardedBy("lock") protected Stack<CatenaStatement> bq = new Stack<CatenaStatement>();
+
+    /**
+     * The inclusion block height, hash and timestamp of every statement in BQ (same indices as BQ), for range queries.
+     * Only pushBq() and popBq() should modify BQ, so that the two stay in sync.
+     */
+    @GuardedBy("lock") private final StatementTimeIndex bqTimes = new StatementTimeIndex();
+
+    /**
+     * The blocks we've seen Catena TXNs in, so that we can look up the timestamps of the blocks that confirmed them.
+     * Not persisted: after a restart we fall back to the TXN's update time, which bitcoinj sets to the (earliest)
+     * best-chain block time.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, StoredBlock> catenaBlocks = new HashMap<Sha256Hash, StoredBlock>();
+
+    /**
+     * The hashes of the blocks in catenaBlocks that are on the best chain, kept up to date across reorgs, so that we
+     * can tell which of the blocks a TXN appears in confirmed it.
+     */
+    @GuardedBy("lock") private final Set<Sha256Hash> bestChainBlocks = new HashSet<Sha256Hash>();
     
     /**
      * A pending queue (PQ) of unconfirmed Catena statements (i.e., their TXNS are in PENDING status). We use this queue
@@ -81,6 +122,21 @@ public class ClientWallet extends SimpleWallet {
      */
     @GuardedBy("lock") protected Deque<CatenaStatement> pq = new LinkedList<CatenaStatement>();
     
+    /**
+     * The statements delivered to the speculative listeners that were neither confirmed nor retracted yet, in chain
+     * order. The first one is (or will be) at index speculatedBase in BQ.
+     */
+    @GuardedBy("lock") private final List<CatenaStatement> speculated = new ArrayList<CatenaStatement>();
+    @GuardedBy("lock") private int speculatedBase = 0;
+
+    /**
+     * The snapshot we adopted, if any (see adoptSnapshot()). The first snapshotFloor statements in BQ come from the
+     * snapshot and their TXNs are not in the wallet, so BQ is never popped below them and the snapshot's last TXN (its
+     * anchor) plays the part of the root-of-trust TXN. Without a snapshot, snapshotFloor is 0.
+     */
+    @GuardedBy("lock") private CatenaSnapshot snapshot;
+    @GuardedBy("lock") private int snapshotFloor = 0;
+
     /**
      * Set to true after we receive and process the root-of-trust TXN. This is
      * set both when a new wallet is created and when rebooting an old wallet.
@@ -91,7 +147,70 @@ public class ClientWallet extends SimpleWallet {
      * Set as a hint by the creator of the ClientWallet object.  
      */
     private boolean isRebootingHint;
+
+    /**
+     * Remembers signature verification results, so that TXNs added back to BQ after a reorg and double spends that we
+     * look at during every update are not verified again.
+     */
+    private final SignatureCache sigCache = new SignatureCache();
+
+    /**
+     * Verifies the signatures of new Catena TXNs in parallel when catching up on the chain.
+     */
+    private final ParallelTxVerifier sigVerifier = new ParallelTxVerifier(sigCache);
+
+    /**
+     * The chain address, cached by getChainAddress() since getWatchedAddresses() builds a new list (and new Address
+     * objects) every time. Reset whenever the watched scripts change.
+     */
+    @GuardedBy("lock") private Address chainAddr;
+
+    /**
+     * The root-of-trust TXID, cached once we've processed the root-of-trust TXN, since getCatenaExtension() copies the
+     * wallet's extension map.
+     */
+    @GuardedBy("lock") private Sha256Hash rootOfTrustTxid;
+
+    /**
+     * Scratch structures reused by every updateCatenaLog() call, so that the common case of one new block with one new
+     * statement does not have to allocate them again. They are all empty between calls.
+     */
+    @GuardedBy("lock") private final Stack<CatenaStatement> withdrawnStack = new Stack<CatenaStatement>();
+    @GuardedBy("lock") private final List<Transaction> candidateTxns = new ArrayList<Transaction>();
+    @GuardedBy("lock") private final List<TransactionOutput> candidatePrevLinks = new ArrayList<TransactionOutput>();
+    @GuardedBy("lock") private final List<Transaction> buildingTxns = new ArrayList<Transaction>();
+    @GuardedBy("lock") private final List<CatenaStatement> pendingStmts = new ArrayList<CatenaStatement>();
+    @GuardedBy("lock") private final BitSet keptSpeculations = new BitSet();
+
+    /**
+     * Sync counters (see SyncProgress), which can be read without the lock while we catch up on the chain: the number
+     * of statements we verified and pushed in BQ (counting the ones added back after a reorg again, but not the pending
+     * TXN at the tail, which is verified on every update), and the sizes of BQ and PQ as of the end of the last update.
+     */
+    private final AtomicLong numVerifiedStmts = new AtomicLong();
+    private volatile int bqSize = 0, pqSize = 0;
+
+    /**
+     * Update timings, lock contention, whistleblows, reorgs and listener lag, published over JMX by CatenaClient.
+     */
+    private final ClientWalletStats stats = new ClientWalletStats(this, lock);
     
+    /**
+     * Stamped when statements are pushed in BQ and delivered to the statement listeners, if set.
+     */
+    private volatile StatementTracer tracer;
+
+    /**
+     * Records the blocks, TXs and reorgs we are told about, if set, for WalletEventReplayer.
+     */
+    private volatile WalletEventRecorder recorder;
+
+    /**
+     * Returned by verifyCandidateTxns() when there are too few candidates to bother verifying them in parallel.
+     */
+    private static final boolean[] NO_VERDICTS = new boolean[0];
+    
+    private static final CatenaEvents events = CatenaEvents.get();
     
     public ClientWallet(NetworkParameters params) {
         super(params);
@@ -148,17 +267,18 @@ public class ClientWallet extends SimpleWallet {
                 isRootOfTrustTx = ext.getRootOfTrustTxid().equals(tx.getHash());
                 
                 if(isRootOfTrustTx) {
+                    checkState(RawCatenaTx.isP2PKH(tx.getOutput(0).getScriptBytes()), 
+                            "No P2PKH address in the root-of-trust TX's first output");
+                    
                     // NOTE: We save this in the wallet extension later, for now we just display them.
-                    Address chainAddr = tx.getOutput(0).getAddressFromP2PKHScript(params);
-                    log.debug("Identified chain address from root-of-trust TX " +
-                            tx.getHashAsString() + ": " + chainAddr);
-                    if(ext.hasName() == false) { 
-                        log.debug("Also, identified chain name from root-of-trust TX " +
-                            tx.getHashAsString() + ": " + 
-                            new String(CatenaUtils.getCatenaTxData(tx)));
+                    if(log.isDebugEnabled()) {
+                        log.debug("Identified chain address from root-of-trust TX {}: {}", tx.getHash(),
+                                tx.getOutput(0).getAddressFromP2PKHScript(params));
+                        if(ext.hasName() == false) { 
+                            log.debug("Also, identified chain name from root-of-trust TX {}: {}", tx.getHash(),
+                                new String(CatenaUtils.getCatenaTxData(tx)));
+                        }
                     }
-                    
-                    checkState(chainAddr != null, "No P2PKH address in the root-of-trust TX's first output");
 
                     // NOTE: By the time we add the Catena chain's PK to the wallet it could be too late because bitcoinj
                     // might've downloaded future blocks (i.e., blocks past the root-of-trust block) and ignored Catena 
@@ -181,10 +301,68 @@ public class ClientWallet extends SimpleWallet {
      * Returns the address of the chain.
      */
     public Address getChainAddress() {
-        List<Address> addrs = getWatchedAddresses();
-        checkState(!addrs.isEmpty(), "chain address has not been set in wallet yet");
-        checkState(addrs.size() == 1, "expected exactly one chain address in the wallet, got " + addrs.size());
-        return addrs.get(0);
+        lock.lock();
+        try {
+            if(chainAddr == null) {
+                List<Address> addrs = getWatchedAddresses();
+                checkState(!addrs.isEmpty(), "chain address has not been set in wallet yet");
+                checkState(addrs.size() == 1, "expected exactly one chain address in the wallet, got " + addrs.size());
+                chainAddr = addrs.get(0);
+            }
+            return chainAddr;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Invalidates the cached chain address. NOTE: addWatchedAddress(es) and wallet deserialization end up here.
+     */
+    @Override
+    public int addWatchedScripts(List<Script> scripts) {
+        lock.lock();
+        try {
+            chainAddr = null;
+            return super.addWatchedScripts(scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Invalidates the cached chain address. NOTE: removeWatchedAddress(es) end up here.
+     */
+    @Override
+    public boolean removeWatchedScripts(List<Script> scripts) {
+        lock.lock();
+        try {
+            chainAddr = null;
+            return super.removeWatchedScripts(scripts);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Once we know the block that confirmed the root-of-trust TXN, there's no need to look at earlier blocks. (Both
+     * PeerGroup and CheckpointManager go back another week from this time, to account for clock skew.)
+     */
+    @Override
+    public long getEarliestKeyCreationTime() {
+        lock.lock();
+        try {
+            // Same goes for the block that confirmed the snapshot's last statement
+            if(snapshot != null)
+                return snapshot.getTimeSecs(snapshot.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+        
+        CatenaWalletExtension ext = getCatenaExtension();
+        if(ext != null && ext.hasRootOfTrustBlock())
+            return ext.getRootOfTrustBlockTimeSecs();
+        else
+            return super.getEarliestKeyCreationTime();
     }
     
     /**
@@ -246,10 +424,26 @@ public class ClientWallet extends SimpleWallet {
         if(ext.hasName() == false) { 
             ext.setName(chainName);
         }
+        
+        // Remember the root-of-trust block, so we don't have to sync from before it after restarting. (bitcoinj sets
+        // the TXN's update time to its block's time.)
+        if(ext.hasRootOfTrustBlock() == false && TxUtils.isBuildingTxn(tx) && tx.getAppearsInHashes() != null) {
+            int height = tx.getConfidence().getAppearedAtChainHeight();
+            if(tx.getAppearsInHashes().size() == 1) {
+                Sha256Hash blockHash = tx.getAppearsInHashes().keySet().iterator().next();
+                ext.setRootOfTrustBlock(height, blockHash, tx.getUpdateTime().getTime() / 1000);
+            }
+        }
 
         // Trigger a wallet save
         saveNow();
         
+        lock.lock();
+        try {
+            rootOfTrustTxid = tx.getHash();
+        } finally {
+            lock.unlock();
+        }
         processedRootOfTrustTxn = true;
         
         return true;
@@ -268,13 +462,18 @@ public class ClientWallet extends SimpleWallet {
      * @param callListeners
      */
     void updateCatenaLog(boolean callListeners) {
+        CatenaEvents.Span span = events.beginUpdate();
+        long waitStartNanos = System.nanoTime();
         lock.lock();
-        
+        long holdStartNanos = System.nanoTime();
+        long t = holdStartNanos;
+        long popBqNanos = 0, pushBqNanos = 0, lieDetectionNanos = 0, notifyNanos = 0;
+        int numInspected = 0, numPushed = 0, numPopped = 0;
         
         try {
             log.debug("callListeners={}", callListeners);
             
-            Sha256Hash rootOfTrustTxid = getCatenaExtension().getRootOfTrustTxid();
+            Sha256Hash rootOfTrustTxid = getRootOfTrustTxid();
             
             Transaction rootOfTrustTxn = getTransaction(rootOfTrustTxid);
             checkNotNull(rootOfTrustTxn);
@@ -284,40 +483,52 @@ public class ClientWallet extends SimpleWallet {
             // Also, the first statement in PQ should have come from a TXN that was connected to a once-in-BQ TXN. 
             // Also, the first TX in BQ/PQ, if any, should be the root-of-trust TXN. 
             
-            Stack<CatenaStatement> withdrawnStack = new Stack<CatenaStatement>();
+            // NOTE: An earlier call might have returned early (e.g., after whistleblowing) or not have called the
+            // listeners, so the withdrawn stack might not be empty.
+            withdrawnStack.clear();
 
             // Step 1: Pop BQ
             //
             // If BQ is not empty, pop TXs that are not BUILDING anymore but are still in the building queue (BQ) if
             // fork killed some of our previous BUILDING TXNs, withdrawing their statements. As we pop from BQ, we add 
             // popped TXNs back to PQ to make sure we will not be lied to about the withdrawn statements.
-            while(!bq.isEmpty()) {
+            while(bq.size() > snapshotFloor) {
                 CatenaStatement tailStmt = bq.peek();
                 
                 Transaction tailTxn = getTransaction(tailStmt.getTxHash());
                 checkState(CatenaUtils.maybeCatenaTx(tailTxn), "broken invariant: non-Catena TXN in building queue");
                 byte[] tailData = tailStmt.getData();
-                String tailHexData = Utils.toHex(tailData);
-                String tailHash = tailTxn.getHashAsString().substring(0, 7) + "...";
                 
-                // Check if the TXN was killed by a fork
-                if(TxUtils.isBuildingTxn(tailTxn) == false) {
-                    log.debug("Pop BQ: Popping statement '" + tailHexData + "' (from tx " + tailHash  + ")");
-                    bq.pop();
+                // Check if the TXN was killed by a fork. We also pop TXNs that are still BUILDING but were moved to a
+                // different block by a fork (even one at the same height), so that they are pushed back below with
+                // their new height and time. (This does not notify anyone, since they are added back in this same
+                // call.)
+                boolean isBuilding = TxUtils.isBuildingTxn(tailTxn);
+                if(isBuilding == false || isMovedByFork(bq.size() - 1, tailTxn)) {
+                    if(log.isDebugEnabled())
+                        log.debug("Pop BQ: Popping statement '{}' (from tx {})", Utils.toHex(tailData), 
+                                shortHash(tailTxn));
+                    popBq();
 
                     // Keep track of this statement as a withdrawn statement (might be added back to BQ though)
                     withdrawnStack.push(tailStmt);
                     
                     // Move the killed txn from BQ to PQ since it's now either DEAD, IN_CONFLICT or PENDING.
-                    log.debug(" -> Push PQ: Pushing statement to PQ '" + tailHexData  + "' (from tx " + tailHash + ")");
+                    log.debug(" -> Push PQ: Pushing statement to PQ");
                     // We recreate the statement here to get rid of its txid, since it's in PQ now
                     pq.addFirst(CatenaStatement.fromData(tailData));
                 } else {
                     // We stop at the first txn that is still in BUILDING status
-                    log.debug("Pop BQ: Stopped popping at BUILDING tx " + tailTxn.getHashAsString().substring(0,7) + "...");
+                    if(log.isDebugEnabled())
+                        log.debug("Pop BQ: Stopped popping at BUILDING tx {}", shortHash(tailTxn));
                     break;
                 }
             }
+            numPopped = withdrawnStack.size();
+            if(numPopped > 0)
+                stats.onReorg(numPopped);
+            popBqNanos = stats.timeStep(ClientWalletStats.Step.POP_BQ, t);
+            t += popBqNanos;
             
             // INVARIANT: Everything in BQ is BUILDING, but there might be new TXs in the wallet that are BUILDING but 
             // not in BQ yet. Some of these TXNs might be reissued ones for statements that have just been withdrawn
@@ -328,13 +539,19 @@ public class ClientWallet extends SimpleWallet {
             // Push reissued and/or newly issued statements into building queue (BQ)
             
             // Step 2.1: Find the next BUILDING txn to push in BQ
+            //
+            // After adopting a snapshot, the snapshot's anchor TXN plays the part of the root-of-trust TXN below.
             Transaction lastBuildingTxn;
-            if(bq.isEmpty()) {              
+            if(bq.size() == snapshotFloor) {              
+                Transaction firstTxn = snapshotFloor == 0 ? rootOfTrustTxn : 
+                    getTransaction(snapshot.getAnchorTxn().getHash());
+                
                 // NOTE: We cannot be lied to about the root-of-trust TXN because we know its hash. We just need to make 
                 // sure it's in BUILDING status.
-                if(TxUtils.isBuildingTxn(rootOfTrustTxn)) {
-                    log.debug("Push BQ: Pushing root-of-trust TXN " + rootOfTrustTxid);
-                    bq.push(CatenaStatement.fromTxn(rootOfTrustTxn));
+                if(TxUtils.isBuildingTxn(firstTxn)) {
+                    log.debug("Push BQ: Pushing root-of-trust (or snapshot anchor) TXN {}", firstTxn.getHash());
+                    pushBq(CatenaStatement.fromTxn(firstTxn), firstTxn);
+                    numPushed++;
                     
                     // If we pushed the root-of-trust TXN in the withdrawn stack, then we pop it here. Note that we do 
                     // not call onWithdrawn on the root-of-trust TXN, since it's not a proper Catena statement.
@@ -349,7 +566,7 @@ public class ClientWallet extends SimpleWallet {
                         pq.pollFirst();
                     }
                     
-                    lastBuildingTxn = rootOfTrustTxn;
+                    lastBuildingTxn = firstTxn;
                 } else {
                     // Root-of-trust TXN is not BUIDLING yet => no other Catena TXNs can be BUILDING either
                     lastBuildingTxn = null;
@@ -362,10 +579,12 @@ public class ClientWallet extends SimpleWallet {
                 checkState(CatenaUtils.maybeCatenaTx(lastBuildingTxn), "broken invariant: non-Catena TXN in building queue");
             }
             
-            if(lastBuildingTxn != null)
-                log.debug("BQ: Starting to push after TXN " + lastBuildingTxn.getHashAsString().substring(0, 7) + "...");
-            else
-                log.debug("BQ: No new BUILDING TXNs were found");
+            if(log.isDebugEnabled()) {
+                if(lastBuildingTxn != null)
+                    log.debug("BQ: Starting to push after TXN {}", shortHash(lastBuildingTxn));
+                else
+                    log.debug("BQ: No new BUILDING TXNs were found");
+            }
             
             // INVARIANT: tailTxn, if non-null, is last txn in BQ AND it has BUILDING status.
             // Also, sizeof(witdrawnStack) >= sizeof(PQ).
@@ -378,12 +597,21 @@ public class ClientWallet extends SimpleWallet {
             if(lastBuildingTxn != null) {
                 TransactionOutput prevOutput = lastBuildingTxn.getOutput(0);
                 Transaction nextTxn = CatenaUtils.getNextCatenaTx(this, lastBuildingTxn);
-                
+
+                // Verify the candidate TXNs we are about to push in parallel, so that catching up on a long chain
+                // scales with the number of cores. The loop below only consumes these verdicts (or verifies the TXNs
+                // itself if there were too few of them).
+                boolean[] verdicts = verifyCandidateTxns(nextTxn, prevOutput);
+
                 while(nextTxn != null) {
-                    
+
                     // Maintain BQ invariant: Check signature and format of TXN before adding to BQ
-                    if(CatenaUtils.isSignedCatenaTx(nextTxn, getChainAddress(), prevOutput, true) == false) {
-                        log.warn("Push BQ: Whistleblowing! Bad Catena TXN found (tx " + nextTxn.getHash() + ")");
+                    boolean isValid = numInspected < verdicts.length ? verdicts[numInspected] :
+                        CatenaUtils.isSignedCatenaTx(nextTxn, getChainAddress(), prevOutput, true, sigCache);
+                    numInspected++;
+
+                    if(isValid == false) {
+                        log.warn("Push BQ: Whistleblowing! Bad Catena TXN found (tx {})", nextTxn.getHash());
                         queueOnWhistleblow(nextTxn, "ill-formated or incorrectly signed Catena TXN: " + nextTxn.getHash());
                         
                         // We can stop execution here because invariants all hold at this point.
@@ -393,29 +621,32 @@ public class ClientWallet extends SimpleWallet {
                     if(TxUtils.isBuildingTxn(nextTxn)) {
                         // Add it to BQ (might be adding it back)
                         CatenaStatement tailStmt = CatenaStatement.fromTxn(nextTxn);
-                        byte[] tailData = tailStmt.getData();
-                        String tailHexData = Utils.toHex(tailData);
-                        String tailHash = nextTxn.getHashAsString().substring(0, 7) + "...";
                         
-                        bq.push(tailStmt);
+                        pushBq(tailStmt, nextTxn);
+                        numPushed++;
+                        numVerifiedStmts.incrementAndGet();
                         
-                        log.debug("Push BQ: Pushed statement " + tailHexData + " (tx " + tailHash + "...)");
+                        if(log.isDebugEnabled())
+                            log.debug("Push BQ: Pushed statement {} (tx {})", Utils.toHex(tailStmt.getData()), 
+                                    shortHash(nextTxn));
                         
                         // Remove matching statement from PQ, if it's there. Recall that the statement in PQ that is 
                         // being moved to BQ could come from a different TXN (maybe because it's a lie, maybe because 
                         // the TX has a different fee.)
                         if(!pq.isEmpty()) {
                             CatenaStatement headStmt = pq.peekFirst();
-                            String headHexData = Utils.toHex(headStmt.getData());
                             
-                            log.debug("bqData={}, pqData={}", tailHexData, headHexData);
+                            if(log.isDebugEnabled())
+                                log.debug("bqData={}, pqData={}", Utils.toHex(tailStmt.getData()), 
+                                        Utils.toHex(headStmt.getData()));
                             // Check if the BQ tail and the PQ head both commit the same data, or else whistleblow.
                             if(headStmt.hasSameData(tailStmt) == false) {
                                 String err = Utils.fmt("expected statement '{}' (hex) but got '{}' (hex) in tx {}", 
-                                        headHexData, tailHexData, nextTxn.getHash());
+                                        Utils.toHex(headStmt.getData()), Utils.toHex(tailStmt.getData()), 
+                                        nextTxn.getHash());
                                 
                                 log.warn("Push BQ: Whistleblowing! Inconsistent statements detected: " + err);
-                                bq.pop();   // pop the lying statement from BQ
+                                popBq();    // pop the lying statement from BQ
                                 queueOnWhistleblow(nextTxn, err);
                                 break;
                             }
@@ -431,7 +662,8 @@ public class ClientWallet extends SimpleWallet {
                                 // Already checked for equivocation above, so this should hold
                                 checkState(s.hasSameData(tailStmt), "broken invariant: withdrawn statement does not match reissued one");
                                 
-                                log.debug(" -> Added back statement " + Utils.toHex(s.getData()));
+                                if(log.isDebugEnabled())
+                                    log.debug(" -> Added back statement {}", Utils.toHex(s.getData()));
                             } else {
                                 // Call onStatementAppended because this is a new statement, not a reissued one!
                                 if(callListeners)
@@ -452,6 +684,9 @@ public class ClientWallet extends SimpleWallet {
                 }
             }
             
+            pushBqNanos = stats.timeStep(ClientWalletStats.Step.PUSH_BQ, t);
+            t += pushBqNanos;
+            
             // INVARIANT: All BUILDING Catena TXNs are in BQ 
             
             // Step 3: Check for lies w.r.t. to the building Catena TXs: we want to catch PENDING/DEAD txns which have been
@@ -464,10 +699,13 @@ public class ClientWallet extends SimpleWallet {
             // multiple inputs, for additional miner fees.
             
             // We findDoubleSpendsAgainst(building, Pool.DEAD) and get a map of outpoints to txs double spending them
-            // Then, we iterate through the double spends and ensure they commit the same data.
-            Map<TransactionOutPoint, List<Transaction>> deadDoubleSpends = TxUtils.findDoubleSpendsAgainst(
-                    getCatenaBuildingTxns(),
-                    getTransactionPool(Pool.DEAD));
+            // Then, we iterate through the double spends and ensure they commit the same data. There is nothing to
+            // look at if there are no DEAD TXNs, which is the usual case, so we skip the (allocating) scan.
+            Map<Sha256Hash, Transaction> deadTxns = getTransactionPool(Pool.DEAD);
+            Map<TransactionOutPoint, List<Transaction>> deadDoubleSpends = deadTxns.isEmpty() ? 
+                    Collections.<TransactionOutPoint, List<Transaction>>emptyMap() :
+                    TxUtils.findDoubleSpendsAgainst(getCatenaBuildingTxns(), deadTxns);
+            buildingTxns.clear();
             
             for(Map.Entry<TransactionOutPoint, List<Transaction>> e : deadDoubleSpends.entrySet()) {
                 TransactionOutPoint outp = e.getKey(); 
@@ -480,7 +718,7 @@ public class ClientWallet extends SimpleWallet {
                 Transaction tx = txit.next();
                 byte[] origData = CatenaUtils.getCatenaTxData(tx);
                 
-                log.warn("Outpoint " + outp + " was double spent");
+                log.warn("Outpoint {} was double spent", outp);
                 log.warn(" -> 1st Building Catena TXN, txid={}..., stmt={}", tx.getHashAsString().substring(0, 7),
                         Utils.toHex(origData)); 
                 
@@ -491,10 +729,11 @@ public class ClientWallet extends SimpleWallet {
                     if(CatenaUtils.maybeCatenaTx(ds)) {
                         byte[] lieData = CatenaUtils.getCatenaTxData(ds);
                         
-                        // TODO: the signature verification here can fail because ds is dead and the connected output
-                        // we pass here is not connected to ds, but to tx (i.e., the building Catena TX)
-                        boolean isCorrectlySigned = CatenaUtils.isSignedCatenaTx(ds, getChainAddress(), 
-                                outp.getConnectedOutput(), true);
+                        // NOTE: ds is dead so bitcoinj disconnected its input, which is why we check that it spends
+                        // the same output as tx rather than that it's connected to it. We see the same double spends on
+                        // every update, so the signature verdicts will mostly come from the cache.
+                        boolean isCorrectlySigned = CatenaUtils.isSignedCatenaTxSpending(ds, getChainAddress(), 
+                                outp.getConnectedOutput(), sigCache);
                         
                         if(CatenaStatement.hasSameData(origData, lieData) == false) {
                             log.warn(" -> 2nd lying TXN, txid={}..., stmt={}, isCorrectlySigned={}", 
@@ -522,17 +761,519 @@ public class ClientWallet extends SimpleWallet {
             
             // TODO: When you have enough energy, also check for lies among PENDING txns (to speed up detection). 
             //TxUtils.findDoubleSpendsAmongst(wallet().getPendingTransactions()); // here's the first line :)
+            lieDetectionNanos = stats.timeStep(ClientWalletStats.Step.LIE_DETECTION, t);
+            t += lieDetectionNanos;
                         
             // Step 4: Notify listeners about withdrawn statements
 
             // Call onStatementWithdrawn for statements that were popped in Step 1 and not added back in this Step 2.2
             if(callListeners)
                 queueOnWithdrawn(withdrawnStack);
+
+            // Step 5: Tell speculative listeners about new PENDING statements and about the fate of earlier ones
+            updateSpeculation(callListeners);
+            notifyNanos = stats.timeStep(ClientWalletStats.Step.NOTIFY, t);
+        } finally {
+            bqSize = bq.size();
+            pqSize = pq.size();
+            stats.onUpdate(holdStartNanos - waitStartNanos, System.nanoTime() - holdStartNanos);
+            lock.unlock();
+            events.endUpdate(span, bqSize, pqSize, numInspected, numPushed, numPopped, popBqNanos, pushBqNanos, 
+                    lieDetectionNanos, notifyNanos);
+        }
+    }
+
+    /**
+     * Delivers the PENDING statements that chain correctly after BQ to the speculative listeners, and tells them which
+     * of the statements delivered earlier were confirmed or retracted since. Does nothing if no one ever registered a
+     * speculative listener.
+     *
+     * A speculated statement is confirmed once BQ has a statement with the same data at its position, and retracted
+     * once BQ has a different statement there or it's no longer part of the PENDING chain after BQ.
+     */
+    private void updateSpeculation(boolean callListeners) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(specListeners.isEmpty() && speculated.isEmpty())
+            return;
+
+        try {
+            collectPendingStatements();
+            int base = bq.size();
+
+            for(int i = 0; i < speculated.size(); i++) {
+                CatenaStatement s = speculated.get(i);
+                int pos = speculatedBase + i;
+
+                if(pos < bq.size()) {
+                    CatenaStatement confirmed = bq.get(pos);
+                    if(confirmed.hasSameData(s)) {
+                        if(callListeners)
+                            queueOnConfirmed(confirmed);
+                    } else {
+                        if(callListeners)
+                            queueOnRetracted(s);
+                    }
+                } else {
+                    int j = pos - base;
+                    if(j < pendingStmts.size() && pendingStmts.get(j).hasSameData(s)) {
+                        // Still PENDING (maybe via a different TX), already delivered
+                        keptSpeculations.set(j);
+                    } else {
+                        if(callListeners)
+                            queueOnRetracted(s);
+                    }
+                }
+            }
+
+            for(int j = 0; j < pendingStmts.size(); j++) {
+                if(keptSpeculations.get(j) == false && callListeners)
+                    queueOnSpeculated(pendingStmts.get(j));
+            }
+
+            speculated.clear();
+            speculated.addAll(pendingStmts);
+            speculatedBase = base;
+        } finally {
+            pendingStmts.clear();
+            keptSpeculations.clear();
+        }
+    }
+
+    /**
+     * Collects the statements of the PENDING TXNs chained after the last TXN in BQ into pendingStmts, stopping at the
+     * first TXN that is incorrectly signed or that does not commit the same data as the corresponding statement in PQ.
+     * We do not whistleblow here: Step 2.2 will, if such a TXN ever becomes BUILDING.
+     */
+    private void collectPendingStatements() {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(bq.isEmpty())
+            return;
+
+        Transaction prevTxn = getTransaction(bq.peek().getTxHash());
+        Transaction txn = CatenaUtils.getNextCatenaTx(this, prevTxn);
+        Iterator<CatenaStatement> pqIt = pq.iterator();
+
+        while(txn != null && TxUtils.isPendingTxn(txn)) {
+            if(CatenaUtils.isSignedCatenaTx(txn, getChainAddress(), prevTxn.getOutput(0), true, sigCache) == false)
+                break;
+
+            CatenaStatement s = CatenaStatement.fromTxn(txn);
+            if(pqIt.hasNext() && pqIt.next().hasSameData(s) == false)
+                break;
+
+            pendingStmts.add(s);
+
+            prevTxn = txn;
+            txn = CatenaUtils.getNextCatenaTx(this, txn);
+        }
+    }
+    
+    /**
+     * Collects the TXNs that updateCatenaLog might push into BQ, starting with firstTxn (which spends prevOutput), and
+     * verifies all of them in parallel. The candidates are the BUILDING TXNs chained after the BQ tail, followed by
+     * the first non-BUILDING one, since that one is verified too before we stop pushing.
+     * 
+     * If there are fewer than ParallelTxVerifier.MIN_PARALLEL_BATCH candidates (e.g., one new statement in a new
+     * block), returns no verdicts at all and lets the caller verify them one by one, which avoids allocating anything
+     * for the batch.
+     *
+     * @param firstTxn
+     * @param prevOutput
+     * @return the verdicts, in chain order
+     */
+    private boolean[] verifyCandidateTxns(Transaction firstTxn, TransactionOutput prevOutput) {
+        checkState(lock.isHeldByCurrentThread());
+
+        try {
+            Transaction txn = firstTxn;
+            while(txn != null) {
+                candidateTxns.add(txn);
+                candidatePrevLinks.add(prevOutput);
+    
+                if(TxUtils.isBuildingTxn(txn) == false)
+                    break;
+    
+                prevOutput = txn.getOutput(0);
+                txn = CatenaUtils.getNextCatenaTx(this, txn);
+            }
+    
+            if(candidateTxns.size() < ParallelTxVerifier.MIN_PARALLEL_BATCH)
+                return NO_VERDICTS;
+    
+            return sigVerifier.verify(candidateTxns, candidatePrevLinks, getChainAddress());
+        } finally {
+            candidateTxns.clear();
+            candidatePrevLinks.clear();
+        }
+    }
+    
+    /**
+     * Pushes a statement whose TXN is BUILDING in BQ, along with the height and time of the block that confirmed it.
+     */
+    private void pushBq(CatenaStatement s, Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        int height = tx.getConfidence().getAppearedAtChainHeight();
+        StoredBlock block = getConfirmingBlock(tx);
+        if(block != null)
+            bqTimes.push(height, block.getHeader().getTimeSeconds(), block.getHeader().getHash());
+        else
+            bqTimes.push(height, tx.getUpdateTime().getTime() / 1000, null);
+        bq.push(s);
+        
+        StatementTracer t = tracer;
+        if(t != null)
+            t.stamp(tx.getHash(), StatementTracer.Stage.CLIENT_BUILDING);
+    }
+
+    private CatenaStatement popBq() {
+        checkState(lock.isHeldByCurrentThread());
+
+        bqTimes.pop();
+        return bq.pop();
+    }
+
+    /**
+     * Returns the best-chain block that the TXN appears in, or null if we don't know it (e.g., after a restart, see
+     * catenaBlocks).
+     */
+    private StoredBlock getConfirmingBlock(Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        if(appearsIn != null) {
+            for(Sha256Hash blockHash : appearsIn.keySet()) {
+                if(bestChainBlocks.contains(blockHash))
+                    return catenaBlocks.get(blockHash);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if a fork moved the BUILDING TXN of the i-th statement in BQ to a different block than the one it was
+     * pushed with. (A TXN can't be in two best-chain blocks, so it was moved iff that block left the best chain. This
+     * runs on every update, so it does not look at the TXN's blocks, which bitcoinj copies on every call.)
+     */
+    private boolean isMovedByFork(int i, Transaction tx) {
+        checkState(lock.isHeldByCurrentThread());
+
+        if(bqTimes.getHeight(i) != tx.getConfidence().getAppearedAtChainHeight())
+            return true;
+
+        Sha256Hash pushedHash = bqTimes.getBlockHash(i);
+        return pushedHash != null && bestChainBlocks.contains(pushedHash) == false;
+    }
+
+    /**
+     * Remembers the blocks that Catena TXNs appear in, and which of them are on the best chain (see catenaBlocks).
+     */
+    @Override
+    public void receiveFromBlock(Transaction tx, StoredBlock block, NewBlockType blockType, int relativityOffset)
+            throws VerificationException {
+        lock.lock();
+        try {
+            WalletEventRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.recordReceiveFromBlock(tx, block, blockType, relativityOffset);
+            super.receiveFromBlock(tx, block, blockType, relativityOffset);
+            rememberBlock(block, blockType);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) throws VerificationException {
+        lock.lock();
+        try {
+            WalletEventRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.recordTxInBlock(txHash, block, blockType, relativityOffset);
+            boolean isKnown = super.notifyTransactionIsInBlock(txHash, block, blockType, relativityOffset);
+            if(isKnown)
+                rememberBlock(block, blockType);
+            return isKnown;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void rememberBlock(StoredBlock block, NewBlockType blockType) {
+        checkState(lock.isHeldByCurrentThread());
+
+        Sha256Hash hash = block.getHeader().getHash();
+        catenaBlocks.put(hash, block);
+        if(blockType == NewBlockType.BEST_CHAIN)
+            bestChainBlocks.add(hash);
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        lock.lock();
+        try {
+            WalletEventRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.recordNewBestBlock(block);
+            super.notifyNewBestBlock(block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void receivePending(Transaction tx, List<Transaction> dependencies, boolean overrideIsRelevant)
+            throws VerificationException {
+        lock.lock();
+        try {
+            WalletEventRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.recordReceivePending(tx, dependencies, overrideIsRelevant);
+            super.receivePending(tx, dependencies, overrideIsRelevant);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Here to time reorgs (see CatenaEvents), to record them and to move our blocks in and out of the best chain (see
+     * bestChainBlocks). The statements are withdrawn by the next updateCatenaLog() call.
+     */
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks)
+            throws VerificationException {
+        lock.lock();
+        try {
+            WalletEventRecorder recorder = this.recorder;
+            if(recorder != null)
+                recorder.recordReorganize(splitPoint, oldBlocks, newBlocks);
+            CatenaEvents.Span span = events.beginReorg();
+
+            // NOTE: Before calling the super class, since it calls SAME_THREAD listeners that update the Catena log
+            for(StoredBlock b : oldBlocks)
+                bestChainBlocks.remove(b.getHeader().getHash());
+            for(StoredBlock b : newBlocks) {
+                Sha256Hash hash = b.getHeader().getHash();
+                if(catenaBlocks.containsKey(hash))
+                    bestChainBlocks.add(hash);
+            }
+
+            super.reorganize(splitPoint, oldBlocks, newBlocks);
+            events.endReorg(span, oldBlocks.size(), newBlocks.size(), splitPoint.getHeight());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the confirmed statements included in blocks with heights in [fromHeight, toHeight], in order of
+     * issuance.
+     */
+    public List<CatenaStatement> getStatementsByHeight(int fromHeight, int toHeight) {
+        lock.lock();
+        try {
+            int from = Math.max(1, bqTimes.firstAtOrAboveHeight(fromHeight));
+            int to = bqTimes.firstAtOrAboveHeight((long)toHeight + 1);
+            return copyBq(from, to);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the confirmed statements whose effective confirmation time (see StatementTimeIndex) is in
+     * [fromSecs, toSecs], in order of issuance.
+     */
+    public List<CatenaStatement> getStatementsByTime(long fromSecs, long toSecs) {
+        lock.lock();
+        try {
+            int from = Math.max(1, bqTimes.firstAtOrAfterTime(fromSecs));
+            int to = toSecs == Long.MAX_VALUE ? bqTimes.size() : bqTimes.firstAtOrAfterTime(toSecs + 1);
+            return copyBq(from, to);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the height of the block that confirmed the i-th statement (starting at 1, like getNumStatements()).
+     */
+    public int getStatementHeight(int i) {
+        lock.lock();
+        try {
+            return bqTimes.getHeight(i);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the header timestamp of the block that confirmed the i-th statement (starting at 1).
+     */
+    public long getStatementTimeSecs(int i) {
+        lock.lock();
+        try {
+            return bqTimes.getTimeSecs(i);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts this wallet's BQ with the statements in a snapshot, rather than with the root-of-trust TXN, so that only
+     * the statements after the snapshot need to be downloaded and verified. Adds the root-of-trust and anchor TXNs to
+     * the wallet, as BUILDING in the blocks the snapshot says, if they're not there already (i.e., the first time).
+     * Call this before the wallet is updated for the first time (and again after every restart, before the first
+     * update), after checking the snapshot with CatenaSnapshot::verify.
+     */
+    public void adoptSnapshot(CatenaSnapshot s) {
+        lock.lock();
+        try {
+            checkState(bq.isEmpty(), "snapshot must be adopted before the first update");
+            
+            int last = s.size() - 1;
+            addSnapshotTxn(s.getRootOfTrustTxn(), s.getHeight(0), s.getBlockHash(0), s.getTimeSecs(0), s.getHeight());
+            addSnapshotTxn(s.getAnchorTxn(), s.getHeight(last), s.getBlockHash(last), s.getTimeSecs(last), 
+                    s.getHeight());
+            
+            // The anchor's statement is pushed by updateCatenaLog(), like the root-of-trust one would be
+            for(int i = 0; i < last; i++) {
+                bqTimes.push(s.getHeight(i), s.getTimeSecs(i), s.getBlockHash(i));
+                bq.push(s.getStatement(i));
+            }
+            snapshot = s;
+            snapshotFloor = last;
+            
+            log.info("Adopted snapshot with {} statements up to height {} (digest {})", s.size(), s.getHeight(), 
+                    s.getDigest());
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void addSnapshotTxn(Transaction tx, int height, Sha256Hash blockHash, long timeSecs, int snapshotHeight) {
+        if(getTransaction(tx.getHash()) != null)
+            return;
+        
+        tx.getConfidence().setAppearedAtChainHeight(height);
+        tx.getConfidence().setDepthInBlocks(snapshotHeight - height + 1);
+        tx.addBlockAppearance(blockHash, 0);
+        tx.setUpdateTime(new Date(timeSecs * 1000));
+        addWalletTransaction(new WalletTransaction(Pool.UNSPENT, tx));
+    }
+    
+    /**
+     * Exports the statements in BQ confirmed at or below the specified height as a snapshot for new clients to adopt.
+     * 
+     * @param maxHeight
+     * @param store     the block store, where we look up the block of the snapshot's last statement
+     * @throws BlockStoreException
+     */
+    public CatenaSnapshot exportSnapshot(int maxHeight, BlockStore store) throws BlockStoreException {
+        lock.lock();
+        try {
+            int n = bqTimes.firstAtOrAboveHeight((long)maxHeight + 1);
+            checkArgument(n > 0, "no statements at or below height " + maxHeight);
+            checkArgument(n > snapshotFloor, "cannot export below the height of the snapshot we adopted");
+            
+            List<CatenaStatement> statements = new ArrayList<CatenaStatement>(bq.subList(0, n));
+            List<Sha256Hash> blockHashes = new ArrayList<Sha256Hash>(n);
+            int[] heights = new int[n];
+            long[] times = new long[n];
+            for(int i = 0; i < n; i++) {
+                heights[i] = bqTimes.getHeight(i);
+                times[i] = bqTimes.getTimeSecs(i);
+                Sha256Hash blockHash = bqTimes.getBlockHash(i);
+                if(blockHash == null)
+                    blockHash = getConfirmingBlockHash(getTransaction(statements.get(i).getTxHash()), heights[i],
+                            store);
+                blockHashes.add(blockHash);
+            }
+            
+            Sha256Hash anchorBlockHash = blockHashes.get(n - 1);
+            StoredBlock anchorBlock = catenaBlocks.get(anchorBlockHash);
+            if(anchorBlock == null)
+                anchorBlock = store.get(anchorBlockHash);
+            if(anchorBlock == null && snapshot != null && 
+               anchorBlockHash.equals(snapshot.getAnchorBlock().getHeader().getHash()))
+                anchorBlock = snapshot.getAnchorBlock();
+            checkState(anchorBlock != null, "block " + anchorBlockHash + " is no longer in the block store, " +
+                    "try exporting at a higher height");
+            
+            return new CatenaSnapshot(getTransaction(getRootOfTrustTxid()), statements, heights, times, blockHashes, 
+                    getTransaction(statements.get(n - 1).getTxHash()), anchorBlock);
         } finally {
             lock.unlock();
         }
     }
     
+    private static Sha256Hash getConfirmingBlockHash(Transaction tx, int height, BlockStore store) 
+            throws BlockStoreException {
+        Map<Sha256Hash, Integer> appearsIn = tx.getAppearsInHashes();
+        checkState(appearsIn != null && appearsIn.isEmpty() == false, "BUILDING TXN in BQ has no blocks: " + 
+                tx.getHash());
+        if(appearsIn.size() == 1)
+            return appearsIn.keySet().iterator().next();
+        
+        // The TXN also appears in blocks that were reorged out, so find the one on the best chain
+        StoredBlock cursor = store.getChainHead();
+        while(cursor != null && cursor.getHeight() > height)
+            cursor = cursor.getPrev(store);
+        checkState(cursor != null && appearsIn.containsKey(cursor.getHeader().getHash()), 
+                "cannot find the best-chain block of TXN " + tx.getHash() + " in the block store");
+        return cursor.getHeader().getHash();
+    }
+
+    private List<CatenaStatement> copyBq(int from, int to) {
+        if(from >= to)
+            return Collections.emptyList();
+        return new ArrayList<CatenaStatement>(bq.subList(from, to));
+    }
+
+    /**
+     * Returns the root-of-trust TXID, without going through the wallet extension once it's cached.
+     */
+    private Sha256Hash getRootOfTrustTxid() {
+        checkState(lock.isHeldByCurrentThread());
+        
+        if(rootOfTrustTxid != null)
+            return rootOfTrustTxid;
+        else
+            return getCatenaExtension().getRootOfTrustTxid();
+    }
+    
+    /**
+     * Abbreviated TXID for log messages. Only call this when the log level is enabled, since it builds strings.
+     */
+    private static String shortHash(Transaction tx) {
+        return tx.getHashAsString().substring(0, 7) + "...";
+    }
+
+    /**
+     * Returns this wallet's stats, which can be read without the lock (see ClientWalletStatsMXBean).
+     */
+    public ClientWalletStats getStats() {
+        return stats;
+    }
+
+    @Override
+    public long getNumVerifiedStatements() {
+        return numVerifiedStmts.get();
+    }
+
+    @Override
+    public int getBuildingQueueSize() {
+        return bqSize;
+    }
+
+    @Override
+    public int getPendingQueueSize() {
+        return pqSize;
+    }
+
     @VisibleForTesting
     public int getNumStatements() {
         lock.lock();
@@ -587,19 +1328,22 @@ public class ClientWallet extends SimpleWallet {
     }
 
     /**
-     * Returns an iterator over all the BUILDING Catena TXs (not sure about the order).
+     * Returns an iterator over all the BUILDING Catena TXs (not sure about the order). The iterator is backed by a
+     * scratch list that the caller should clear when done.
      */
     private Iterator<Transaction> getCatenaBuildingTxns() {
         checkState(lock.isHeldByCurrentThread());
         
-        Sha256Hash rootOfTrustTxid = getCatenaExtension().getRootOfTrustTxid();
+        Sha256Hash rootOfTrustTxid = getRootOfTrustTxid();
         
         // We do not include root-of-trust TXN, since it cannot be double spent and we might not have the TX it spends
         // in the wallet, which will cause the calling code to fail.
-        List<Transaction> buildingTxns = new ArrayList<Transaction>();
+        buildingTxns.clear();
         
+        // Same goes for a snapshot's statements, whose TXNs we don't have, and for its anchor TXN.
         boolean skipped = false;
-        for(CatenaStatement s : bq) {
+        for(int i = snapshotFloor > 0 ? snapshotFloor + 1 : 0; i < bq.size(); i++) {
+            CatenaStatement s = bq.get(i);
             if(!skipped && s.getTxHash().equals(rootOfTrustTxid)) {
                 skipped = true;
                 continue;
@@ -616,7 +1360,8 @@ public class ClientWallet extends SimpleWallet {
      * @param listener
      */
     public void addWhistleblowListener(CatenaWhistleblowListener listener) {
-        whistleblowListeners.add(new ListenerRegistration<CatenaWhistleblowListener>(listener, executor));
+        whistleblowListeners.add(new ListenerRegistration<CatenaWhistleblowListener>(listener, 
+                stats.meter("whistleblow", listener, executor)));
     }
 
     /**
@@ -625,7 +1370,8 @@ public class ClientWallet extends SimpleWallet {
      * @param listener
      */
     public void addStatementListener(CatenaStatementListener listener) {
-        stmtListeners.add(new ListenerRegistration<CatenaStatementListener>(listener, executor));
+        stmtListeners.add(new ListenerRegistration<CatenaStatementListener>(listener, 
+                stats.meter("statement", listener, executor)));
     }
     
     /**
@@ -635,14 +1381,62 @@ public class ClientWallet extends SimpleWallet {
      * @param listener
      */
     public void addReorganizeListener(CatenaReorganizeListener listener) {
-        reorgListeners.add(new ListenerRegistration<CatenaReorganizeListener>(listener, executor));
+        reorgListeners.add(new ListenerRegistration<CatenaReorganizeListener>(listener, 
+                stats.meter("reorganize", listener, executor)));
     }
     
+    /**
+     * Adds a listener that is told about PENDING statements as soon as they are correctly signed and chained, and
+     * later about whether they were confirmed or retracted (see CatenaSpeculativeListener).
+     *
+     * @param listener
+     */
+    public void addSpeculativeListener(CatenaSpeculativeListener listener) {
+        specListeners.add(new ListenerRegistration<CatenaSpeculativeListener>(listener, 
+                stats.meter("speculative", listener, executor)));
+    }
+
+    private void queueOnSpeculated(final CatenaStatement s) {
+        for (final ListenerRegistration<CatenaSpeculativeListener> registration : specListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStatementSpeculated(s);
+                }
+            });
+        }
+    }
+
+    private void queueOnConfirmed(final CatenaStatement s) {
+        for (final ListenerRegistration<CatenaSpeculativeListener> registration : specListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStatementConfirmed(s);
+                }
+            });
+        }
+    }
+
+    private void queueOnRetracted(final CatenaStatement s) {
+        for (final ListenerRegistration<CatenaSpeculativeListener> registration : specListeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onStatementRetracted(s);
+                }
+            });
+        }
+    }
+
     private void queueOnAppend(final CatenaStatement s) {
+        final StatementTracer t = tracer;
         for (final ListenerRegistration<CatenaStatementListener> registration : stmtListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
                 public void run() {
+                    if(t != null)
+                        t.stamp(s.getTxHash(), StatementTracer.Stage.CLIENT_DELIVERED);
                     registration.listener.onStatementAppended(s);
                 }
             });
@@ -670,6 +1464,7 @@ public class ClientWallet extends SimpleWallet {
     }
     
     private void queueOnWhistleblow(final Transaction tx, final String message) {
+        stats.onWhistleblow();
         for (final ListenerRegistration<CatenaWhistleblowListener> registration : whistleblowListeners) {
             registration.executor.execute(new Runnable() {
                 @Override
@@ -693,6 +1488,27 @@ public class ClientWallet extends SimpleWallet {
         }
     }
 
+    public void setStatementTracer(StatementTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * Starts (or, if null, stops) recording the events we are told about (see WalletEventRecorder). Does not close the
+     * previous recorder, if any.
+     */
+    public void setEventRecorder(WalletEventRecorder recorder) {
+        WalletEventRecorder prev = this.recorder;
+        if(prev != null)
+            removeTransactionConfidenceEventListener(prev);
+        this.recorder = recorder;
+        if(recorder != null)
+            addTransactionConfidenceEventListener(Threading.SAME_THREAD, recorder);
+    }
+
+    public WalletEventRecorder getEventRecorder() {
+        return recorder;
+    }
+
     public void setRebootingHint(boolean isRebooting) {
         this.isRebootingHint = isRebooting;
     }
@@ -0,0 +1,267 @@
+package org.catena.client;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.catena.common.CatenaEvents;
+import org.catena.common.LatencyHistogram;
+import org.catena.common.SyncProgress;
+
+/**
+ * Counters and timings for a ClientWallet (see ClientWalletStatsMXBean). Always on: an update costs a few
+ * System.nanoTime() calls and atomic increments, and every listener call one extra Runnable. Readable from any thread
+ * without taking the wallet's lock.
+ */
+public class ClientWalletStats implements ClientWalletStatsMXBean {
+
+    /**
+     * The steps of ClientWallet::updateCatenaLog().
+     */
+    public enum Step {
+        POP_BQ,
+        PUSH_BQ,
+        LIE_DETECTION,
+        NOTIFY
+    }
+
+    private final SyncProgress.Counters counters;
+    private final ReentrantLock lock;
+
+    private final Map<Step, LatencyHistogram> stepLatency = new EnumMap<Step, LatencyHistogram>(Step.class);
+    private final LatencyHistogram lockWait = new LatencyHistogram();
+    private final LatencyHistogram lockHold = new LatencyHistogram();
+
+    private final AtomicLong numWhistleblows = new AtomicLong();
+    private final AtomicLong numReorgs = new AtomicLong();
+    private final AtomicLong numPopped = new AtomicLong();
+    private volatile int lastReorgDepth = 0, maxReorgDepth = 0;
+
+    private static final CatenaEvents events = CatenaEvents.get();
+
+    private final CopyOnWriteArrayList<MeteredExecutor> listeners = new CopyOnWriteArrayList<MeteredExecutor>();
+
+    /**
+     * @param counters	the wallet's sync counters (BQ and PQ sizes, verified statements)
+     * @param lock		the wallet's lock
+     */
+    ClientWalletStats(SyncProgress.Counters counters, ReentrantLock lock) {
+        this.counters = counters;
+        this.lock = lock;
+        for(Step step : Step.values())
+            stepLatency.put(step, new LatencyHistogram());
+    }
+
+    /**
+     * Records that a step which started at startNanos just ended, and returns how long it took.
+     */
+    long timeStep(Step step, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        stepLatency.get(step).record(nanos);
+        return nanos;
+    }
+
+    void onUpdate(long waitNanos, long holdNanos) {
+        lockWait.record(waitNanos);
+        lockHold.record(holdNanos);
+    }
+
+    void onWhistleblow() {
+        numWhistleblows.incrementAndGet();
+    }
+
+    /**
+     * Called when an update popped numPopped > 0 statements from BQ.
+     */
+    void onReorg(int numPopped) {
+        numReorgs.incrementAndGet();
+        this.numPopped.addAndGet(numPopped);
+        lastReorgDepth = numPopped;
+        // Only updates write this, under the wallet's lock
+        if(numPopped > maxReorgDepth)
+            maxReorgDepth = numPopped;
+    }
+
+    /**
+     * Wraps the executor of a new listener registration, so that we can tell how many of its calls are queued and how
+     * long they wait.
+     */
+    Executor meter(String type, Object listener, Executor executor) {
+        MeteredExecutor m = new MeteredExecutor(type + ":" + listener.getClass().getName(), executor);
+        listeners.add(m);
+        return m;
+    }
+
+    @Override
+    public long getNumUpdates() {
+        return lockHold.getCount();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPopBqLatency() {
+        return stepLatency.get(Step.POP_BQ).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getPushBqLatency() {
+        return stepLatency.get(Step.PUSH_BQ).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLieDetectionLatency() {
+        return stepLatency.get(Step.LIE_DETECTION).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getNotifyLatency() {
+        return stepLatency.get(Step.NOTIFY).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLockWaitLatency() {
+        return lockWait.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getLockHoldLatency() {
+        return lockHold.snapshot();
+    }
+
+    @Override
+    public int getLockQueueLength() {
+        return lock.getQueueLength();
+    }
+
+    @Override
+    public long getNumVerifiedStatements() {
+        return counters.getNumVerifiedStatements();
+    }
+
+    @Override
+    public int getBuildingQueueSize() {
+        return counters.getBuildingQueueSize();
+    }
+
+    @Override
+    public int getPendingQueueSize() {
+        return counters.getPendingQueueSize();
+    }
+
+    @Override
+    public long getNumWhistleblows() {
+        return numWhistleblows.get();
+    }
+
+    @Override
+    public long getNumReorgs() {
+        return numReorgs.get();
+    }
+
+    @Override
+    public long getNumPoppedStatements() {
+        return numPopped.get();
+    }
+
+    @Override
+    public int getLastReorgDepth() {
+        return lastReorgDepth;
+    }
+
+    @Override
+    public int getMaxReorgDepth() {
+        return maxReorgDepth;
+    }
+
+    @Override
+    public List<ListenerStats> getListeners() {
+        List<ListenerStats> stats = new ArrayList<ListenerStats>(listeners.size());
+        for(MeteredExecutor m : listeners)
+            stats.add(new ListenerStats(m.name, m.queued.get(), m.lag.snapshot(), m.runTime.snapshot()));
+        return stats;
+    }
+
+    /**
+     * A read-only view of a listener registration's calls, which JMX shows as composite data.
+     */
+    public static class ListenerStats {
+        private final String name;
+        private final int queueDepth;
+        private final LatencyHistogram.Snapshot lag, runTime;
+
+        private ListenerStats(String name, int queueDepth, LatencyHistogram.Snapshot lag, 
+                LatencyHistogram.Snapshot runTime) {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.lag = lag;
+            this.runTime = runTime;
+        }
+
+        /**
+         * The kind of listener (e.g., "statement") and its class.
+         */
+        public String getName() { return name; }
+
+        /**
+         * The number of calls queued but not started yet.
+         */
+        public int getQueueDepth() { return queueDepth; }
+
+        /**
+         * From when a call was queued until it started running.
+         */
+        public LatencyHistogram.Snapshot getLag() { return lag; }
+
+        public LatencyHistogram.Snapshot getRunTime() { return runTime; }
+
+        @Override
+        public String toString() {
+            return name + ": queued=" + queueDepth + ", lag=(" + lag + "), run=(" + runTime + ")";
+        }
+    }
+
+    private static class MeteredExecutor implements Executor {
+        private final String name;
+        private final Executor delegate;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final LatencyHistogram lag = new LatencyHistogram();
+        private final LatencyHistogram runTime = new LatencyHistogram();
+
+        MeteredExecutor(String name, Executor delegate) {
+            this.name = name;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            final long queuedNanos = System.nanoTime();
+            queued.incrementAndGet();
+            try {
+                delegate.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        CatenaEvents.Span span = events.beginListener();
+                        long startNanos = System.nanoTime();
+                        queued.decrementAndGet();
+                        lag.record(startNanos - queuedNanos);
+                        try {
+                            command.run();
+                        } finally {
+                            runTime.recordSince(startNanos);
+                            events.endListener(span, name, startNanos - queuedNanos);
+                        }
+                    }
+                });
+            } catch(RejectedExecutionException e) {
+                queued.decrementAndGet();
+                throw e;
+            }
+        }
+    }
+}
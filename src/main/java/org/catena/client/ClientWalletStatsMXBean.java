@@ -0,0 +1,72 @@
+package org.catena.client;
+
+import java.util.List;
+
+import org.catena.common.LatencyHistogram;
+
+/**
+ * JMX view of how a Catena client keeps up (see ClientWalletStats): how long each step of ClientWallet's update
+ * takes, how long it waits for and holds the wallet's lock, what it found (whistleblows, reorgs) and how far behind
+ * the listeners are. Latencies are in milliseconds.
+ */
+public interface ClientWalletStatsMXBean {
+
+    /**
+     * The number of ClientWallet::updateCatenaLog() calls so far.
+     */
+    public long getNumUpdates();
+
+    public LatencyHistogram.Snapshot getPopBqLatency();
+
+    public LatencyHistogram.Snapshot getPushBqLatency();
+
+    public LatencyHistogram.Snapshot getLieDetectionLatency();
+
+    /**
+     * Queueing the withdrawn statements and updating the speculative listeners (i.e., not running the listeners).
+     */
+    public LatencyHistogram.Snapshot getNotifyLatency();
+
+    /**
+     * How long updates wait for the wallet's lock.
+     */
+    public LatencyHistogram.Snapshot getLockWaitLatency();
+
+    /**
+     * How long updates hold the wallet's lock, which is also how long they take.
+     */
+    public LatencyHistogram.Snapshot getLockHoldLatency();
+
+    /**
+     * The number of threads waiting for the wallet's lock right now (an estimate).
+     */
+    public int getLockQueueLength();
+
+    public long getNumVerifiedStatements();
+
+    public int getBuildingQueueSize();
+
+    public int getPendingQueueSize();
+
+    public long getNumWhistleblows();
+
+    /**
+     * The number of updates that popped statements from BQ, because a fork killed their TXNs or moved them to other
+     * blocks.
+     */
+    public long getNumReorgs();
+
+    /**
+     * The number of statements popped from BQ by reorgs (some of which might have been added back).
+     */
+    public long getNumPoppedStatements();
+
+    public int getLastReorgDepth();
+
+    public int getMaxReorgDepth();
+
+    /**
+     * One entry per listener registration.
+     */
+    public List<ClientWalletStats.ListenerStats> getListeners();
+}
@@ -0,0 +1,174 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerGroup;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Follows many Catena chains over a single block chain and peer group, as opposed to CatenaClient, which follows a
+ * single chain with its own wallet, block chain and peer connections.
+ *
+ * Every chain is followed by its own CatenaChainTracker, with its own BQ/PQ and listeners, which callers get back from
+ * addChain() before starting the client. The trackers are driven by a CatenaChainDispatcher, so chains that have new
+ * statements in the same block are verified in parallel. All chains share one CatenaBloomFilterProvider.
+ *
+ * Chains that are followed with a tip window (see follow()) keep only their last statements in memory and save their
+ * archive in the client's directory, so they resume from their archive's anchor TX after a restart.
+ *
+ * NOTE: The trackers persist nothing else, so the block chain is kept in memory and downloaded again (from the
+ * earliest root-of-trust TX's or anchor TX's time, if given) every time the client starts. The bitcoinj wallet that
+ * WalletAppKit insists on creating stays empty.
+ */
+public class MultiChainCatenaClient extends WalletAppKit {
+
+    private static final Logger log = LoggerFactory.getLogger(MultiChainCatenaClient.class);
+    protected static final String BITCOINJ_FILE_PREFIX = "catena-multi-client";
+
+    /**
+     * The trackers, indexed by root-of-trust TXID, in the order they were added.
+     */
+    private final Map<Sha256Hash, CatenaChainTracker> trackers = new LinkedHashMap<Sha256Hash, CatenaChainTracker>();
+
+    private final CatenaChainDispatcher dispatcher;
+
+    private final CatenaBloomFilterProvider filterProvider = new CatenaBloomFilterProvider();
+
+    public MultiChainCatenaClient(NetworkParameters params, File directory) {
+        this(params, directory, new CatenaChainDispatcher());
+    }
+
+    public MultiChainCatenaClient(NetworkParameters params, File directory, CatenaChainDispatcher dispatcher) {
+        super(params, directory, BITCOINJ_FILE_PREFIX);
+        this.dispatcher = checkNotNull(dispatcher);
+
+        log.info("Creating multi-chain Catena client in dir: " + directory);
+
+        setBlockingStartup(true);
+    }
+
+    /**
+     * Starts following the Catena chain with the specified root-of-trust TXID and chain address. Must be called before
+     * the client is started.
+     *
+     * @param rootOfTrustTxid
+     * @param chainAddr
+     * @param earliestTimeSecs	a time before the root-of-trust TX was issued, so we do not have to download full
+     * 						blocks from before that (or 1 if unknown)
+     * @return the tracker for the chain, so the caller can add listeners to it
+     */
+    public synchronized CatenaChainTracker addChain(Sha256Hash rootOfTrustTxid, Address chainAddr,
+            long earliestTimeSecs) {
+        return addChain(rootOfTrustTxid, chainAddr, earliestTimeSecs, PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+    }
+
+    /**
+     * Same as above, but also sets the chain's target Bloom filter false positive rate (see
+     * CatenaBloomFilterProvider).
+     */
+    public synchronized CatenaChainTracker addChain(Sha256Hash rootOfTrustTxid, Address chainAddr,
+            long earliestTimeSecs, double falsePositiveRate) {
+        CatenaChainTracker tracker = newTracker(rootOfTrustTxid, chainAddr, earliestTimeSecs);
+        register(tracker, falsePositiveRate);
+        return tracker;
+    }
+
+    /**
+     * Same as addChain(), but only keeps the chain's last tipWindow statements in memory and hands older ones to the
+     * sink (see CatenaChainTracker::setTipWindow). The archive is saved in the client's directory, so after a restart
+     * the chain is resumed from where it was archived, and the archived statements are not handed to the sink again.
+     *
+     * @throws IOException if the chain's archive cannot be read
+     */
+    public synchronized CatenaChainTracker follow(Sha256Hash rootOfTrustTxid, Address chainAddr,
+            long earliestTimeSecs, int tipWindow, CatenaStatementSink sink) throws IOException {
+        CatenaChainTracker tracker = newTracker(rootOfTrustTxid, chainAddr, earliestTimeSecs);
+        tracker.setTipWindow(tipWindow, sink, getArchiveFile(rootOfTrustTxid));
+        register(tracker, PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE);
+        return tracker;
+    }
+
+    public File getArchiveFile(Sha256Hash rootOfTrustTxid) {
+        return new File(directory, BITCOINJ_FILE_PREFIX + "-" + rootOfTrustTxid + ".archive");
+    }
+
+    private CatenaChainTracker newTracker(Sha256Hash rootOfTrustTxid, Address chainAddr, long earliestTimeSecs) {
+        checkState(state() == State.NEW, "chains must be added before the client is started");
+        checkArgument(trackers.containsKey(rootOfTrustTxid) == false, "already following chain " + rootOfTrustTxid);
+
+        return new CatenaChainTracker(params, rootOfTrustTxid, chainAddr, earliestTimeSecs);
+    }
+
+    private void register(CatenaChainTracker tracker, double falsePositiveRate) {
+        Sha256Hash rootOfTrustTxid = tracker.getRootOfTrustTxid();
+        trackers.put(rootOfTrustTxid, tracker);
+        dispatcher.addTracker(tracker);
+        // NOTE: A resumed tracker only needs the blocks after its archive's anchor TX
+        filterProvider.addChain(rootOfTrustTxid, tracker.getChainAddress(), tracker.getEarliestKeyCreationTime(),
+                falsePositiveRate);
+        tracker.shareFilter(filterProvider);
+    }
+
+    public CatenaChainTracker addChain(Sha256Hash rootOfTrustTxid, Address chainAddr) {
+        return addChain(rootOfTrustTxid, chainAddr, 1);
+    }
+
+    public synchronized CatenaChainTracker getChain(Sha256Hash rootOfTrustTxid) {
+        return trackers.get(rootOfTrustTxid);
+    }
+
+    public synchronized Collection<CatenaChainTracker> getChains() {
+        return Collections.unmodifiableCollection(trackers.values());
+    }
+
+    public CatenaBloomFilterProvider getBloomFilterProvider() {
+        return filterProvider;
+    }
+
+    @Override
+    protected BlockStore provideBlockStore(File file) throws BlockStoreException {
+        return new MemoryBlockStore(params);
+    }
+
+    /**
+     * This is called right before the blockchain sync starts, so the block chain and the peer group are initialized.
+     */
+    @Override
+    protected synchronized void onSetupCompleted() {
+        checkState(trackers.isEmpty() == false, "no Catena chains to follow");
+        log.info("Following {} Catena chain(s)", trackers.size());
+
+        // Same as for wallets: the dispatcher needs to see the blocks in the order the block chain processes them.
+        chain().addTransactionReceivedListener(Threading.SAME_THREAD, dispatcher);
+        chain().addNewBestBlockListener(Threading.SAME_THREAD, dispatcher);
+        chain().addReorganizeListener(Threading.SAME_THREAD, dispatcher);
+        peerGroup().addOnTransactionBroadcastListener(Threading.SAME_THREAD, dispatcher);
+
+        // One filter provider for all chains, rather than every tracker's own
+        filterProvider.connect(peerGroup());
+        chain().addTransactionReceivedListener(Threading.SAME_THREAD, filterProvider);
+        peerGroup().addOnTransactionBroadcastListener(Threading.SAME_THREAD, filterProvider);
+    }
+
+    @Override
+    protected void shutDown() throws Exception {
+        super.shutDown();
+        dispatcher.shutdown();
+    }
+}
@@ -0,0 +1,50 @@
+package org.catena.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.bitcoinj.core.NetworkParameters;
+
+/**
+ * Where a client keeps the snapshot it started from (see CatenaClient::importSnapshot), since it needs it after
+ * restarts too.
+ *
+ * A new snapshot is written as unchecked, and only becomes checked once the client has spot-checked it against the live
+ * chain. A client that is restarted before that (e.g., because the spot check failed, or because it was killed while
+ * syncing) finds the snapshot unchecked and spot-checks it again, rather than trusting it.
+ */
+class SnapshotFile {
+
+    private final File checkedFile;
+    private final File uncheckedFile;
+
+    SnapshotFile(File directory, String prefix) {
+        this.checkedFile = new File(directory, prefix + ".snapshot");
+        this.uncheckedFile = new File(directory, prefix + ".snapshot.unchecked");
+    }
+
+    public boolean exists() {
+        return checkedFile.exists() || uncheckedFile.exists();
+    }
+
+    public boolean isChecked() {
+        return checkedFile.exists();
+    }
+
+    public void writeUnchecked(CatenaSnapshot s) throws IOException {
+        s.writeTo(uncheckedFile);
+    }
+
+    /**
+     * Called once the snapshot passed its spot check.
+     */
+    public void markChecked() throws IOException {
+        Files.move(uncheckedFile.toPath(), checkedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public CatenaSnapshot read(NetworkParameters params) throws IOException {
+        return CatenaSnapshot.readFrom(params, isChecked() ? checkedFile : uncheckedFile);
+    }
+}
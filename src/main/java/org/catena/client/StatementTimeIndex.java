@@ -0,0 +1,120 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.Arrays;
+
+import org.bitcoinj.core.Sha256Hash;
+
+/**
+ * The inclusion block height, hash and header timestamp of every entry in a building queue (BQ), kept in parallel
+ * arrays that grow and shrink at the tail along with BQ.
+ *
+ * Heights never decrease along BQ since every Catena TX spends the previous one, so we can binary search them directly.
+ * Block timestamps, however, are only loosely ordered in Bitcoin (a block may claim to be older than its parent), so
+ * time queries use each entry's "effective" time instead: the largest timestamp among it and all the entries before
+ * it. That is the earliest time the entry could be said to have been confirmed at, given the entries before it.
+ *
+ * Not thread-safe: callers hold the lock that guards BQ.
+ */
+class StatementTimeIndex {
+
+    private int[] heights = new int[16];
+    private long[] times = new long[16];
+    private long[] effTimes = new long[16];
+    private Sha256Hash[] blockHashes = new Sha256Hash[16];
+    private int size = 0;
+
+    /**
+     * @param height
+     * @param timeSecs
+     * @param blockHash	can be null, if we don't know which block included the entry
+     */
+    public void push(int height, long timeSecs, Sha256Hash blockHash) {
+        if(size == heights.length) {
+            heights = Arrays.copyOf(heights, size * 2);
+            times = Arrays.copyOf(times, size * 2);
+            effTimes = Arrays.copyOf(effTimes, size * 2);
+            blockHashes = Arrays.copyOf(blockHashes, size * 2);
+        }
+
+        checkState(size == 0 || heights[size - 1] <= height, "heights must not decrease along BQ");
+        heights[size] = height;
+        times[size] = timeSecs;
+        effTimes[size] = size == 0 ? timeSecs : Math.max(effTimes[size - 1], timeSecs);
+        blockHashes[size] = blockHash;
+        size++;
+    }
+
+    public void pop() {
+        checkState(size > 0);
+        size--;
+        blockHashes[size] = null;
+    }
+
+    public void clear() {
+        Arrays.fill(blockHashes, 0, size, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getHeight(int i) {
+        checkElementIndex(i, size);
+        return heights[i];
+    }
+
+    /**
+     * Returns the timestamp in the header of the block that included the i-th entry.
+     */
+    public long getTimeSecs(int i) {
+        checkElementIndex(i, size);
+        return times[i];
+    }
+
+    /**
+     * Returns the hash of the block that included the i-th entry, or null if we don't know it.
+     */
+    public Sha256Hash getBlockHash(int i) {
+        checkElementIndex(i, size);
+        return blockHashes[i];
+    }
+
+    public long getEffectiveTimeSecs(int i) {
+        checkElementIndex(i, size);
+        return effTimes[i];
+    }
+
+    /**
+     * Returns the index of the first entry at or above the specified height, or size() if there is none.
+     */
+    public int firstAtOrAboveHeight(long height) {
+        int lo = 0, hi = size;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(heights[mid] < height)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Returns the index of the first entry whose effective time is at or after timeSecs, or size() if there is none.
+     */
+    public int firstAtOrAfterTime(long timeSecs) {
+        int lo = 0, hi = size;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(effTimes[mid] < timeSecs)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
@@ -11,8 +11,19 @@ public class TxidBloomFilterProvider implements PeerFilterProvider {
     
     private Sha256Hash txid;
     
+    private long earliestTimeSecs;
+    
     public TxidBloomFilterProvider(Sha256Hash txid) {
+        this(txid, 1);
+    }
+    
+    /**
+     * @param txid
+     * @param earliestTimeSecs	the time of the block that has the TX in it, if known, or 1 otherwise
+     */
+    public TxidBloomFilterProvider(Sha256Hash txid, long earliestTimeSecs) {
         this.txid = txid;         
+        this.earliestTimeSecs = earliestTimeSecs;
     }
 
     @Override
@@ -42,15 +53,14 @@ public class TxidBloomFilterProvider implements PeerFilterProvider {
 
     @Override
     public long getEarliestKeyCreationTime() {
-        // NOTE: Initially, I was not sure what I should return here so I
-        // returned Long.MAX_VALUE.
-        // Then, I realized that this is the timestamp after which bitcoinj 
-        // actually starts downloading filtered and unfiltered block bodies.
-        // So, if I set this to Long.MAX_VALUE, it won't download any TXs in
-        // the blocks. As a result, I was never matching the TX with this filter.
-        // (This can be optimized to minimize the # of downloaded blocks, but 
-        //  for now I set it to 0 to be safe.)
-        return 1;
+        // NOTE: This is the timestamp after which bitcoinj actually starts
+        // downloading filtered block bodies, rather than just headers. So, if
+        // it were Long.MAX_VALUE, it would never download any TXs in the
+        // blocks and we would never match the TX with this filter.
+        // We return the time of the block that has the TX in it, when we
+        // know it, so that older blocks are skipped, and 1 otherwise, to be
+        // safe.
+        return earliestTimeSecs;
     }
     
     @Override
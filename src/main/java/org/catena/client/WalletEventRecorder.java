@@ -0,0 +1,330 @@
+package org.catena.client;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.listeners.TransactionConfidenceEventListener;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records what a live ClientWallet is told by the block chain and the peer group (TXs, the blocks they are in, new
+ * best blocks, reorgs and how many peers announced pending TXs) into a compact binary file, so that
+ * WalletEventReplayer can feed the exact same sequence of events to a fresh wallet, as fast as possible, to benchmark
+ * and profile updateCatenaLog() offline.
+ *
+ * The file starts with the wallet as it was when recording started (in bitcoinj's protobuf format), so replays start
+ * from the same state, and then has one event after another: a type byte, the milliseconds since the previous event
+ * and the event's fields. Blocks are written once, when first used, and referred to by their index afterwards. Numbers
+ * are LEB128 varints, since most of them are small.
+ *
+ * Only confidence changes that come from peers (i.e., SEEN_PEERS) are recorded, since the wallet derives all the
+ * other ones (depth, BUILDING/PENDING/DEAD) from the recorded TXs and blocks when replaying them.
+ *
+ * Errors writing the file are logged and stop the recording, rather than the wallet.
+ */
+public class WalletEventRecorder implements TransactionConfidenceEventListener, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(WalletEventRecorder.class);
+
+    static final int MAGIC = 0x43574556;     // "CWEV"
+    static final int VERSION = 1;
+
+    // Event types
+    static final int BLOCK = 1;
+    static final int RECEIVE_PENDING = 2;
+    static final int RECEIVE_FROM_BLOCK = 3;
+    static final int TX_IN_BLOCK = 4;
+    static final int NEW_BEST_BLOCK = 5;
+    static final int REORGANIZE = 6;
+    static final int SEEN_BY_PEERS = 7;
+
+    private final File file;
+
+    @GuardedBy("this") private DataOutputStream out;
+    @GuardedBy("this") private final Map<Sha256Hash, Integer> blockIds = new HashMap<Sha256Hash, Integer>();
+    /**
+     * The number of peers we last recorded as having announced each TX.
+     */
+    @GuardedBy("this") private final Map<Sha256Hash, Integer> numSeen = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("this") private long lastMillis;
+    @GuardedBy("this") private long numEvents = 0;
+
+    private final ByteBuffer blockBuf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+
+    /**
+     * Starts recording the events of a wallet to a file. The wallet is saved in the file right away, so call this
+     * before the wallet starts receiving blocks and TXs, and then attach the recorder with
+     * ClientWallet::setEventRecorder.
+     *
+     * @param isRebooting   true if the wallet was loaded from a previous run (so its statements are read back
+     *                      without notifying listeners, see CatenaWalletListener::onWalletChanged)
+     */
+    public WalletEventRecorder(File file, ClientWallet wallet, boolean isRebooting) throws IOException {
+        this.file = file;
+
+        ByteArrayOutputStream walletBytes = new ByteArrayOutputStream();
+        new WalletProtobufSerializer().writeWallet(wallet, walletBytes);
+
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(wallet.getParams().getId());
+            out.writeBoolean(isRebooting);
+            lastMillis = System.currentTimeMillis();
+            out.writeLong(lastMillis);
+            writeVarInt(out, walletBytes.size());
+            walletBytes.writeTo(out);
+        } catch(IOException e) {
+            out.close();
+            throw e;
+        }
+
+        log.info("Recording wallet events to {} (wallet is {} bytes)", file, walletBytes.size());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public synchronized long getNumEvents() {
+        return numEvents;
+    }
+
+    public synchronized void recordReceivePending(Transaction tx, List<Transaction> dependencies,
+            boolean overrideIsRelevant) {
+        try {
+            if(beginEvent(RECEIVE_PENDING) == false)
+                return;
+            // Peers usually announce a TX before we download it, so say how many did so far
+            int peers = tx.getConfidence().numBroadcastPeers();
+            numSeen.put(tx.getHash(), peers);
+            writeVarInt(out, peers);
+            out.writeBoolean(overrideIsRelevant);
+            writeVarInt(out, dependencies == null ? 0 : dependencies.size());
+            if(dependencies != null) {
+                for(Transaction dep : dependencies)
+                    writeBytes(out, dep.bitcoinSerialize());
+            }
+            writeBytes(out, tx.bitcoinSerialize());
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void recordReceiveFromBlock(Transaction tx, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) {
+        try {
+            int id = blockId(block);
+            if(beginEvent(RECEIVE_FROM_BLOCK) == false)
+                return;
+            writeVarInt(out, id);
+            out.writeByte(blockType.ordinal());
+            writeVarInt(out, relativityOffset);
+            writeBytes(out, tx.bitcoinSerialize());
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void recordTxInBlock(Sha256Hash txHash, StoredBlock block, NewBlockType blockType,
+            int relativityOffset) {
+        try {
+            int id = blockId(block);
+            if(beginEvent(TX_IN_BLOCK) == false)
+                return;
+            out.write(txHash.getBytes());
+            writeVarInt(out, id);
+            out.writeByte(blockType.ordinal());
+            writeVarInt(out, relativityOffset);
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void recordNewBestBlock(StoredBlock block) {
+        try {
+            int id = blockId(block);
+            if(beginEvent(NEW_BEST_BLOCK) == false)
+                return;
+            writeVarInt(out, id);
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * NOTE: Call this before Wallet::reorganize, which reverses the lists in place.
+     */
+    public synchronized void recordReorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks,
+            List<StoredBlock> newBlocks) {
+        try {
+            int splitId = blockId(splitPoint);
+            int[] oldIds = blockIds(oldBlocks), newIds = blockIds(newBlocks);
+            if(beginEvent(REORGANIZE) == false)
+                return;
+            writeVarInt(out, splitId);
+            writeVarInts(out, oldIds);
+            writeVarInts(out, newIds);
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Records the TXs that more peers announced since we last looked. The wallet calls this for every confidence
+     * change of its TXs, most of which are new depths (which are not recorded).
+     */
+    @Override
+    public synchronized void onTransactionConfidenceChanged(Wallet wallet, Transaction tx) {
+        if(out == null)
+            return;
+
+        int peers = tx.getConfidence().numBroadcastPeers();
+        Integer prev = numSeen.get(tx.getHash());
+        if(peers <= (prev == null ? 0 : prev))
+            return;
+
+        try {
+            numSeen.put(tx.getHash(), peers);
+            if(beginEvent(SEEN_BY_PEERS) == false)
+                return;
+            out.write(tx.getHash().getBytes());
+            writeVarInt(out, peers);
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    public synchronized void flush() {
+        if(out == null)
+            return;
+
+        try {
+            out.flush();
+        } catch(IOException e) {
+            failed(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(out == null)
+            return;
+
+        try {
+            out.close();
+            log.info("Recorded {} wallet events to {}", numEvents, file);
+        } finally {
+            out = null;
+        }
+    }
+
+    /**
+     * Writes the type of a new event and the time since the previous one, unless recording stopped.
+     */
+    @GuardedBy("this")
+    private boolean beginEvent(int type) throws IOException {
+        if(out == null)
+            return false;
+
+        long now = System.currentTimeMillis();
+        out.writeByte(type);
+        writeVarInt(out, Math.max(0, now - lastMillis));
+        lastMillis = now;
+        numEvents++;
+        return true;
+    }
+
+    /**
+     * Returns the index of the block in the file, writing it out first if it was not used before.
+     */
+    @GuardedBy("this")
+    private int blockId(StoredBlock block) throws IOException {
+        if(out == null)
+            return -1;
+
+        Sha256Hash hash = block.getHeader().getHash();
+        Integer id = blockIds.get(hash);
+        if(id == null) {
+            id = blockIds.size();
+            blockIds.put(hash, id);
+
+            blockBuf.clear();
+            block.serializeCompact(blockBuf);
+            out.writeByte(BLOCK);
+            out.write(blockBuf.array());
+        }
+        return id;
+    }
+
+    @GuardedBy("this")
+    private int[] blockIds(List<StoredBlock> blocks) throws IOException {
+        int[] ids = new int[blocks.size()];
+        for(int i = 0; i < ids.length; i++)
+            ids[i] = blockId(blocks.get(i));
+        return ids;
+    }
+
+    @GuardedBy("this")
+    private void failed(IOException e) {
+        log.error("Stopped recording wallet events to " + file + " after " + numEvents + " events", e);
+        try {
+            out.close();
+        } catch(IOException ignored) {
+        } finally {
+            out = null;
+        }
+    }
+
+    static void writeVarInt(DataOutputStream out, long value) throws IOException {
+        checkArgument(value >= 0);
+        while((value & ~0x7fL) != 0) {
+            out.writeByte((int)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int)value);
+    }
+
+    static long readVarInt(DataInputStream in) throws IOException {
+        long value = 0;
+        for(int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long)(b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid varint in wallet events file");
+    }
+
+    private static void writeVarInts(DataOutputStream out, int[] values) throws IOException {
+        writeVarInt(out, values.length);
+        for(int v : values)
+            writeVarInt(out, v);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        writeVarInt(out, data.length);
+        out.write(data);
+    }
+}
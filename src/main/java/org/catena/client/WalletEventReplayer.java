@@ -0,0 +1,307 @@
+package org.catena.client;
+
+import static org.catena.client.WalletEventRecorder.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TxConfidenceTable;
+import org.bitcoinj.utils.Threading;
+import org.bitcoinj.wallet.UnreadableWalletException;
+import org.bitcoinj.wallet.WalletExtension;
+import org.bitcoinj.wallet.WalletProtobufSerializer;
+import org.catena.common.CatenaWalletExtension;
+import org.catena.common.Utils;
+
+/**
+ * Feeds the events recorded by a WalletEventRecorder to a fresh ClientWallet, as fast as possible, so that the way a
+ * live client processed them (mostly, its updateCatenaLog() calls) can be benchmarked and profiled offline, and
+ * deterministically, e.g.:
+ *
+ *  $ ./replay.sh wallet-events.bin 10
+ *
+ * The wallet starts from the state it was in when the recording started and is set up like CatenaClient sets up its
+ * wallet, with a CatenaWalletListener that updates the Catena log every time the wallet changes. Pending TXs are
+ * announced by as many (made up) peers as announced them to the live client, at the same points in the recording.
+ *
+ * A replayer can be used for many replays, one at a time, each on a new wallet from newWallet(), in the same thread.
+ */
+public class WalletEventReplayer {
+
+    private final NetworkParameters params;
+    private final boolean isRebooting;
+    private final long startMillis;
+    private final byte[] walletBytes;
+
+    /**
+     * The whole file, which we replay from memory so that reading it is not part of the replays.
+     */
+    private final byte[] data;
+    private final int eventsOffset;
+
+    private final List<PeerAddress> peers = new ArrayList<PeerAddress>();
+
+    /**
+     * What a replay did and how long it took.
+     */
+    public static class Result {
+        private final long numEvents, recordedMillis, elapsedNanos;
+
+        Result(long numEvents, long recordedMillis, long elapsedNanos) {
+            this.numEvents = numEvents;
+            this.recordedMillis = recordedMillis;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public long getNumEvents() { return numEvents; }
+
+        /**
+         * How long the live client took to receive the events.
+         */
+        public long getRecordedMillis() { return recordedMillis; }
+
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        public double getEventsPerSec() {
+            return elapsedNanos == 0 ? 0 : numEvents * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d events (recorded over %.1fs) in %.1fms, %.0f events/s", numEvents,
+                    recordedMillis / 1000.0, elapsedNanos / 1e6, getEventsPerSec());
+        }
+    }
+
+    public WalletEventReplayer(File file) throws IOException {
+        this.data = Files.readAllBytes(file.toPath());
+
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        if(in.readInt() != MAGIC)
+            throw new IOException("Not a wallet events file: " + file);
+        int version = in.readInt();
+        if(version != VERSION)
+            throw new IOException("Unsupported wallet events version " + version + ": " + file);
+
+        String paramsId = in.readUTF();
+        params = NetworkParameters.fromID(paramsId);
+        if(params == null)
+            throw new IOException("Unknown network '" + paramsId + "' in wallet events file: " + file);
+        isRebooting = in.readBoolean();
+        startMillis = in.readLong();
+
+        long len = readVarInt(in);
+        if(len > bytes.available())
+            throw new IOException("Invalid wallet length in wallet events file: " + len);
+        walletBytes = new byte[(int)len];
+        in.readFully(walletBytes);
+
+        eventsOffset = data.length - bytes.available();
+    }
+
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    /**
+     * When the recording started.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    /**
+     * Returns a new wallet, in the state the recorded one was in when the recording started, that updates its Catena
+     * log like a CatenaClient's wallet does. Also gives this thread a new bitcoinj Context, so the wallet's TXs start
+     * out with no peers having announced them, like they did for the recorded wallet.
+     */
+    public ClientWallet newWallet() throws UnreadableWalletException {
+        Context.propagate(new Context(params));
+
+        ClientWallet wallet = ClientWallet.castWallet(new WalletProtobufSerializer(new ClientWallet.Factory())
+                .readWallet(new ByteArrayInputStream(walletBytes), false,
+                        new WalletExtension[] { new CatenaWalletExtension() }));
+
+        // Same as CatenaClient::beforeBlockChainDownload
+        CatenaWalletListener listener = new CatenaWalletListener(wallet);
+        wallet.setRebootingHint(isRebooting);
+        if(isRebooting)
+            listener.onWalletChanged(wallet);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, listener);
+        return wallet;
+    }
+
+    /**
+     * Feeds all the recorded events to a wallet from newWallet(), as fast as possible, in this thread.
+     */
+    public Result replay(ClientWallet wallet) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data, eventsOffset, data.length - eventsOffset);
+        DataInputStream in = new DataInputStream(bytes);
+        TxConfidenceTable confidenceTable = wallet.getContext().getConfidenceTable();
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        byte[] blockBytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+
+        long numEvents = 0, recordedMillis = 0;
+        long startNanos = System.nanoTime();
+        int type;
+        while((type = in.read()) != -1) {
+            if(type == BLOCK) {
+                in.readFully(blockBytes);
+                blocks.add(StoredBlock.deserializeCompact(params, ByteBuffer.wrap(blockBytes)));
+                continue;
+            }
+
+            recordedMillis += readVarInt(in);
+            numEvents++;
+            switch(type) {
+            case RECEIVE_PENDING: {
+                int numPeers = (int)readVarInt(in);
+                boolean overrideIsRelevant = in.readBoolean();
+                int numDeps = (int)readVarInt(in);
+                List<Transaction> deps = null;
+                if(numDeps > 0) {
+                    deps = new ArrayList<Transaction>(numDeps);
+                    for(int i = 0; i < numDeps; i++)
+                        deps.add(readTx(in));
+                }
+                Transaction tx = readTx(in);
+                seen(confidenceTable, tx.getHash(), numPeers);
+                wallet.receivePending(tx, deps, overrideIsRelevant);
+                break;
+            }
+            case RECEIVE_FROM_BLOCK: {
+                StoredBlock block = blocks.get((int)readVarInt(in));
+                NewBlockType blockType = NewBlockType.values()[in.readUnsignedByte()];
+                int offset = (int)readVarInt(in);
+                wallet.receiveFromBlock(readTx(in), block, blockType, offset);
+                break;
+            }
+            case TX_IN_BLOCK: {
+                Sha256Hash txHash = readHash(in);
+                StoredBlock block = blocks.get((int)readVarInt(in));
+                NewBlockType blockType = NewBlockType.values()[in.readUnsignedByte()];
+                wallet.notifyTransactionIsInBlock(txHash, block, blockType, (int)readVarInt(in));
+                break;
+            }
+            case NEW_BEST_BLOCK:
+                wallet.notifyNewBestBlock(blocks.get((int)readVarInt(in)));
+                break;
+            case REORGANIZE: {
+                StoredBlock splitPoint = blocks.get((int)readVarInt(in));
+                List<StoredBlock> oldBlocks = readBlocks(in, blocks);
+                wallet.reorganize(splitPoint, oldBlocks, readBlocks(in, blocks));
+                break;
+            }
+            case SEEN_BY_PEERS:
+                seen(confidenceTable, readHash(in), (int)readVarInt(in));
+                break;
+            default:
+                throw new IOException("Unknown wallet event type " + type + " at byte " +
+                        (data.length - bytes.available()));
+            }
+        }
+
+        return new Result(numEvents, recordedMillis, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Has made up peers announce a TX until numPeers of them did.
+     */
+    private void seen(TxConfidenceTable confidenceTable, Sha256Hash txHash, int numPeers) throws IOException {
+        for(int i = confidenceTable.numBroadcastPeers(txHash); i < numPeers; i++)
+            confidenceTable.seen(txHash, peer(i));
+    }
+
+    private PeerAddress peer(int i) throws IOException {
+        while(peers.size() <= i) {
+            byte[] addr = { 10, (byte)(peers.size() >> 16), (byte)(peers.size() >> 8), (byte)peers.size() };
+            peers.add(new PeerAddress(params, InetAddress.getByAddress(addr), params.getPort()));
+        }
+        return peers.get(i);
+    }
+
+    private Transaction readTx(DataInputStream in) throws IOException {
+        return params.getDefaultSerializer().makeTransaction(readBytes(in));
+    }
+
+    private static List<StoredBlock> readBlocks(DataInputStream in, List<StoredBlock> blocks) throws IOException {
+        int n = (int)readVarInt(in);
+        // NOTE: Wallet::reorganize reverses these in place
+        List<StoredBlock> list = new ArrayList<StoredBlock>(n);
+        for(int i = 0; i < n; i++)
+            list.add(blocks.get((int)readVarInt(in)));
+        return list;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        long len = readVarInt(in);
+        if(len > Block.MAX_BLOCK_SIZE)
+            throw new IOException("Invalid length in wallet events file: " + len);
+        byte[] data = new byte[(int)len];
+        in.readFully(data);
+        return data;
+    }
+
+    private static Sha256Hash readHash(DataInputStream in) throws IOException {
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        in.readFully(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    /**
+     * Replays a recording a few times, each on a fresh wallet, and prints how long each replay took, along with the
+     * wallet's update timings (see ClientWalletStats) for the last one.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: <wallet-events-file> [<num-replays>]");
+            System.exit(1);
+            return;
+        }
+
+        File file = new File(args[0]);
+        int numReplays = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+        WalletEventReplayer replayer = new WalletEventReplayer(file);
+        System.out.println(Utils.fmt("Replaying {} ({} network, recorded at {}, {}) {} time(s)", file,
+                replayer.getParams().getId(), new Date(replayer.getStartMillis()),
+                replayer.isRebooting ? "restarted wallet" : "new wallet", numReplays));
+
+        ClientWallet wallet = null;
+        for(int i = 0; i < numReplays; i++) {
+            wallet = replayer.newWallet();
+            Result r = replayer.replay(wallet);
+            System.out.println(Utils.fmt("Replay #{}: {}, {} statements", i + 1, r, wallet.getNumStatements()));
+        }
+
+        ClientWalletStats stats = wallet.getStats();
+        System.out.println();
+        System.out.println("Last replay's wallet stats:");
+        System.out.println("  updates:       " + stats.getNumUpdates());
+        System.out.println("  reorgs:        " + stats.getNumReorgs());
+        System.out.println("  whistleblows:  " + stats.getNumWhistleblows());
+        System.out.println("  pop BQ:        " + stats.getPopBqLatency());
+        System.out.println("  push BQ:       " + stats.getPushBqLatency());
+        System.out.println("  lie detection: " + stats.getLieDetectionLatency());
+        System.out.println("  notify:        " + stats.getNotifyLatency());
+        System.out.println("  lock hold:     " + stats.getLockHoldLatency());
+        System.out.println("  lock wait:     " + stats.getLockWaitLatency());
+    }
+}
@@ -0,0 +1,28 @@
+package org.catena.common;
+
+/**
+ * The steps of appending a statement to a Catena chain, which the server times separately (see
+ * SimpleWallet.StageTimer).
+ */
+public enum AppendStage {
+    /**
+     * Finding the last UTXO in the chain and building the TX that spends it.
+     */
+    BUILD,
+    /**
+     * Paying the fee and signing the TX.
+     */
+    SIGN,
+    /**
+     * Committing the TX to the wallet.
+     */
+    COMMIT,
+    /**
+     * Saving the wallet to disk, which autosave usually does in the background, a little after the commit.
+     */
+    SAVE,
+    /**
+     * Broadcasting the TX to our peers, until enough of them announced it back to us.
+     */
+    BROADCAST
+}
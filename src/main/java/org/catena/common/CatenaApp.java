@@ -1,5 +1,6 @@
 package org.catena.common;
 
+import java.io.File;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Paths;
 import java.util.Iterator;
@@ -10,6 +11,7 @@ import org.bitcoinj.core.Transaction;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.params.RegTestParams;
 import org.bitcoinj.params.TestNet3Params;
+import org.bitcoinj.utils.Threading;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,7 +35,21 @@ public class CatenaApp {
             svc.connectToLocalHost();
         }
         
-        // Download the block chain and wait until it's done.
+        // Share the block headers with other Catena processes on this host, if asked to (e.g., with 
+        // -Dcatena.sharedChainFile=<file> and, in the one process that keeps it up to date, -Dcatena.sharedChainWriter)
+        String sharedChainFile = System.getProperty("catena.sharedChainFile");
+        if(sharedChainFile != null) {
+            svc.setSharedBlockStore(new File(sharedChainFile), System.getProperty("catena.sharedChainWriter") != null);
+        }
+        
+        // Download the block chain and wait until it's done, telling the user how far along we are (the same numbers
+        // are published over JMX, see SyncProgressMXBean)
+        svc.getSyncProgress().addListener(Threading.SAME_THREAD, new SyncProgressListener() {
+            @Override
+            public void onProgress(SyncProgress progress) {
+                log.info("Catena sync: " + progress);
+            }
+        });
         svc.startAsync();
         svc.awaitRunning();
         
@@ -0,0 +1,151 @@
+package org.catena.common;
+
+import org.bitcoinj.core.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Events around Catena's hot paths (appending, updating the log, verifying TXNs, reorgs and listener calls), so that
+ * profiles show Catena's work rather than just bitcoinj's frames.
+ *
+ * This class does nothing by itself. On JVMs with Java Flight Recorder (JDK 11 and later), get() returns
+ * JfrCatenaEvents, which commits each span as a JFR event under the "Catena" category. That class lives in
+ * src/jfr/java, which is only compiled on JDK 11 and later (see the jfr profile in pom.xml), and is loaded by name, so
+ * that Catena still builds and runs without JFR. Set -Dcatena.jfr=false to turn the events off.
+ *
+ * Usage: Span s = events.beginX(); ...; events.endX(s, ...). The end methods accept null spans and only compute their
+ * fields if JFR records the event, so they are cheap when it doesn't.
+ */
+public class CatenaEvents {
+    private static final Logger log = LoggerFactory.getLogger(CatenaEvents.class);
+
+    /**
+     * An event in progress, returned by the begin methods. Null when there are no events.
+     */
+    public interface Span {
+    }
+
+    private static class Holder {
+        static final CatenaEvents INSTANCE = load();
+    }
+
+    public static CatenaEvents get() {
+        return Holder.INSTANCE;
+    }
+
+    private static CatenaEvents load() {
+        if("false".equals(System.getProperty("catena.jfr")))
+            return new CatenaEvents();
+
+        try {
+            Class.forName("jdk.jfr.Event");
+        } catch(ClassNotFoundException e) {
+            log.debug("No Java Flight Recorder in this JVM, Catena events are off");
+            return new CatenaEvents();
+        }
+
+        try {
+            return (CatenaEvents)Class.forName("org.catena.common.JfrCatenaEvents").getDeclaredConstructor()
+                    .newInstance();
+        } catch(ClassNotFoundException e) {
+            log.debug("Catena was built without its JFR events (they need JDK 11 or later to build), events are off");
+            return new CatenaEvents();
+        } catch(ReflectiveOperationException | LinkageError e) {
+            log.warn("Could not load the Catena JFR events: " + e);
+            return new CatenaEvents();
+        }
+    }
+
+    protected CatenaEvents() {
+    }
+
+    /**
+     * Whether events are recorded at all, for callers that would otherwise compute something just for the event.
+     */
+    public boolean isEnabled() {
+        return false;
+    }
+
+    /**
+     * Around SimpleWallet::appendStatement().
+     */
+    public Span beginAppend() {
+        return null;
+    }
+
+    public void endAppend(Span s, Transaction tx, int statementBytes, boolean isRootOfTrustTxn) {
+    }
+
+    /**
+     * Around SimpleWallet::sendCatenaTxOffline() (i.e., signing and committing the TXN).
+     */
+    public Span beginSend() {
+        return null;
+    }
+
+    public void endSend(Span s, Transaction tx, boolean committed) {
+    }
+
+    /**
+     * Around SimpleWallet::completeCatenaTx() (i.e., paying the fee and signing).
+     */
+    public Span beginSign() {
+        return null;
+    }
+
+    public void endSign(Span s, Transaction tx) {
+    }
+
+    /**
+     * Around ClientWallet::updateCatenaLog(), including the wait for the wallet's lock.
+     */
+    public Span beginUpdate() {
+        return null;
+    }
+
+    /**
+     * @param s
+     * @param bqSize            the length of the chain, counting the root-of-trust TXN
+     * @param pqSize
+     * @param txnsInspected     the number of TXNs whose signatures were checked (or looked up in the cache)
+     * @param pushed            the number of statements pushed in BQ
+     * @param popped            the number of statements popped from BQ
+     * @param popBqNanos        how long each step took (0 for steps that did not run, if the update returned early)
+     * @param pushBqNanos
+     * @param lieDetectionNanos
+     * @param notifyNanos
+     */
+    public void endUpdate(Span s, int bqSize, int pqSize, int txnsInspected, int pushed, int popped, 
+            long popBqNanos, long pushBqNanos, long lieDetectionNanos, long notifyNanos) {
+    }
+
+    /**
+     * Around CatenaUtils::isSignedCatenaTx().
+     */
+    public Span beginVerify() {
+        return null;
+    }
+
+    public void endVerify(Span s, Transaction tx, boolean isValid) {
+    }
+
+    /**
+     * Around a wallet's (or CatenaChainTracker's) handling of a block chain reorganization.
+     */
+    public Span beginReorg() {
+        return null;
+    }
+
+    public void endReorg(Span s, int oldBlocks, int newBlocks, int splitHeight) {
+    }
+
+    /**
+     * Around a call to a Catena listener, on its executor.
+     */
+    public Span beginListener() {
+        return null;
+    }
+
+    public void endListener(Span s, String listener, long lagNanos) {
+    }
+}
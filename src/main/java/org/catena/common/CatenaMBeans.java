@@ -0,0 +1,67 @@
+package org.catena.common;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registers Catena's MXBeans with the platform MBean server, under the "org.catena" domain. Failing to register a
+ * bean only costs us its metrics, so errors are logged rather than thrown.
+ */
+public class CatenaMBeans {
+    private static final Logger log = LoggerFactory.getLogger(CatenaMBeans.class);
+
+    public static final String DOMAIN = "org.catena";
+
+    /**
+     * Returns the name of the bean of the specified type for the specified Catena service (e.g., its directory and
+     * file prefix, since one JVM can run many Catena services, like our tests do).
+     */
+    public static ObjectName getName(String type, String name) {
+        try {
+            return new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid MBean name " + name + " for type " + type, e);
+        }
+    }
+
+    /**
+     * Registers the bean under getName(type, name), replacing any bean already registered under that name (e.g., by
+     * a service that was restarted in the same JVM). Returns the name, or null if we could not register it.
+     */
+    public static ObjectName register(Object bean, String type, String name) {
+        ObjectName objName = getName(type, name);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(server.isRegistered(objName))
+                server.unregisterMBean(objName);
+            server.registerMBean(bean, objName);
+            log.debug("Registered MBean {}", objName);
+            return objName;
+        } catch (JMException e) {
+            log.warn("Could not register MBean " + objName, e);
+            return null;
+        }
+    }
+
+    /**
+     * Unregisters a bean registered with register(). Does nothing if objName is null or is not registered anymore.
+     */
+    public static void unregister(ObjectName objName) {
+        if(objName == null)
+            return;
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if(server.isRegistered(objName))
+                server.unregisterMBean(objName);
+        } catch (JMException e) {
+            log.warn("Could not unregister MBean " + objName, e);
+        }
+    }
+}
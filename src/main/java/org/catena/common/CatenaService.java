@@ -1,22 +1,115 @@
 package org.catena.common;
 
-//import static com.google.common.base.Preconditions.*;
+import static com.google.common.base.Preconditions.*;
 
 import com.google.common.collect.ImmutableList;
 
 import java.io.File;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
 
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletExtension;
 
 public abstract class CatenaService extends WalletAppKit {
     
+    private static final Logger log = LoggerFactory.getLogger(CatenaService.class);
+    
+    /**
+     * The SPV block store file shared with other Catena processes on this host, if any (see setSharedBlockStore()).
+     */
+    private File sharedChainFile;
+    private boolean isSharedChainWriter;
+    
+    /**
+     * How far along the block chain sync is, published over JMX while the service runs.
+     */
+    private final SyncProgress syncProgress = new SyncProgress();
+    
+    /**
+     * The MXBeans we registered, which we unregister when the service stops.
+     */
+    private final List<ObjectName> mbeanNames = new CopyOnWriteArrayList<ObjectName>();
+    
+    /**
+     * Traces our statements' lifecycle stages (see StatementTracer), published over JMX while the service runs.
+     */
+    private volatile StatementTracer tracer = new StatementTracer();
+    
     public CatenaService(NetworkParameters params, File directory, String filePrefix, boolean isClient) {
         super(params, directory, filePrefix);
         super.walletFactory = new SimpleWallet.Factory();
+        setDownloadListener(syncProgress);
+    }
+    
+    /**
+     * Returns the progress of the block chain sync, which callers can add listeners to before starting the service.
+     */
+    public SyncProgress getSyncProgress() {
+        return syncProgress;
+    }
+    
+    public StatementTracer getStatementTracer() {
+        return tracer;
+    }
+    
+    /**
+     * Makes this service stamp its statements' stages in the specified tracer, e.g., to share one tracer between a
+     * server and its clients and get end-to-end latencies. Call before starting the service.
+     */
+    public void setStatementTracer(StatementTracer tracer) {
+        checkState(state() == State.NEW, "cannot change the tracer after the service started");
+        this.tracer = checkNotNull(tracer);
+    }
+    
+    /**
+     * Returns the name this service's beans are registered under, within their type (see CatenaMBeans).
+     */
+    protected String getMBeanName() {
+        return new File(directory, filePrefix).getAbsolutePath();
+    }
+    
+    /**
+     * Publishes one of this service's MXBeans until the service stops.
+     */
+    protected void registerMBean(Object bean, String type) {
+        ObjectName name = CatenaMBeans.register(bean, type, getMBeanName());
+        if(name != null)
+            mbeanNames.add(name);
+    }
+    
+    /**
+     * Subclasses must call this first, since it's the first time we can get at the wallet, but before the block chain
+     * download starts.
+     */
+    @Override
+    protected void onSetupCompleted() {
+        Wallet w = wallet();
+        syncProgress.setCounters(w instanceof SyncProgress.Counters ? (SyncProgress.Counters)w : null);
+        registerMBean(syncProgress, "SyncProgress");
+        registerMBean(tracer, "StatementTracer");
+    }
+    
+    @Override
+    protected void shutDown() throws Exception {
+        try {
+            super.shutDown();
+        } finally {
+            for(ObjectName name : mbeanNames)
+                CatenaMBeans.unregister(name);
+            mbeanNames.clear();
+        }
     }
 
     /**
@@ -28,5 +121,55 @@ public abstract class CatenaService extends WalletAppKit {
         return ImmutableList.<WalletExtension>of(new CatenaWalletExtension());
     }
     
+    /**
+     * Shares one SPV block store (i.e., one copy of the block headers) among the Catena processes on this host, rather
+     * than every process keeping its own. Exactly one process, the writer, keeps the shared file up to date, same as it
+     * would its own block store. The other processes map it read-only (see SharedSPVBlockStore), and new ones start
+     * syncing from the shared block right before their wallet's earliest key time, rather than from the genesis block
+     * or a checkpoint. If there is no such block in the shared file, we fall back to our own block store. Every process
+     * still downloads the blocks after its own chain head, which it needs for its wallet's TXs.
+     * Must be called before the service is started.
+     *
+     * @param sharedChainFile	the writer's SPVBlockStore file
+     * @param isWriter		true if this process keeps the shared file up to date
+     */
+    public void setSharedBlockStore(File sharedChainFile, boolean isWriter) {
+        checkState(state() == State.NEW, "block store must be set before the service is started");
+        this.sharedChainFile = checkNotNull(sharedChainFile);
+        this.isSharedChainWriter = isWriter;
+    }
+    
+    /**
+     * WalletAppKit calls this after loading the wallet, so we can look at its earliest key time here.
+     */
+    @Override
+    protected BlockStore provideBlockStore(File file) throws BlockStoreException {
+        if(sharedChainFile == null)
+            return super.provideBlockStore(file);
+        if(isSharedChainWriter)
+            return super.provideBlockStore(sharedChainFile);
+        
+        SharedSPVBlockStore store = new SharedSPVBlockStore(params, sharedChainFile, 
+                new File(file.getPath() + "head"));
+        if(store.isNew() == false)
+            return store;
+        
+        // Same as CheckpointManager, go back a week to account for bad clocks
+        long earliest = wallet().getEarliestKeyCreationTime();
+        long timeSecs = earliest > 0 ? earliest - TimeUnit.DAYS.toSeconds(7) : params.getGenesisBlock().getTimeSeconds();
+        StoredBlock start = store.findLatestBlockBefore(timeSecs);
+        if(start == null) {
+            log.warn("No block before " + timeSecs + " in shared block store " + sharedChainFile + 
+                    ", so using our own block store");
+            store.close();
+            return super.provideBlockStore(file);
+        }
+        
+        log.info("Starting from shared block #" + start.getHeight() + " " + start.getHeader().getHash());
+        store.put(start);
+        store.setChainHead(start);
+        return store;
+    }
+    
     public abstract SimpleWallet getCatenaWallet();
 }
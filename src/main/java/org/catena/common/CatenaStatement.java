@@ -52,9 +52,8 @@ public class CatenaStatement {
     public static boolean hasSameData(Transaction a, Transaction b) {
         checkState(CatenaUtils.maybeCatenaTx(a));
         checkState(CatenaUtils.maybeCatenaTx(b));
-        byte[] adata = CatenaUtils.getCatenaTxData(a);
-        byte[] bdata = CatenaUtils.getCatenaTxData(b);
-        return Arrays.areEqual(adata, bdata);
+        // Compare the data in place, without copying it out of the TXs
+        return CatenaUtils.getCatenaTxDataSlice(a).equals(CatenaUtils.getCatenaTxDataSlice(b));
     }
 
     public static boolean hasSameData(byte[] adata, byte[] bdata) {
@@ -3,27 +3,33 @@ package org.catena.common;
 import static com.google.common.base.Preconditions.*;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ScriptException;
 import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
 import org.bitcoinj.core.TransactionOutput;
 import org.bitcoinj.core.VerificationException;
-import org.bitcoinj.script.Script;
-import org.bitcoinj.script.ScriptChunk;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
 import org.bitcoinj.wallet.Wallet;
 import org.bitcoinj.wallet.WalletTransaction.Pool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Throwables;
+import com.google.common.io.BaseEncoding;
 
 public class CatenaUtils {
     static Logger log = LoggerFactory.getLogger(CatenaUtils.class);
     
+    private static final CatenaEvents events = CatenaEvents.get();
+    
     public static String summarizeWallet(Wallet wallet) {
         StringBuffer buf = new StringBuffer();
         
@@ -98,13 +104,26 @@ public class CatenaUtils {
      * @return
      */
     public static byte[] getCatenaTxData(Transaction tx) {
-        Script pubKey = tx.getOutput(1).getScriptPubKey();
-        checkState(pubKey.isOpReturn());
+        ByteBuffer slice = getCatenaTxDataSlice(tx);
         
-        ScriptChunk dataChunk = pubKey.getChunks().get(1);
-        checkState(dataChunk.isPushData());
+        byte[] data = new byte[slice.remaining()];
+        slice.get(data);
+        return data;
+    }
+    
+    /**
+     * Returns a read-only view of the OP_RETURN data in the specified Catena TX, without copying it out of the TX's 
+     * output script. 
+     * 
+     * @param tx
+     * @return
+     */
+    public static ByteBuffer getCatenaTxDataSlice(Transaction tx) {
+        byte[] script = tx.getOutput(1).getScriptBytes();
+        ByteBuffer slice = RawCatenaTx.getOpReturnData(ByteBuffer.wrap(script), 0, script.length);
+        checkState(slice != null, "expected an OP_RETURN data push in the second output");
         
-        return dataChunk.data;
+        return slice;
     }
     
     /**
@@ -116,11 +135,66 @@ public class CatenaUtils {
      * @return
      */
     public static boolean isSignedCatenaTx(Transaction tx, Address chainAddr, TransactionOutput prevLink, boolean checkPrevLinkIndex) {
+        return isSignedCatenaTx(tx, chainAddr, prevLink, checkPrevLinkIndex, null);
+    }
+    
+    /**
+     * Verifies everything about the TX, including signature. If sigCache is not null, the signature verification
+     * result is looked up in (and saved to) the cache.
+     * 
+     * @param tx
+     * @param chainAddr
+     * @param prevLink
+     * @param checkPrevLinkIndex
+     * @param sigCache
+     * @return
+     */
+    public static boolean isSignedCatenaTx(Transaction tx, Address chainAddr, TransactionOutput prevLink, 
+            boolean checkPrevLinkIndex, SignatureCache sigCache) {
         checkNotNull(tx);
         checkNotNull(chainAddr);
         checkNotNull(prevLink);
         
-        return isCatenaTxHelper(tx, true, chainAddr, prevLink, checkPrevLinkIndex);
+        CatenaEvents.Span span = events.beginVerify();
+        boolean isValid = isCatenaTxHelper(tx, true, chainAddr, prevLink, checkPrevLinkIndex, sigCache);
+        events.endVerify(span, tx, isValid);
+        return isValid;
+    }
+    
+    /**
+     * Verifies a Catena TX that spends the specified output but is not necessarily connected to it (e.g., a DEAD TX 
+     * that double spends a BUILDING one, whose inputs bitcoinj has disconnected). Checks the format, that the first
+     * input refers to the spent output and the signature on it.
+     * 
+     * @param tx
+     * @param chainAddr
+     * @param spent
+     * @param sigCache	can be null
+     * @return
+     */
+    public static boolean isSignedCatenaTxSpending(Transaction tx, Address chainAddr, TransactionOutput spent, 
+            SignatureCache sigCache) {
+        checkNotNull(tx);
+        checkNotNull(chainAddr);
+        checkNotNull(spent);
+        
+        if(isCatenaTxHelper(tx, false, chainAddr, null, false, null) == false)
+            return false;
+        
+        TransactionOutPoint outp = tx.getInput(0).getOutpoint();
+        if(outp.getIndex() != spent.getIndex() || outp.getHash().equals(spent.getParentTransactionHash()) == false) {
+            log.warn("first input of '{}' does not spend the expected output '{}'", tx.getHashAsString(), 
+                    spent.getOutPointFor());
+            return false;
+        }
+        
+        if(isP2PKHTo(spent, chainAddr.getHash160()) == false) {
+            log.warn("Address in UTXO '{}' was '{}' but expected chain address '{}' (w.r.t. to txid={})", 
+                    spent.getOutPointFor(), spent.getAddressFromP2PKHScript(tx.getParams()), chainAddr, tx.getHash());
+            return false;
+        }
+        
+        return verifyFirstInput(tx, spent, sigCache);
     }
     
     /**
@@ -137,7 +211,7 @@ public class CatenaUtils {
         checkNotNull(tx);
         checkNotNull(chainAddr);
         checkNotNull(prevLink);
-        return isCatenaTxHelper(tx, false, chainAddr, prevLink, checkPrevLinkIndex);
+        return isCatenaTxHelper(tx, false, chainAddr, prevLink, checkPrevLinkIndex, null);
     }
     
     public static boolean maybeCatenaTx(Transaction tx) {
@@ -146,7 +220,7 @@ public class CatenaUtils {
     
     public static boolean maybeCatenaTx(Transaction tx, Address chainAddr) {
         checkNotNull(tx);
-        return isCatenaTxHelper(tx, false, chainAddr, null, false);
+        return isCatenaTxHelper(tx, false, chainAddr, null, false, null);
     }
 
     /**
@@ -154,26 +228,30 @@ public class CatenaUtils {
      * UTXO in prevLink and signed by chainAddr. 
      * If prevLink is null, then the previous UTXO is not checked.
      * If chainAddr is null, then the chain's address is not checked.
+     * If sigCache is null, then the signature is always verified from scratch.
      * 
      * @param tx
      * @param chainAddr
      * @param prevLink
+     * @param sigCache
      * @return
      */
     private static boolean isCatenaTxHelper(Transaction tx, boolean verifySig, Address chainAddr, 
-            TransactionOutput prevLink, boolean checkPrevLinkIndex) {
+            TransactionOutput prevLink, boolean checkPrevLinkIndex, SignatureCache sigCache) {
         checkNotNull(tx);
-        log.trace("Inspecting TX " + tx);
+        if(log.isTraceEnabled())
+            log.trace("Inspecting TX " + tx);
         
-        String txid = tx.getHashAsString();
-        NetworkParameters params = tx.getParams();
+        // NOTE: This is called for every TX we inspect, so the checks below work directly on the script bytes and only
+        // build Address and Script objects when they have to log a failure.
+        byte[] chainHash160 = chainAddr != null ? chainAddr.getHash160() : null;
         
         // Check if this TX is properly connected to the previous TX's (unique) UTXO 
         if(prevLink != null) {
             // Check the prev TX's output is #0
             if(checkPrevLinkIndex && prevLink.getIndex() != 0) {
                 log.warn("Index of UTXO '" + prevLink.getOutPointFor() + "' was '" + prevLink.getIndex() +   
-                        "' but expected index 0 (w.r.t. to txid=" + txid + ")");
+                        "' but expected index 0 (w.r.t. to txid=" + tx.getHash() + ")");
                 return false;
             }
             
@@ -181,64 +259,105 @@ public class CatenaUtils {
                 return false;
                         
             // Check that the address in the previous output matches the one provided to this call
-            Address prevLinkAddr = prevLink.getAddressFromP2PKHScript(tx.getParams());
-            if(chainAddr != null && prevLinkAddr.equals(chainAddr) == false) {
-                log.warn("Address in UTXO '" + prevLink.getOutPointFor() + "' was '" + prevLinkAddr +   
-                        "' but expected chain address '" + chainAddr + "' (w.r.t. to txid=" + txid + ")");
+            if(chainHash160 != null && isP2PKHTo(prevLink, chainHash160) == false) {
+                log.warn("Address in UTXO '" + prevLink.getOutPointFor() + "' was '" + 
+                        prevLink.getAddressFromP2PKHScript(tx.getParams()) + "' but expected chain address '" + 
+                        chainAddr + "' (w.r.t. to txid=" + tx.getHash() + ")");
                 return false;
             }
             
             // Verify the signature on the first input
-            if(verifySig) {
-                TransactionInput firstInput = tx.getInput(0);
-                
-                // NOTE: bitcoinj does not verify sigs in SPV mode (see BlockChain class comments)
-                // => we have to verify signature on input 0 ourselves.
-                
-                try {
-                    firstInput.verify();
-                } catch(ScriptException e) {
-                    log.warn("TX '" + txid + "' has invalid signature: " + Throwables.getStackTraceAsString(e));
-                    return false;
-                } catch(VerificationException e) {
-                    log.warn("TX '" + txid + "' has invalid format: " + Throwables.getStackTraceAsString(e));
-                    return false;
-                } catch(Throwable e) {
-                    log.warn("TX '" + txid + "' unknown signature verification error: " + Throwables.getStackTraceAsString(e));
-                    return false;
-                }
+            if(verifySig && verifyFirstInput(tx, prevLink, sigCache) == false) {
+                return false;
             }
         }
         
         // Make sure we have only one input
-        if(tx.getInputs().size() != 1) {
-            log.warn("expected only one input in tx '" + txid + "', got " + tx.getInputs().size());
+        int numInputs = tx.getInputs().size();
+        if(numInputs != 1) {
+            log.warn("expected only one input in tx '" + tx.getHash() + "', got " + numInputs);
             return false;
         }
         
         // Make sure we have only two outputs (data + next)
-        if(tx.getOutputs().size() != 2) {
-            log.warn("expected two outputs in tx '" + txid + "' (continuation and OP_RETURN), got " + tx.getOutputs().size());
+        int numOutputs = tx.getOutputs().size();
+        if(numOutputs != 2) {
+            log.warn("expected two outputs in tx '" + tx.getHash() + "' (continuation and OP_RETURN), got " + 
+                    numOutputs);
             return false;
         }
         
         // Make sure chain's address is correct in first output
-        Address firstOutputAddr = tx.getOutput(0).getAddressFromP2PKHScript(params);
-        if(chainAddr != null && !firstOutputAddr.equals(chainAddr)) {
-            log.warn("first output address of '" + txid + "' was '" + firstOutputAddr + "'; expected chain address '" + chainAddr  + "'");
+        if(chainHash160 != null && isP2PKHTo(tx.getOutput(0), chainHash160) == false) {
+            log.warn("first output address of '" + tx.getHash() + "' was '" + 
+                    tx.getOutput(0).getAddressFromP2PKHScript(tx.getParams()) + "'; expected chain address '" + 
+                    chainAddr  + "'");
             return false;
         }
         
         // Make sure 2nd output is an OP_RETURN
-        Script secondOutput = tx.getOutput(1).getScriptPubKey();
-        if(!secondOutput.isOpReturn()) {
-            log.warn("second output of '" + txid + "' was supposed to be an OP_RETURN, got '" + secondOutput + "'");
+        if(!RawCatenaTx.isOpReturn(tx.getOutput(1).getScriptBytes())) {
+            log.warn("second output of '" + tx.getHash() + "' was supposed to be an OP_RETURN, got '" + 
+                    tx.getOutput(1).getScriptPubKey() + "'");
             return false;
         }
         
         // All is well.
         return true;
     }
+    
+    /**
+     * Returns true if the output is a P2PKH output to the specified HASH160.
+     * 
+     * @param output
+     * @param hash160
+     * @return
+     */
+    private static boolean isP2PKHTo(TransactionOutput output, byte[] hash160) {
+        return RawCatenaTx.isP2PKHTo(output.getScriptBytes(), hash160);
+    }
+
+    /**
+     * Verifies the signature on the first input of tx, which spends the output prevLink. If sigCache is not null, the
+     * result is looked up in the cache first and saved there afterwards.
+     * 
+     * @param tx
+     * @param prevLink
+     * @param sigCache
+     * @return
+     */
+    private static boolean verifyFirstInput(Transaction tx, TransactionOutput prevLink, SignatureCache sigCache) {
+        Sha256Hash txid = tx.getHash();
+        
+        if(sigCache != null) {
+            Boolean cached = sigCache.get(txid, prevLink);
+            if(cached != null)
+                return cached;
+        }
+        
+        // NOTE: bitcoinj does not verify sigs in SPV mode (see BlockChain class comments)
+        // => we have to verify signature on input 0 ourselves.
+        boolean isValid;
+        try {
+            tx.getInput(0).verify(prevLink);
+            isValid = true;
+        } catch(ScriptException e) {
+            log.warn("TX '" + txid + "' has invalid signature: " + Throwables.getStackTraceAsString(e));
+            isValid = false;
+        } catch(VerificationException e) {
+            log.warn("TX '" + txid + "' has invalid format: " + Throwables.getStackTraceAsString(e));
+            isValid = false;
+        } catch(Throwable e) {
+            // Don't cache this verdict, since it's not necessarily the TX's fault
+            log.warn("TX '" + txid + "' unknown signature verification error: " + Throwables.getStackTraceAsString(e));
+            return false;
+        }
+        
+        if(sigCache != null)
+            sigCache.put(txid, prevLink, isValid);
+        
+        return isValid;
+    }
 
     /**
      * Checks that the specified TX's first input spends the specified output. 
@@ -271,6 +390,39 @@ public class CatenaUtils {
         return true;
     }
 
+    /**
+     * Returns the best-chain block that confirmed the TX, or null if the TX is not BUILDING or that block is not in
+     * the store.
+     */
+    public static StoredBlock getConfirmingBlock(BlockStore store, Transaction tx) throws BlockStoreException {
+        if(TxUtils.isBuildingTxn(tx) == false || tx.getAppearsInHashes() == null)
+            return null;
+
+        int height = tx.getConfidence().getAppearedAtChainHeight();
+        for(Sha256Hash blockHash : tx.getAppearsInHashes().keySet()) {
+            StoredBlock block = store.get(blockHash);
+            if(block != null && block.getHeight() == height)
+                return block;
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a block as a one-line checkpoint (i.e., its compact serialization in base64, same as the lines in 
+     * bitcoinj's checkpoint files), so that it can be written to a config file.
+     */
+    public static String encodeCheckpoint(StoredBlock block) {
+        ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+        block.serializeCompact(buf);
+        return BaseEncoding.base64().encode(buf.array());
+    }
+
+    public static StoredBlock decodeCheckpoint(NetworkParameters params, String checkpoint) {
+        byte[] data = BaseEncoding.base64().decode(checkpoint.trim());
+        checkArgument(data.length == StoredBlock.COMPACT_SERIALIZED_SIZE, "invalid checkpoint length: " + data.length);
+        return StoredBlock.deserializeCompact(params, ByteBuffer.wrap(data));
+    }
+
     public static void generateBlockRegtest() throws IOException,
             InterruptedException {
         Process cmd = Runtime.getRuntime().exec("btc-scripts/cli.sh generate 1");
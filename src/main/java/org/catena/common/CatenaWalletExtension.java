@@ -1,5 +1,6 @@
 package org.catena.common;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import org.bitcoinj.core.Sha256Hash;
@@ -31,6 +32,20 @@ public class CatenaWalletExtension implements WalletExtension {
      */
     String name = null;
 
+    /**
+     * The height, hash and timestamp of the block that confirmed the root-of-trust TX, if known. Used to skip
+     * downloading (and filtering) the blocks before it.
+     */
+    int rootBlockHeight = -1;
+    Sha256Hash rootBlockHash = null;
+    long rootBlockTimeSecs = 0;
+
+    /**
+     * The size of the extension before it had the root-of-trust block in it. We can still read those.
+     */
+    private static final int OLD_SIZE = Sha256Hash.LENGTH + CatenaServer.OP_RETURN_MAX_SIZE;
+    private static final int SIZE = OLD_SIZE + 4 + Sha256Hash.LENGTH + 8;
+
     public CatenaWalletExtension() {}
     
     /**
@@ -70,6 +85,34 @@ public class CatenaWalletExtension implements WalletExtension {
         return name;
     }
 
+    public boolean hasRootOfTrustBlock() { return rootBlockHash != null; }
+
+    public void setRootOfTrustBlock(int height, Sha256Hash hash, long timeSecs) {
+        checkArgument(height >= 0);
+        checkArgument(timeSecs > 0);
+        checkState(hasRootOfTrustBlock() == false || rootBlockHash.equals(hash), 
+                "Root-of-trust block has been previously set to a different block");
+        
+        this.rootBlockHeight = height;
+        this.rootBlockHash = checkNotNull(hash);
+        this.rootBlockTimeSecs = timeSecs;
+    }
+
+    public int getRootOfTrustBlockHeight() {
+        checkState(hasRootOfTrustBlock());
+        return rootBlockHeight;
+    }
+
+    public Sha256Hash getRootOfTrustBlockHash() {
+        checkState(hasRootOfTrustBlock());
+        return rootBlockHash;
+    }
+
+    public long getRootOfTrustBlockTimeSecs() {
+        checkState(hasRootOfTrustBlock());
+        return rootBlockTimeSecs;
+    }
+
     @Override
     public String getWalletExtensionID() {
         return EXTENSION_ID;
@@ -83,7 +126,7 @@ public class CatenaWalletExtension implements WalletExtension {
     @Override
     public byte[] serializeWalletExtension() {
         log.trace("Writing the root-of-trust TXID to the wallet: " + (hasRootOfTrustTxid()? txid.toString() : "(no TXID yet)"));
-        byte[] data = new byte[Sha256Hash.LENGTH + CatenaServer.OP_RETURN_MAX_SIZE];
+        byte[] data = new byte[SIZE];
         
         if(txid != null) {
             byte[] txidBytes = txid.getBytes();
@@ -98,12 +141,20 @@ public class CatenaWalletExtension implements WalletExtension {
             System.arraycopy(nameBytes, 0, data, Sha256Hash.LENGTH, nameBytes.length);
         }
 
+        // NOTE: All zeros if the root-of-trust block is not known.
+        if(rootBlockHash != null) {
+            ByteBuffer buf = ByteBuffer.wrap(data, OLD_SIZE, SIZE - OLD_SIZE);
+            buf.putInt(rootBlockHeight);
+            buf.put(rootBlockHash.getBytes());
+            buf.putLong(rootBlockTimeSecs);
+        }
+
         return data; 
     }
 
     @Override
     public void deserializeWalletExtension(Wallet wallet, byte[] data) {
-        checkArgument(data.length == Sha256Hash.LENGTH + CatenaServer.OP_RETURN_MAX_SIZE);
+        checkArgument(data.length == OLD_SIZE || data.length == SIZE);
         checkNotNull(wallet);
         
         byte[] txidBytes = Arrays.copyOfRange(data, 0, Sha256Hash.LENGTH);
@@ -118,6 +169,21 @@ public class CatenaWalletExtension implements WalletExtension {
         if(Arrays.equals(nameBytes, new byte[CatenaServer.OP_RETURN_MAX_SIZE]) == false)
             name = new String(nameBytes);
         
+        // Wallets saved before we kept track of the root-of-trust block don't have it
+        if(data.length == SIZE) {
+            ByteBuffer buf = ByteBuffer.wrap(data, OLD_SIZE, SIZE - OLD_SIZE);
+            int height = buf.getInt();
+            byte[] hashBytes = new byte[Sha256Hash.LENGTH];
+            buf.get(hashBytes);
+            long timeSecs = buf.getLong();
+            
+            if(Arrays.equals(hashBytes, new byte[Sha256Hash.LENGTH]) == false) {
+                rootBlockHeight = height;
+                rootBlockHash = Sha256Hash.wrap(hashBytes);
+                rootBlockTimeSecs = timeSecs;
+            }
+        }
+        
         log.trace("Read back the root-of-trust TXID from wallet file: " + (txid != null ? txid.toString() : "(all zeros)"));
     }
 }
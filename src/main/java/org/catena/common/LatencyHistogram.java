@@ -0,0 +1,115 @@
+package org.catena.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two microsecond buckets, cheap enough to record into on every call of
+ * a hot path and to scrape over JMX at any time. Percentiles are the upper bound of the bucket they fall in, so they
+ * overestimate by less than 2x, which is plenty to tell milliseconds from seconds.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Bucket 0 holds latencies under 1us, and bucket i > 0 holds latencies in [2^(i-1), 2^i) us. The last bucket also
+     * holds everything above, which is days.
+     */
+    private static final int NUM_BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+
+        long micros = nanos / 1000;
+        int i = Math.min(64 - Long.numberOfLeadingZeros(micros), NUM_BUCKETS - 1);
+        buckets.incrementAndGet(i);
+        count.incrementAndGet();
+        sumNanos.addAndGet(nanos);
+
+        long max;
+        while((max = maxNanos.get()) < nanos && maxNanos.compareAndSet(max, nanos) == false)
+            ;
+    }
+
+    /**
+     * Records the time elapsed since startNanos, as returned by System.nanoTime().
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the current state of the histogram. Concurrent record() calls might be only partly reflected in it.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        long max = maxNanos.get();
+        return new Snapshot(total, total > 0 ? sumNanos.get() / (double)total : 0,
+                percentile(counts, total, 0.5, max), percentile(counts, total, 0.9, max),
+                percentile(counts, total, 0.99, max), max);
+    }
+
+    private static long percentile(long[] counts, long total, double q, long max) {
+        if(total == 0)
+            return 0;
+
+        long rank = (long)Math.ceil(q * total), seen = 0;
+        for(int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if(seen >= rank)
+                return Math.min((1L << i) * 1000, max);
+        }
+        return max;
+    }
+
+    /**
+     * A read-only view of a histogram, in milliseconds, which JMX shows as composite data.
+     */
+    public static class Snapshot {
+        private final long count;
+        private final double meanNanos;
+        private final long p50Nanos, p90Nanos, p99Nanos, maxNanos;
+
+        private Snapshot(long count, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+            this.count = count;
+            this.meanNanos = meanNanos;
+            this.p50Nanos = p50Nanos;
+            this.p90Nanos = p90Nanos;
+            this.p99Nanos = p99Nanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() { return count; }
+
+        public double getMeanMillis() { return meanNanos / 1e6; }
+
+        public double getP50Millis() { return p50Nanos / 1e6; }
+
+        public double getP90Millis() { return p90Nanos / 1e6; }
+
+        public double getP99Millis() { return p99Nanos / 1e6; }
+
+        public double getMaxMillis() { return maxNanos / 1e6; }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d, mean=%.2fms, p50=%.2fms, p90=%.2fms, p99=%.2fms, max=%.2fms", count,
+                    getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(), getMaxMillis());
+        }
+    }
+}
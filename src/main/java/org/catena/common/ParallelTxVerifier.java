@@ -0,0 +1,197 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies a batch of consecutive Catena TXs (format, chaining and signature) on a fork-join pool.
+ *
+ * A fresh or long-offline client has to check thousands of ECDSA signatures when it catches up, so ClientWallet calls
+ * this ahead of its (sequential) chaining logic and then only consumes the precomputed verdicts.
+ *
+ * Verifiers with the default parallelism (one thread per core) all share one pool, which lives as long as the JVM.
+ * Verifiers with a specific parallelism have a pool of their own, which close() shuts down.
+ */
+public class ParallelTxVerifier implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(ParallelTxVerifier.class);
+
+    /**
+     * Batches smaller than this are verified on the calling thread, since forking tasks would cost more than it saves
+     * (e.g., in the common case of one new statement per block).
+     */
+    public static final int MIN_PARALLEL_BATCH = 8;
+
+    /**
+     * A fork-join task verifies at most this many TXs by itself before splitting its range in two.
+     */
+    private static final int SPLIT_THRESHOLD = 4;
+
+    /**
+     * NOTE: Fork-join worker threads are daemon threads, so they will not prevent the JVM from exiting.
+     */
+    private final ForkJoinPool pool;
+    private final boolean isPoolShared;
+
+    /**
+     * Verdicts are looked up here first, if not null.
+     */
+    private final SignatureCache sigCache;
+
+    /**
+     * The pool of the verifiers with the default parallelism, created on first use.
+     */
+    private static class SharedPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a verifier that uses the shared pool, with one worker thread per core.
+     */
+    public ParallelTxVerifier() {
+        this((SignatureCache)null);
+    }
+
+    public ParallelTxVerifier(SignatureCache sigCache) {
+        this.pool = SharedPool.INSTANCE;
+        this.isPoolShared = true;
+        this.sigCache = sigCache;
+    }
+
+    public ParallelTxVerifier(int parallelism) {
+        this(parallelism, null);
+    }
+
+    /**
+     * Creates a verifier with a pool of its own, so close() it when done.
+     */
+    public ParallelTxVerifier(int parallelism, SignatureCache sigCache) {
+        checkArgument(parallelism > 0);
+        this.pool = new ForkJoinPool(parallelism);
+        this.isPoolShared = false;
+        this.sigCache = sigCache;
+    }
+
+    /**
+     * Shuts down our pool, unless it is the shared one.
+     */
+    @Override
+    public void close() {
+        if(isPoolShared == false)
+            pool.shutdown();
+    }
+
+    /**
+     * Verifies every TX in txs, where txs[i] is expected to spend prevLinks[i] and to be signed by chainAddr. Returns
+     * an array of verdicts, where verdicts[i] is the result of CatenaUtils::isSignedCatenaTx on txs[i].
+     *
+     * NOTE: The caller must make sure the TXs are not modified while they are being verified (e.g., by holding the
+     * wallet lock).
+     *
+     * @param txs
+     * @param prevLinks
+     * @param chainAddr
+     * @return
+     */
+    public boolean[] verify(List<Transaction> txs, List<TransactionOutput> prevLinks, Address chainAddr) {
+        return verify(txs, prevLinks, chainAddr, true);
+    }
+
+    /**
+     * Like verify(), except that txs[i] only has to refer to prevLinks[i] in its first input, rather than be connected
+     * to it (e.g., TXs kept outside of a wallet, like in CatenaChainTracker). Returns an array of verdicts, where
+     * verdicts[i] is the result of CatenaUtils::isSignedCatenaTxSpending on txs[i].
+     *
+     * @param txs
+     * @param prevLinks
+     * @param chainAddr
+     * @return
+     */
+    public boolean[] verifySpending(List<Transaction> txs, List<TransactionOutput> prevLinks, Address chainAddr) {
+        return verify(txs, prevLinks, chainAddr, false);
+    }
+
+    private boolean[] verify(List<Transaction> txs, List<TransactionOutput> prevLinks, Address chainAddr,
+            boolean isConnected) {
+        checkNotNull(txs);
+        checkNotNull(prevLinks);
+        checkNotNull(chainAddr);
+        checkArgument(txs.size() == prevLinks.size(), "expected one previous link per TX");
+
+        boolean[] verdicts = new boolean[txs.size()];
+        VerifyTask task = new VerifyTask(Context.get(), txs, prevLinks, chainAddr, isConnected, sigCache, verdicts, 
+                0, txs.size());
+
+        if(txs.size() < MIN_PARALLEL_BATCH) {
+            task.verifyRange();
+        } else {
+            log.debug("Verifying {} Catena TXs on {} threads", txs.size(), pool.getParallelism());
+            pool.invoke(task);
+        }
+
+        return verdicts;
+    }
+
+    /**
+     * Verifies the TXs in [from, to) and splits the range in half when it's too large.
+     */
+    private static class VerifyTask extends RecursiveAction {
+        private static final long serialVersionUID = 4211537264915417730L;
+
+        private final Context context;
+        private final List<Transaction> txs;
+        private final List<TransactionOutput> prevLinks;
+        private final Address chainAddr;
+        private final boolean isConnected;
+        private final SignatureCache sigCache;
+        private final boolean[] verdicts;
+        private final int from, to;
+
+        VerifyTask(Context context, List<Transaction> txs, List<TransactionOutput> prevLinks, Address chainAddr,
+                boolean isConnected, SignatureCache sigCache, boolean[] verdicts, int from, int to) {
+            this.context = context;
+            this.txs = txs;
+            this.prevLinks = prevLinks;
+            this.chainAddr = chainAddr;
+            this.isConnected = isConnected;
+            this.sigCache = sigCache;
+            this.verdicts = verdicts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= SPLIT_THRESHOLD) {
+                verifyRange();
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(context, txs, prevLinks, chainAddr, isConnected, sigCache, verdicts, from, mid),
+                        new VerifyTask(context, txs, prevLinks, chainAddr, isConnected, sigCache, verdicts, mid, to));
+            }
+        }
+
+        void verifyRange() {
+            // bitcoinj needs a context on every thread that touches its objects
+            Context.propagate(context);
+
+            for(int i = from; i < to; i++) {
+                if(isConnected)
+                    verdicts[i] = CatenaUtils.isSignedCatenaTx(txs.get(i), chainAddr, prevLinks.get(i), true, sigCache);
+                else
+                    verdicts[i] = CatenaUtils.isSignedCatenaTxSpending(txs.get(i), chainAddr, prevLinks.get(i), 
+                            sigCache);
+            }
+        }
+    }
+}
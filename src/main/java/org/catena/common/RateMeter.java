@@ -0,0 +1,64 @@
+package org.catena.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and their rate over the last minute, in one-second buckets. Meant for events that happen at most a
+ * few thousand times a second (e.g., appended statements), since marking one takes a (short) lock.
+ */
+public class RateMeter {
+
+    private static final int WINDOW_SECS = 60;
+
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * The number of events in each second of the window, and which second (since the epoch) each bucket is for.
+     */
+    private final long[] counts = new long[WINDOW_SECS];
+    private final long[] secs = new long[WINDOW_SECS];
+
+    public void mark() {
+        mark(1);
+    }
+
+    public void mark(long n) {
+        total.addAndGet(n);
+
+        long now = nowSecs();
+        int i = (int)(now % WINDOW_SECS);
+        synchronized(this) {
+            if(secs[i] != now) {
+                secs[i] = now;
+                counts[i] = 0;
+            }
+            counts[i] += n;
+        }
+    }
+
+    /**
+     * Returns the number of events since this meter was created.
+     */
+    public long getCount() {
+        return total.get();
+    }
+
+    /**
+     * Returns the average number of events per second over the last minute.
+     */
+    public double getRatePerSecond() {
+        long now = nowSecs(), sum = 0;
+        synchronized(this) {
+            for(int i = 0; i < WINDOW_SECS; i++) {
+                if(now - secs[i] < WINDOW_SECS)
+                    sum += counts[i];
+            }
+        }
+        return sum / (double)WINDOW_SECS;
+    }
+
+    private static long nowSecs() {
+        // bitcoinj's clock, so tests can mock it
+        return org.bitcoinj.core.Utils.currentTimeSeconds();
+    }
+}
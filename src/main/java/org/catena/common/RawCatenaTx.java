@@ -0,0 +1,415 @@
+package org.catena.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks the shape of Catena TXs directly on their serialized bytes, without building bitcoinj Transaction, Script,
+ * ScriptChunk or Address objects. A Catena TX has exactly one input and two outputs: the first one is a P2PKH output
+ * to the chain's address (its HASH160) and the second one is an OP_RETURN output with a single data push.
+ *
+ * All methods use absolute gets and never modify the position or limit of the buffers passed in, so they work equally
+ * well on heap buffers, on buffers wrapping the script bytes of a bitcoinj TransactionOutput and on memory-mapped
+ * block files. The returned data is a slice of the original bytes, not a copy.
+ *
+ * NOTE: Only legacy (non-segwit) serialization is supported, which is all bitcoinj 0.14 produces and accepts.
+ */
+public class RawCatenaTx {
+
+    /**
+     * Returned by validate() when the TX looks like a Catena TX.
+     */
+    public static final int OK = 0;
+    public static final int ERR_MALFORMED = -1;
+    public static final int ERR_NUM_INPUTS = -2;
+    public static final int ERR_NUM_OUTPUTS = -3;
+    public static final int ERR_NOT_P2PKH = -4;
+    public static final int ERR_WRONG_CHAIN_ADDR = -5;
+    public static final int ERR_NOT_OP_RETURN = -6;
+
+    static final int OP_0 = 0x00;
+    static final int OP_PUSHDATA1 = 0x4c;
+    static final int OP_PUSHDATA2 = 0x4d;
+    static final int OP_PUSHDATA4 = 0x4e;
+    static final int OP_1 = 0x51;
+    static final int OP_16 = 0x60;
+    static final int OP_RETURN = 0x6a;
+    static final int OP_DUP = 0x76;
+    static final int OP_HASH160 = 0xa9;
+    static final int OP_EQUALVERIFY = 0x88;
+    static final int OP_CHECKSIG = 0xac;
+
+    /**
+     * Length of a P2PKH scriptPubKey: OP_DUP OP_HASH160 <push 20 bytes> OP_EQUALVERIFY OP_CHECKSIG
+     */
+    static final int P2PKH_SCRIPT_LENGTH = 25;
+    static final int HASH160_LENGTH = 20;
+
+    /**
+     * OP_1 through OP_16 push a small number rather than bytes from the script, so there is nothing to slice for them.
+     */
+    private static final byte[] SMALL_NUMS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+
+    /**
+     * Checks that the serialized TX between tx.position() and tx.limit() is shaped like a Catena TX. If chainHash160
+     * is not null, also checks that the first output pays to it.
+     *
+     * @param tx
+     * @param chainHash160
+     * @return OK or one of the ERR_* codes
+     */
+    public static int validate(ByteBuffer tx, byte[] chainHash160) {
+        long loc = locateOpReturnScript(tx, chainHash160);
+        return loc < 0 ? (int)loc : OK;
+    }
+
+    public static boolean isCatenaTx(ByteBuffer tx, byte[] chainHash160) {
+        return validate(tx, chainHash160) == OK;
+    }
+
+    /**
+     * Returns a read-only slice of the OP_RETURN data in the serialized Catena TX, or null if this is not a Catena TX
+     * or if its OP_RETURN output does not push any data.
+     *
+     * @param tx
+     * @return
+     */
+    public static ByteBuffer getData(ByteBuffer tx) {
+        long loc = locateOpReturnScript(tx, null);
+        if(loc < 0)
+            return null;
+
+        return getOpReturnData(tx, (int)(loc >>> 32), (int)loc);
+    }
+
+    /**
+     * Returns true if the script in script[off, off + len) is a P2PKH script that pays to hash160.
+     *
+     * @param script
+     * @param off
+     * @param len
+     * @param hash160
+     * @return
+     */
+    public static boolean isP2PKHTo(ByteBuffer script, int off, int len, byte[] hash160) {
+        if(isP2PKH(script, off, len) == false)
+            return false;
+
+        for(int i = 0; i < HASH160_LENGTH; i++) {
+            if(script.get(off + 3 + i) != hash160[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isP2PKH(ByteBuffer script, int off, int len) {
+        return len == P2PKH_SCRIPT_LENGTH &&
+                (script.get(off) & 0xff) == OP_DUP &&
+                (script.get(off + 1) & 0xff) == OP_HASH160 &&
+                (script.get(off + 2) & 0xff) == HASH160_LENGTH &&
+                (script.get(off + 23) & 0xff) == OP_EQUALVERIFY &&
+                (script.get(off + 24) & 0xff) == OP_CHECKSIG;
+    }
+
+    public static boolean isOpReturn(ByteBuffer script, int off, int len) {
+        return len > 0 && (script.get(off) & 0xff) == OP_RETURN;
+    }
+
+    /**
+     * Same as isP2PKHTo(ByteBuffer, int, int, byte[]) on a whole script, without wrapping it in a ByteBuffer first.
+     * (CatenaUtils calls these on the script bytes of parsed TXs many times per update, so the wrapping adds up.)
+     */
+    public static boolean isP2PKHTo(byte[] script, byte[] hash160) {
+        if(isP2PKH(script) == false)
+            return false;
+
+        for(int i = 0; i < HASH160_LENGTH; i++) {
+            if(script[3 + i] != hash160[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static boolean isP2PKH(byte[] script) {
+        return script.length == P2PKH_SCRIPT_LENGTH &&
+                (script[0] & 0xff) == OP_DUP &&
+                (script[1] & 0xff) == OP_HASH160 &&
+                (script[2] & 0xff) == HASH160_LENGTH &&
+                (script[23] & 0xff) == OP_EQUALVERIFY &&
+                (script[24] & 0xff) == OP_CHECKSIG;
+    }
+
+    public static boolean isOpReturn(byte[] script) {
+        return script.length > 0 && (script[0] & 0xff) == OP_RETURN;
+    }
+
+    /**
+     * Returns a read-only slice of the data pushed right after the OP_RETURN in script[off, off + len), or null if
+     * the script is not an OP_RETURN script followed by a push.
+     *
+     * @param script
+     * @param off
+     * @param len
+     * @return
+     */
+    public static ByteBuffer getOpReturnData(ByteBuffer script, int off, int len) {
+        if(isOpReturn(script, off, len) == false || len < 2)
+            return null;
+
+        int end = off + len;
+        int p = off + 1;
+        int op = script.get(p++) & 0xff;
+
+        long dataLen;
+        if(op == OP_0) {
+            dataLen = 0;
+        } else if(op < OP_PUSHDATA1) {
+            dataLen = op;
+        } else if(op == OP_PUSHDATA1) {
+            if(p + 1 > end)
+                return null;
+            dataLen = script.get(p) & 0xff;
+            p += 1;
+        } else if(op == OP_PUSHDATA2) {
+            if(p + 2 > end)
+                return null;
+            dataLen = readUint16(script, p);
+            p += 2;
+        } else if(op == OP_PUSHDATA4) {
+            if(p + 4 > end)
+                return null;
+            dataLen = readUint32(script, p);
+            p += 4;
+        } else if(op >= OP_1 && op <= OP_16) {
+            // bitcoinj encodes one-byte statements between 1 and 16 as OP_1 through OP_16
+            return slice(ByteBuffer.wrap(SMALL_NUMS), op - OP_1, 1);
+        } else {
+            return null;
+        }
+
+        if(p + dataLen > end)
+            return null;
+
+        return slice(script, p, (int)dataLen);
+    }
+
+    /**
+     * Returns the length of the serialized TX starting at buf[p], or -1 if it is malformed or does not fit before
+     * buf.limit(). Unlike the rest of this class, this also understands segwit serialization, since TXs in bitcoind's
+     * block files can be in either one and we need to step over all of them (see BlockFileScanner).
+     *
+     * @param buf
+     * @param p
+     * @return
+     */
+    public static int getTxLength(ByteBuffer buf, int p) {
+        int start = p, end = buf.limit();
+
+        // version, followed by the segwit marker (0x00) and flag (non-zero), if any
+        p += 4;
+        if(p + 2 > end)
+            return -1;
+        boolean isSegwit = buf.get(p) == 0 && buf.get(p + 1) != 0;
+        if(isSegwit)
+            p += 2;
+
+        long numInputs = readCount(buf, p);
+        if(numInputs < 0)
+            return -1;
+        p += varIntSize(buf, p);
+        for(long i = 0; i < numInputs; i++) {
+            p = skipVarBytes(buf, p + 32 + 4);
+            if(p < 0)
+                return -1;
+            p += 4;
+        }
+
+        long numOutputs = readCount(buf, p);
+        if(numOutputs < 0)
+            return -1;
+        p += varIntSize(buf, p);
+        for(long i = 0; i < numOutputs; i++) {
+            p = skipVarBytes(buf, p + 8);
+            if(p < 0)
+                return -1;
+        }
+
+        // One witness (i.e., a list of stack items) per input
+        for(long i = 0; isSegwit && i < numInputs; i++) {
+            long numItems = readCount(buf, p);
+            if(numItems < 0)
+                return -1;
+            p += varIntSize(buf, p);
+            for(long j = 0; j < numItems; j++) {
+                p = skipVarBytes(buf, p);
+                if(p < 0)
+                    return -1;
+            }
+        }
+
+        // lock time
+        p += 4;
+        return p > end ? -1 : p - start;
+    }
+
+    /**
+     * Human-readable description of an error code returned by validate().
+     */
+    public static String describe(int err) {
+        switch(err) {
+        case OK:
+            return "ok";
+        case ERR_MALFORMED:
+            return "malformed or truncated TX";
+        case ERR_NUM_INPUTS:
+            return "expected exactly one input";
+        case ERR_NUM_OUTPUTS:
+            return "expected two outputs (continuation and OP_RETURN)";
+        case ERR_NOT_P2PKH:
+            return "first output is not P2PKH";
+        case ERR_WRONG_CHAIN_ADDR:
+            return "first output does not pay to the chain address";
+        case ERR_NOT_OP_RETURN:
+            return "second output is not an OP_RETURN";
+        default:
+            return "unknown error " + err;
+        }
+    }
+
+    /**
+     * Walks the serialized TX and checks its Catena shape. On success, returns the offset of the OP_RETURN script in
+     * the upper 32 bits and its length in the lower 32 bits (so that we don't allocate a result object). On failure,
+     * returns one of the (negative) ERR_* codes.
+     */
+    private static long locateOpReturnScript(ByteBuffer tx, byte[] chainHash160) {
+        int p = tx.position();
+        int end = tx.limit();
+
+        // version
+        p += 4;
+
+        // Exactly one input: prev TXID, prev index, scriptSig and sequence number
+        if(p + 1 > end)
+            return ERR_MALFORMED;
+        if(readVarInt(tx, p) != 1)
+            return ERR_NUM_INPUTS;
+        p += varIntSize(tx, p);
+
+        p += 32 + 4;
+        if(p + 1 > end)
+            return ERR_MALFORMED;
+        long scriptSigLen = readVarInt(tx, p);
+        p += varIntSize(tx, p);
+        if(scriptSigLen < 0 || scriptSigLen > end - p)
+            return ERR_MALFORMED;
+        p += (int)scriptSigLen + 4;
+
+        // Exactly two outputs
+        if(p + 1 > end)
+            return ERR_MALFORMED;
+        if(readVarInt(tx, p) != 2)
+            return ERR_NUM_OUTPUTS;
+        p += varIntSize(tx, p);
+
+        // 1st output pays to the chain address
+        p += 8;
+        if(p + 1 > end)
+            return ERR_MALFORMED;
+        long len0 = readVarInt(tx, p);
+        p += varIntSize(tx, p);
+        if(len0 < 0 || len0 > end - p)
+            return ERR_MALFORMED;
+        if(chainHash160 != null) {
+            if(isP2PKH(tx, p, (int)len0) == false)
+                return ERR_NOT_P2PKH;
+            if(isP2PKHTo(tx, p, (int)len0, chainHash160) == false)
+                return ERR_WRONG_CHAIN_ADDR;
+        }
+        p += (int)len0;
+
+        // 2nd output is an OP_RETURN
+        p += 8;
+        if(p + 1 > end)
+            return ERR_MALFORMED;
+        long len1 = readVarInt(tx, p);
+        p += varIntSize(tx, p);
+        if(len1 < 0 || len1 > end - p)
+            return ERR_MALFORMED;
+        if(isOpReturn(tx, p, (int)len1) == false)
+            return ERR_NOT_OP_RETURN;
+
+        // lock time
+        if(p + len1 + 4 > end)
+            return ERR_MALFORMED;
+
+        return ((long)p << 32) | len1;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buf, int off, int len) {
+        ByteBuffer dup = buf.asReadOnlyBuffer();
+        dup.limit(off + len);
+        dup.position(off);
+        return dup.slice();
+    }
+
+    /**
+     * Reads the variable-length count at buf[p], or returns -1 if p is past the end of the buffer.
+     */
+    private static long readCount(ByteBuffer buf, int p) {
+        return p < buf.limit() ? readVarInt(buf, p) : -1;
+    }
+
+    /**
+     * Skips over the variable-length byte array at buf[p] (e.g., a script) and returns the position right after it,
+     * or -1 if it does not fit in the buffer.
+     */
+    private static int skipVarBytes(ByteBuffer buf, int p) {
+        long len = readCount(buf, p);
+        if(len < 0)
+            return -1;
+        p += varIntSize(buf, p);
+        return len > buf.limit() - p ? -1 : p + (int)len;
+    }
+
+    public static int varIntSize(ByteBuffer buf, int p) {
+        int first = buf.get(p) & 0xff;
+        if(first < 0xfd)
+            return 1;
+        else if(first == 0xfd)
+            return 3;
+        else if(first == 0xfe)
+            return 5;
+        else
+            return 9;
+    }
+
+    /**
+     * Reads a Bitcoin variable-length integer. Returns -1 if it does not fit in the buffer or if it's too large to be
+     * a sensible length.
+     */
+    public static long readVarInt(ByteBuffer buf, int p) {
+        int size = varIntSize(buf, p);
+        if(p + size > buf.limit())
+            return -1;
+
+        switch(size) {
+        case 1:
+            return buf.get(p) & 0xff;
+        case 3:
+            return readUint16(buf, p + 1);
+        case 5:
+            return readUint32(buf, p + 1);
+        default:
+            // Nothing in a TX is that long
+            return -1;
+        }
+    }
+
+    static int readUint16(ByteBuffer buf, int p) {
+        return (buf.get(p) & 0xff) | ((buf.get(p + 1) & 0xff) << 8);
+    }
+
+    static long readUint32(ByteBuffer buf, int p) {
+        return (buf.get(p) & 0xffL) | ((buf.get(p + 1) & 0xffL) << 8) | ((buf.get(p + 2) & 0xffL) << 16) |
+                ((buf.get(p + 3) & 0xffL) << 24);
+    }
+}
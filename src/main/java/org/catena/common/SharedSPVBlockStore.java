@@ -0,0 +1,411 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.BlockStoreException;
+import org.bitcoinj.store.SPVBlockStore;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A block store that reads its headers from another process' SPVBlockStore file, which it maps read-only, so that
+ * many Catena processes on one host can share a single copy of the headers (on disk and in the page cache) kept up to
+ * date by one writer process (see CatenaService::setSharedBlockStore).
+ *
+ * Every process still has its own chain head, since its wallet might be behind the writer's, which is kept in a small
+ * "head file" of its own. Blocks this process puts that are not in the shared file yet (e.g., because we are a block
+ * ahead of the writer, or the writer is down) are kept in memory, up to as many as the writer keeps.
+ *
+ * NOTE: This does not make the process follow the writer's chain head. It still downloads the (filtered) blocks after
+ * its own head from its peers, since it needs the TXs in them that match its own wallet, and the headers come along
+ * with those blocks anyway. What it saves is its own copy of the headers, and, for a new process, the headers-only
+ * sync up to its wallet's earliest key time (see findLatestBlockBefore).
+ *
+ * We look blocks up through an index of the ring's records by hash, which we bring up to date with the records the
+ * writer added since the last lookup, rather than scanning the ring for every block.
+ *
+ * NOTE: The writer overwrites its oldest headers as the chain grows, so a reader that falls behind the writer by about
+ * SPVBlockStore.DEFAULT_NUM_HEADERS blocks might no longer find the blocks it needs to verify difficulty transitions.
+ *
+ * The shared file layout is SPVBlockStore's: a 1024-byte prologue with the "SPVB" magic, the ring cursor at offset 4
+ * and the writer's chain head hash at offset 8, followed by a ring of (hash, compact StoredBlock) records.
+ */
+public class SharedSPVBlockStore implements BlockStore {
+    private static final Logger log = LoggerFactory.getLogger(SharedSPVBlockStore.class);
+
+    private static final int CURSOR_OFFSET = 4;
+    private static final int CHAIN_HEAD_OFFSET = 8;
+    private static final int FILE_PROLOGUE_BYTES = 1024;
+    private static final int RECORD_SIZE = Sha256Hash.LENGTH + StoredBlock.COMPACT_SERIALIZED_SIZE;
+    private static final byte[] EMPTY_HASH = new byte[Sha256Hash.LENGTH];
+
+    private final ReentrantLock lock = Threading.lock("shared-spv-block-store");
+
+    private final NetworkParameters params;
+
+    @GuardedBy("lock") private MappedByteBuffer shared;
+    private final int fileSize;
+
+    /**
+     * The position of every record in the ring, by hash, and the hash of every record, by slot, so we can drop the
+     * hashes of the records the writer overwrites. Both are up to date with the ring up to indexedCursor.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, Integer> index = new HashMap<Sha256Hash, Integer>();
+    @GuardedBy("lock") private final Sha256Hash[] slotHashes;
+    @GuardedBy("lock") private int indexedCursor = -1;
+
+    /**
+     * The writer's chain head when we last updated the index, and its height, or null and -1.
+     */
+    @GuardedBy("lock") private Sha256Hash indexedHeadHash;
+    @GuardedBy("lock") private int indexedHeadHeight = -1;
+
+    @GuardedBy("lock") private RandomAccessFile headFile;
+    @GuardedBy("lock") private StoredBlock chainHead;
+
+    /**
+     * Blocks we put that were not in the shared file at the time.
+     */
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, StoredBlock> ownBlocks;
+
+    /**
+     * @param params
+     * @param sharedFile	the writer's SPVBlockStore file
+     * @param headFile	where we keep our own chain head, which need not exist yet
+     * @throws BlockStoreException
+     */
+    public SharedSPVBlockStore(NetworkParameters params, File sharedFile, File headFile) throws BlockStoreException {
+        this.params = checkNotNull(params);
+        this.ownBlocks = new LinkedHashMap<Sha256Hash, StoredBlock>(16, 0.75f, true) {
+            private static final long serialVersionUID = 4960516651203843466L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > SPVBlockStore.DEFAULT_NUM_HEADERS;
+            }
+        };
+
+        // NOTE: No file lock, since the writer holds an exclusive one. We only ever read the file.
+        try (RandomAccessFile raf = new RandomAccessFile(sharedFile, "r")) {
+            fileSize = (int)raf.length();
+            if(fileSize < FILE_PROLOGUE_BYTES + RECORD_SIZE || (fileSize - FILE_PROLOGUE_BYTES) % RECORD_SIZE != 0)
+                throw new BlockStoreException("Not an SPV block store file: " + sharedFile);
+
+            shared = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        slotHashes = new Sha256Hash[(fileSize - FILE_PROLOGUE_BYTES) / RECORD_SIZE];
+
+        byte[] magic = new byte[4];
+        shared.get(magic);
+        if(new String(magic, StandardCharsets.US_ASCII).equals(SPVBlockStore.HEADER_MAGIC) == false)
+            throw new BlockStoreException("Not an SPV block store file: " + sharedFile);
+
+        try {
+            this.headFile = new RandomAccessFile(headFile, "rw");
+            if(this.headFile.length() >= StoredBlock.COMPACT_SERIALIZED_SIZE) {
+                byte[] data = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+                this.headFile.readFully(data);
+                chainHead = StoredBlock.deserializeCompact(params, ByteBuffer.wrap(data));
+                // The writer might have dropped it by now
+                ownBlocks.put(chainHead.getHeader().getHash(), chainHead);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+
+        log.info("Sharing block store " + sharedFile + " with head " +
+                (chainHead != null ? "#" + chainHead.getHeight() : "(none yet)"));
+    }
+
+    /**
+     * Returns true if we have no chain head of our own yet (i.e., the head file was new).
+     */
+    public boolean isNew() {
+        lock.lock();
+        try {
+            return chainHead == null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(StoredBlock block) throws BlockStoreException {
+        lock.lock();
+        try {
+            Sha256Hash hash = block.getHeader().getHash();
+            if(ownBlocks.containsKey(hash) == false && getShared(hash) == null)
+                ownBlocks.put(hash, block);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        lock.lock();
+        try {
+            StoredBlock block = ownBlocks.get(hash);
+            return block != null ? block : getShared(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public StoredBlock getChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if(chainHead == null)
+                throw new BlockStoreException("No chain head yet");
+            return chainHead;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Chain heads only ever move to blocks with more work, except when WalletAppKit checkpoints what it thinks is a new
+     * block store (since it does not know about our head file), which we ignore.
+     */
+    @Override
+    public void setChainHead(StoredBlock head) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            if(chainHead != null && head.getChainWork().compareTo(chainHead.getChainWork()) < 0) {
+                log.info("Ignoring chain head #" + head.getHeight() + " with less work than our head #" +
+                        chainHead.getHeight());
+                return;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(StoredBlock.COMPACT_SERIALIZED_SIZE);
+            head.serializeCompact(buf);
+            headFile.seek(0);
+            headFile.write(buf.array());
+            chainHead = head;
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the writer's chain head (e.g., to tell how far behind the writer we are), or null if it is not in the
+     * shared file (e.g., while the writer is updating it).
+     */
+    public StoredBlock getSharedChainHead() throws BlockStoreException {
+        lock.lock();
+        try {
+            return getShared(readSharedChainHeadHash());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most recently written block in the shared file whose timestamp is at or before timeSecs, or null if
+     * there is none. New readers start syncing from here, the same way WalletAppKit would start from a checkpoint.
+     */
+    public StoredBlock findLatestBlockBefore(long timeSecs) throws BlockStoreException {
+        lock.lock();
+        try {
+            checkOpen();
+            int start = getRingCursor(), cursor = start;
+            do {
+                cursor = prevRecord(cursor);
+                StoredBlock block = readRecord(cursor);
+                if(block != null && block.getHeader().getTimeSeconds() <= timeSecs)
+                    return block;
+            } while(cursor != start);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws BlockStoreException {
+        lock.lock();
+        try {
+            if(headFile != null)
+                headFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            headFile = null;
+            shared = null;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public NetworkParameters getParams() {
+        return params;
+    }
+
+    private void checkOpen() throws BlockStoreException {
+        if(shared == null)
+            throw new BlockStoreException("Store closed");
+    }
+
+    private int getRingCursor() {
+        int cursor = shared.getInt(CURSOR_OFFSET);
+        // Not written yet, or the writer is about to wrap around
+        if(cursor < FILE_PROLOGUE_BYTES || cursor >= fileSize)
+            cursor = FILE_PROLOGUE_BYTES;
+        return cursor;
+    }
+
+    private int prevRecord(int cursor) {
+        cursor -= RECORD_SIZE;
+        return cursor < FILE_PROLOGUE_BYTES ? fileSize - RECORD_SIZE : cursor;
+    }
+
+    private int nextRecord(int cursor) {
+        cursor += RECORD_SIZE;
+        return cursor >= fileSize ? FILE_PROLOGUE_BYTES : cursor;
+    }
+
+    private Sha256Hash readSharedChainHeadHash() throws BlockStoreException {
+        checkOpen();
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        ByteBuffer buf = shared.duplicate();
+        buf.position(CHAIN_HEAD_OFFSET);
+        buf.get(hash);
+        return Sha256Hash.wrap(hash);
+    }
+
+    @GuardedBy("lock")
+    private StoredBlock getShared(Sha256Hash hash) throws BlockStoreException {
+        checkOpen();
+        updateIndex();
+
+        Integer pos = index.get(hash);
+        // The writer might have overwritten the record since
+        return pos != null && hashEquals(pos, hash.getBytes()) ? readRecord(pos) : null;
+    }
+
+    /**
+     * Indexes the records the writer added since the last call, or the whole ring the first time. If the writer's
+     * chain head is not in the index, or moved up by more blocks than we indexed records, the writer went around the
+     * ring at least once since (e.g., because we did not look anything up in a long time), so we index the whole ring
+     * again.
+     */
+    @GuardedBy("lock")
+    private void updateIndex() throws BlockStoreException {
+        Sha256Hash headHash = readSharedChainHeadHash();
+        int cursor = getRingCursor();
+        // NOTE: The cursor alone would not tell us if the writer went exactly once around the ring
+        if(cursor == indexedCursor && headHash.equals(indexedHeadHash))
+            return;
+
+        int numIndexed = 0;
+        boolean isFull = indexedCursor < 0;
+        if(isFull) {
+            index.clear();
+            Arrays.fill(slotHashes, null);
+            for(int pos = FILE_PROLOGUE_BYTES; pos < fileSize; pos += RECORD_SIZE)
+                indexRecord(pos);
+            numIndexed = slotHashes.length;
+        } else {
+            for(int pos = indexedCursor; pos != cursor; pos = nextRecord(pos)) {
+                indexRecord(pos);
+                numIndexed++;
+            }
+        }
+        indexedCursor = cursor;
+
+        Integer headPos = index.get(headHash);
+        StoredBlock head = headPos != null ? readRecord(headPos) : null;
+        if(isFull && head == null)
+            return;
+        // The writer puts its head before it points to it, so we must have indexed it, unless we missed records
+        if(head == null || (indexedHeadHeight >= 0 && head.getHeight() - indexedHeadHeight > numIndexed)) {
+            log.info("Shared block store went around the ring since we last looked, so indexing all of it again");
+            indexedCursor = -1;
+            indexedHeadHash = null;
+            indexedHeadHeight = -1;
+            updateIndex();
+            return;
+        }
+        indexedHeadHash = headHash;
+        indexedHeadHeight = head.getHeight();
+    }
+
+    @GuardedBy("lock")
+    private void indexRecord(int pos) {
+        int slot = (pos - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        Sha256Hash old = slotHashes[slot];
+        if(old != null) {
+            Integer oldPos = index.get(old);
+            if(oldPos != null && oldPos == pos)
+                index.remove(old);
+        }
+
+        byte[] hash = new byte[Sha256Hash.LENGTH];
+        ByteBuffer buf = shared.duplicate();
+        buf.position(pos);
+        buf.get(hash);
+        if(Arrays.equals(hash, EMPTY_HASH)) {
+            slotHashes[slot] = null;
+            return;
+        }
+
+        slotHashes[slot] = Sha256Hash.wrap(hash);
+        index.put(slotHashes[slot], pos);
+    }
+
+    private boolean hashEquals(int pos, byte[] hash) {
+        for(int i = 0; i < hash.length; i++)
+            if(shared.get(pos + i) != hash[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads the record at the specified position. Returns null for empty records and for records the writer is in the
+     * middle of overwriting.
+     */
+    private StoredBlock readRecord(int pos) {
+        byte[] recordHash = new byte[Sha256Hash.LENGTH];
+        ByteBuffer buf = shared.duplicate();
+        buf.position(pos);
+        buf.get(recordHash);
+        if(Arrays.equals(recordHash, EMPTY_HASH))
+            return null;
+
+        StoredBlock block;
+        try {
+            block = StoredBlock.deserializeCompact(params, buf);
+        } catch (RuntimeException e) {
+            return null;
+        }
+        // The writer writes the hash first, so we could be reading an old block under a new hash
+        return block.getHeader().getHash().equals(Sha256Hash.wrap(recordHash)) ? block : null;
+    }
+}
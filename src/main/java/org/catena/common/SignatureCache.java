@@ -0,0 +1,124 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.TransactionOutput;
+
+/**
+ * A bounded, least-recently-used cache of Catena TX signature verification results, keyed by the TXID and by the
+ * outpoint its first input was verified against.
+ *
+ * Reorgs pop statements from BQ and push them back when their TXs become BUILDING again, and the lie detection code
+ * looks at the same double spends on every update, so without this cache we would re-run the same ECDSA checks over
+ * and over again. Since a (legacy) TXID commits to the input scripts and an outpoint uniquely identifies the script
+ * being spent, a verdict for a given key can never go stale: if a TX gets connected to a different output, it's looked
+ * up under a different key. In other words, entries are only "invalidated" when connections change.
+ *
+ * This class is thread-safe, since ParallelTxVerifier uses it from many threads.
+ */
+public class SignatureCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10000;
+
+    private final int maxSize;
+
+    private final LinkedHashMap<Key, Boolean> verdicts;
+
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    public SignatureCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public SignatureCache(final int maxSize) {
+        checkArgument(maxSize > 0);
+        this.maxSize = maxSize;
+        this.verdicts = new LinkedHashMap<Key, Boolean>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2622318016839214497L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > SignatureCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached verdict for the signature of TX txid spending the output spent, or null if we haven't
+     * verified it yet.
+     */
+    public Boolean get(Sha256Hash txid, TransactionOutput spent) {
+        Boolean v;
+        synchronized(verdicts) {
+            v = verdicts.get(new Key(txid, spent));
+        }
+
+        if(v != null)
+            hits.incrementAndGet();
+        else
+            misses.incrementAndGet();
+        return v;
+    }
+
+    public void put(Sha256Hash txid, TransactionOutput spent, boolean isValid) {
+        Key k = new Key(txid, spent);
+        synchronized(verdicts) {
+            verdicts.put(k, isValid);
+        }
+    }
+
+    public void clear() {
+        synchronized(verdicts) {
+            verdicts.clear();
+        }
+    }
+
+    public int size() {
+        synchronized(verdicts) {
+            return verdicts.size();
+        }
+    }
+
+    public int getMaxSize() { return maxSize; }
+
+    public long getHits() { return hits.get(); }
+
+    public long getMisses() { return misses.get(); }
+
+    /**
+     * (TXID, spent outpoint) pair. We don't use TransactionOutPoint here because it keeps the spent TX around.
+     */
+    private static class Key {
+        private final Sha256Hash txid;
+        private final Sha256Hash spentTxid;
+        private final int spentIndex;
+
+        Key(Sha256Hash txid, TransactionOutput spent) {
+            this.txid = checkNotNull(txid);
+            this.spentTxid = checkNotNull(spent.getParentTransactionHash());
+            this.spentIndex = spent.getIndex();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(o == null || getClass() != o.getClass())
+                return false;
+
+            Key other = (Key)o;
+            return spentIndex == other.spentIndex && txid.equals(other.txid) && spentTxid.equals(other.spentTxid);
+        }
+
+        @Override
+        public int hashCode() {
+            // TXIDs are already uniformly distributed
+            return 31 * txid.hashCode() + spentIndex;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.catena.common;
 
 import static com.google.common.base.Preconditions.*;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -31,6 +33,18 @@ public class SimpleWallet extends Wallet {
     private static final Logger log = LoggerFactory.getLogger(SimpleWallet.class);
     public static final int OP_RETURN_MAX_SIZE = 80;
     
+    /**
+     * Told how long each step of appending a statement took, e.g., to keep the server's latency histograms (see
+     * CatenaServerStats). Called on the appending thread (or the autosave thread, for SAVE), so it must be quick.
+     */
+    public interface StageTimer {
+        public void onStageTimed(AppendStage stage, long nanos);
+    }
+    
+    private volatile StageTimer stageTimer;
+    
+    private static final CatenaEvents events = CatenaEvents.get();
+    
     public SimpleWallet(NetworkParameters params) {
         super(params);
         log.trace("Initializing Catena SimpleWallet (params)...");
@@ -122,6 +136,8 @@ public class SimpleWallet extends Wallet {
     }
     
     public Transaction appendStatement(byte[] data, boolean commit) throws InsufficientMoneyException {
+        long startNanos = System.nanoTime();
+        CatenaEvents.Span span = events.beginAppend();
         if(data.length > OP_RETURN_MAX_SIZE) {
             throw new RuntimeException("OP_RETURN data cannot exceed 80 bytes");
         }
@@ -130,58 +146,71 @@ public class SimpleWallet extends Wallet {
         checkNotNull(ext);
         Transaction tx = new Transaction(params);
         TransactionOutput prevLink;
-        boolean isRootOfTrustTx = ext.hasRootOfTrustTxid() == false;
+        boolean isRootOfTrustTx;
         
-        //log.trace("UTXO for Catena '" + statement + "': " + prevLink);
+        // We hold the lock from picking the last UTXO until the TX that spends it is committed, or else concurrent
+        // appends would pick the same UTXO and double spend it.
+        lock.lock();
+        try {
+            isRootOfTrustTx = ext.hasRootOfTrustTxid() == false;
         
-        String summary;
-        if(isRootOfTrustTx) {
-            int numUnspents = this.getUnspents().size();
-            checkState(numUnspents == 1, "Expected only one funding UTXO, got " + numUnspents);
+            //log.trace("UTXO for Catena '" + statement + "': " + prevLink);
+        
+            String summary;
+            if(isRootOfTrustTx) {
+                int numUnspents = this.getUnspents().size();
+                checkState(numUnspents == 1, "Expected only one funding UTXO, got " + numUnspents);
             
-            summary = "Funding TX for Catena chain starting with";
-            prevLink = this.getUnspents().get(0);
-        } else {
-            summary = "Previous Catena TX for";
-            prevLink = this.getLastUtxo();
-        }
-        log.trace(summary + " '" + Utils.toHex(data) + "': " + prevLink.getParentTransaction());
+                summary = "Funding TX for Catena chain starting with";
+                prevLink = this.getUnspents().get(0);
+            } else {
+                summary = "Previous Catena TX for";
+                prevLink = this.getLastUtxo();
+            }
+            log.trace(summary + " '" + Utils.toHex(data) + "': " + prevLink.getParentTransaction());
         
-        // WARNING: This code might break in future versions of bitcoinj, depending on
-        // how the coin selection and the fee calculation code in bitcoinj changes in
-        // the Wallet class. In v0.14.3, we create a Catena tx with one input and 
-        // two outputs, fully spending the input. Then, we assume bitcoinj subtracts
-        // the tx fee from the value of the 1st output, creating no extra outputs.
-        // This assumption might break in future versions though.
+            // WARNING: This code might break in future versions of bitcoinj, depending on
+            // how the coin selection and the fee calculation code in bitcoinj changes in
+            // the Wallet class. In v0.14.3, we create a Catena tx with one input and 
+            // two outputs, fully spending the input. Then, we assume bitcoinj subtracts
+            // the tx fee from the value of the 1st output, creating no extra outputs.
+            // This assumption might break in future versions though.
         
-        tx.addInput(prevLink);
+            tx.addInput(prevLink);
 
-        Coin feeAmt = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
-        Coin opRetAmt = Transaction.MIN_NONDUST_OUTPUT;
-        //Coin changeAmt = prevLink.getValue().minus(opRetAmt);
-        Coin changeAmt = prevLink.getValue().minus(opRetAmt).minus(feeAmt);
-        
-        // 1st output is the chain's next link
-        tx.addOutput(changeAmt, getChainAddress());
-        // 2nd output is the chain's data
-        tx.addOutput(opRetAmt, ScriptBuilder.createOpReturnScript(data));
-        
-        SendRequest req = SendRequest.forTx(tx);
-        // Catena TXs need inputs and outputs to be ordered correctly
-        req.shuffleOutputs = false;
-        req.ensureMinRequiredFee = true;
-        // TODO: Set req.feePerKB just to be sure!
+            Coin feeAmt = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+            Coin opRetAmt = Transaction.MIN_NONDUST_OUTPUT;
+            //Coin changeAmt = prevLink.getValue().minus(opRetAmt);
+            Coin changeAmt = prevLink.getValue().minus(opRetAmt).minus(feeAmt);
+        
+            // 1st output is the chain's next link
+            tx.addOutput(changeAmt, getChainAddress());
+            // 2nd output is the chain's data
+            tx.addOutput(opRetAmt, ScriptBuilder.createOpReturnScript(data));
+        
+            SendRequest req = SendRequest.forTx(tx);
+            // Catena TXs need inputs and outputs to be ordered correctly
+            req.shuffleOutputs = false;
+            req.ensureMinRequiredFee = true;
+            // TODO: Set req.feePerKB just to be sure!
 
-        //log.trace("Catena server SendRequest for '" + statement + "' before completeTx: " + req);
-        this.sendCatenaTxOffline(req, isRootOfTrustTx, commit);
+            //log.trace("Catena server SendRequest for '" + statement + "' before completeTx: " + req);
+            timeStage(AppendStage.BUILD, startNanos);
+            this.sendCatenaTxOffline(req, isRootOfTrustTx, commit);
         
-        // If this was the first issued statement, then remember this 
-        // txid in the wallet extension so we can survive reboots.
-        if(isRootOfTrustTx) {
-            log.info("Created root-of-trust TX: " + tx.getHashAsString());
+            // If this was the first issued statement, then remember this 
+            // txid in the wallet extension so we can survive reboots.
+            if(isRootOfTrustTx) {
+                log.info("Created root-of-trust TX: " + tx.getHashAsString());
         
-            ext.setRootOfTrustTxid(tx.getHash());
-            ext.setName(new String(data));
+                ext.setRootOfTrustTxid(tx.getHash());
+                ext.setName(new String(data));
+            }
+        } finally {
+            lock.unlock();
+        }
+        
+        if(isRootOfTrustTx) {
             saveNow();
         }
 
@@ -196,6 +225,7 @@ public class SimpleWallet extends Wallet {
         //   assurance that the wallet won’t be half-written or corrupted if something 
         //   goes wrong half way through the saving process.")
         
+        events.endAppend(span, tx, data.length, isRootOfTrustTx);
         return tx;
     }
 
@@ -227,6 +257,7 @@ public class SimpleWallet extends Wallet {
      * @throws InsufficientMoneyException
      */
     public void completeCatenaTx(SendRequest req) throws InsufficientMoneyException {
+        CatenaEvents.Span span = events.beginSign();
         lock.lock();
         try {
             // Print the output value
@@ -284,6 +315,7 @@ public class SimpleWallet extends Wallet {
             req.tx.setMemo(req.memo);
             //req.completed = true;	// FIXME: This field is private, can't set it to true, but thankfully this is just for debugging.
             log.trace("  completed: {}", req.tx);
+            events.endSign(span, req.tx);
         } finally {
             lock.unlock();
         }
@@ -298,6 +330,8 @@ public class SimpleWallet extends Wallet {
      * @throws InsufficientMoneyException
      */
     public Transaction sendCatenaTxOffline(SendRequest request, boolean isRootOfTrustTxn, boolean commit) throws InsufficientMoneyException {
+        CatenaEvents.Span span = events.beginSend();
+        
         // First we check a properly-structured Catena TX was given to us
         Address addr = request.tx.getOutput(0).getAddressFromP2PKHScript(request.tx.getParams());
         TransactionOutput utxo = request.tx.getInput(0).getConnectedOutput();
@@ -310,7 +344,9 @@ public class SimpleWallet extends Wallet {
         lock.lock();
         try {
             // Modified Wallet::completeTx and got rid of unnecessary complexities
+            long startNanos = System.nanoTime();
             completeCatenaTx(request);
+            timeStage(AppendStage.SIGN, startNanos);
             
             // Make sure that bitcoinj didn't mess with our TX inputs/outputs too 
             // much when funding it and computing its tx fee.            
@@ -319,14 +355,38 @@ public class SimpleWallet extends Wallet {
             }
             
             // When generating lies, for testing code, we don't commit the lies because otherwise we can't double-spend.
-            if(commit)
+            if(commit) {
+                startNanos = System.nanoTime();
                 commitTx(request.tx);
+                timeStage(AppendStage.COMMIT, startNanos);
+            }
+            events.endSend(span, request.tx, commit);
             return request.tx;
         } finally {
             lock.unlock();
         }
     }
     
+    /**
+     * Times every wallet save, whether from autosave or from saveNow().
+     */
+    @Override
+    public void saveToFile(File temp, File destFile) throws IOException {
+        long startNanos = System.nanoTime();
+        super.saveToFile(temp, destFile);
+        timeStage(AppendStage.SAVE, startNanos);
+    }
+    
+    public void setStageTimer(StageTimer timer) {
+        this.stageTimer = timer;
+    }
+    
+    private void timeStage(AppendStage stage, long startNanos) {
+        StageTimer timer = stageTimer;
+        if(timer != null)
+            timer.onStageTimed(stage, System.nanoTime() - startNanos);
+    }
+    
     /**
      * Returns the last UTXO in the Catena chain used to fund and link the next TX
      * that commits the next statement.
@@ -0,0 +1,213 @@
+package org.catena.common;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Traces statements through their lifecycle, from the server committing them to its wallet to clients delivering them
+ * to their listeners, correlated by TXID, and keeps per-stage latency histograms (see StatementTracerMXBean).
+ *
+ * Every CatenaService has one. Servers stamp the server-side stages and clients the client-side ones, so the
+ * histograms only cover the whole lifecycle when a server and its clients share a tracer (e.g., in tests and load
+ * runs, see CatenaService::setStatementTracer()). Across processes, every stamp is also logged to the
+ * "org.catena.trace" logger at debug level, with the TXID and the wall-clock time, so that the logs can be joined.
+ */
+public class StatementTracer implements StatementTracerMXBean {
+    private static final Logger traceLog = LoggerFactory.getLogger("org.catena.trace");
+
+    /**
+     * The lifecycle of a statement, in order. A statement might skip stages (e.g., a client never sees it BROADCAST).
+     */
+    public enum Stage {
+        /**
+         * Committed to the server's wallet.
+         */
+        COMMITTED,
+        /**
+         * Sent to the server's peers.
+         */
+        BROADCAST,
+        /**
+         * Announced back to the server by at least one peer.
+         */
+        SEEN_BY_PEERS,
+        /**
+         * Confirmed in a block, as seen by the server.
+         */
+        IN_BLOCK,
+        /**
+         * Pushed in a client's BQ.
+         */
+        CLIENT_BUILDING,
+        /**
+         * Delivered to (the first of) a client's statement listeners.
+         */
+        CLIENT_DELIVERED,
+        /**
+         * FINALITY_DEPTH blocks deep, as seen by the server.
+         */
+        FINALIZED
+    }
+
+    public static final int FINALITY_DEPTH = 6;
+
+    private static final int DEFAULT_MAX_TRACED = 10000;
+
+    private static final Stage[] STAGES = Stage.values();
+
+    /**
+     * Marks the stages a statement did not go through yet. Not 0, since System.nanoTime() can return 0 or negative
+     * values too.
+     */
+    private static final long NOT_STAMPED = Long.MIN_VALUE;
+
+    /**
+     * When each statement went through each stage (System.nanoTime(), or NOT_STAMPED), in insertion order, so that
+     * statements that are never finalized (e.g., the ones a client reads back after restarting) are evicted.
+     */
+    @GuardedBy("this") private final LinkedHashMap<Sha256Hash, long[]> stamps;
+
+    private final Map<Stage, LatencyHistogram> sincePrev = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+    private final Map<Stage, LatencyHistogram> sinceCommit = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+    public StatementTracer() {
+        this(DEFAULT_MAX_TRACED);
+    }
+
+    /**
+     * @param maxTraced     how many statements to trace at a time, after which the oldest ones are forgotten
+     */
+    @SuppressWarnings("serial")
+    public StatementTracer(final int maxTraced) {
+        stamps = new LinkedHashMap<Sha256Hash, long[]>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, long[]> eldest) {
+                return size() > maxTraced;
+            }
+        };
+        for(Stage stage : STAGES) {
+            sincePrev.put(stage, new LatencyHistogram());
+            sinceCommit.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records that the statement in the specified TXN went through the specified stage just now. Only the first stamp
+     * of every stage counts (e.g., only the first listener delivery, or the first block after a reorg).
+     */
+    public void stamp(Sha256Hash txid, Stage stage) {
+        stamp(txid, stage, System.nanoTime());
+    }
+
+    void stamp(Sha256Hash txid, Stage stage, long nanos) {
+        long prevNanos = NOT_STAMPED, commitNanos;
+        synchronized(this) {
+            long[] s = stamps.get(txid);
+            if(s == null) {
+                s = new long[STAGES.length];
+                Arrays.fill(s, NOT_STAMPED);
+                stamps.put(txid, s);
+            }
+            if(s[stage.ordinal()] != NOT_STAMPED)
+                return;
+            s[stage.ordinal()] = nanos;
+
+            // NOTE: nanoTime() values can wrap around, so we compare their differences (same as System::nanoTime says)
+            for(int i = 0; i < stage.ordinal(); i++) {
+                if(s[i] != NOT_STAMPED && (prevNanos == NOT_STAMPED || s[i] - prevNanos > 0))
+                    prevNanos = s[i];
+            }
+            commitNanos = s[Stage.COMMITTED.ordinal()];
+
+            if(stage == Stage.FINALIZED)
+                stamps.remove(txid);
+        }
+
+        if(prevNanos != NOT_STAMPED)
+            sincePrev.get(stage).record(nanos - prevNanos);
+        if(commitNanos != NOT_STAMPED && stage != Stage.COMMITTED)
+            sinceCommit.get(stage).record(nanos - commitNanos);
+
+        if(traceLog.isDebugEnabled())
+            traceLog.debug("{} {} {}", txid, stage, org.bitcoinj.core.Utils.currentTimeMillis());
+    }
+
+    /**
+     * Stamps the SEEN_BY_PEERS, IN_BLOCK and FINALIZED stages of the specified TXN as its confidence changes. Only
+     * works for TXNs in a wallet, since the wallet is what updates their confidence.
+     */
+    public void follow(final Transaction tx) {
+        final Sha256Hash txid = tx.getHash();
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                if(confidence.numBroadcastPeers() > 0)
+                    stamp(txid, Stage.SEEN_BY_PEERS);
+
+                ConfidenceType type = confidence.getConfidenceType();
+                if(type == ConfidenceType.BUILDING) {
+                    stamp(txid, Stage.IN_BLOCK);
+                    if(confidence.getDepthInBlocks() >= FINALITY_DEPTH) {
+                        stamp(txid, Stage.FINALIZED);
+                        confidence.removeEventListener(this);
+                    }
+                } else if(type == ConfidenceType.DEAD) {
+                    forget(txid);
+                    confidence.removeEventListener(this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops tracing the statement in the specified TXN (e.g., if the TXN died).
+     */
+    public synchronized void forget(Sha256Hash txid) {
+        stamps.remove(txid);
+    }
+
+    @Override
+    public synchronized int getNumTraced() {
+        return stamps.size();
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getStageLatency() {
+        return snapshot(sincePrev);
+    }
+
+    @Override
+    public Map<String, LatencyHistogram.Snapshot> getEndToEndLatency() {
+        return snapshot(sinceCommit);
+    }
+
+    private static Map<String, LatencyHistogram.Snapshot> snapshot(Map<Stage, LatencyHistogram> histograms) {
+        Map<String, LatencyHistogram.Snapshot> snapshots = new LinkedHashMap<String, LatencyHistogram.Snapshot>();
+        for(Map.Entry<Stage, LatencyHistogram> e : histograms.entrySet())
+            snapshots.put(e.getKey().name(), e.getValue().snapshot());
+        return snapshots;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(Stage stage : STAGES) {
+            LatencyHistogram.Snapshot s = sincePrev.get(stage).snapshot();
+            if(s.getCount() > 0)
+                sb.append(sb.length() > 0 ? "\n" : "").append(stage).append(": ").append(s);
+        }
+        return sb.length() > 0 ? sb.toString() : "nothing traced yet";
+    }
+}
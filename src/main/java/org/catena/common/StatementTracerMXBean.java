@@ -0,0 +1,26 @@
+package org.catena.common;
+
+import java.util.Map;
+
+/**
+ * JMX view of a StatementTracer: per-stage latencies of the statements it traced, in milliseconds, keyed by stage name.
+ */
+public interface StatementTracerMXBean {
+
+    /**
+     * The number of statements being traced right now (i.e., not finalized or evicted yet).
+     */
+    public int getNumTraced();
+
+    /**
+     * The time from the previous stage the statement went through (in the order of StatementTracer.Stage) to each
+     * stage, which tells which stage dominates.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getStageLatency();
+
+    /**
+     * The time from when the statement was committed to the server's wallet to each stage. Only for statements issued
+     * by a server in this JVM.
+     */
+    public Map<String, LatencyHistogram.Snapshot> getEndToEndLatency();
+}
@@ -0,0 +1,222 @@
+package org.catena.common;
+
+import java.util.Date;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.Peer;
+import org.bitcoinj.core.listeners.DownloadProgressTracker;
+import org.bitcoinj.utils.ListenerRegistration;
+import org.bitcoinj.utils.Threading;
+
+/**
+ * Tracks how a Catena service catches up with the block chain: bitcoinj's download progress (blocks behind, download
+ * rate and ETA) along with Catena's own counters (statements verified and their rate, and the sizes of BQ and PQ), so
+ * that we can tell how long startup takes and whether a sync is stalled.
+ *
+ * CatenaService sets this as WalletAppKit's download listener and publishes it over JMX (see SyncProgressMXBean).
+ * Everything here can be read from any thread without locking, since it's all kept in volatile fields, and the Catena
+ * counters come from the wallet's own lock-free counters.
+ */
+public class SyncProgress extends DownloadProgressTracker implements SyncProgressMXBean {
+
+    /**
+     * Catena-level counters, implemented by wallets that verify statements (i.e., ClientWallet). They must not take
+     * the wallet's lock, since the wallet holds it while catching up on many blocks.
+     */
+    public interface Counters {
+        public long getNumVerifiedStatements();
+
+        public int getBuildingQueueSize();
+
+        public int getPendingQueueSize();
+    }
+
+    private final CopyOnWriteArrayList<ListenerRegistration<SyncProgressListener>> listeners
+        = new CopyOnWriteArrayList<ListenerRegistration<SyncProgressListener>>();
+
+    @Nullable private volatile Counters counters;
+
+    private volatile long startMillis = -1, endMillis = -1, lastBlockMillis = -1;
+    private volatile int originalBlocksLeft = -1, blocksLeft = -1, blocksDownloaded = 0;
+    private volatile long lastBlockTimeSecs = -1;
+    private volatile long verifiedAtStart = 0, verifiedAtEnd = -1;
+    private volatile boolean isDone = false;
+
+    /**
+     * Reads the Catena counters from the specified wallet from now on. Wallets that do not verify statements (e.g.,
+     * the server's) have none, in which case they read as 0.
+     */
+    public void setCounters(@Nullable Counters counters) {
+        this.counters = counters;
+    }
+
+    public void addListener(SyncProgressListener listener) {
+        addListener(Threading.USER_THREAD, listener);
+    }
+
+    public void addListener(Executor executor, SyncProgressListener listener) {
+        listeners.add(new ListenerRegistration<SyncProgressListener>(listener, executor));
+    }
+
+    public boolean removeListener(SyncProgressListener listener) {
+        return ListenerRegistration.removeFromList(listener, listeners);
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, @Nullable FilteredBlock filteredBlock, int blocksLeft) {
+        if(isDone == false) {
+            this.blocksLeft = Math.max(blocksLeft, 0);
+            this.blocksDownloaded++;
+            this.lastBlockMillis = now();
+            this.lastBlockTimeSecs = block.getTimeSeconds();
+        }
+        super.onBlocksDownloaded(peer, block, filteredBlock, blocksLeft);
+    }
+
+    @Override
+    protected void startDownload(int blocks) {
+        startMillis = now();
+        originalBlocksLeft = blocksLeft = blocks;
+        verifiedAtStart = getNumVerifiedStatements();
+        super.startDownload(blocks);
+        queueOnProgress();
+    }
+
+    @Override
+    protected void progress(double pct, int blocksSoFar, Date date) {
+        super.progress(pct, blocksSoFar, date);
+        queueOnProgress();
+    }
+
+    @Override
+    protected void doneDownload() {
+        // When there was nothing to download, startDownload() is never called
+        long now = now();
+        if(startMillis < 0)
+            startMillis = now;
+        endMillis = now;
+        blocksLeft = 0;
+        verifiedAtEnd = getNumVerifiedStatements();
+        isDone = true;
+        super.doneDownload();
+        queueOnProgress();
+    }
+
+    @Override
+    public boolean isDone() {
+        return isDone;
+    }
+
+    @Override
+    public int getBlocksBehind() {
+        return blocksLeft;
+    }
+
+    @Override
+    public int getBlocksDownloaded() {
+        return blocksDownloaded;
+    }
+
+    @Override
+    public double getPercentDone() {
+        if(isDone)
+            return 100.0;
+        int original = originalBlocksLeft, left = blocksLeft;
+        return original > 0 && left >= 0 ? 100.0 * (original - left) / original : 0.0;
+    }
+
+    @Override
+    public long getLastBlockTimeSecs() {
+        return lastBlockTimeSecs;
+    }
+
+    @Override
+    public long getMillisSinceLastBlock() {
+        long last = lastBlockMillis;
+        return last < 0 ? -1 : now() - last;
+    }
+
+    @Override
+    public long getElapsedMillis() {
+        long start = startMillis, end = endMillis;
+        if(start < 0)
+            return -1;
+        return (end >= 0 ? end : now()) - start;
+    }
+
+    @Override
+    public double getBlocksPerSecond() {
+        return perSecond(blocksDownloaded);
+    }
+
+    @Override
+    public long getEstimatedSecondsLeft() {
+        if(isDone)
+            return 0;
+        double rate = getBlocksPerSecond();
+        int left = blocksLeft;
+        return rate > 0 && left >= 0 ? (long)Math.ceil(left / rate) : -1;
+    }
+
+    @Override
+    public long getNumVerifiedStatements() {
+        Counters c = counters;
+        return c != null ? c.getNumVerifiedStatements() : 0;
+    }
+
+    /**
+     * The rate at which we verified statements while downloading blocks (i.e., not counting the statements in the
+     * wallet that were verified again when it was loaded).
+     */
+    @Override
+    public double getStatementsPerSecond() {
+        long end = verifiedAtEnd;
+        return perSecond((end >= 0 ? end : getNumVerifiedStatements()) - verifiedAtStart);
+    }
+
+    @Override
+    public int getBuildingQueueSize() {
+        Counters c = counters;
+        return c != null ? c.getBuildingQueueSize() : 0;
+    }
+
+    @Override
+    public int getPendingQueueSize() {
+        Counters c = counters;
+        return c != null ? c.getPendingQueueSize() : 0;
+    }
+
+    @Override
+    public String toString() {
+        return Utils.fmt("{}% done, {} blocks behind ({} blocks/s, ETA {}s), {} statements verified ({}/s), " +
+                "BQ size {}, PQ size {}", String.format("%.1f", getPercentDone()), getBlocksBehind(),
+                String.format("%.1f", getBlocksPerSecond()), getEstimatedSecondsLeft(), getNumVerifiedStatements(),
+                String.format("%.1f", getStatementsPerSecond()), getBuildingQueueSize(), getPendingQueueSize());
+    }
+
+    private double perSecond(long count) {
+        long elapsed = getElapsedMillis();
+        return elapsed > 0 ? count * 1000.0 / elapsed : 0.0;
+    }
+
+    private static long now() {
+        // bitcoinj's clock, so tests can mock it
+        return org.bitcoinj.core.Utils.currentTimeMillis();
+    }
+
+    private void queueOnProgress() {
+        for (final ListenerRegistration<SyncProgressListener> registration : listeners) {
+            registration.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registration.listener.onProgress(SyncProgress.this);
+                }
+            });
+        }
+    }
+}
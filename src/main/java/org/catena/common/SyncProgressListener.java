@@ -0,0 +1,12 @@
+package org.catena.common;
+
+/**
+ * Called as a Catena service catches up with the block chain (see SyncProgress).
+ */
+public interface SyncProgressListener {
+
+    /**
+     * Called when the download starts, every time another percent of the blocks is downloaded, and when it's done.
+     */
+    public void onProgress(SyncProgress progress);
+}
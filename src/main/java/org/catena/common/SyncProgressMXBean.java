@@ -0,0 +1,43 @@
+package org.catena.common;
+
+/**
+ * JMX view of a Catena service's block chain sync (see SyncProgress). Times are in milliseconds unless the name says
+ * otherwise, and -1 means "not known yet".
+ */
+public interface SyncProgressMXBean {
+
+    public boolean isDone();
+
+    public int getBlocksBehind();
+
+    public int getBlocksDownloaded();
+
+    public double getPercentDone();
+
+    /**
+     * The header timestamp of the last block we downloaded, in seconds.
+     */
+    public long getLastBlockTimeSecs();
+
+    /**
+     * How long ago we downloaded the last block, which keeps growing if the sync is stalled.
+     */
+    public long getMillisSinceLastBlock();
+
+    public long getElapsedMillis();
+
+    public double getBlocksPerSecond();
+
+    public long getEstimatedSecondsLeft();
+
+    /**
+     * The number of Catena statements verified since the service started.
+     */
+    public long getNumVerifiedStatements();
+
+    public double getStatementsPerSecond();
+
+    public int getBuildingQueueSize();
+
+    public int getPendingQueueSize();
+}
@@ -6,6 +6,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.concurrent.ThreadFactory;
 
 import org.bitcoinj.core.Address;
 import org.bitcoinj.core.DumpedPrivateKey;
@@ -15,6 +16,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.helpers.MessageFormatter;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 public class Utils {
     private static final Logger log = LoggerFactory.getLogger(Utils.class);
     
@@ -92,4 +95,12 @@ public class Utils {
         }
         return result;
     }
+
+    /**
+     * Returns a factory for daemon threads named after nameFormat (e.g., "catena-worker-%d"), so that the pools that
+     * use it do not prevent the JVM from exiting, same as ForkJoinPool's worker threads.
+     */
+    public static ThreadFactory daemonThreads(String nameFormat) {
+        return new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build();
+    }
 }
@@ -14,13 +14,19 @@ import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.Sha256Hash;
 import org.bitcoinj.core.Transaction;
 import org.bitcoinj.wallet.Wallet.SendResult;
+import org.catena.common.AppendStage;
 import org.catena.common.CatenaService;
 import org.bitcoinj.core.Coin;
 import org.catena.common.SimpleWallet;
+import org.catena.common.StatementTracer;
 import org.catena.common.CatenaWalletExtension;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+
 public class CatenaServer extends CatenaService {
         
     private static final Logger log = LoggerFactory.getLogger(CatenaServer.class);
@@ -35,6 +41,11 @@ public class CatenaServer extends CatenaService {
     private SimpleWallet wallet;
     private CatenaWalletExtension ext;
     
+    /**
+     * Published over JMX (see CatenaServerStatsMXBean).
+     */
+    private final CatenaServerStats stats = new CatenaServerStats();
+    
     /**
      * The root-of-trust TXID, needed if we're fully restarting a server and want to make sure we pick up the Catena
      * chain correctly. Will be useful when deploying multiple mutually-distrusting Catena servers with multisigs.
@@ -95,7 +106,19 @@ public class CatenaServer extends CatenaService {
      * @return
      */
     public Transaction appendStatement(byte[] statement) throws InsufficientMoneyException {
-        Transaction tx = wallet.appendStatement(statement);
+        final long startNanos = System.nanoTime();
+        boolean isRootOfTrustTxn = !ext.hasRootOfTrustTxid();
+        Transaction tx;
+        try {
+            tx = wallet.appendStatement(statement);
+        } catch(InsufficientMoneyException | RuntimeException e) {
+            stats.onAppendFailed();
+            throw e;
+        }
+        stats.onAppended(tx, isRootOfTrustTxn, startNanos);
+        final StatementTracer tracer = getStatementTracer();
+        tracer.stamp(tx.getHash(), StatementTracer.Stage.COMMITTED);
+        tracer.follow(tx);
         
         // Broadcast Catena transaction
         //
@@ -107,6 +130,19 @@ public class CatenaServer extends CatenaService {
         result.tx = tx;
         result.broadcast = peerGroup().broadcastTransaction(tx);
         result.broadcastComplete = result.broadcast.future();
+        final long broadcastStartNanos = System.nanoTime();
+        Futures.addCallback(result.broadcastComplete, new FutureCallback<Transaction>() {
+            @Override
+            public void onSuccess(Transaction tx) {
+                stats.onStageTimed(AppendStage.BROADCAST, System.nanoTime() - broadcastStartNanos);
+                tracer.stamp(tx.getHash(), StatementTracer.Stage.BROADCAST);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                log.warn("Broadcast of Catena TX failed: " + t.getMessage());
+            }
+        }, MoreExecutors.directExecutor());
                 
         log.trace("Catena server TX (" + tx.getHash() + ") for '" + statement + "' after sending: " + tx);
         return tx;
@@ -120,6 +156,7 @@ public class CatenaServer extends CatenaService {
      * Here we set our wallet's SK 
      */
     protected void onSetupCompleted() {
+        super.onSetupCompleted();
         wallet = getCatenaWallet();
         ext = wallet.getCatenaExtension();
         List<ECKey> importedKeys = wallet.getImportedKeys();
@@ -155,6 +192,14 @@ public class CatenaServer extends CatenaService {
                     ", sk=" + chainKey.getPrivateKeyAsWiF(params) +
                     (chainName != null ? ", name=" + chainName : ", no chain name yet"));
         }
+        
+        stats.init(wallet);
+        wallet.setStageTimer(stats);
+        registerMBean(stats, "CatenaServerStats");
+    }
+    
+    public CatenaServerStats getStats() {
+        return stats;
     }
     
     /**
@@ -0,0 +1,213 @@
+package org.catena.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.AppendStage;
+import org.catena.common.CatenaUtils;
+import org.catena.common.CatenaWalletExtension;
+import org.catena.common.LatencyHistogram;
+import org.catena.common.RateMeter;
+import org.catena.common.SimpleWallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a Catena server's stats as it appends statements, so that scraping them over JMX does not walk the chain or
+ * take the wallet's lock (see CatenaServerStatsMXBean).
+ */
+public class CatenaServerStats implements CatenaServerStatsMXBean, SimpleWallet.StageTimer {
+    private static final Logger log = LoggerFactory.getLogger(CatenaServerStats.class);
+
+    private final RateMeter appends = new RateMeter();
+    private final AtomicLong numFailedAppends = new AtomicLong();
+    private final AtomicInteger numStatements = new AtomicInteger(-1);
+    private final AtomicInteger unconfirmedDepth = new AtomicInteger();
+
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final LatencyHistogram confirmationLatency = new LatencyHistogram();
+    private final Map<AppendStage, LatencyHistogram> stageLatency = new EnumMap<AppendStage, LatencyHistogram>(
+            AppendStage.class);
+
+    private volatile long remainingFunds = -1, costPerStatement = -1;
+
+    public CatenaServerStats() {
+        for(AppendStage stage : AppendStage.values())
+            stageLatency.put(stage, new LatencyHistogram());
+    }
+
+    /**
+     * Reads the initial state from the wallet, once, when the server starts.
+     */
+    void init(SimpleWallet wallet) {
+        // A restarted server might be given the root-of-trust TXID before the wallet has the TX itself
+        CatenaWalletExtension ext = wallet.getCatenaExtension();
+        if(ext.hasRootOfTrustTxid() == false || wallet.getTransaction(ext.getRootOfTrustTxid()) == null) {
+            numStatements.set(0);
+            return;
+        }
+
+        numStatements.set(wallet.getNumStatements());
+
+        // The Catena TXs appended before the restart that are not confirmed yet. We don't know when they were
+        // appended, so they don't count towards the confirmation latency.
+        for(Transaction tx : wallet.getPendingTransactions())
+            if(CatenaUtils.maybeCatenaTx(tx, wallet.getChainAddress()))
+                awaitConfirmation(tx, -1);
+
+        try {
+            updateFunds(wallet.getLastUtxo().getParentTransaction());
+        } catch(RuntimeException e) {
+            log.warn("Could not find the chain's last UTXO: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onStageTimed(AppendStage stage, long nanos) {
+        stageLatency.get(stage).record(nanos);
+    }
+
+    /**
+     * Called when a statement's TX is committed to the wallet.
+     *
+     * @param tx
+     * @param isRootOfTrustTxn
+     * @param startNanos	when appendStatement() was called
+     */
+    void onAppended(Transaction tx, boolean isRootOfTrustTxn, final long startNanos) {
+        appendLatency.recordSince(startNanos);
+        appends.mark();
+        if(isRootOfTrustTxn == false)
+            numStatements.incrementAndGet();
+        updateFunds(tx);
+
+        awaitConfirmation(tx, startNanos);
+    }
+
+    /**
+     * Counts the TX as unconfirmed until its first confirmation (or until it dies), once.
+     *
+     * @param tx
+     * @param startNanos	when the TX was appended, or -1 if unknown
+     */
+    private void awaitConfirmation(Transaction tx, final long startNanos) {
+        unconfirmedDepth.incrementAndGet();
+        final AtomicBoolean isDone = new AtomicBoolean(false);
+        TransactionConfidence.Listener listener = new TransactionConfidence.Listener() {
+            @Override
+            public void onConfidenceChanged(TransactionConfidence confidence, ChangeReason reason) {
+                ConfidenceType type = confidence.getConfidenceType();
+                if(type != ConfidenceType.BUILDING && type != ConfidenceType.DEAD)
+                    return;
+                if(isDone.compareAndSet(false, true) == false)
+                    return;
+
+                unconfirmedDepth.decrementAndGet();
+                if(type == ConfidenceType.BUILDING && startNanos >= 0)
+                    confirmationLatency.recordSince(startNanos);
+                confidence.removeEventListener(this);
+            }
+        };
+        tx.getConfidence().addEventListener(Threading.SAME_THREAD, listener);
+
+        // In case it was confirmed (or died) before we added the listener
+        listener.onConfidenceChanged(tx.getConfidence(), TransactionConfidence.Listener.ChangeReason.TYPE);
+    }
+
+    void onAppendFailed() {
+        numFailedAppends.incrementAndGet();
+    }
+
+    private void updateFunds(Transaction tx) {
+        TransactionOutput next = tx.getOutput(0);
+        Coin prevValue = tx.getInput(0).getValue();
+        remainingFunds = next.getValue().value;
+        if(prevValue != null)
+            costPerStatement = prevValue.subtract(next.getValue()).value;
+    }
+
+    @Override
+    public int getNumStatements() {
+        return numStatements.get();
+    }
+
+    @Override
+    public long getNumAppends() {
+        return appends.getCount();
+    }
+
+    @Override
+    public long getNumFailedAppends() {
+        return numFailedAppends.get();
+    }
+
+    @Override
+    public double getAppendsPerSecond() {
+        return appends.getRatePerSecond();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getAppendLatency() {
+        return appendLatency.snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getBuildLatency() {
+        return stageLatency.get(AppendStage.BUILD).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSignLatency() {
+        return stageLatency.get(AppendStage.SIGN).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getCommitLatency() {
+        return stageLatency.get(AppendStage.COMMIT).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getSaveLatency() {
+        return stageLatency.get(AppendStage.SAVE).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getBroadcastLatency() {
+        return stageLatency.get(AppendStage.BROADCAST).snapshot();
+    }
+
+    @Override
+    public LatencyHistogram.Snapshot getConfirmationLatency() {
+        return confirmationLatency.snapshot();
+    }
+
+    @Override
+    public int getUnconfirmedDepth() {
+        return unconfirmedDepth.get();
+    }
+
+    @Override
+    public long getRemainingFundsSatoshis() {
+        return remainingFunds;
+    }
+
+    @Override
+    public long getCostPerStatementSatoshis() {
+        return costPerStatement;
+    }
+
+    @Override
+    public long getRemainingStatements() {
+        long funds = remainingFunds, cost = costPerStatement;
+        return funds >= 0 && cost > 0 ? funds / cost : -1;
+    }
+}
@@ -0,0 +1,68 @@
+package org.catena.server;
+
+import org.catena.common.LatencyHistogram;
+
+/**
+ * JMX view of a Catena server (see CatenaServerStats). Everything here is kept up to date as statements are appended,
+ * so reading it is cheap. Latencies are in milliseconds.
+ */
+public interface CatenaServerStatsMXBean {
+
+    /**
+     * The number of statements in the chain, not counting the root-of-trust one.
+     */
+    public int getNumStatements();
+
+    /**
+     * The number of statements appended since the server started, including the root-of-trust one.
+     */
+    public long getNumAppends();
+
+    public long getNumFailedAppends();
+
+    /**
+     * Appends per second over the last minute.
+     */
+    public double getAppendsPerSecond();
+
+    /**
+     * From the appendStatement() call until the TX is committed to the wallet (i.e., not counting the broadcast).
+     */
+    public LatencyHistogram.Snapshot getAppendLatency();
+
+    public LatencyHistogram.Snapshot getBuildLatency();
+
+    public LatencyHistogram.Snapshot getSignLatency();
+
+    public LatencyHistogram.Snapshot getCommitLatency();
+
+    public LatencyHistogram.Snapshot getSaveLatency();
+
+    public LatencyHistogram.Snapshot getBroadcastLatency();
+
+    /**
+     * From the appendStatement() call until the TX is first confirmed in a block.
+     */
+    public LatencyHistogram.Snapshot getConfirmationLatency();
+
+    /**
+     * The number of our Catena TXs that are not confirmed yet.
+     */
+    public int getUnconfirmedDepth();
+
+    /**
+     * The value of the chain's last UTXO, which funds all future statements, in satoshis (or -1 if not known yet).
+     */
+    public long getRemainingFundsSatoshis();
+
+    /**
+     * What the last statement cost (its fee and its OP_RETURN output), in satoshis (or -1 if not known yet).
+     */
+    public long getCostPerStatementSatoshis();
+
+    /**
+     * How many more statements the remaining funds pay for, if they all cost as much as the last one (or -1 if not
+     * known yet).
+     */
+    public long getRemainingStatements();
+}
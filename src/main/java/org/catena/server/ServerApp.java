@@ -1,6 +1,7 @@
 package org.catena.server;
 
 import org.bitcoinj.core.*;
+import org.bitcoinj.store.BlockStoreException;
 import org.catena.common.CatenaApp;
 import org.catena.common.CatenaUtils;
 import org.catena.common.Utils;
@@ -113,6 +114,7 @@ public class ServerApp extends CatenaApp {
                     break;
                 case PRINT_CONFIG:
                     printConfigHandler();
+                    printStats();
                     break;
                 case PRINT_PRIVKEY:
                     printPrivKeyHandler();
@@ -190,6 +192,20 @@ public class ServerApp extends CatenaApp {
         System.out.printf("Created root-of-trust tx '%s' for chain '%s'\n", txn.getHash(), chainName);
     }
 
+    private static void printStats() {
+        CatenaServerStats stats = server.getStats();
+        System.out.println("# of appends since startup: " + stats.getNumAppends() + " (" + stats.getNumFailedAppends() +
+                " failed, " + String.format("%.2f", stats.getAppendsPerSecond()) + "/s over the last minute)");
+        System.out.println(" + Append latency: " + stats.getAppendLatency());
+        System.out.println(" + Broadcast latency: " + stats.getBroadcastLatency());
+        System.out.println(" + Confirmation latency: " + stats.getConfirmationLatency());
+        System.out.println("# of unconfirmed statements: " + stats.getUnconfirmedDepth());
+        System.out.println("Remaining funds: " + stats.getRemainingFundsSatoshis() + " satoshis (" + 
+                stats.getRemainingStatements() + " more statements at " + stats.getCostPerStatementSatoshis() + 
+                " satoshis each)");
+        System.out.println("Statement stage latencies (from the previous stage):\n" + server.getStatementTracer());
+    }
+
     private static void printPrivKeyHandler() {
         printPrivKey();
     }
@@ -198,7 +214,7 @@ public class ServerApp extends CatenaApp {
         System.out.println("Catena server's chain private key: " + wallet.getChainKey().getPrivateKeyAsWiF(params));
     }
     
-    private static void genClientConfigFileHandler() throws IOException {
+    private static void genClientConfigFileHandler() throws IOException, BlockStoreException {
         Path path;
         while(true) {
             try {
@@ -233,12 +249,34 @@ public class ServerApp extends CatenaApp {
         genClientConfigFile(path);
     }
 
-    private static void genClientConfigFile(Path path) throws IOException {
+    private static void genClientConfigFile(Path path) throws IOException, BlockStoreException {
         if(ext.hasRootOfTrustTxid()) {
             FileWriter writer = new FileWriter(path.toFile());
             writer.write(Utils.fmt("pubkey={}\n", wallet.getChainAddress()));
             writer.write(Utils.fmt("txid={}\n", ext.getRootOfTrustTxid()));
             writer.write(Utils.fmt("btc_env={}\n", btcnet)); 
+            
+            // Lets new clients skip the blocks before the root-of-trust block (see CatenaClient::setRootOfTrustBlock)
+            Transaction rootTx = wallet.getTransaction(ext.getRootOfTrustTxid());
+            StoredBlock rootBlock = rootTx != null ? CatenaUtils.getConfirmingBlock(svc.store(), rootTx) : null;
+            if(rootBlock != null) {
+                writer.write(Utils.fmt("root_height={}\n", rootBlock.getHeight()));
+                writer.write(Utils.fmt("root_block={}\n", rootBlock.getHeader().getHash()));
+                writer.write(Utils.fmt("root_time={}\n", rootBlock.getHeader().getTimeSeconds()));
+                
+                // The block right before the root-of-trust block, so clients can start syncing headers from there
+                StoredBlock prev = rootBlock.getPrev(svc.store());
+                if(prev != null)
+                    writer.write(Utils.fmt("root_checkpoint={}\n", CatenaUtils.encodeCheckpoint(prev)));
+                
+                // NOTE: Saved with the wallet the next time it changes
+                if(ext.hasRootOfTrustBlock() == false)
+                    ext.setRootOfTrustBlock(rootBlock.getHeight(), rootBlock.getHeader().getHash(), 
+                            rootBlock.getHeader().getTimeSeconds());
+            } else {
+                System.out.println("\nNOTE: The root-of-trust TXN is not confirmed yet, so clients using this config " +
+                        "file will have to sync from the genesis block.");
+            }
             writer.close();
             System.out.printf("\nCatena client's %s file was written successfully!\n", path);
         } else {
@@ -0,0 +1,155 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writes real (solved) regtest blocks with a Catena chain in them to files laid out like bitcoind's blk*.dat files,
+ * and checks that the scanner reconstructs the chain from them.
+ */
+public class BlockFileScannerTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        dir = Files.createTempDirectory("blk-files").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for(File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private Block mine(Block prev, List<Transaction> txs) {
+        Block b = prev.createNextBlock(new ECKey().toAddress(params));
+        for(Transaction tx : txs)
+            b.addTransaction(chain.copy(tx));
+        b.solve();
+        return b;
+    }
+
+    /**
+     * Writes the blocks the way bitcoind does: magic bytes, little-endian size and the block, with zeros at the end.
+     */
+    private void writeBlockFile(String name, Block... blocks) throws Exception {
+        try (FileOutputStream out = new FileOutputStream(new File(dir, name))) {
+            for(Block b : blocks) {
+                byte[] data = b.bitcoinSerialize();
+                ByteBuffer prefix = ByteBuffer.allocate(8);
+                prefix.putInt((int)params.getPacketMagic());
+                prefix.order(ByteOrder.LITTLE_ENDIAN).putInt(data.length);
+                out.write(prefix.array());
+                out.write(data);
+            }
+            out.write(new byte[1000]);
+        }
+    }
+
+    private BlockFileScanner.Result scan() throws Exception {
+        BlockFileScanner scanner = new BlockFileScanner(params, chain.getRootOfTrustTx().getHash(),
+                chain.getChainAddress(), 2);
+        return scanner.scan(BlockFileScanner.listBlockFiles(dir));
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        Block b1 = mine(genesis, Arrays.asList(chain.getFundingTx(), chain.getRootOfTrustTx()));
+        Block b2 = mine(b1, chain.append("s0", "s1"));
+        // A stale block with a competing statement
+        Block c3 = mine(b2, Arrays.asList(chain.doubleSpend(2, "fork".getBytes(), chain.getChainKey())));
+        Block b3 = mine(b2, chain.append("s2"));
+        Block b4 = mine(b3, chain.append("s3", "s4"));
+        Block b5 = mine(b4, new ArrayList<Transaction>());
+
+        // Blocks are not necessarily stored in chain order
+        writeBlockFile("blk00000.dat", genesis, b1, b2, c3);
+        writeBlockFile("blk00001.dat", b4, b3, b5);
+
+        BlockFileScanner.Result result = scan();
+        assertTrue(result.getProblems().toString(), result.getProblems().isEmpty());
+        assertEquals(7, result.getNumBlocks());
+        assertEquals(5, result.getBestChainHead().getHeight());
+        assertEquals(b5.getHash(), result.getBestChainHead().getHeader().getHash());
+        assertEquals(5, result.getNumStatements());
+        for(int i = 0; i < 5; i++)
+            assertEquals(chain.getTxs().get(i).getHash(), result.getStatement(i + 1).getTxHash());
+        assertEquals(b3.getHash(), result.getBlock(3).getHeader().getHash());
+
+        // Snapshots leave out the statements above the height
+        CatenaSnapshot snapshot = result.toSnapshot(3);
+        snapshot.verify(chain.getChainAddress());
+        assertEquals(4, snapshot.size());
+        assertEquals(3, snapshot.getHeight());
+        assertEquals(chain.getTxs().get(2).getHash(), snapshot.getAnchorTxn().getHash());
+        assertEquals(b3.getHash(), snapshot.getAnchorBlock().getHeader().getHash());
+    }
+
+    @Test
+    public void testBlockStoredTwice() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        Block b1 = mine(genesis, Arrays.asList(chain.getFundingTx(), chain.getRootOfTrustTx()));
+        Block b2 = mine(b1, chain.append("s0", "s1"));
+        Block b3 = mine(b2, chain.append("s2"));
+        // E.g., downloaded again after a crash
+        writeBlockFile("blk00000.dat", genesis, b1, b2);
+        writeBlockFile("blk00001.dat", b2, b3);
+
+        BlockFileScanner.Result result = scan();
+        assertTrue(result.getProblems().toString(), result.getProblems().isEmpty());
+        assertEquals(3, result.getNumStatements());
+        assertEquals(b3.getHash(), result.getBestChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void testBadSignature() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        Block b1 = mine(genesis, Arrays.asList(chain.getFundingTx(), chain.getRootOfTrustTx()));
+        Block b2 = mine(b1, chain.append("s0", "s1"));
+        Transaction bad = chain.createCatenaTx(chain.getTip().getOutput(0), new ECKey(), "bad".getBytes());
+        Block b3 = mine(b2, Arrays.asList(bad));
+        writeBlockFile("blk00000.dat", genesis, b1, b2, b3);
+
+        BlockFileScanner.Result result = scan();
+        assertEquals(2, result.getNumStatements());
+        assertEquals(1, result.getProblems().size());
+        assertTrue(result.getProblems().get(0).contains(bad.getHash().toString()));
+    }
+
+    @Test
+    public void testNoRootOfTrust() throws Exception {
+        Block genesis = params.getGenesisBlock();
+        writeBlockFile("blk00000.dat", genesis, mine(genesis, new ArrayList<Transaction>()));
+
+        BlockFileScanner.Result result = scan();
+        assertFalse(result.hasRootOfTrustTxn());
+        assertEquals(1, result.getProblems().size());
+    }
+}
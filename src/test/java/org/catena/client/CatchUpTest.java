@@ -0,0 +1,166 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.CatenaUtils;
+import org.catena.common.ParallelTxVerifier;
+import org.catena.common.SignatureCache;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.catena.common.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests how a ClientWallet catches up on a long chain of statements, using an in-process synthetic chain instead of
+ * bitcoind.
+ */
+public class CatchUpTest extends SummarizedTest {
+
+    private static final int NUM_STMTS = 40;
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+    }
+
+    @Test
+    public void testParallelVerdictsMatchSequential() {
+        chain.append(TestUtils.generateStatements(NUM_STMTS));
+
+        List<Transaction> txs = new ArrayList<Transaction>(chain.getTxs());
+        // Replace one TX with a correctly formatted one that is signed by the wrong key
+        int badIdx = NUM_STMTS / 2;
+        txs.set(badIdx, chain.doubleSpend(badIdx, "forged".getBytes(), new ECKey()));
+
+        List<TransactionOutput> prevLinks = new ArrayList<TransactionOutput>();
+        prevLinks.add(chain.getRootOfTrustTx().getOutput(0));
+        for(int i = 0; i < txs.size() - 1; i++) {
+            prevLinks.add(chain.getTxs().get(i).getOutput(0));
+        }
+
+        boolean[] verdicts;
+        try (ParallelTxVerifier verifier = new ParallelTxVerifier(4)) {
+            verdicts = verifier.verify(txs, prevLinks, chain.getChainAddress());
+        }
+
+        assertEquals(txs.size(), verdicts.length);
+        for(int i = 0; i < txs.size(); i++) {
+            boolean expected = CatenaUtils.isSignedCatenaTx(txs.get(i), chain.getChainAddress(), prevLinks.get(i), true);
+            assertEquals("verdict mismatch for TX #" + i, expected, verdicts[i]);
+            assertEquals("TX #" + i, i != badIdx, verdicts[i]);
+        }
+    }
+
+    @Test
+    public void testReverificationHitsCache() {
+        chain.append(TestUtils.generateStatements(NUM_STMTS));
+
+        List<Transaction> txs = chain.getTxs();
+        List<TransactionOutput> prevLinks = new ArrayList<TransactionOutput>();
+        prevLinks.add(chain.getRootOfTrustTx().getOutput(0));
+        for(int i = 0; i < txs.size() - 1; i++) {
+            prevLinks.add(txs.get(i).getOutput(0));
+        }
+
+        SignatureCache cache = new SignatureCache();
+        ParallelTxVerifier verifier = new ParallelTxVerifier(4, cache);
+
+        verifier.verify(txs, prevLinks, chain.getChainAddress());
+        assertEquals(0, cache.getHits());
+        assertEquals(NUM_STMTS, cache.getMisses());
+
+        // e.g., after a reorg adds the same TXs back to BQ
+        boolean[] verdicts = verifier.verify(txs, prevLinks, chain.getChainAddress());
+        assertEquals(NUM_STMTS, cache.getHits());
+        assertEquals(NUM_STMTS, cache.getMisses());
+        for(boolean v : verdicts) {
+            assertTrue(v);
+        }
+        verifier.close();
+
+        // Double spends are checked against the output they spend, even though they are not connected to it
+        TransactionOutput spent = txs.get(0).getOutput(0);
+        Transaction consistent = chain.copy(chain.doubleSpend(1, "S1".getBytes(), chain.getChainKey()));
+        Transaction forged = chain.copy(chain.doubleSpend(1, "S1".getBytes(), new ECKey()));
+        assertNull(consistent.getInput(0).getConnectedOutput());
+        assertTrue(CatenaUtils.isSignedCatenaTxSpending(consistent, chain.getChainAddress(), spent, cache));
+        assertFalse(CatenaUtils.isSignedCatenaTxSpending(forged, chain.getChainAddress(), spent, cache));
+        assertFalse(CatenaUtils.isSignedCatenaTxSpending(consistent, chain.getChainAddress(), 
+                txs.get(1).getOutput(0), cache));
+    }
+
+    @Test
+    public void testCatchUpLongChain() {
+        final AtomicInteger numAppended = new AtomicInteger();
+        wallet.addStatementListener(new CatenaStatementListener() {
+            @Override
+            public void onStatementAppended(CatenaStatement s) { numAppended.incrementAndGet(); }
+
+            @Override
+            public void onStatementWithdrawn(CatenaStatement s) { fail("Nothing should be withdrawn"); }
+        });
+
+        String[] stmts = TestUtils.generateStatements(NUM_STMTS);
+        StoredBlock block = chain.mineRoot(wallet);
+        chain.mine(wallet, block, chain.append(stmts));
+
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+
+        assertEquals(NUM_STMTS, wallet.getNumStatements());
+        assertEquals(NUM_STMTS, numAppended.get());
+
+        Iterator<CatenaStatement> it = wallet.statementIterator(true);
+        for(String s : stmts) {
+            assertEquals(s, it.next().getAsString());
+        }
+        assertFalse(it.hasNext());
+    }
+
+    @Test
+    public void testCatchUpStopsAtBadSignature() {
+        final AtomicInteger numWhistleblows = new AtomicInteger();
+        wallet.addWhistleblowListener(new CatenaWhistleblowListener() {
+            @Override
+            public void onWhistleblow(Transaction tx, String message) { numWhistleblows.incrementAndGet(); }
+        });
+
+        StoredBlock block = chain.mineRoot(wallet);
+
+        // The 11th statement is signed by someone else
+        List<Transaction> txs = new ArrayList<Transaction>(chain.append(TestUtils.generateStatements(10)));
+        Transaction forged = chain.createCatenaTx(chain.getTip().getOutput(0), new ECKey(), "forged".getBytes());
+        txs.add(forged);
+        txs.add(chain.createCatenaTx(forged.getOutput(0), chain.getChainKey(), "after".getBytes()));
+        chain.mine(wallet, block, txs);
+
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+
+        assertEquals(10, wallet.getNumStatements());
+        assertEquals(1, numWhistleblows.get());
+    }
+}
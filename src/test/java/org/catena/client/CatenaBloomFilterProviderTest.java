@@ -0,0 +1,128 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the multi-chain Bloom filter provider without any peers.
+ */
+public class CatenaBloomFilterProviderTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private CatenaBloomFilterProvider provider;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        provider = new CatenaBloomFilterProvider();
+    }
+
+    @Test
+    public void testManyChains() {
+        SyntheticCatenaChain[] chains = new SyntheticCatenaChain[20];
+        for(int i = 0; i < chains.length; i++) {
+            chains[i] = new SyntheticCatenaChain(params, "chain" + i);
+            provider.addChain(chains[i].getRootOfTrustTx().getHash(), chains[i].getChainAddress(), 1000 + i,
+                    i == 7 ? 0.0001 : 0.001);
+        }
+        Sha256Hash extra = Sha256Hash.of("extra".getBytes());
+        provider.addTxid(extra);
+
+        assertEquals(2 * chains.length + 1, provider.getNumElements());
+        // Room for twice as many elements as the initial capacity, at least
+        assertEquals(4 * CatenaBloomFilterProvider.MIN_CAPACITY, provider.getBloomFilterElementCount());
+        assertEquals(0.0001, provider.getTargetFalsePositiveRate(), 0.0);
+        assertEquals(0.001, provider.getTargetFalsePositiveRate(chains[0].getRootOfTrustTx().getHash()), 0.0);
+        assertEquals(1000, provider.getEarliestKeyCreationTime());
+
+        provider.beginBloomFilterCalculation();
+        BloomFilter filter;
+        try {
+            filter = provider.getBloomFilter(provider.getBloomFilterElementCount(), 0.0001, 42);
+        } finally {
+            provider.endBloomFilterCalculation();
+        }
+
+        for(SyntheticCatenaChain chain : chains) {
+            assertTrue(filter.contains(chain.getRootOfTrustTx().getHash().getReversedBytes()));
+            assertTrue(filter.contains(chain.getChainAddress().getHash160()));
+        }
+        assertTrue(filter.contains(extra.getReversedBytes()));
+    }
+
+    @Test
+    public void testCountsFalsePositives() {
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "chain");
+        provider.addChain(chain.getRootOfTrustTx().getHash(), chain.getChainAddress(), 1);
+
+        provider.onTransaction(null, chain.getRootOfTrustTx());
+        for(Transaction tx : chain.append("a", "b", "c"))
+            provider.onTransaction(null, tx);
+        assertEquals(4, provider.getNumReceivedTxns());
+        assertEquals(0, provider.getNumFalsePositives());
+        assertEquals(0.0, provider.getFalsePositiveByteRatio(), 0.0);
+
+        // Another chain's TXs are noise for us
+        SyntheticCatenaChain other = new SyntheticCatenaChain(params, new ECKey(), "other");
+        for(Transaction tx : other.append("x", "y"))
+            provider.onTransaction(null, tx);
+        assertEquals(6, provider.getNumReceivedTxns());
+        assertEquals(2, provider.getNumFalsePositives());
+        assertTrue(provider.getFalsePositiveByteRatio() > 0.0);
+    }
+
+    @Test
+    public void testSharedWithTrackers() {
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "chain");
+        Sha256Hash rootTxid = chain.getRootOfTrustTx().getHash();
+        provider.addChain(rootTxid, chain.getChainAddress(), 1);
+        CatenaChainTracker tracker = new CatenaChainTracker(params, rootTxid, chain.getChainAddress());
+        tracker.shareFilter(provider);
+        tracker.setTipWindow(1, new CatenaStatementSink() {
+            @Override
+            public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest) {}
+        });
+
+        StoredBlock block = chain.mineRoot(tracker);
+        List<Transaction> txs = chain.append("a", "b");
+        chain.mine(tracker, block, txs);
+        Threading.waitForUserCode();
+
+        provider.beginBloomFilterCalculation();
+        BloomFilter filter;
+        try {
+            filter = provider.getBloomFilter(provider.getBloomFilterElementCount(), 0.00001, 0);
+        } finally {
+            provider.endBloomFilterCalculation();
+        }
+
+        // Double spends of the chain's tail match, even though they pay elsewhere
+        for(Transaction prev : txs)
+            assertTrue(filter.applyAndUpdate(spend(prev)));
+        // The root's and "a"'s outputs are spent by archived TXs, so they are gone
+        assertEquals(2 + 2, provider.getNumElements());
+    }
+
+    private Transaction spend(Transaction prev) {
+        Transaction tx = new Transaction(params);
+        tx.addInput(prev.getOutput(0));
+        tx.addOutput(prev.getOutput(0).getValue(), new ECKey().toAddress(params));
+        return tx;
+    }
+}
@@ -0,0 +1,120 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests that many Catena chains interleaved in the same blocks are followed correctly by trackers driven in parallel
+ * by a CatenaChainDispatcher.
+ */
+public class CatenaChainDispatcherTest extends SummarizedTest {
+
+    private static final int NUM_CHAINS = 8;
+
+    private NetworkParameters params = RegTestParams.get();
+    private List<SyntheticCatenaChain> chains = new ArrayList<SyntheticCatenaChain>();
+    private CatenaChainDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        dispatcher = new CatenaChainDispatcher(4);
+
+        for(int i = 0; i < NUM_CHAINS; i++) {
+            SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "chain" + i);
+            chains.add(chain);
+            dispatcher.addTracker(new CatenaChainTracker(params, chain.getRootOfTrustTx().getHash(),
+                    chain.getChainAddress()));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testFollowsInterleavedChains() {
+        List<Transaction> txs = new ArrayList<Transaction>();
+        for(SyntheticCatenaChain chain : chains) {
+            txs.add(chain.getFundingTx());
+            txs.add(chain.getRootOfTrustTx());
+        }
+        StoredBlock block = mine(chains.get(0).genesis(), txs);
+
+        // Chain i issues i+1 statements in every block
+        int numBlocks = 10;
+        for(int b = 0; b < numBlocks; b++) {
+            txs.clear();
+            for(int i = 0; i < NUM_CHAINS; i++) {
+                for(int j = 0; j <= i; j++)
+                    txs.add(chains.get(i).append(("chain" + i + " stmt " + b + "." + j).getBytes()));
+            }
+            block = mine(block, txs);
+        }
+        Threading.waitForUserCode();
+
+        for(int i = 0; i < NUM_CHAINS; i++) {
+            CatenaChainTracker tracker = dispatcher.getTrackers().get(i);
+            assertEquals("chain" + i, tracker.getName());
+            assertEquals(numBlocks * (i + 1), tracker.getNumStatements());
+            assertEquals(block.getHeight(), tracker.getChainHeadHeight());
+
+            Iterator<Transaction> expected = chains.get(i).getTxs().iterator();
+            Iterator<CatenaStatement> it = tracker.statementIterator(true);
+            while(expected.hasNext())
+                assertEquals(expected.next().getHash(), it.next().getTxHash());
+            assertFalse(it.hasNext());
+        }
+    }
+
+    @Test
+    public void testReorgAcrossChains() {
+        List<Transaction> txs = new ArrayList<Transaction>();
+        for(SyntheticCatenaChain chain : chains) {
+            txs.add(chain.getFundingTx());
+            txs.add(chain.getRootOfTrustTx());
+        }
+        StoredBlock root = mine(chains.get(0).genesis(), txs);
+
+        txs.clear();
+        for(SyntheticCatenaChain chain : chains)
+            txs.addAll(chain.append("s1", "s2"));
+        StoredBlock b2 = mine(root, txs);
+
+        // The fork drops every chain's statements
+        SyntheticCatenaChain any = chains.get(0);
+        StoredBlock c2 = any.mineSideChain(dispatcher, root, ImmutableList.<Transaction>of());
+        StoredBlock c3 = any.mineSideChain(dispatcher, c2, ImmutableList.<Transaction>of());
+        dispatcher.reorganize(root, ImmutableList.of(b2), ImmutableList.of(c3, c2));
+
+        for(CatenaChainTracker tracker : dispatcher.getTrackers())
+            assertEquals(0, tracker.getNumStatements());
+
+        mine(c3, txs);
+        for(CatenaChainTracker tracker : dispatcher.getTrackers())
+            assertEquals(2, tracker.getNumStatements());
+    }
+
+    private StoredBlock mine(StoredBlock prev, List<Transaction> txs) {
+        return chains.get(0).mine(dispatcher, prev, txs);
+    }
+}
@@ -0,0 +1,324 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.catena.common.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests the wallet-less CatenaChainTracker on an in-process synthetic chain, feeding it block chain events directly.
+ */
+public class CatenaChainTrackerTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private CatenaChainTracker tracker;
+
+    private final AtomicInteger numAppended = new AtomicInteger();
+    private final AtomicInteger numWithdrawn = new AtomicInteger();
+    private final Set<Sha256Hash> whistleblown = new CopyOnWriteArraySet<Sha256Hash>();
+
+    private StoredBlock rootBlock;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        tracker = new CatenaChainTracker(params, chain.getRootOfTrustTx().getHash(), chain.getChainAddress());
+
+        tracker.addStatementListener(new CatenaStatementListener() {
+            @Override
+            public void onStatementAppended(CatenaStatement s) { numAppended.incrementAndGet(); }
+
+            @Override
+            public void onStatementWithdrawn(CatenaStatement s) { numWithdrawn.incrementAndGet(); }
+        });
+        tracker.addWhistleblowListener(new CatenaWhistleblowListener() {
+            @Override
+            public void onWhistleblow(Transaction tx, String message) { whistleblown.add(tx.getHash()); }
+        });
+
+        rootBlock = chain.mineRoot(tracker);
+    }
+
+    @Test
+    public void testFollowsChain() {
+        String[] stmts = TestUtils.generateStatements(20);
+        StoredBlock block = rootBlock;
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        for(String s : stmts) {
+            block = chain.mine(tracker, block, chain.append(s));
+            blocks.add(block);
+        }
+        Threading.waitForUserCode();
+
+        assertEquals("testchain", tracker.getName());
+        assertEquals(stmts.length, tracker.getNumStatements());
+        assertEquals(stmts.length, numAppended.get());
+        assertTrue(whistleblown.isEmpty());
+
+        Iterator<CatenaStatement> it = tracker.statementIterator(true);
+        for(int i = 0; i < stmts.length; i++) {
+            CatenaStatement s = it.next();
+            assertEquals(stmts[i], s.getAsString());
+            assertEquals(blocks.get(i).getHeight(), tracker.getHeight(s.getTxHash()));
+        }
+        assertFalse(it.hasNext());
+        assertEquals(block.getHeight(), tracker.getChainHeadHeight());
+
+        // Only the root-of-trust TX and the statements are kept around, not the funding TX.
+        assertEquals(stmts.length + 1, tracker.getNumTrackedTxns());
+    }
+
+    @Test
+    public void testReorgWithdrawsAndReaddsStatements() {
+        List<Transaction> txs = chain.append("s1", "s2", "s3");
+        StoredBlock b2 = chain.mine(tracker, rootBlock, txs);
+        Threading.waitForUserCode();
+        assertEquals(3, tracker.getNumStatements());
+
+        // A fork that only has the first statement takes over
+        StoredBlock c2 = chain.mineSideChain(tracker, rootBlock, txs.subList(0, 1));
+        StoredBlock c3 = chain.mineSideChain(tracker, c2, ImmutableList.<Transaction>of());
+        tracker.reorganize(rootBlock, ImmutableList.of(b2), ImmutableList.of(c3, c2));
+        Threading.waitForUserCode();
+
+        assertEquals(1, tracker.getNumStatements());
+        assertEquals(2, numWithdrawn.get());
+        assertEquals(-1, tracker.getHeight(txs.get(1).getHash()));
+        assertEquals(c2.getHeight(), tracker.getHeight(txs.get(0).getHash()));
+
+        // The withdrawn statements make it back into the new chain. Listeners were told they were withdrawn, so they
+        // are told they were appended again (same as ClientWallet).
+        chain.mine(tracker, c3, txs.subList(1, 3));
+        Threading.waitForUserCode();
+
+        assertEquals(3, tracker.getNumStatements());
+        assertEquals(5, numAppended.get());
+        assertTrue(whistleblown.isEmpty());
+    }
+
+    @Test
+    public void testReorgWithDifferentStatement() {
+        List<Transaction> txs = chain.append("s1", "s2");
+        StoredBlock b2 = chain.mine(tracker, rootBlock, txs);
+
+        // The fork has a correctly signed TX that commits to a different second statement
+        Transaction lie = chain.doubleSpend(1, "lie".getBytes(), chain.getChainKey());
+        StoredBlock c2 = chain.mineSideChain(tracker, rootBlock, ImmutableList.of(txs.get(0), lie));
+        StoredBlock c3 = chain.mineSideChain(tracker, c2, ImmutableList.<Transaction>of());
+        tracker.reorganize(rootBlock, ImmutableList.of(b2), ImmutableList.of(c3, c2));
+        Threading.waitForUserCode();
+
+        assertEquals(1, tracker.getNumStatements());
+        assertTrue(whistleblown.contains(lie.getHash()));
+    }
+
+    @Test
+    public void testPendingLieDetected() {
+        chain.mine(tracker, rootBlock, chain.append("s1", "s2"));
+
+        // A different first statement than "s1" is a lie, no matter who signed it
+        tracker.onTransaction(null, chain.copy(chain.doubleSpend(0, "lie".getBytes(), new ECKey())));
+        Threading.waitForUserCode();
+        assertEquals(1, whistleblown.size());
+        assertEquals(2, tracker.getNumStatements());
+    }
+
+    @Test
+    public void testBloomFilterMatchesDoubleSpends() {
+        List<Transaction> txs = chain.append("s1", "s2");
+        chain.mine(tracker, rootBlock, txs);
+
+        tracker.beginBloomFilterCalculation();
+        BloomFilter filter;
+        try {
+            filter = tracker.getBloomFilter(tracker.getBloomFilterElementCount(), 0.00001, 0);
+        } finally {
+            tracker.endBloomFilterCalculation();
+        }
+
+        // A non-Catena TX spending a continuation output has neither the chain address nor a tracked TXID in it
+        for(Transaction prev : ImmutableList.of(chain.getRootOfTrustTx(), txs.get(0), txs.get(1))) {
+            Transaction ds = new Transaction(params);
+            ds.addInput(prev.getOutput(0));
+            ds.addOutput(prev.getOutput(0).getValue(), new ECKey().toAddress(params));
+            assertTrue(filter.applyAndUpdate(ds));
+        }
+    }
+
+    @Test
+    public void testTipWindowResumesFromArchive() throws Exception {
+        File archiveFile = new File(Files.createTempDirectory("catena-archive").toFile(), "chain.archive");
+        final List<Long> archived = new CopyOnWriteArrayList<Long>();
+        CatenaStatementSink sink = new CatenaStatementSink() {
+            @Override
+            public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest) { archived.add(seqNum); }
+        };
+
+        // The same blocks, for the tracker before and after the restart
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        List<List<Transaction>> blockTxs = new ArrayList<List<Transaction>>();
+        StoredBlock block = chain.genesis();
+        for(List<Transaction> txs : ImmutableList.<List<Transaction>>of(
+                ImmutableList.of(chain.getFundingTx(), chain.getRootOfTrustTx()),
+                chain.append("s1", "s2"), chain.append("s3"), chain.append("s4", "s5"))) {
+            block = chain.nextBlock(block);
+            blocks.add(block);
+            blockTxs.add(txs);
+        }
+
+        CatenaChainTracker before = newTracker();
+        before.setTipWindow(2, sink, archiveFile);
+        replay(before, blocks, blockTxs);
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of(1L, 2L, 3L), archived);
+
+        // Restarted, it skips the archived statements and does not hand them to the sink again
+        CatenaChainTracker after = newTracker();
+        after.setTipWindow(2, sink, archiveFile);
+        assertEquals(3, after.getNumArchivedStatements());
+        assertEquals(before.getArchiveDigest(), after.getArchiveDigest());
+        replay(after, blocks, blockTxs);
+        Threading.waitForUserCode();
+
+        assertEquals(ImmutableList.of(1L, 2L, 3L), archived);
+        assertEquals(5, after.getNumStatements());
+        assertEquals(before.getNumTrackedTxns(), after.getNumTrackedTxns());
+        assertEquals(before.statementIterator(false).next().getTxHash(),
+                after.statementIterator(false).next().getTxHash());
+
+        block = chain.mine(after, blocks.get(blocks.size() - 1), chain.append("s6"));
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of(1L, 2L, 3L, 4L), archived);
+        assertEquals(6, after.getNumStatements());
+    }
+
+    private CatenaChainTracker newTracker() {
+        return new CatenaChainTracker(params, chain.getRootOfTrustTx().getHash(), chain.getChainAddress());
+    }
+
+    private void replay(CatenaChainTracker t, List<StoredBlock> blocks, List<List<Transaction>> blockTxs) {
+        for(int i = 0; i < blocks.size(); i++) {
+            int offset = 0;
+            for(Transaction tx : blockTxs.get(i))
+                t.receiveFromBlock(chain.copy(tx), blocks.get(i), NewBlockType.BEST_CHAIN, offset++);
+            t.notifyNewBestBlock(blocks.get(i));
+        }
+    }
+
+    @Test
+    public void testWhistleblownForgottenWithTipWindow() {
+        tracker.setTipWindow(2, new CatenaStatementSink() {
+            @Override
+            public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest) {}
+        });
+        StoredBlock block = chain.mine(tracker, rootBlock, chain.append("s1", "s2"));
+        tracker.onTransaction(null, chain.copy(chain.doubleSpend(0, "lie".getBytes(), new ECKey())));
+        Threading.waitForUserCode();
+        assertEquals(1, whistleblown.size());
+        assertEquals(1, tracker.getNumWhistleblownTxns());
+
+        // Once "s1" is archived, the lie is forgotten along with it
+        chain.mine(tracker, block, chain.append("s3", "s4"));
+        Threading.waitForUserCode();
+        assertEquals(4, tracker.getNumStatements());
+        assertEquals(0, tracker.getNumWhistleblownTxns());
+    }
+
+    @Test
+    public void testStopsAtBadSignature() {
+        List<Transaction> txs = new ArrayList<Transaction>(chain.append(TestUtils.generateStatements(10)));
+        Transaction forged = chain.createCatenaTx(chain.getTip().getOutput(0), new ECKey(), "forged".getBytes());
+        txs.add(forged);
+        txs.add(chain.createCatenaTx(forged.getOutput(0), chain.getChainKey(), "after".getBytes()));
+        StoredBlock block = chain.mine(tracker, rootBlock, txs);
+        chain.mine(tracker, block, ImmutableList.<Transaction>of());
+        Threading.waitForUserCode();
+
+        assertEquals(10, tracker.getNumStatements());
+        assertEquals(ImmutableList.of(forged.getHash()), ImmutableList.copyOf(whistleblown));
+    }
+
+    @Test
+    public void testTipWindow() {
+        final int window = 5;
+        final List<CatenaStatement> archived = new CopyOnWriteArrayList<CatenaStatement>();
+        final List<Sha256Hash> digests = new CopyOnWriteArrayList<Sha256Hash>();
+        tracker.setTipWindow(window, new CatenaStatementSink() {
+            @Override
+            public void onStatementArchived(long seqNum, CatenaStatement s, Sha256Hash digest) {
+                assertEquals(archived.size() + 1, seqNum);
+                archived.add(s);
+                digests.add(digest);
+            }
+        });
+
+        String[] stmts = TestUtils.generateStatements(30);
+        StoredBlock block = rootBlock;
+        for(String s : stmts) {
+            block = chain.mine(tracker, block, chain.append(s));
+            assertTrue(tracker.getNumTrackedTxns() <= window + 1);
+        }
+        Threading.waitForUserCode();
+
+        assertEquals(stmts.length, tracker.getNumStatements());
+        assertEquals(stmts.length - window, tracker.getNumArchivedStatements());
+        assertEquals(stmts.length - window, archived.size());
+
+        Sha256Hash digest = chain.getRootOfTrustTx().getHash();
+        for(int i = 0; i < archived.size(); i++) {
+            assertEquals(stmts[i], archived.get(i).getAsString());
+            digest = CatenaChainTracker.foldDigest(digest, archived.get(i));
+            assertEquals(digest, digests.get(i));
+        }
+        assertEquals(digest, tracker.getArchiveDigest());
+
+        Iterator<CatenaStatement> it = tracker.statementIterator(true);
+        for(int i = stmts.length - window; i < stmts.length; i++)
+            assertEquals(stmts[i], it.next().getAsString());
+        assertFalse(it.hasNext());
+
+        // A reorg within the window still works, and the chain keeps going from the archived statements.
+        StoredBlock prev = block;
+        Transaction next = chain.append("next".getBytes());
+        block = chain.mine(tracker, block, ImmutableList.of(next));
+        StoredBlock c1 = chain.mineSideChain(tracker, prev, ImmutableList.<Transaction>of());
+        StoredBlock c2 = chain.mineSideChain(tracker, c1, ImmutableList.<Transaction>of());
+        tracker.reorganize(prev, ImmutableList.of(block), ImmutableList.of(c2, c1));
+        Threading.waitForUserCode();
+        assertEquals(stmts.length, tracker.getNumStatements());
+
+        chain.mine(tracker, c2, ImmutableList.of(next));
+        Threading.waitForUserCode();
+        assertEquals(stmts.length + 1, tracker.getNumStatements());
+        assertEquals(stmts.length + 1 - window, archived.size());
+        assertTrue(whistleblown.isEmpty());
+    }
+}
@@ -0,0 +1,106 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class ClientWalletStatsTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+    private ClientWalletStats stats;
+    private StoredBlock rootBlock;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+        stats = wallet.getStats();
+
+        rootBlock = chain.mineRoot(wallet);
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+    }
+
+    @Test
+    public void testUpdatesAndListeners() {
+        wallet.addStatementListener(new CatenaStatementListener() {
+            @Override
+            public void onStatementAppended(CatenaStatement s) {}
+
+            @Override
+            public void onStatementWithdrawn(CatenaStatement s) {}
+        });
+
+        chain.mine(wallet, rootBlock, chain.append("s1", "s2", "s3"));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+
+        assertEquals(1, stats.getNumUpdates());
+        assertEquals(1, stats.getPushBqLatency().getCount());
+        assertEquals(1, stats.getLockWaitLatency().getCount());
+        assertEquals(4, stats.getBuildingQueueSize());
+        assertEquals(3, stats.getNumVerifiedStatements());
+        assertEquals(0, stats.getNumReorgs());
+
+        List<ClientWalletStats.ListenerStats> listeners = stats.getListeners();
+        assertEquals(1, listeners.size());
+        assertTrue(listeners.get(0).getName().startsWith("statement:"));
+        assertEquals(0, listeners.get(0).getQueueDepth());
+        assertEquals(3, listeners.get(0).getLag().getCount());
+        assertEquals(3, listeners.get(0).getRunTime().getCount());
+
+        // A pending TXN at the tail is verified on every update, but it's not a verified statement until it's pushed
+        wallet.receivePending(chain.copy(chain.append("s4".getBytes())), null);
+        wallet.updateCatenaLog(false);
+        wallet.updateCatenaLog(false);
+        assertEquals(3, stats.getNumVerifiedStatements());
+    }
+
+    @Test
+    public void testReorgsAndWhistleblows() throws Exception {
+        List<Transaction> txs = chain.append("s1", "s2", "s3");
+        StoredBlock b2 = chain.mine(wallet, rootBlock, txs);
+        wallet.updateCatenaLog(false);
+
+        // A fork with only the first statement (at the same height, but in a different block) takes over. All three
+        // statements are popped, and the first one is added back with its new block.
+        StoredBlock c2 = chain.mineSideChain(wallet, rootBlock, txs.subList(0, 1));
+        StoredBlock c3 = chain.mineSideChain(wallet, c2, ImmutableList.<Transaction>of());
+        // NOTE: Wallet::reorganize reverses the lists in place
+        wallet.reorganize(rootBlock, Lists.newArrayList(b2), Lists.newArrayList(c3, c2));
+        wallet.updateCatenaLog(false);
+
+        assertEquals(1, stats.getNumReorgs());
+        assertEquals(3, stats.getNumPoppedStatements());
+        assertEquals(3, stats.getLastReorgDepth());
+        assertEquals(1, wallet.getNumStatements());
+        assertEquals(2, stats.getPendingQueueSize());
+
+        // The next statement is signed by someone else
+        chain.truncate(2);
+        Transaction bad = chain.createCatenaTx(txs.get(0).getOutput(0), new ECKey(), "bad".getBytes());
+        chain.mine(wallet, c3, ImmutableList.of(bad));
+        wallet.updateCatenaLog(false);
+
+        assertEquals(1, stats.getNumWhistleblows());
+        assertEquals(3, stats.getNumUpdates());
+    }
+}
@@ -0,0 +1,170 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.BlockStore;
+import org.bitcoinj.store.MemoryBlockStore;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests exporting a snapshot from one client wallet and adopting it in a new one, which then only processes the
+ * statements after the snapshot.
+ */
+public class SnapshotTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+    private BlockStore store;
+    private List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+        store = new MemoryBlockStore(params);
+        file = File.createTempFile("catena", ".snapshot");
+
+        StoredBlock block = chain.mineRoot(wallet);
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+
+        // Two statements per block
+        for(int i = 0; i < 10; i++) {
+            block = chain.mine(wallet, block, chain.append("s" + (2*i), "s" + (2*i + 1)));
+            blocks.add(block);
+        }
+        wallet.updateCatenaLog(false);
+        assertEquals(20, wallet.getNumStatements());
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testAdoptSnapshot() throws Exception {
+        StoredBlock anchorBlock = blocks.get(4);
+        CatenaSnapshot exported = wallet.exportSnapshot(anchorBlock.getHeight(), store);
+        assertEquals(11, exported.size());
+        assertEquals(anchorBlock.getHeight(), exported.getHeight());
+        assertEquals(anchorBlock, exported.getAnchorBlock());
+        exported.writeTo(file);
+
+        CatenaSnapshot snapshot = CatenaSnapshot.readFrom(params, file);
+        assertEquals(exported.getDigest(), snapshot.getDigest());
+        snapshot.verify(chain.getChainAddress());
+
+        // A new wallet adopts the snapshot, without ever seeing the first 9 statements' TXs
+        ClientWallet newWallet = chain.newWatchingWallet();
+        newWallet.adoptSnapshot(snapshot);
+        assertTrue(newWallet.processRootOfTrustTxn(newWallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        newWallet.updateCatenaLog(false);
+        assertEquals(10, newWallet.getNumStatements());
+        assertEquals(anchorBlock.getHeader().getTimeSeconds(), newWallet.getEarliestKeyCreationTime());
+        assertEquals(blocks.get(2).getHeight(), newWallet.getStatementHeight(5));
+
+        // ...and then syncs from the snapshot's last block onward
+        StoredBlock block = anchorBlock;
+        for(int i = 10; i < 20; i += 2)
+            block = chain.mine(newWallet, block, chain.getTxs().subList(i, i + 2));
+        newWallet.updateCatenaLog(false);
+        assertEquals(20, newWallet.getNumStatements());
+        assertStatementsEqual(wallet.statementIterator(true), newWallet.statementIterator(true));
+
+        // Snapshots of snapshots are the same as the original ones
+        int height = blocks.get(7).getHeight();
+        assertEquals(wallet.exportSnapshot(height, store).getDigest(),
+                newWallet.exportSnapshot(height, store).getDigest());
+        try {
+            newWallet.exportSnapshot(blocks.get(3).getHeight(), store);
+            fail("exported below the adopted snapshot");
+        } catch(IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testReorgStopsAtSnapshot() throws Exception {
+        CatenaSnapshot snapshot = wallet.exportSnapshot(blocks.get(4).getHeight(), store);
+        snapshot.writeTo(file);
+        snapshot = CatenaSnapshot.readFrom(params, file);
+
+        ClientWallet newWallet = chain.newWatchingWallet();
+        newWallet.adoptSnapshot(snapshot);
+        assertTrue(newWallet.processRootOfTrustTxn(newWallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        StoredBlock b1 = chain.mine(newWallet, blocks.get(4), chain.getTxs().subList(10, 12));
+        newWallet.updateCatenaLog(false);
+        assertEquals(12, newWallet.getNumStatements());
+
+        // The block after the snapshot is reorged out, and its statements are withdrawn, but not the snapshot's
+        StoredBlock c1 = chain.mineSideChain(newWallet, blocks.get(4), ImmutableList.<Transaction>of());
+        StoredBlock c2 = chain.mineSideChain(newWallet, c1, ImmutableList.<Transaction>of());
+        // NOTE: Wallet::reorganize reverses the lists in place
+        newWallet.reorganize(blocks.get(4), Lists.newArrayList(b1), Lists.newArrayList(c2, c1));
+        newWallet.updateCatenaLog(false);
+        assertEquals(10, newWallet.getNumStatements());
+    }
+
+    @Test
+    public void testUncheckedSnapshotAfterRestart() throws Exception {
+        File dir = Files.createTempDirectory("catena").toFile();
+        try {
+            CatenaSnapshot snapshot = wallet.exportSnapshot(blocks.get(4).getHeight(), store);
+            new SnapshotFile(dir, "client").writeUnchecked(snapshot);
+
+            // A client restarted before the spot check passed (e.g., because it failed) must check it again
+            SnapshotFile restarted = new SnapshotFile(dir, "client");
+            assertTrue(restarted.exists());
+            assertFalse(restarted.isChecked());
+            assertEquals(snapshot.getDigest(), restarted.read(params).getDigest());
+
+            restarted.markChecked();
+            restarted = new SnapshotFile(dir, "client");
+            assertTrue(restarted.isChecked());
+            assertEquals(snapshot.getDigest(), restarted.read(params).getDigest());
+        } finally {
+            for(File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    @Test(expected = VerificationException.class)
+    public void testWrongChain() throws Exception {
+        CatenaSnapshot snapshot = wallet.exportSnapshot(blocks.get(4).getHeight(), store);
+        snapshot.verify(new ECKey().toAddress(params));
+    }
+
+    private static void assertStatementsEqual(Iterator<CatenaStatement> expected, Iterator<CatenaStatement> actual) {
+        while(expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            CatenaStatement e = expected.next(), a = actual.next();
+            assertEquals(e.getTxHash(), a.getTxHash());
+            assertTrue(e.hasSameData(a));
+        }
+        assertFalse(actual.hasNext());
+    }
+}
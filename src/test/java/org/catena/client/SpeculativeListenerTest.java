@@ -0,0 +1,110 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests that PENDING statements are delivered to speculative listeners and later confirmed or retracted.
+ */
+public class SpeculativeListenerTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+    private StoredBlock tip;
+
+    private final List<String> speculated = new CopyOnWriteArrayList<String>();
+    private final List<String> confirmed = new CopyOnWriteArrayList<String>();
+    private final List<String> retracted = new CopyOnWriteArrayList<String>();
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+
+        tip = chain.mineRoot(wallet);
+        tip = chain.mine(wallet, tip, chain.append("s1", "s2", "s3"));
+
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        wallet.updateCatenaLog(false);
+        assertEquals(3, wallet.getNumStatements());
+
+        wallet.addSpeculativeListener(new CatenaSpeculativeListener() {
+            @Override
+            public void onStatementSpeculated(CatenaStatement s) { speculated.add(s.getAsString()); }
+
+            @Override
+            public void onStatementConfirmed(CatenaStatement s) { confirmed.add(s.getAsString()); }
+
+            @Override
+            public void onStatementRetracted(CatenaStatement s) { retracted.add(s.getAsString()); }
+        });
+    }
+
+    @Test
+    public void testSpeculateThenConfirm() {
+        List<Transaction> txs = chain.append("p1", "p2");
+        for(Transaction tx : txs)
+            wallet.receivePending(chain.copy(tx), null);
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+
+        assertEquals(ImmutableList.of("p1", "p2"), speculated);
+        assertEquals(3, wallet.getNumStatements());
+
+        // Nothing new to say when nothing changed
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+        assertEquals(2, speculated.size());
+
+        tip = chain.mine(wallet, tip, txs.subList(0, 1));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of("p1"), confirmed);
+
+        tip = chain.mine(wallet, tip, txs.subList(1, 2));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of("p1", "p2"), confirmed);
+        assertEquals(2, speculated.size());
+        assertTrue(retracted.isEmpty());
+        assertEquals(5, wallet.getNumStatements());
+    }
+
+    @Test
+    public void testSpeculateThenRetract() {
+        List<Transaction> txs = chain.append("p1", "p2");
+        for(Transaction tx : txs)
+            wallet.receivePending(chain.copy(tx), null);
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+        assertEquals(ImmutableList.of("p1", "p2"), speculated);
+
+        // A block confirms p1 and a different statement than p2, which kills p2
+        Transaction other = chain.doubleSpend(4, "other".getBytes(), chain.getChainKey());
+        tip = chain.mine(wallet, tip, ImmutableList.of(txs.get(0), other));
+        wallet.updateCatenaLog(true);
+        Threading.waitForUserCode();
+
+        assertEquals(ImmutableList.of("p1"), confirmed);
+        assertEquals(ImmutableList.of("p2"), retracted);
+        assertEquals(5, wallet.getNumStatements());
+    }
+}
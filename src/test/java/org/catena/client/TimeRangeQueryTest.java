@@ -0,0 +1,132 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.AbstractBlockChain.NewBlockType;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Tests the height and time range queries over the statements in ClientWallet's BQ.
+ */
+public class TimeRangeQueryTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+    private StoredBlock rootBlock;
+    private List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+
+        rootBlock = chain.mineRoot(wallet);
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+
+        // Two statements per block
+        StoredBlock block = rootBlock;
+        for(int i = 0; i < 10; i++) {
+            block = chain.mine(wallet, block, chain.append("s" + (2*i), "s" + (2*i + 1)));
+            blocks.add(block);
+        }
+        wallet.updateCatenaLog(false);
+        assertEquals(20, wallet.getNumStatements());
+    }
+
+    @Test
+    public void testByHeight() {
+        for(int i = 1; i <= 20; i++)
+            assertEquals(blocks.get((i - 1) / 2).getHeight(), wallet.getStatementHeight(i));
+
+        int h = blocks.get(3).getHeight();
+        assertEquals(ImmutableList.of("s6", "s7", "s8", "s9"), asStrings(wallet.getStatementsByHeight(h, h + 1)));
+        assertEquals(20, wallet.getStatementsByHeight(0, Integer.MAX_VALUE).size());
+        assertTrue(wallet.getStatementsByHeight(h + 100, h + 200).isEmpty());
+        // The root-of-trust TX is not a statement
+        assertTrue(wallet.getStatementsByHeight(rootBlock.getHeight(), rootBlock.getHeight()).isEmpty());
+    }
+
+    @Test
+    public void testByTime() {
+        for(int i = 1; i <= 20; i++)
+            assertEquals(blocks.get((i - 1) / 2).getHeader().getTimeSeconds(), wallet.getStatementTimeSecs(i));
+
+        long t = blocks.get(5).getHeader().getTimeSeconds();
+        assertEquals(ImmutableList.of("s10", "s11"), asStrings(wallet.getStatementsByTime(t, t)));
+        assertEquals(10, wallet.getStatementsByTime(t, Long.MAX_VALUE).size());
+        assertEquals(20, wallet.getStatementsByTime(0, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void testReorgMovesStatements() throws Exception {
+        // A fork that includes the last two statements one block later than the original chain
+        StoredBlock split = blocks.get(8);
+        StoredBlock old = blocks.get(9);
+        List<Transaction> last = chain.getTxs().subList(18, 20);
+
+        StoredBlock c1 = chain.mineSideChain(wallet, split, ImmutableList.<Transaction>of());
+        StoredBlock c2 = chain.mineSideChain(wallet, c1, last);
+        // NOTE: Wallet::reorganize reverses the lists in place
+        wallet.reorganize(split, Lists.newArrayList(old), Lists.newArrayList(c2, c1));
+        wallet.updateCatenaLog(false);
+
+        assertEquals(20, wallet.getNumStatements());
+        assertEquals(c2.getHeight(), wallet.getStatementHeight(19));
+        assertEquals(c2.getHeight(), wallet.getStatementHeight(20));
+        assertEquals(c2.getHeader().getTimeSeconds(), wallet.getStatementTimeSecs(20));
+        assertTrue(wallet.getStatementsByHeight(old.getHeight(), old.getHeight()).isEmpty());
+        assertEquals(ImmutableList.of("s18", "s19"),
+                asStrings(wallet.getStatementsByHeight(c2.getHeight(), c2.getHeight())));
+    }
+
+    @Test
+    public void testSameHeightReorgUpdatesTime() throws Exception {
+        // A fork that includes the last two statements at the same height as the original chain, in a block with a
+        // different timestamp
+        StoredBlock split = blocks.get(8);
+        StoredBlock old = blocks.get(9);
+        List<Transaction> last = chain.getTxs().subList(18, 20);
+
+        Block header = split.getHeader().createNextBlock(chain.getChainAddress()).cloneAsHeader();
+        header.setTime(old.getHeader().getTimeSeconds() + 600);
+        StoredBlock c1 = new StoredBlock(header, old.getChainWork(), old.getHeight());
+        int offset = 0;
+        for(Transaction tx : last)
+            wallet.receiveFromBlock(chain.copy(tx), c1, NewBlockType.SIDE_CHAIN, offset++);
+        StoredBlock c2 = chain.mineSideChain(wallet, c1, ImmutableList.<Transaction>of());
+        wallet.reorganize(split, Lists.newArrayList(old), Lists.newArrayList(c2, c1));
+        wallet.updateCatenaLog(false);
+
+        assertEquals(20, wallet.getNumStatements());
+        assertEquals(old.getHeight(), wallet.getStatementHeight(20));
+        assertEquals(c1.getHeader().getTimeSeconds(), wallet.getStatementTimeSecs(19));
+        assertEquals(c1.getHeader().getTimeSeconds(), wallet.getStatementTimeSecs(20));
+        assertEquals(ImmutableList.of("s18", "s19"), asStrings(wallet.getStatementsByTime(
+                old.getHeader().getTimeSeconds() + 1, Long.MAX_VALUE)));
+    }
+
+    private static List<String> asStrings(List<CatenaStatement> stmts) {
+        List<String> strs = new ArrayList<String>();
+        for(CatenaStatement s : stmts)
+            strs.add(s.getAsString());
+        return strs;
+    }
+}
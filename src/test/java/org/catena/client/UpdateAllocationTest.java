@@ -0,0 +1,119 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.*;
+
+import java.lang.management.ManagementFactory;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.catena.common.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Measures how many bytes ClientWallet::updateCatenaLog allocates in the steady state, using the per-thread allocation
+ * counters of HotSpot-based JVMs. (Skipped on JVMs that don't have them.)
+ */
+public class UpdateAllocationTest extends SummarizedTest {
+    private static final Logger log = LoggerFactory.getLogger(UpdateAllocationTest.class);
+
+    private static final int NUM_STMTS = 100;
+    private static final int NUM_WARMUP = 20000;
+    private static final int NUM_ITERS = 10000;
+
+    /**
+     * An update with nothing new to do should allocate (close to) nothing. We leave some slack for the JIT not
+     * eliminating the odd iterator or the list wrappers bitcoinj returns from Transaction::getInputs().
+     */
+    private static final long MAX_BYTES_PER_IDLE_UPDATE = 256;
+
+    /**
+     * An update with one new statement mostly allocates for the ECDSA verification of its signature (around 260KB
+     * with bitcoinj 0.14), which we cannot avoid. This catches the update allocating a lot more than that, e.g., by
+     * copying BQ.
+     */
+    private static final long MAX_BYTES_PER_NEW_STATEMENT = 512 * 1024;
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private ClientWallet wallet;
+    private StoredBlock tip;
+
+    private com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        assumeTrue(mx instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean)mx;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        wallet = chain.newWatchingWallet();
+
+        tip = chain.mineRoot(wallet);
+        tip = chain.mine(wallet, tip, chain.append(TestUtils.generateStatements(NUM_STMTS)));
+
+        assertTrue(wallet.processRootOfTrustTxn(wallet.getTransaction(chain.getRootOfTrustTx().getHash())));
+        wallet.updateCatenaLog(false);
+        assertEquals(NUM_STMTS, wallet.getNumStatements());
+    }
+
+    @Test
+    public void testIdleUpdateDoesNotAllocate() {
+        for(int i = 0; i < NUM_WARMUP; i++) {
+            wallet.updateCatenaLog(false);
+        }
+
+        long before = allocatedBytes();
+        for(int i = 0; i < NUM_ITERS; i++) {
+            wallet.updateCatenaLog(false);
+        }
+        long perUpdate = (allocatedBytes() - before) / NUM_ITERS;
+
+        log.info("Idle updateCatenaLog() allocated {} bytes per call", perUpdate);
+        assertTrue("allocated " + perUpdate + " bytes per idle update", perUpdate <= MAX_BYTES_PER_IDLE_UPDATE);
+    }
+
+    @Test
+    public void testOneNewStatementPerBlock() {
+        for(int i = 0; i < NUM_WARMUP; i++) {
+            wallet.updateCatenaLog(false);
+        }
+
+        // One new block with one new statement at a time, like a client that is caught up would see. We only
+        // measure the update itself, not the wallet receiving the block.
+        int numBlocks = 50;
+        long total = 0;
+        for(int i = 0; i < numBlocks; i++) {
+            Transaction tx = chain.append(("new stmt #" + i).getBytes());
+            tip = chain.mine(wallet, tip, ImmutableList.of(tx));
+
+            long before = allocatedBytes();
+            wallet.updateCatenaLog(false);
+            total += allocatedBytes() - before;
+        }
+        assertEquals(NUM_STMTS + numBlocks, wallet.getNumStatements());
+
+        long perUpdate = total / numBlocks;
+        log.info("updateCatenaLog() with one new statement allocated {} bytes per call", perUpdate);
+        assertTrue("allocated " + perUpdate + " bytes per update with one new statement", 
+                perUpdate <= MAX_BYTES_PER_NEW_STATEMENT);
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,106 @@
+package org.catena.client;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.CatenaStatement;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Records a client wallet following a synthetic chain, with pending TXs announced by peers and a reorg, and checks that
+ * replaying the recording on a fresh wallet ends up with the same Catena log.
+ */
+public class WalletEventReplayTest extends SummarizedTest {
+
+    private static final int NUM_PEERS = 2;
+
+    private NetworkParameters params = RegTestParams.get();
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("catena-wallet-events-", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testReplayMatchesLiveWallet() throws Exception {
+        Context.propagate(new Context(params));
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, "testchain");
+        ClientWallet wallet = chain.newWatchingWallet();
+        wallet.setRebootingHint(false);
+
+        WalletEventRecorder recorder = new WalletEventRecorder(file, wallet, false);
+        wallet.setEventRecorder(recorder);
+        CatenaWalletListener listener = new CatenaWalletListener(wallet);
+        wallet.addChangeEventListener(Threading.SAME_THREAD, listener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, listener);
+
+        StoredBlock prev = null, tip = chain.mineRoot(wallet);
+        for(int i = 0; i < 5; i++) {
+            Transaction tx = chain.append(("statement #" + i).getBytes());
+            wallet.receivePending(chain.copy(tx), null);
+            for(int p = 0; p < NUM_PEERS; p++)
+                Context.get().getConfidenceTable().seen(tx.getHash(),
+                        new PeerAddress(params, InetAddress.getLoopbackAddress(), 10000 + p));
+            prev = tip;
+            tip = chain.mine(wallet, prev, ImmutableList.of(tx));
+        }
+
+        // A fork moves the last statement one block later
+        StoredBlock fork1 = chain.mineSideChain(wallet, prev, ImmutableList.<Transaction>of());
+        StoredBlock fork2 = chain.mineSideChain(wallet, fork1, ImmutableList.of(chain.getTip()));
+        wallet.reorganize(prev, Lists.newArrayList(tip), Lists.newArrayList(fork2, fork1));
+        chain.mine(wallet, fork2, ImmutableList.of(chain.append("after the fork".getBytes())));
+
+        wallet.setEventRecorder(null);
+        recorder.close();
+        assertEquals(6, wallet.getNumStatements());
+        assertEquals(1, wallet.getStats().getNumReorgs());
+
+        // Replaying twice with the same replayer gives the same log each time
+        WalletEventReplayer replayer = new WalletEventReplayer(file);
+        for(int r = 0; r < 2; r++) {
+            ClientWallet replayed = replayer.newWallet();
+            WalletEventReplayer.Result result = replayer.replay(replayed);
+
+            assertEquals(recorder.getNumEvents(), result.getNumEvents());
+            assertEquals(statementTxids(wallet), statementTxids(replayed));
+            assertEquals(wallet.getStats().getNumReorgs(), replayed.getStats().getNumReorgs());
+            for(Transaction tx : chain.getTxs().subList(0, 5))
+                assertEquals(NUM_PEERS, replayed.getContext().getConfidenceTable().numBroadcastPeers(tx.getHash()));
+        }
+    }
+
+    private static List<Sha256Hash> statementTxids(ClientWallet wallet) {
+        List<Sha256Hash> txids = new ArrayList<Sha256Hash>();
+        Iterator<CatenaStatement> it = wallet.statementIterator(true);
+        while(it.hasNext())
+            txids.add(it.next().getTxHash());
+        return txids;
+    }
+}
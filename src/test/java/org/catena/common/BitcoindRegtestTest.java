@@ -9,10 +9,14 @@ import java.lang.ProcessBuilder.Redirect;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
 
+import org.bitcoinj.core.Coin;
 import org.bitcoinj.core.DumpedPrivateKey;
 import org.bitcoinj.core.ECKey;
 import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.kits.WalletAppKit;
 import org.bitcoinj.params.RegTestParams;
 import org.catena.common.Utils;
 import org.junit.AfterClass;
@@ -29,6 +33,9 @@ import org.slf4j.LoggerFactory;
  * 
  * Maven seems to only run a test after the previous one finishes, so there should 
  * never be multiple bitcoind instances at the same time. 
+ * 
+ * If the catena.simulatedBitcoind system property is set (e.g., ./test.sh -Dcatena.simulatedBitcoind), the tests
+ * run against an in-process SimulatedBitcoind instead, which needs no bitcoind and is a lot faster.
  */
 public abstract class BitcoindRegtestTest extends SummarizedTest
 {
@@ -45,6 +52,9 @@ public abstract class BitcoindRegtestTest extends SummarizedTest
     
     protected static NetworkParameters params = RegTestParams.get();
     
+    protected static final boolean isSimulated = System.getProperty("catena.simulatedBitcoind") != null;
+    protected static SimulatedBitcoind simulatedBitcoind;
+    
     /**
      * Starts up a bitcoind regtest instance with data stored in a /tmp directory.
      * Initializes 101 blocks to make the 1st coinbase TX spendable.
@@ -55,6 +65,14 @@ public abstract class BitcoindRegtestTest extends SummarizedTest
     @BeforeClass
     public static void beforeClass() throws IOException, InterruptedException
     {
+        if(isSimulated) {
+            log.debug("Setting up regtest environment: Starting simulated bitcoind...");
+            simulatedBitcoind = new SimulatedBitcoind(params);
+            simulatedBitcoind.startAsync().awaitRunning();
+            simulatedBitcoind.generate(101);
+            return;
+        }
+        
         log.debug("Setting up regtest environment: Starting bitcoind...");
         //log.debug("Current working directory: " + Utils.getCurrentDirectory());
         
@@ -73,6 +91,13 @@ public abstract class BitcoindRegtestTest extends SummarizedTest
     @AfterClass
     public static void afterClass() throws IOException, InterruptedException
     {
+        if(isSimulated) {
+            log.debug("Tearing down regtest environment: Stopping simulated bitcoind...");
+            simulatedBitcoind.stopAsync().awaitTerminated();
+            simulatedBitcoind = null;
+            return;
+        }
+        
         log.debug("Tearing down regtest environment: Killing bitcoind...");
         killBitcoind(bitcoindDataDir);
     }
@@ -129,6 +154,14 @@ public abstract class BitcoindRegtestTest extends SummarizedTest
      * @throws IOException
      */
     public static ECKey generateRegtestFunds() throws InterruptedException, IOException {
+        if(isSimulated) {
+            // Same as get-catena-funds.sh
+            ECKey key = new ECKey();
+            simulatedBitcoind.sendToAddress(key.toAddress(params), Coin.COIN.multiply(25));
+            simulatedBitcoind.generate(1);
+            return key;
+        }
+        
         log.debug("Getting Catena funds from regtest mode...");
         Process cmd = Runtime.getRuntime().exec(GET_CATENA_FUNDS_CMD);
         boolean success = cmd.waitFor() == 0;
@@ -170,6 +203,34 @@ public abstract class BitcoindRegtestTest extends SummarizedTest
      */
     public void waitForBlock() throws IOException, InterruptedException
     {
-        CatenaUtils.generateBlockRegtest();
+        if(isSimulated)
+            simulatedBitcoind.generate(1);
+        else
+            CatenaUtils.generateBlockRegtest();
+    }
+
+    /**
+     * Generates a block with the specified TX in it, which was just broadcast to bitcoind.
+     * 
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void waitForBlock(Transaction tx) throws IOException, InterruptedException
+    {
+        // bitcoind gets the TX asynchronously, which only matters in-process: shelling out to generate takes longer
+        if(isSimulated)
+            assertTrue("bitcoind should have received TX " + tx.getHash() + " by now", 
+                    simulatedBitcoind.awaitTransaction(tx.getHash(), 10, TimeUnit.SECONDS));
+        waitForBlock();
+    }
+    
+    /**
+     * Makes the specified Catena server or client connect to our bitcoind instance. Must be called before it is started.
+     */
+    public static void connectToRegtest(WalletAppKit kit) {
+        if(isSimulated)
+            simulatedBitcoind.connect(kit);
+        else
+            kit.connectToLocalHost();
     }
 }
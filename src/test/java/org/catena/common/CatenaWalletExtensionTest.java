@@ -0,0 +1,82 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.wallet.Wallet;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the root-of-trust block survives wallet restarts and config files, and that wallets saved before we kept
+ * track of it can still be read.
+ */
+public class CatenaWalletExtensionTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private Wallet wallet;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        wallet = new Wallet(params);
+    }
+
+    @Test
+    public void testRootOfTrustBlockRoundTrip() {
+        CatenaWalletExtension ext = new CatenaWalletExtension();
+        Sha256Hash txid = Sha256Hash.of("txid".getBytes());
+        Sha256Hash blockHash = Sha256Hash.of("block".getBytes());
+        ext.setRootOfTrustTxid(txid);
+        ext.setRootOfTrustBlock(1234, blockHash, 1500000000L);
+
+        CatenaWalletExtension copy = new CatenaWalletExtension();
+        copy.deserializeWalletExtension(wallet, ext.serializeWalletExtension());
+
+        assertEquals(txid, copy.getRootOfTrustTxid());
+        assertTrue(copy.hasRootOfTrustBlock());
+        assertEquals(1234, copy.getRootOfTrustBlockHeight());
+        assertEquals(blockHash, copy.getRootOfTrustBlockHash());
+        assertEquals(1500000000L, copy.getRootOfTrustBlockTimeSecs());
+    }
+
+    @Test
+    public void testOldFormat() {
+        CatenaWalletExtension ext = new CatenaWalletExtension();
+        Sha256Hash txid = Sha256Hash.of("txid".getBytes());
+        ext.setRootOfTrustTxid(txid);
+
+        // Cut off the root-of-trust block, as in wallets saved by older versions
+        byte[] data = ext.serializeWalletExtension();
+        byte[] oldData = Arrays.copyOf(data, data.length - (4 + Sha256Hash.LENGTH + 8));
+
+        CatenaWalletExtension copy = new CatenaWalletExtension();
+        copy.deserializeWalletExtension(wallet, oldData);
+        assertEquals(txid, copy.getRootOfTrustTxid());
+        assertFalse(copy.hasRootOfTrustBlock());
+
+        // A new wallet without a root-of-trust block yet
+        copy = new CatenaWalletExtension();
+        copy.deserializeWalletExtension(wallet, data);
+        assertFalse(copy.hasRootOfTrustBlock());
+    }
+
+    @Test
+    public void testCheckpointEncoding() throws Exception {
+        StoredBlock genesis = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                params.getGenesisBlock().getWork(), 0);
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(null).cloneAsHeader());
+
+        StoredBlock decoded = CatenaUtils.decodeCheckpoint(params, CatenaUtils.encodeCheckpoint(next));
+        assertEquals(next, decoded);
+        assertEquals(1, decoded.getHeight());
+        assertEquals(next.getChainWork(), decoded.getChainWork());
+        assertEquals(genesis.getHeader().getHash(), decoded.getHeader().getPrevBlockHash());
+    }
+}
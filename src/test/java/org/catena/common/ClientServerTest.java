@@ -124,7 +124,7 @@ public class ClientServerTest extends BitcoindRegtestTest {
         catenaServer.setBlockingStartup(serverBlockingDownload);
         
         if(params == RegTestParams.get()) {
-            catenaServer.connectToLocalHost();
+            connectToRegtest(catenaServer);
         }
         
         // Download the block chain and wait until it's done.
@@ -162,7 +162,7 @@ public class ClientServerTest extends BitcoindRegtestTest {
         rootOfTrustTxn = catenaServer.appendStatement(chainName.getBytes());
         
         // Put the statement in a block
-        waitForBlock();
+        waitForBlock(rootOfTrustTxn);
         
         return rootOfTrustTxn.getHash();
     }
@@ -200,7 +200,7 @@ public class ClientServerTest extends BitcoindRegtestTest {
     
     protected void startCatenaClient(boolean start) {
         if(params == RegTestParams.get()) {
-            catenaClient.connectToLocalHost();
+            connectToRegtest(catenaClient);
         }
         
         if(start) {
@@ -240,7 +240,7 @@ public class ClientServerTest extends BitcoindRegtestTest {
         Transaction tx = catenaServer.appendStatement(stmt);
         log.info("Issued statement (hex): " + Utils.toHex(stmt) + " (tx " + tx.getHashAsString().substring(0, 6) + "..." + 
                 ", prev " + tx.getInput(0).getConnectedTransaction().getHashAsString().substring(0, 6) + "...)");
-        waitForBlock();
+        waitForBlock(tx);
     }
     
     protected void issueStatements(String stmts[], int startInc, int endExcl) throws InsufficientMoneyException, IOException, InterruptedException {
@@ -250,7 +250,7 @@ public class ClientServerTest extends BitcoindRegtestTest {
             Transaction tx = catenaServer.appendStatement(s.getBytes());
             log.info("Issued statement: " + s + " (tx " + tx.getHashAsString().substring(0, 6) + "..." + 
                     ", prev " + tx.getInput(0).getConnectedTransaction().getHashAsString().substring(0, 6) + "...)");
-            waitForBlock();
+            waitForBlock(tx);
         }
     }
     
@@ -0,0 +1,73 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.Test;
+
+/**
+ * Appends statements to a server's wallet from several threads at once (without a network), which must chain them
+ * one after the other rather than have them double spend the same UTXO.
+ */
+public class ConcurrentAppendTest extends SummarizedTest {
+
+    private static final int NUM_THREADS = 4;
+    private static final int NUM_APPENDS = 25;
+
+    @Test
+    public void testConcurrentAppendsAreChained() throws Exception {
+        NetworkParameters params = RegTestParams.get();
+        final Context context = new Context(params);
+        Context.propagate(context);
+
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, new ECKey(), "testchain");
+        chain.append("a", "b", "c");
+        final SimpleWallet wallet = new SimpleWallet(params);
+        wallet.importKey(chain.getChainKey());
+        chain.watch(wallet);
+        chain.load(wallet, chain.genesis(), 1);
+        assertEquals(3, wallet.getNumStatements());
+
+        final Set<TransactionOutPoint> spent = Collections.synchronizedSet(new HashSet<TransactionOutPoint>());
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[NUM_THREADS];
+        for(int t = 0; t < NUM_THREADS; t++) {
+            final int id = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Context.propagate(context);
+                    try {
+                        start.await();
+                        for(int i = 0; i < NUM_APPENDS; i++) {
+                            Transaction tx = wallet.appendStatement(("thread " + id + " #" + i).getBytes());
+                            spent.add(tx.getInput(0).getOutpoint());
+                        }
+                    } catch(Throwable e) {
+                        error.compareAndSet(null, e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        start.countDown();
+        for(Thread t : threads)
+            t.join();
+
+        assertNull(error.get());
+        assertEquals(NUM_THREADS * NUM_APPENDS, spent.size());
+        assertEquals(3 + NUM_THREADS * NUM_APPENDS, wallet.getNumStatements());
+    }
+}
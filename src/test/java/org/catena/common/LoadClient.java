@@ -0,0 +1,262 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.params.RegTestParams;
+import org.catena.client.CatenaClient;
+import org.catena.client.CatenaStatementListener;
+import org.catena.client.ClientWallet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Service;
+
+/**
+ * One of LoadHarness's Catena clients, which measures how long it took to sync, how long each statement took from
+ * being issued by the server to being delivered to it (the server puts the wall-clock time in every statement, see
+ * encode()) and, once the load is over, whether it ended up with the server's chain.
+ *
+ * LoadHarness runs LoadClients in its own JVM or, to measure their CPU and heap use on their own, one per JVM by
+ * running main().
+ */
+public class LoadClient {
+    private static final Logger log = LoggerFactory.getLogger(LoadClient.class);
+
+    /**
+     * What a forked LoadClient prefixes the lines it prints for LoadHarness with (its other output is just logs).
+     */
+    static final String OUTPUT_PREFIX = "LOADCLIENT ";
+
+    private static final String STATEMENT_PREFIX = "load ";
+
+    private final int id;
+    private final File dir;
+    private final CatenaClient client;
+
+    private volatile long startNanos, syncNanos;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram sharedLatency;
+    @GuardedBy("this") private final BitSet delivered = new BitSet();
+    private final AtomicInteger numAppended = new AtomicInteger(), numWithdrawn = new AtomicInteger();
+
+    private int numStatements = -1;
+    private int firstDivergence = -1;
+
+    /**
+     * @param sharedLatency     a histogram to also record delivery latencies in (e.g., one for all the clients in
+     *                          this JVM), or null
+     */
+    public LoadClient(NetworkParameters params, int id, Sha256Hash rootOfTrustTxid, Address chainAddr,
+            LatencyHistogram sharedLatency) throws IOException {
+        this.id = id;
+        this.dir = Files.createTempDirectory("load-catena-client-").toFile();
+        this.client = new CatenaClient(params, dir, rootOfTrustTxid, chainAddr, null);
+        this.sharedLatency = sharedLatency;
+    }
+
+    /**
+     * The statement LoadHarness issues as the seq-th one.
+     */
+    public static byte[] encode(int seq, long issuedMillis) {
+        return (STATEMENT_PREFIX + seq + " " + issuedMillis).getBytes();
+    }
+
+    public CatenaClient getClient() {
+        return client;
+    }
+
+    /**
+     * Starts syncing from the specified peer, without waiting for it to finish (see awaitRunning()).
+     */
+    public void startAsync(PeerAddress peer) {
+        client.setPeerNodes(peer);
+        client.addListener(new Service.Listener() {
+            @Override
+            public void running() {
+                syncNanos = System.nanoTime() - startNanos;
+                ClientWallet wallet = client.getCatenaWallet();
+                wallet.addStatementListener(new CatenaStatementListener() {
+                    @Override
+                    public void onStatementAppended(CatenaStatement s) {
+                        numAppended.incrementAndGet();
+                        onDelivered(s);
+                    }
+
+                    @Override
+                    public void onStatementWithdrawn(CatenaStatement s) {
+                        numWithdrawn.incrementAndGet();
+                    }
+                });
+            }
+        }, MoreExecutors.directExecutor());
+
+        startNanos = System.nanoTime();
+        client.startAsync();
+    }
+
+    public void awaitRunning() {
+        client.awaitRunning();
+    }
+
+    private void onDelivered(CatenaStatement s) {
+        String data = s.getAsString();
+        if(data.startsWith(STATEMENT_PREFIX) == false)
+            return;
+
+        List<String> parts = Splitter.on(' ').splitToList(data.substring(STATEMENT_PREFIX.length()));
+        int seq = Integer.parseInt(parts.get(0));
+        long issuedMillis = Long.parseLong(parts.get(1));
+        synchronized(this) {
+            // Statements re-appended after a reorg were already delivered once
+            if(delivered.get(seq))
+                return;
+            delivered.set(seq);
+        }
+
+        long nanos = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - issuedMillis);
+        latency.record(nanos);
+        if(sharedLatency != null)
+            sharedLatency.record(nanos);
+    }
+
+    /**
+     * Waits until we have as many statements as the server (or the timeout expires), and then checks that they are
+     * the server's statements.
+     *
+     * @return true if we have the server's chain
+     */
+    public boolean awaitChain(List<Sha256Hash> expected, long timeout, TimeUnit unit) throws InterruptedException {
+        ClientWallet wallet = client.getCatenaWallet();
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(wallet.getNumStatements() < expected.size() && System.nanoTime() < deadline)
+            Thread.sleep(20);
+
+        List<Sha256Hash> actual = new ArrayList<Sha256Hash>();
+        Iterator<CatenaStatement> it = wallet.statementIterator(true);
+        while(it.hasNext())
+            actual.add(it.next().getTxHash());
+
+        numStatements = actual.size();
+        firstDivergence = -1;
+        for(int i = 0; i < Math.max(expected.size(), actual.size()) && firstDivergence == -1; i++) {
+            if(i >= expected.size() || i >= actual.size() || expected.get(i).equals(actual.get(i)) == false)
+                firstDivergence = i;
+        }
+
+        if(firstDivergence != -1)
+            log.warn("Client #{} diverged from the server at statement #{} ({} statements vs. {})", id,
+                    firstDivergence + 1, actual.size(), expected.size());
+        return firstDivergence == -1;
+    }
+
+    public void stop() {
+        client.stopAsync();
+        client.awaitTerminated();
+
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Our measurements. The CPU and heap use are only ours if we are the only client in this JVM, so they are only
+     * included if includeJvm is true.
+     */
+    public LoadReport report(boolean includeJvm) {
+        LoadReport r = new LoadReport()
+            .put("id", id)
+            .put("syncMillis", TimeUnit.NANOSECONDS.toMillis(syncNanos))
+            .put("appended", numAppended.get())
+            .put("withdrawn", numWithdrawn.get())
+            .put("statements", numStatements)
+            .put("diverged", firstDivergence != -1)
+            .put("firstDivergence", firstDivergence)
+            .put("deliveryLatency", LoadReport.of(latency.snapshot()));
+        if(includeJvm) {
+            r.put("cpuMillis", processCpuMillis());
+            r.put("heapBytes", heapUsedAfterGc());
+        }
+        return r;
+    }
+
+    /**
+     * The CPU time this JVM used so far, or -1 if the JVM does not tell.
+     */
+    static long processCpuMillis() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if(os instanceof com.sun.management.OperatingSystemMXBean)
+            return TimeUnit.NANOSECONDS.toMillis(((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime());
+        else
+            return -1;
+    }
+
+    /**
+     * Roughly how much of the heap is live (i.e., used right after a GC).
+     */
+    static long heapUsedAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Runs a LoadClient in its own JVM, for LoadHarness. Prints a line once the client is synced, then reads the
+     * server's statement TXIDs from a line on stdin once the load is over, and prints its report.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 5) {
+            System.err.println("Usage: <id> <peer-port> <root-of-trust-txid> <chain-addr> <timeout-secs>");
+            System.exit(1);
+            return;
+        }
+
+        NetworkParameters params = RegTestParams.get();
+        int id = Integer.parseInt(args[0]);
+        PeerAddress peer = new PeerAddress(params, InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+        LoadClient lc = new LoadClient(params, id, Sha256Hash.wrap(args[2]), Address.fromBase58(params, args[3]), null);
+        long timeoutSecs = Long.parseLong(args[4]);
+
+        lc.startAsync(peer);
+        lc.awaitRunning();
+        System.out.println(OUTPUT_PREFIX + "running");
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        String line = in.readLine();
+        checkState(line != null, "LoadHarness went away");
+        List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+        for(String txid : Splitter.on(' ').omitEmptyStrings().split(line))
+            expected.add(Sha256Hash.wrap(txid));
+
+        lc.awaitChain(expected, timeoutSecs, TimeUnit.SECONDS);
+        LoadReport r = lc.report(true);
+        lc.stop();
+        System.out.println(OUTPUT_PREFIX + "report " + r);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,434 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.InsufficientMoneyException;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionConfidence.ConfidenceType;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.params.RegTestParams;
+import org.catena.server.CatenaServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Load-tests one Catena server and many clients on a SimulatedBitcoind, to see how the clients' resource use scales
+ * with their number and with the length of the chain. The server first appends 'preload' statements, which the clients
+ * sync when they start, and then 'statements' more at 'rate' statements per second, while a block is mined every
+ * 'blockMillis' and, every 'reorgEvery' blocks, the last 'reorgDepth' blocks are replaced by a longer branch (which
+ * withdraws their statements and appends them again). Once the load is over, every client must have the server's
+ * chain.
+ *
+ * The report is a JSON object with the configuration, the versions, the server's throughput and, for every client, its
+ * sync time, statement delivery latency percentiles and whether it diverged from the server (see LoadClient). Clients
+ * run in the harness's JVM by default, in which case their CPU and heap use is only known in total (and the heap per
+ * client is estimated from it); with forked=true, each one runs in its own JVM and reports its own.
+ *
+ * Run with load.sh, e.g.: ./load.sh clients=100 preload=10000 statements=1000 rate=50 reorgEvery=5 report=out.json
+ */
+public class LoadHarness {
+    private static final Logger log = LoggerFactory.getLogger(LoadHarness.class);
+
+    private final NetworkParameters params = RegTestParams.get();
+
+    private int numClients = 4;
+    private boolean forked = false;
+    private String jvmArgs = "";
+    private int numPreload = 0;
+    private int numStatements = 100;
+    private double rate = 0;
+    private long blockMillis = 500;
+    private int reorgEvery = 0;
+    private int reorgDepth = 1;
+    private long timeoutSecs = 60;
+
+    private SimulatedBitcoind bitcoind;
+    private CatenaServer server;
+    private Address chainAddr;
+    private Transaction lastTx;
+    private int seq = 0;
+    private int numReorgs = 0;
+
+    public LoadHarness setNumClients(int numClients) { this.numClients = numClients; return this; }
+    public LoadHarness setForked(boolean forked) { this.forked = forked; return this; }
+    /**
+     * The options of the forked clients' JVMs, separated by spaces (e.g., "-Xmx256m -XX:+UseSerialGC").
+     */
+    public LoadHarness setJvmArgs(String jvmArgs) { this.jvmArgs = jvmArgs; return this; }
+    public LoadHarness setNumPreload(int numPreload) { this.numPreload = numPreload; return this; }
+    public LoadHarness setNumStatements(int numStatements) { this.numStatements = numStatements; return this; }
+    /**
+     * Statements per second, or 0 for as fast as the server can append them.
+     */
+    public LoadHarness setRate(double rate) { this.rate = rate; return this; }
+    public LoadHarness setBlockMillis(long blockMillis) { this.blockMillis = blockMillis; return this; }
+    /**
+     * Blocks between reorgs, or 0 for none.
+     */
+    public LoadHarness setReorgEvery(int reorgEvery) { this.reorgEvery = reorgEvery; return this; }
+    public LoadHarness setReorgDepth(int reorgDepth) { this.reorgDepth = reorgDepth; return this; }
+    public LoadHarness setTimeoutSecs(long timeoutSecs) { this.timeoutSecs = timeoutSecs; return this; }
+
+    /**
+     * Sets the option with the specified name (e.g., from a "clients=100" command line argument).
+     */
+    public LoadHarness set(String name, String value) {
+        switch(name) {
+            case "clients": return setNumClients(Integer.parseInt(value));
+            case "forked": return setForked(Boolean.parseBoolean(value));
+            case "jvmArgs": return setJvmArgs(value);
+            case "preload": return setNumPreload(Integer.parseInt(value));
+            case "statements": return setNumStatements(Integer.parseInt(value));
+            case "rate": return setRate(Double.parseDouble(value));
+            case "blockMillis": return setBlockMillis(Long.parseLong(value));
+            case "reorgEvery": return setReorgEvery(Integer.parseInt(value));
+            case "reorgDepth": return setReorgDepth(Integer.parseInt(value));
+            case "timeoutSecs": return setTimeoutSecs(Long.parseLong(value));
+            default: throw new IllegalArgumentException("Unknown option: " + name);
+        }
+    }
+
+    /**
+     * A LoadClient in a JVM of its own, and the lines it printed for us.
+     */
+    private static class ForkedClient {
+        final Process proc;
+        final Writer stdin;
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+        ForkedClient(Process proc) {
+            this.proc = proc;
+            this.stdin = new OutputStreamWriter(proc.getOutputStream(), StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the rest of the next line that starts with the specified word.
+         */
+        String await(String word, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            String line;
+            while((line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+                if(line.startsWith(word))
+                    return line.substring(word.length()).trim();
+            }
+            throw new IllegalStateException("Forked client did not print '" + word + "' in time");
+        }
+    }
+
+    public LoadReport run() throws Exception {
+        checkArgument(numClients > 0 && reorgDepth > 0);
+
+        LoadReport config = new LoadReport()
+            .put("clients", numClients)
+            .put("forked", forked)
+            .put("jvmArgs", jvmArgs)
+            .put("preload", numPreload)
+            .put("statements", numStatements)
+            .put("rate", rate)
+            .put("blockMillis", blockMillis)
+            .put("reorgEvery", reorgEvery)
+            .put("reorgDepth", reorgDepth)
+            .put("timeoutSecs", timeoutSecs);
+        LoadReport report = new LoadReport()
+            .put("catena", System.getProperty("catena.version", "unknown"))
+            .put("bitcoinj", VersionMessage.BITCOINJ_VERSION)
+            .put("java", System.getProperty("java.version"))
+            .put("processors", Runtime.getRuntime().availableProcessors())
+            .put("config", config);
+
+        bitcoind = new SimulatedBitcoind(params);
+        bitcoind.startAsync().awaitRunning();
+        List<LoadClient> clients = new ArrayList<LoadClient>();
+        List<ForkedClient> forkedClients = new ArrayList<ForkedClient>();
+        ExecutorService readers = Executors.newCachedThreadPool(Utils.daemonThreads("load-client-output-%d"));
+        try {
+            Sha256Hash rootOfTrustTxid = startServer();
+
+            // Preload the chain the clients will sync
+            for(int i = 0; i < numPreload; i++)
+                appendStatement();
+            mineAll();
+
+            long cpuBefore = LoadClient.processCpuMillis();
+            long heapBefore = LoadClient.heapUsedAfterGc();
+
+            LatencyHistogram latency = new LatencyHistogram();
+            log.info("Starting {} {} clients...", numClients, forked ? "forked" : "in-process");
+            for(int i = 0; i < numClients; i++) {
+                if(forked) {
+                    forkedClients.add(forkClient(i, rootOfTrustTxid, readers));
+                } else {
+                    LoadClient lc = new LoadClient(params, i, rootOfTrustTxid, chainAddr, latency);
+                    lc.startAsync(bitcoind.getPeerAddress());
+                    clients.add(lc);
+                }
+            }
+            for(LoadClient lc : clients)
+                lc.awaitRunning();
+            for(ForkedClient fc : forkedClients)
+                fc.await("running", timeoutSecs, TimeUnit.SECONDS);
+            long heapClients = LoadClient.heapUsedAfterGc();
+
+            // The load itself
+            log.info("Issuing {} statements...", numStatements);
+            int startHeight = bitcoind.getBestHeight();
+            long startNanos = System.nanoTime();
+            runWorkload(startNanos);
+            long workloadNanos = System.nanoTime() - startNanos;
+            mineAll();
+
+            List<Sha256Hash> expected = new ArrayList<Sha256Hash>();
+            Iterator<CatenaStatement> it = server.getCatenaWallet().statementIterator(true);
+            while(it.hasNext())
+                expected.add(it.next().getTxHash());
+            checkState(expected.size() == numPreload + numStatements,
+                    "server has " + expected.size() + " statements rather than " + (numPreload + numStatements));
+
+            // Check every client got the server's chain
+            List<Object> clientReports = new ArrayList<Object>();
+            int numDiverged = 0;
+            long maxSyncMillis = 0;
+            double worstP99Millis = 0;
+            if(forked) {
+                String line = Joiner.on(' ').join(expected) + "\n";
+                for(ForkedClient fc : forkedClients) {
+                    fc.stdin.write(line);
+                    fc.stdin.flush();
+                }
+                for(ForkedClient fc : forkedClients) {
+                    String json = fc.await("report", timeoutSecs, TimeUnit.SECONDS);
+                    clientReports.add(LoadReport.raw(json));
+                    // Good enough to summarize our own reports without a JSON parser
+                    numDiverged += json.contains("\"diverged\":true") ? 1 : 0;
+                    maxSyncMillis = Math.max(maxSyncMillis, (long)jsonNumber(json, "syncMillis"));
+                    worstP99Millis = Math.max(worstP99Millis, jsonNumber(json, "p99Millis"));
+                }
+            } else {
+                for(LoadClient lc : clients) {
+                    boolean ok = lc.awaitChain(expected, timeoutSecs, TimeUnit.SECONDS);
+                    LoadReport r = lc.report(false);
+                    clientReports.add(r);
+                    numDiverged += ok ? 0 : 1;
+                    maxSyncMillis = Math.max(maxSyncMillis, (Long)r.get("syncMillis"));
+                    worstP99Millis = Math.max(worstP99Millis,
+                            (Double)((LoadReport)r.get("deliveryLatency")).get("p99Millis"));
+                }
+            }
+
+            double workloadSecs = workloadNanos / 1e9;
+            report.put("server", new LoadReport()
+                .put("statements", expected.size())
+                .put("workloadMillis", TimeUnit.NANOSECONDS.toMillis(workloadNanos))
+                .put("appendsPerSec", workloadSecs > 0 ? numStatements / workloadSecs : 0.0)
+                .put("blocks", bitcoind.getBestHeight() - startHeight)
+                .put("reorgs", numReorgs));
+            LoadReport jvm = new LoadReport()
+                .put("cpuMillis", LoadClient.processCpuMillis() - cpuBefore)
+                .put("heapBytes", LoadClient.heapUsedAfterGc())
+                .put("threads", Thread.activeCount());
+            if(forked == false) {
+                jvm.put("heapPerClientBytes", (heapClients - heapBefore) / numClients);
+                jvm.put("deliveryLatency", LoadReport.of(latency.snapshot()));
+            }
+            report.put("harnessJvm", jvm);
+            report.put("summary", new LoadReport()
+                .put("diverged", numDiverged)
+                .put("maxSyncMillis", maxSyncMillis)
+                .put("worstP99Millis", worstP99Millis));
+            report.put("clients", clientReports);
+            return report;
+        } finally {
+            for(LoadClient lc : clients)
+                lc.stop();
+            for(ForkedClient fc : forkedClients)
+                fc.proc.destroy();
+            if(server != null)
+                server.stopAsync().awaitTerminated();
+            bitcoind.stopAsync().awaitTerminated();
+            readers.shutdownNow();
+        }
+    }
+
+    /**
+     * Starts the server with a new chain, and returns its root-of-trust TXID.
+     */
+    private Sha256Hash startServer() throws IOException, InsufficientMoneyException, InterruptedException {
+        // Same as BitcoindRegtestTest::generateRegtestFunds
+        bitcoind.generate(params.getSpendableCoinbaseDepth());
+        ECKey key = new ECKey();
+        chainAddr = key.toAddress(params);
+        bitcoind.sendToAddress(chainAddr, Coin.COIN.multiply(25));
+        bitcoind.generate(1);
+
+        server = new CatenaServer(params, Files.createTempDirectory("load-catena-server-").toFile(), key, null);
+        bitcoind.connect(server);
+        server.startAsync();
+        server.awaitRunning();
+
+        lastTx = server.appendStatement("load test chain".getBytes());
+        mineAll();
+        return lastTx.getHash();
+    }
+
+    private void appendStatement() throws InsufficientMoneyException {
+        lastTx = server.appendStatement(LoadClient.encode(seq++, System.currentTimeMillis()));
+    }
+
+    private void runWorkload(long startNanos) throws InsufficientMoneyException, InterruptedException {
+        int nextReorgHeight = bitcoind.getBestHeight() + reorgEvery;
+        bitcoind.startMining(blockMillis, TimeUnit.MILLISECONDS);
+        try {
+            for(int i = 0; i < numStatements; i++) {
+                if(rate > 0) {
+                    long due = startNanos + (long)(i * 1e9 / rate);
+                    long wait = due - System.nanoTime();
+                    if(wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                appendStatement();
+
+                if(reorgEvery > 0 && bitcoind.getBestHeight() >= nextReorgHeight) {
+                    reorg();
+                    nextReorgHeight = bitcoind.getBestHeight() + reorgEvery;
+                }
+            }
+        } finally {
+            bitcoind.stopMining();
+        }
+    }
+
+    /**
+     * Replaces the last reorgDepth blocks with a branch that is one block longer, like btc-scripts/create-forks.sh.
+     */
+    private void reorg() {
+        int height = bitcoind.getBestHeight();
+        int depth = Math.min(reorgDepth, height - 1);
+        log.info("Reorganizing the last {} blocks at height {}", depth, height);
+        bitcoind.invalidateBlock(bitcoind.getBlockHash(height - depth + 1));
+        bitcoind.generate(depth + 1);
+        numReorgs++;
+    }
+
+    /**
+     * Mines blocks until the last statement we appended is confirmed.
+     */
+    private void mineAll() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSecs);
+        while(lastTx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING) {
+            checkState(System.nanoTime() < deadline, "last statement was not confirmed in time: " + lastTx.getHash());
+            // The server's TXs reach bitcoind asynchronously
+            if(bitcoind.awaitTransaction(lastTx.getHash(), 100, TimeUnit.MILLISECONDS))
+                bitcoind.generate(1);
+        }
+    }
+
+    private ForkedClient forkClient(int id, Sha256Hash rootOfTrustTxid, ExecutorService readers) throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for(String arg : jvmArgs.split(" ")) {
+            if(arg.isEmpty() == false)
+                cmd.add(arg);
+        }
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(LoadClient.class.getName());
+        cmd.add(Integer.toString(id));
+        cmd.add(Integer.toString(bitcoind.getPeerAddress().getPort()));
+        cmd.add(rootOfTrustTxid.toString());
+        cmd.add(chainAddr.toString());
+        cmd.add(Long.toString(timeoutSecs));
+
+        final ForkedClient fc = new ForkedClient(new ProcessBuilder(cmd).redirectErrorStream(true).start());
+        final int clientId = id;
+        readers.submit(new Runnable() {
+            @Override
+            public void run() {
+                try(BufferedReader out = new BufferedReader(new InputStreamReader(fc.proc.getInputStream(),
+                        StandardCharsets.UTF_8))) {
+                    String line;
+                    while((line = out.readLine()) != null) {
+                        if(line.startsWith(LoadClient.OUTPUT_PREFIX))
+                            fc.lines.add(line.substring(LoadClient.OUTPUT_PREFIX.length()));
+                        else
+                            log.debug("Client #{}: {}", clientId, line);
+                    }
+                } catch(IOException e) {
+                    log.debug("Client #{} output closed: {}", clientId, e.getMessage());
+                }
+            }
+        });
+        return fc;
+    }
+
+    /**
+     * Returns the first number with the specified key in a JSON object, or 0 if there is none.
+     */
+    private static double jsonNumber(String json, String key) {
+        int i = json.indexOf("\"" + key + "\":");
+        if(i == -1)
+            return 0;
+        i += key.length() + 3;
+        int j = i;
+        while(j < json.length() && "-.0123456789".indexOf(json.charAt(j)) != -1)
+            j++;
+        return j > i ? Double.parseDouble(json.substring(i, j)) : 0;
+    }
+
+    /**
+     * Runs a load test with the specified options (e.g., clients=100), prints its report (or writes it to the file given
+     * by report=...) and exits with status 2 if any client diverged from the server.
+     */
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        String reportFile = null;
+        for(String arg : args) {
+            int eq = arg.indexOf('=');
+            if(eq == -1) {
+                System.err.println("Usage: [clients=N] [forked=true] [jvmArgs='-Xmx256m ...'] [preload=N] " +
+                        "[statements=N] [rate=stmts/sec] [blockMillis=N] [reorgEvery=blocks] [reorgDepth=blocks] " +
+                        "[timeoutSecs=N] [report=<file>]");
+                System.exit(1);
+                return;
+            }
+            String name = arg.substring(0, eq), value = arg.substring(eq + 1);
+            if(name.equals("report"))
+                reportFile = value;
+            else
+                harness.set(name, value);
+        }
+
+        LoadReport report = harness.run();
+        if(reportFile != null) {
+            Files.write(new File(reportFile).toPath(), (report + "\n").getBytes(StandardCharsets.UTF_8));
+            System.err.println("Wrote load report to " + reportFile);
+        } else {
+            System.out.println(report);
+        }
+
+        int numDiverged = (Integer)((LoadReport)report.get("summary")).get("diverged");
+        System.exit(numDiverged > 0 ? 2 : 0);
+    }
+}
@@ -0,0 +1,48 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Runs a small LoadHarness load, with reorgs, and checks its report.
+ */
+public class LoadHarnessTest extends SummarizedTest {
+
+    @Test
+    public void testSmallLoadWithReorgs() throws Exception {
+        LoadReport report = new LoadHarness()
+            .setNumClients(2)
+            .setNumPreload(3)
+            .setNumStatements(10)
+            .setRate(20)
+            .setBlockMillis(50)
+            .setReorgEvery(3)
+            .setTimeoutSecs(30)
+            .run();
+
+        LoadReport summary = (LoadReport)report.get("summary");
+        assertEquals(0, summary.get("diverged"));
+
+        LoadReport server = (LoadReport)report.get("server");
+        assertEquals(13, server.get("statements"));
+        assertTrue("expected some reorgs", (Integer)server.get("reorgs") > 0);
+
+        List<?> clients = (List<?>)report.get("clients");
+        assertEquals(2, clients.size());
+        for(Object o : clients) {
+            LoadReport c = (LoadReport)o;
+            assertEquals(13, c.get("statements"));
+            assertEquals(false, c.get("diverged"));
+            // Every statement issued after the clients started is delivered once, no matter how many times it is
+            // appended again after a reorg
+            assertEquals(10L, ((LoadReport)c.get("deliveryLatency")).get("count"));
+        }
+
+        // Parses as a JSON object, as far as we can tell without a parser
+        String json = report.toString();
+        assertTrue(json.startsWith("{\"catena\":") && json.endsWith("]}"));
+    }
+}
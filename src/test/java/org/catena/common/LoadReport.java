@@ -0,0 +1,106 @@
+package org.catena.common;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A JSON object in a LoadHarness report, with its keys in the order they were put. Values can be strings, numbers,
+ * booleans, null, lists of values or other reports (e.g., the ones printed by forked LoadClients, see raw()).
+ */
+public class LoadReport {
+
+    private final Map<String, Object> fields = new LinkedHashMap<String, Object>();
+
+    /**
+     * JSON text that is already formatted, which is written out as is.
+     */
+    private static class Raw {
+        final String json;
+
+        Raw(String json) {
+            this.json = json;
+        }
+    }
+
+    public static Object raw(String json) {
+        return new Raw(json);
+    }
+
+    public static LoadReport of(LatencyHistogram.Snapshot s) {
+        return new LoadReport()
+            .put("count", s.getCount())
+            .put("meanMillis", s.getMeanMillis())
+            .put("p50Millis", s.getP50Millis())
+            .put("p90Millis", s.getP90Millis())
+            .put("p99Millis", s.getP99Millis())
+            .put("maxMillis", s.getMaxMillis());
+    }
+
+    public LoadReport put(String key, Object value) {
+        fields.put(key, value);
+        return this;
+    }
+
+    public Object get(String key) {
+        return fields.get(key);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        append(sb, this);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, Object value) {
+        if(value == null) {
+            sb.append("null");
+        } else if(value instanceof Raw) {
+            sb.append(((Raw)value).json);
+        } else if(value instanceof LoadReport) {
+            sb.append('{');
+            boolean first = true;
+            for(Map.Entry<String, Object> e : ((LoadReport)value).fields.entrySet()) {
+                sb.append(first ? "" : ",");
+                appendString(sb, e.getKey());
+                sb.append(':');
+                append(sb, e.getValue());
+                first = false;
+            }
+            sb.append('}');
+        } else if(value instanceof List) {
+            sb.append('[');
+            boolean first = true;
+            for(Object o : (List<?>)value) {
+                sb.append(first ? "" : ",");
+                append(sb, o);
+                first = false;
+            }
+            sb.append(']');
+        } else if(value instanceof Double || value instanceof Float) {
+            double d = ((Number)value).doubleValue();
+            // JSON has no NaN or infinities
+            sb.append(Double.isNaN(d) || Double.isInfinite(d) ? "null" : String.format(Locale.ROOT, "%.3f", d));
+        } else if(value instanceof Number || value instanceof Boolean) {
+            sb.append(value);
+        } else {
+            appendString(sb, value.toString());
+        }
+    }
+
+    private static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\')
+                sb.append('\\').append(c);
+            else if(c < 0x20)
+                sb.append(String.format("\\u%04x", (int)c));
+            else
+                sb.append(c);
+        }
+        sb.append('"');
+    }
+}
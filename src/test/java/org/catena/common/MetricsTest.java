@@ -0,0 +1,59 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class MetricsTest extends SummarizedTest {
+
+    @After
+    public void tearDown() {
+        org.bitcoinj.core.Utils.mockTime = null;
+    }
+
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.snapshot().getCount());
+        assertEquals(0.0, h.snapshot().getP99Millis(), 0.0);
+
+        // 90 fast ones and 10 slow ones
+        for(int i = 0; i < 90; i++)
+            h.record(TimeUnit.MICROSECONDS.toNanos(100));
+        for(int i = 0; i < 10; i++)
+            h.record(TimeUnit.MILLISECONDS.toNanos(500));
+
+        LatencyHistogram.Snapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(50.09, s.getMeanMillis(), 0.001);
+        assertEquals(500.0, s.getMaxMillis(), 0.0);
+        // Within 2x of the real percentiles, and never above the max
+        assertTrue(s.getP50Millis() >= 0.1 && s.getP50Millis() < 0.2);
+        assertTrue(s.getP90Millis() >= 0.1 && s.getP90Millis() < 0.2);
+        assertEquals(500.0, s.getP99Millis(), 0.0);
+    }
+
+    @Test
+    public void testRateMeter() {
+        org.bitcoinj.core.Utils.setMockClock();
+        RateMeter m = new RateMeter();
+        assertEquals(0.0, m.getRatePerSecond(), 0.0);
+
+        for(int i = 0; i < 60; i++) {
+            org.bitcoinj.core.Utils.rollMockClock(1);
+            m.mark(2);
+        }
+        assertEquals(120, m.getCount());
+        assertEquals(2.0, m.getRatePerSecond(), 0.001);
+
+        // Events older than a minute fall out of the rate, but not out of the count
+        org.bitcoinj.core.Utils.rollMockClock(30);
+        assertEquals(1.0, m.getRatePerSecond(), 0.001);
+        org.bitcoinj.core.Utils.rollMockClock(60);
+        assertEquals(0.0, m.getRatePerSecond(), 0.0);
+        assertEquals(120, m.getCount());
+    }
+}
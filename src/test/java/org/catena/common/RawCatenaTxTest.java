@@ -0,0 +1,89 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the raw-bytes validator agrees with the bitcoinj-object based checks in CatenaUtils.
+ */
+public class RawCatenaTxTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyntheticCatenaChain chain;
+    private byte[] chainHash160;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        chain = new SyntheticCatenaChain(params, "testchain");
+        chainHash160 = chain.getChainAddress().getHash160();
+    }
+
+    @Test
+    public void testValidCatenaTxs() {
+        chain.append("a", "bb", "ccc");
+        chain.append(new byte[80]);         // pushed with OP_PUSHDATA1
+
+        for(Transaction tx : chain.getTxs()) {
+            ByteBuffer raw = ByteBuffer.wrap(tx.bitcoinSerialize());
+
+            assertEquals(RawCatenaTx.OK, RawCatenaTx.validate(raw, chainHash160));
+            assertTrue(CatenaUtils.maybeCatenaTx(tx, chain.getChainAddress()));
+            assertEquals(ByteBuffer.wrap(CatenaUtils.getCatenaTxData(tx)), RawCatenaTx.getData(raw));
+            // The validator must not move the buffer around
+            assertEquals(0, raw.position());
+        }
+    }
+
+    @Test
+    public void testValidateAtOffset() {
+        Transaction tx = chain.append("hello".getBytes());
+        byte[] ser = tx.bitcoinSerialize();
+        byte[] padded = new byte[ser.length + 10];
+        System.arraycopy(ser, 0, padded, 7, ser.length);
+
+        ByteBuffer raw = ByteBuffer.wrap(padded);
+        raw.position(7);
+        raw.limit(7 + ser.length);
+        assertEquals(RawCatenaTx.OK, RawCatenaTx.validate(raw, chainHash160));
+        assertEquals(ByteBuffer.wrap("hello".getBytes()), RawCatenaTx.getData(raw));
+    }
+
+    @Test
+    public void testInvalidCatenaTxs() {
+        Transaction tx = chain.append("hello".getBytes());
+        byte[] ser = tx.bitcoinSerialize();
+
+        Address other = new ECKey().toAddress(params);
+        assertEquals(RawCatenaTx.ERR_WRONG_CHAIN_ADDR, RawCatenaTx.validate(ByteBuffer.wrap(ser), other.getHash160()));
+
+        // The funding TX has no OP_RETURN output
+        assertEquals(RawCatenaTx.ERR_NUM_OUTPUTS,
+                RawCatenaTx.validate(ByteBuffer.wrap(chain.getFundingTx().bitcoinSerialize()), null));
+
+        Transaction swapped = new Transaction(params);
+        swapped.addOutput(tx.getOutput(1));
+        swapped.addOutput(tx.getOutput(0));
+        swapped.addInput(tx.getInput(0));
+        assertEquals(RawCatenaTx.ERR_NOT_P2PKH,
+                RawCatenaTx.validate(ByteBuffer.wrap(swapped.bitcoinSerialize()), chainHash160));
+        assertEquals(RawCatenaTx.ERR_NOT_OP_RETURN,
+                RawCatenaTx.validate(ByteBuffer.wrap(swapped.bitcoinSerialize()), null));
+
+        // Every truncation is rejected without throwing
+        for(int len = 0; len < ser.length; len++) {
+            ByteBuffer raw = ByteBuffer.wrap(ser, 0, len);
+            assertFalse("truncated to " + len + " bytes", RawCatenaTx.isCatenaTx(raw, chainHash160));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.store.SPVBlockStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that readers see the headers the writer puts in its SPVBlockStore, while keeping their own chain head.
+ */
+public class SharedSPVBlockStoreTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private File dir;
+    private SPVBlockStore writer;
+    private List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context.propagate(new Context(params));
+        dir = Files.createTempDirectory("shared-spv").toFile();
+        writer = new SPVBlockStore(params, new File(dir, "writer.spvchain"));
+        blocks.add(writer.getChainHead());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        for(File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    private StoredBlock mine() throws Exception {
+        StoredBlock prev = blocks.get(blocks.size() - 1);
+        // One block every 10 minutes
+        Block header = prev.getHeader().createNextBlock(null, Block.BLOCK_VERSION_GENESIS,
+                prev.getHeader().getTimeSeconds() + 600, prev.getHeight() + 1).cloneAsHeader();
+        StoredBlock b = prev.build(header);
+        blocks.add(b);
+        return b;
+    }
+
+    private SharedSPVBlockStore newReader(String name) throws Exception {
+        return new SharedSPVBlockStore(params, new File(dir, "writer.spvchain"), new File(dir, name));
+    }
+
+    @Test
+    public void testFollowWriter() throws Exception {
+        for(int i = 0; i < 10; i++) {
+            StoredBlock b = mine();
+            writer.put(b);
+            writer.setChainHead(b);
+        }
+
+        SharedSPVBlockStore reader = newReader("reader.spvchainhead");
+        assertTrue(reader.isNew());
+        assertEquals(blocks.get(10), reader.getSharedChainHead());
+        for(StoredBlock b : blocks)
+            assertEquals(b, reader.get(b.getHeader().getHash()));
+
+        // Starts from the latest block at or before the given time
+        StoredBlock start = reader.findLatestBlockBefore(blocks.get(4).getHeader().getTimeSeconds() + 599);
+        assertEquals(blocks.get(4), start);
+        assertNull(reader.findLatestBlockBefore(blocks.get(0).getHeader().getTimeSeconds() - 1));
+        reader.setChainHead(start);
+
+        // The writer moves on, and we see its new blocks
+        StoredBlock next = mine();
+        writer.put(next);
+        writer.setChainHead(next);
+        assertEquals(next, reader.get(next.getHeader().getHash()));
+        assertEquals(next, reader.getSharedChainHead());
+
+        // We get ahead of the writer
+        StoredBlock ahead = mine();
+        assertNull(reader.get(ahead.getHeader().getHash()));
+        reader.put(ahead);
+        reader.setChainHead(ahead);
+        assertEquals(ahead, reader.get(ahead.getHeader().getHash()));
+        assertEquals(next, reader.getSharedChainHead());
+
+        // Heads with less work (e.g., from WalletAppKit's checkpointing) are ignored
+        reader.setChainHead(blocks.get(1));
+        assertEquals(ahead, reader.getChainHead());
+        reader.close();
+
+        // Our head survives restarts, even though the writer does not have it
+        reader = newReader("reader.spvchainhead");
+        assertFalse(reader.isNew());
+        assertEquals(ahead, reader.getChainHead());
+        assertEquals(ahead, reader.get(ahead.getHeader().getHash()));
+        reader.close();
+    }
+
+    @Test
+    public void testRingWrapsAround() throws Exception {
+        SharedSPVBlockStore reader = newReader("reader.spvchainhead");
+        for(int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS + 10; i++) {
+            StoredBlock b = mine();
+            writer.put(b);
+            writer.setChainHead(b);
+        }
+
+        StoredBlock last = blocks.get(blocks.size() - 1);
+        assertEquals(last, reader.getSharedChainHead());
+        assertEquals(last, reader.get(last.getHeader().getHash()));
+        // The oldest ones were overwritten
+        assertNull(reader.get(blocks.get(5).getHeader().getHash()));
+        assertNull(reader.findLatestBlockBefore(blocks.get(5).getHeader().getTimeSeconds()));
+
+        // Exactly once more around the ring, without us looking
+        for(int i = 0; i < SPVBlockStore.DEFAULT_NUM_HEADERS; i++) {
+            StoredBlock b = mine();
+            writer.put(b);
+            writer.setChainHead(b);
+        }
+        StoredBlock first = blocks.get(blocks.size() - SPVBlockStore.DEFAULT_NUM_HEADERS);
+        assertEquals(first, reader.get(first.getHeader().getHash()));
+        assertNull(reader.get(last.getHeader().getHash()));
+        reader.close();
+    }
+}
@@ -0,0 +1,936 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.FilteredBlock;
+import org.bitcoinj.core.GetBlocksMessage;
+import org.bitcoinj.core.GetDataMessage;
+import org.bitcoinj.core.GetHeadersMessage;
+import org.bitcoinj.core.HeadersMessage;
+import org.bitcoinj.core.InventoryItem;
+import org.bitcoinj.core.InventoryMessage;
+import org.bitcoinj.core.MemoryPoolMessage;
+import org.bitcoinj.core.Message;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.NotFoundMessage;
+import org.bitcoinj.core.PartialMerkleTree;
+import org.bitcoinj.core.PeerAddress;
+import org.bitcoinj.core.PeerSocketHandler;
+import org.bitcoinj.core.Ping;
+import org.bitcoinj.core.Pong;
+import org.bitcoinj.core.RejectMessage;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.Utils;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.core.VersionAck;
+import org.bitcoinj.core.VersionMessage;
+import org.bitcoinj.kits.WalletAppKit;
+import org.bitcoinj.net.NioServer;
+import org.bitcoinj.net.StreamConnection;
+import org.bitcoinj.net.StreamConnectionFactory;
+import org.bitcoinj.script.Script;
+import org.bitcoinj.utils.Threading;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AbstractIdleService;
+
+/**
+ * An in-process stand-in for a regtest bitcoind, which bitcoinj peers (e.g., the PeerGroups of a CatenaServer and its
+ * CatenaClients, see connect()) talk to over loopback in the Bitcoin P2P protocol. It speaks just enough of it for SPV
+ * peers: the version handshake, getheaders and getblocks, full and filtered blocks along with the TXs that match the
+ * peer's Bloom filter, mempool requests and TX relay.
+ *
+ * TXs are accepted into the mempool if their inputs are unspent (by the best chain and the mempool) and their scripts
+ * verify. Blocks are mined on demand (see generate()), on a schedule (see startMining()) or right after every TX (see
+ * setAutoMine()), and take as many mempool TXs as fit. Forks are made the same way btc-scripts/create-forks.sh makes
+ * them with bitcoind's RPCs: invalidateBlock() takes a block off the best chain (putting its TXs back in the mempool),
+ * the next generate() mines a competing branch, and reconsiderBlock() lets the old branch take over again if it has
+ * more work.
+ *
+ * Unlike bitcoind, there are no fees, no policy limits (e.g., on chains of unconfirmed TXs) and no work to speak of,
+ * so Catena servers can append statements to it as fast as they can sign them. Coinbases pay 50 BTC to the
+ * simulator's own key, which sendToAddress() spends once they mature, same as bitcoind's wallet.
+ */
+public class SimulatedBitcoind extends AbstractIdleService {
+
+    private static final Logger log = LoggerFactory.getLogger(SimulatedBitcoind.class);
+
+    private static final Coin COINBASE_VALUE = Coin.FIFTY_COINS;
+
+    /**
+     * Same as bitcoind: new blocks are announced one by one, unless there are too many of them (e.g., after a reorg),
+     * in which case only the tip is, and peers ask for the rest with getblocks.
+     */
+    private static final int MAX_BLOCKS_TO_ANNOUNCE = 8;
+    private static final int MAX_BLOCKS_PER_INV = 500;
+
+    /**
+     * Room left in a block for its header and coinbase.
+     */
+    private static final int BLOCK_OVERHEAD = 1000;
+
+    private final NetworkParameters params;
+    private final ECKey minerKey = new ECKey();
+
+    private final ReentrantLock lock = Threading.lock("simulated-bitcoind");
+
+    /**
+     * Signalled every time a TX is accepted into the mempool.
+     */
+    private final Condition txAccepted = lock.newCondition();
+
+    /**
+     * All the blocks we know of, on any branch, and the ones that no other block builds on.
+     */
+    @GuardedBy("lock") private final Map<Sha256Hash, StoredBlock> headers = new HashMap<Sha256Hash, StoredBlock>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Block> blocks = new HashMap<Sha256Hash, Block>();
+    @GuardedBy("lock") private final Set<Sha256Hash> tips = new HashSet<Sha256Hash>();
+
+    /**
+     * Blocks taken off the best chain by invalidateBlock(), along with (implicitly) the blocks that build on them.
+     */
+    @GuardedBy("lock") private final Set<Sha256Hash> invalid = new HashSet<Sha256Hash>();
+
+    /**
+     * The best chain, indexed by height, along with its UTXO set and the outputs each of its blocks spent (so that we
+     * can disconnect it).
+     */
+    @GuardedBy("lock") private final List<StoredBlock> bestChain = new ArrayList<StoredBlock>();
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Utxo> utxos = new HashMap<TransactionOutPoint, Utxo>();
+    @GuardedBy("lock") private final Map<Sha256Hash, List<Utxo>> undo = new HashMap<Sha256Hash, List<Utxo>>();
+
+    /**
+     * Mempool TXs in the order they were accepted (so parents come before their children), and the outputs they spend.
+     */
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Transaction> mempool =
+            new LinkedHashMap<Sha256Hash, Transaction>();
+    @GuardedBy("lock") private final Map<TransactionOutPoint, Transaction> mempoolSpends =
+            new HashMap<TransactionOutPoint, Transaction>();
+
+    @GuardedBy("lock") private ScheduledExecutorService miner;
+
+    private final CopyOnWriteArrayList<SimulatedPeer> peers = new CopyOnWriteArrayList<SimulatedPeer>();
+
+    private volatile boolean verifyScripts = true;
+    private volatile boolean autoMine = false;
+
+    private NioServer server;
+    private InetSocketAddress address;
+
+    private static class Utxo {
+        final TransactionOutPoint outPoint;
+        final TransactionOutput output;
+        final int height;
+        final boolean isCoinbase;
+
+        Utxo(TransactionOutPoint outPoint, TransactionOutput output, int height, boolean isCoinbase) {
+            this.outPoint = outPoint;
+            this.output = output;
+            this.height = height;
+            this.isCoinbase = isCoinbase;
+        }
+    }
+
+    public SimulatedBitcoind(NetworkParameters params) {
+        this.params = params;
+
+        Block genesis = params.getGenesisBlock();
+        StoredBlock stored = new StoredBlock(genesis.cloneAsHeader(), genesis.getWork(), 0);
+        headers.put(genesis.getHash(), stored);
+        blocks.put(genesis.getHash(), genesis);
+        tips.add(genesis.getHash());
+        bestChain.add(stored);
+    }
+
+    /**
+     * Starts listening for peers on a free loopback port (see getPeerAddress()).
+     */
+    @Override
+    protected void startUp() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        int port;
+        try(ServerSocket s = new ServerSocket(0, 0, loopback)) {
+            port = s.getLocalPort();
+        }
+
+        address = new InetSocketAddress(loopback, port);
+        server = new NioServer(new StreamConnectionFactory() {
+            @Override
+            public StreamConnection getNewConnection(InetAddress inetAddress, int port) {
+                return new SimulatedPeer(new InetSocketAddress(inetAddress, port));
+            }
+        }, address);
+        server.startAsync().awaitRunning();
+        log.info("Simulated bitcoind listening on " + address);
+    }
+
+    @Override
+    protected void shutDown() {
+        stopMining();
+        server.stopAsync().awaitTerminated();
+    }
+
+    public PeerAddress getPeerAddress() {
+        checkState(address != null, "not started yet");
+        return new PeerAddress(params, address);
+    }
+
+    /**
+     * Makes the specified kit (e.g., a CatenaServer or CatenaClient) connect only to us. Must be called before the kit
+     * is started.
+     */
+    public void connect(WalletAppKit kit) {
+        kit.setPeerNodes(getPeerAddress());
+    }
+
+    /**
+     * The number of peers that completed the version handshake and are still connected.
+     */
+    public int getNumPeers() {
+        return peers.size();
+    }
+
+    /**
+     * Whether TXs are only accepted if their scripts verify (the default). Checking signatures is what takes most of
+     * the time when accepting a TX, so load tests that trust their TXs can turn it off.
+     */
+    public void setVerifyScripts(boolean verifyScripts) {
+        this.verifyScripts = verifyScripts;
+    }
+
+    /**
+     * Makes every TX accepted into the mempool get mined right away in a block of its own.
+     */
+    public void setAutoMine(boolean autoMine) {
+        this.autoMine = autoMine;
+    }
+
+    public StoredBlock getBestBlock() {
+        lock.lock();
+        try {
+            return bestChain.get(bestChain.size() - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getBestHeight() {
+        return getBestBlock().getHeight();
+    }
+
+    /**
+     * Returns the hash of the best chain's block at the specified height, same as bitcoind's 'getblockhash' RPC.
+     */
+    public Sha256Hash getBlockHash(int height) {
+        lock.lock();
+        try {
+            checkArgument(height >= 0 && height < bestChain.size(), "no block at height " + height);
+            return bestChain.get(height).getHeader().getHash();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the block with the specified hash, on any branch, or null if we do not know of it.
+     */
+    public Block getBlock(Sha256Hash hash) {
+        lock.lock();
+        try {
+            return blocks.get(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the mempool TXs, in the order they will be mined.
+     */
+    public List<Transaction> getMempool() {
+        lock.lock();
+        try {
+            return ImmutableList.copyOf(mempool.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the specified TX is in the mempool, since our peers' TXs arrive asynchronously and would otherwise
+     * miss the next generate(). Returns false if it did not get there in time.
+     */
+    public boolean awaitTransaction(Sha256Hash hash, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while(mempool.containsKey(hash) == false) {
+                if(nanos <= 0)
+                    return false;
+                nanos = txAccepted.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mines the specified number of blocks on top of the best chain, same as bitcoind's 'generate' RPC, and announces
+     * them to our peers.
+     */
+    public List<Block> generate(int numBlocks) {
+        checkArgument(numBlocks > 0);
+
+        lock.lock();
+        try {
+            List<Block> mined = new ArrayList<Block>(numBlocks);
+            for(int i = 0; i < numBlocks; i++)
+                mined.add(mineBlock());
+            announce(mined);
+            return mined;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Mines a block every period, until stopMining() is called or we are stopped.
+     */
+    public void startMining(long period, TimeUnit unit) {
+        lock.lock();
+        try {
+            checkState(miner == null, "already mining");
+            miner = Executors.newSingleThreadScheduledExecutor(
+                    org.catena.common.Utils.daemonThreads("simulated-bitcoind-miner"));
+            miner.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        generate(1);
+                    } catch(RuntimeException e) {
+                        // Otherwise the executor would silently stop mining
+                        log.error("Could not mine block", e);
+                    }
+                }
+            }, period, period, unit);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void stopMining() {
+        lock.lock();
+        try {
+            if(miner != null) {
+                miner.shutdownNow();
+                miner = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends some of our mature coinbase funds to the specified address, same as bitcoind's 'sendtoaddress' RPC. The
+     * TX is relayed to our peers and mined in the next block.
+     *
+     * @throws IllegalStateException if we have no coinbase left that is old enough to spend (e.g., because fewer than
+     * 101 blocks were mined)
+     */
+    public Transaction sendToAddress(Address to, Coin value) {
+        checkArgument(value.isPositive() && !value.isGreaterThan(COINBASE_VALUE.subtract(
+                Transaction.REFERENCE_DEFAULT_MIN_TX_FEE)), "can only send up to one coinbase");
+
+        lock.lock();
+        try {
+            Utxo coinbase = null;
+            int maxHeight = getBestHeight() + 1 - params.getSpendableCoinbaseDepth();
+            for(int h = 1; h <= maxHeight && coinbase == null; h++) {
+                Transaction tx = blocks.get(bestChain.get(h).getHeader().getHash()).getTransactions().get(0);
+                Utxo u = utxos.get(new TransactionOutPoint(params, 0, tx.getHash()));
+                if(u != null && mempoolSpends.containsKey(u.outPoint) == false)
+                    coinbase = u;
+            }
+            checkState(coinbase != null, "no mature coinbase to spend at height " + getBestHeight());
+
+            Transaction tx = new Transaction(params);
+            tx.addOutput(value, to);
+            Coin change = COINBASE_VALUE.subtract(value).subtract(Transaction.REFERENCE_DEFAULT_MIN_TX_FEE);
+            if(change.isGreaterThan(Transaction.MIN_NONDUST_OUTPUT))
+                tx.addOutput(change, minerKey.toAddress(params));
+            tx.addSignedInput(coinbase.outPoint, coinbase.output.getScriptPubKey(), minerKey);
+
+            sendRawTransaction(tx);
+            return tx;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Accepts the specified TX into the mempool and relays it to our peers, same as bitcoind's 'sendrawtransaction'
+     * RPC.
+     *
+     * @throws VerificationException if the TX is not accepted, with bitcoind's reason
+     */
+    public void sendRawTransaction(Transaction tx) throws VerificationException {
+        receiveTransaction(tx, null);
+    }
+
+    /**
+     * Takes the specified block and the blocks that build on it off the best chain, same as bitcoind's
+     * 'invalidateblock' RPC. Their TXs go back to the mempool, and the best remaining branch (which might be the one
+     * the block was on, minus the block) becomes the best chain.
+     */
+    public void invalidateBlock(Sha256Hash hash) {
+        lock.lock();
+        try {
+            StoredBlock b = headers.get(hash);
+            checkArgument(b != null, "unknown block " + hash);
+            checkArgument(b.getHeight() > 0, "cannot invalidate the genesis block");
+
+            invalid.add(hash);
+            List<Block> connected = Collections.emptyList();
+            if(isOnBestChain(b))
+                connected = reorganize(headers.get(b.getHeader().getPrevBlockHash()));
+
+            List<Block> reconnected = activateBestChain();
+            announce(reconnected.isEmpty() ? connected : reconnected);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Undoes invalidateBlock(), same as bitcoind's 'reconsiderblock' RPC. The block's branch becomes the best chain
+     * again if it has more work than the best chain (not if it has the same work, since we saw the best chain first).
+     */
+    public void reconsiderBlock(Sha256Hash hash) {
+        lock.lock();
+        try {
+            checkArgument(headers.containsKey(hash), "unknown block " + hash);
+
+            invalid.remove(hash);
+            announce(activateBestChain());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private boolean isOnBestChain(StoredBlock b) {
+        return b.getHeight() < bestChain.size() && bestChain.get(b.getHeight()).equals(b);
+    }
+
+    /**
+     * Mines a block with as many mempool TXs as fit, on top of the best chain.
+     */
+    @GuardedBy("lock")
+    private Block mineBlock() {
+        StoredBlock prev = getBestBlock();
+        int height = prev.getHeight() + 1;
+        Block block = prev.getHeader().createNextBlockWithCoinbase(Block.BLOCK_VERSION_BIP65, minerKey.getPubKey(),
+                COINBASE_VALUE, height);
+
+        // NOTE: We stop at the first TX that does not fit, rather than skip it, so that no TX is mined without its
+        // parents
+        int size = BLOCK_OVERHEAD;
+        for(Transaction tx : mempool.values()) {
+            size += tx.unsafeBitcoinSerialize().length;
+            if(size > Block.MAX_BLOCK_SIZE)
+                break;
+            block.addTransaction(tx);
+        }
+        // NOTE: Peers only check that block times do not go too far into the future, so we do not add a second per
+        // block like a real miner would, which would do just that when mining lots of blocks
+        block.setTime(Math.max(Utils.currentTimeSeconds(), prev.getHeader().getTimeSeconds()));
+        block.solve();
+
+        StoredBlock stored = prev.build(block.cloneAsHeader());
+        headers.put(block.getHash(), stored);
+        blocks.put(block.getHash(), block);
+        tips.remove(prev.getHeader().getHash());
+        tips.add(block.getHash());
+        connectBlock(stored, block);
+
+        log.debug("Mined block #" + height + " " + block.getHash() + " with " + block.getTransactions().size() +
+                " TXs, " + mempool.size() + " left in the mempool");
+        return block;
+    }
+
+    /**
+     * Adds the specified block to the best chain, which must be its parent.
+     */
+    @GuardedBy("lock")
+    private void connectBlock(StoredBlock stored, Block block) {
+        checkState(stored.getHeader().getPrevBlockHash().equals(getBestBlock().getHeader().getHash()));
+
+        List<Utxo> spent = new ArrayList<Utxo>();
+        for(Transaction tx : block.getTransactions()) {
+            if(tx.isCoinBase() == false) {
+                for(TransactionInput in : tx.getInputs()) {
+                    Utxo u = utxos.remove(in.getOutpoint());
+                    checkState(u != null, "block " + block.getHash() + " spends missing output " + in.getOutpoint());
+                    spent.add(u);
+                }
+            }
+            addOutputs(tx, stored.getHeight());
+            removeFromMempool(tx);
+        }
+
+        undo.put(block.getHash(), spent);
+        bestChain.add(stored);
+    }
+
+    /**
+     * Takes the best chain's tip off it and returns the TXs in it, other than the coinbase.
+     */
+    @GuardedBy("lock")
+    private List<Transaction> disconnectTip() {
+        StoredBlock tip = bestChain.remove(bestChain.size() - 1);
+        Block block = blocks.get(tip.getHeader().getHash());
+        List<Utxo> spent = undo.remove(block.getHash());
+
+        // NOTE: Backwards, since a TX can spend the outputs of a TX before it in the same block, which we must not
+        // add back
+        List<Transaction> txs = block.getTransactions();
+        int next = spent.size();
+        for(int i = txs.size() - 1; i >= 0; i--) {
+            Transaction tx = txs.get(i);
+            for(int j = 0; j < tx.getOutputs().size(); j++)
+                utxos.remove(new TransactionOutPoint(params, j, tx.getHash()));
+            if(tx.isCoinBase() == false) {
+                for(int j = 0; j < tx.getInputs().size(); j++) {
+                    Utxo u = spent.get(--next);
+                    utxos.put(u.outPoint, u);
+                }
+            }
+        }
+        checkState(next == 0);
+
+        return txs.subList(1, txs.size());
+    }
+
+    @GuardedBy("lock")
+    private void addOutputs(Transaction tx, int height) {
+        for(TransactionOutput out : tx.getOutputs()) {
+            if(out.getScriptPubKey().isOpReturn())
+                continue;
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, out.getIndex(), tx.getHash());
+            utxos.put(outPoint, new Utxo(outPoint, out, height, tx.isCoinBase()));
+        }
+    }
+
+    /**
+     * Makes the block with the most work that is not invalid the tip of the best chain, and returns the blocks that
+     * were connected, if any.
+     */
+    @GuardedBy("lock")
+    private List<Block> activateBestChain() {
+        StoredBlock best = getBestBlock();
+        for(Sha256Hash tip : tips) {
+            // The highest block on the tip's branch that has no invalid blocks below it (blocks on the best chain
+            // never are)
+            StoredBlock candidate = headers.get(tip);
+            for(StoredBlock b = candidate; isOnBestChain(b) == false; b = headers.get(b.getHeader().getPrevBlockHash())) {
+                if(invalid.contains(b.getHeader().getHash()))
+                    candidate = headers.get(b.getHeader().getPrevBlockHash());
+            }
+            if(candidate.getChainWork().compareTo(best.getChainWork()) > 0)
+                best = candidate;
+        }
+
+        if(best.equals(getBestBlock()))
+            return Collections.emptyList();
+        return reorganize(best);
+    }
+
+    /**
+     * Makes the specified block the tip of the best chain, and returns the blocks that were connected. The TXs of the
+     * disconnected blocks go back to the mempool, before the TXs that were already in it, unless they conflict with
+     * the new best chain.
+     */
+    @GuardedBy("lock")
+    private List<Block> reorganize(StoredBlock newTip) {
+        List<StoredBlock> toConnect = new ArrayList<StoredBlock>();
+        StoredBlock fork = newTip;
+        while(isOnBestChain(fork) == false) {
+            toConnect.add(0, fork);
+            fork = headers.get(fork.getHeader().getPrevBlockHash());
+        }
+
+        List<Transaction> txs = new ArrayList<Transaction>();
+        while(getBestBlock().equals(fork) == false)
+            txs.addAll(0, disconnectTip());
+        txs.addAll(mempool.values());
+        mempool.clear();
+        mempoolSpends.clear();
+
+        List<Block> connected = new ArrayList<Block>(toConnect.size());
+        for(StoredBlock b : toConnect) {
+            Block block = blocks.get(b.getHeader().getHash());
+            connectBlock(b, block);
+            connected.add(block);
+        }
+
+        int numDropped = 0;
+        for(Transaction tx : txs) {
+            try {
+                acceptToMempool(tx);
+            } catch(VerificationException e) {
+                numDropped++;
+            }
+        }
+
+        log.info("Reorganized from fork point #" + fork.getHeight() + " to #" + newTip.getHeight() + " " +
+                newTip.getHeader().getHash() + ", " + numDropped + " TXs dropped from the mempool");
+        return connected;
+    }
+
+    /**
+     * Accepts the specified TX into the mempool (relaying it to all our peers but the one it came from, if any) or
+     * throws why not, with bitcoind's reject reasons.
+     */
+    private void receiveTransaction(Transaction tx, SimulatedPeer from) throws VerificationException {
+        lock.lock();
+        try {
+            acceptToMempool(tx);
+
+            InventoryMessage inv = InventoryMessage.with(tx);
+            for(SimulatedPeer p : peers) {
+                if(p != from && p.isRelevant(tx))
+                    p.sendMessage(inv);
+            }
+
+            if(autoMine)
+                generate(1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void acceptToMempool(Transaction tx) throws VerificationException {
+        if(mempool.containsKey(tx.getHash()))
+            throw new VerificationException("txn-already-in-mempool");
+        if(tx.isCoinBase())
+            throw new VerificationException("coinbase");
+        tx.verify();
+
+        Coin valueIn = Coin.ZERO;
+        for(int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionOutPoint outPoint = tx.getInput(i).getOutpoint();
+            if(mempoolSpends.containsKey(outPoint))
+                throw new VerificationException("txn-mempool-conflict");
+
+            TransactionOutput out;
+            Transaction parent = mempool.get(outPoint.getHash());
+            if(parent != null) {
+                if(outPoint.getIndex() >= parent.getOutputs().size())
+                    throw new VerificationException("missing-inputs");
+                out = parent.getOutput(outPoint.getIndex());
+            } else {
+                Utxo u = utxos.get(outPoint);
+                if(u == null)
+                    throw new VerificationException("missing-inputs");
+                if(u.isCoinbase && getBestHeight() + 1 - u.height < params.getSpendableCoinbaseDepth())
+                    throw new VerificationException("bad-txns-premature-spend-of-coinbase");
+                out = u.output;
+            }
+
+            if(verifyScripts)
+                tx.getInput(i).getScriptSig().correctlySpends(tx, i, out.getScriptPubKey(), Script.ALL_VERIFY_FLAGS);
+            valueIn = valueIn.add(out.getValue());
+        }
+        if(valueIn.isLessThan(tx.getOutputSum()))
+            throw new VerificationException("bad-txns-in-belowout");
+
+        mempool.put(tx.getHash(), tx);
+        for(TransactionInput in : tx.getInputs())
+            mempoolSpends.put(in.getOutpoint(), tx);
+        txAccepted.signalAll();
+    }
+
+    /**
+     * Removes the specified TX, which was just mined, from the mempool, along with the TXs that conflict with it and
+     * their descendants.
+     */
+    @GuardedBy("lock")
+    private void removeFromMempool(Transaction mined) {
+        if(mempool.remove(mined.getHash()) != null) {
+            for(TransactionInput in : mined.getInputs())
+                mempoolSpends.remove(in.getOutpoint());
+            return;
+        }
+
+        if(mined.isCoinBase())
+            return;
+        for(TransactionInput in : mined.getInputs()) {
+            Transaction conflict = mempoolSpends.get(in.getOutpoint());
+            if(conflict != null)
+                removeWithDescendants(conflict);
+        }
+    }
+
+    @GuardedBy("lock")
+    private void removeWithDescendants(Transaction tx) {
+        if(mempool.remove(tx.getHash()) == null)
+            return;
+        for(TransactionInput in : tx.getInputs())
+            mempoolSpends.remove(in.getOutpoint());
+
+        for(int i = 0; i < tx.getOutputs().size(); i++) {
+            Transaction child = mempoolSpends.get(new TransactionOutPoint(params, i, tx.getHash()));
+            if(child != null)
+                removeWithDescendants(child);
+        }
+        log.debug("Removed conflicting TX " + tx.getHash() + " from the mempool");
+    }
+
+    /**
+     * Tells our peers about new blocks on the best chain.
+     */
+    @GuardedBy("lock")
+    private void announce(List<Block> connected) {
+        if(connected.isEmpty())
+            return;
+
+        InventoryMessage inv = new InventoryMessage(params);
+        for(Block b : connected.size() <= MAX_BLOCKS_TO_ANNOUNCE ? connected :
+            connected.subList(connected.size() - 1, connected.size()))
+            inv.addItem(new InventoryItem(InventoryItem.Type.Block, b.getHash()));
+        for(SimulatedPeer p : peers)
+            p.sendMessage(inv);
+    }
+
+    /**
+     * Returns the last block on the best chain that is in the specified block locator (i.e., the one the peer and we
+     * both have), or the genesis block if there is none.
+     */
+    @GuardedBy("lock")
+    private StoredBlock findForkPoint(List<Sha256Hash> locator) {
+        for(Sha256Hash hash : locator) {
+            StoredBlock b = headers.get(hash);
+            if(b != null && isOnBestChain(b))
+                return b;
+        }
+        return bestChain.get(0);
+    }
+
+    /**
+     * A connection from a bitcoinj peer. Messages are processed on the NioServer's thread.
+     */
+    private class SimulatedPeer extends PeerSocketHandler {
+
+        private VersionMessage peerVersion;
+
+        /**
+         * The peer's Bloom filter, which we update with every TX that matches it, same as bitcoind.
+         */
+        @GuardedBy("lock") private BloomFilter filter;
+
+        SimulatedPeer(InetSocketAddress remote) {
+            super(params, remote);
+        }
+
+        @Override
+        public void connectionOpened() {
+            log.debug("Peer connected from " + getAddress());
+        }
+
+        @Override
+        public void connectionClosed() {
+            peers.remove(this);
+            log.debug("Peer disconnected from " + getAddress());
+        }
+
+        @GuardedBy("lock")
+        boolean isRelevant(Transaction tx) {
+            if(filter == null)
+                return peerVersion.relayTxesBeforeFilter;
+            return filter.applyAndUpdate(tx);
+        }
+
+        @Override
+        protected void processMessage(Message m) throws Exception {
+            if(m instanceof Transaction) {
+                Transaction tx = (Transaction)m;
+                try {
+                    receiveTransaction(tx, this);
+                } catch(VerificationException e) {
+                    log.debug("Rejected TX " + tx.getHash() + ": " + e.getMessage());
+                    sendMessage(new RejectMessage(params, RejectMessage.RejectCode.INVALID, tx.getHash(), "tx",
+                            String.valueOf(e.getMessage())));
+                }
+                return;
+            }
+
+            lock.lock();
+            try {
+                if(m instanceof VersionMessage) {
+                    peerVersion = (VersionMessage)m;
+                    VersionMessage ver = new VersionMessage(params, getBestHeight());
+                    ver.clientVersion = params.getProtocolVersionNum(NetworkParameters.ProtocolVersion.CURRENT);
+                    ver.localServices = VersionMessage.NODE_NETWORK;
+                    ver.subVer = "/SimulatedBitcoind/";
+                    sendMessage(ver);
+                    sendMessage(new VersionAck());
+                } else if(m instanceof VersionAck) {
+                    peers.add(this);
+                } else if(m instanceof Ping) {
+                    if(((Ping)m).hasNonce())
+                        sendMessage(new Pong(((Ping)m).getNonce()));
+                } else if(m instanceof BloomFilter) {
+                    filter = (BloomFilter)m;
+                } else if(m instanceof MemoryPoolMessage) {
+                    InventoryMessage inv = new InventoryMessage(params);
+                    for(Transaction tx : mempool.values()) {
+                        if(isRelevant(tx))
+                            inv.addTransaction(tx);
+                    }
+                    if(inv.getItems().isEmpty() == false)
+                        sendMessage(inv);
+                } else if(m instanceof GetHeadersMessage) {
+                    processGetHeaders((GetHeadersMessage)m);
+                } else if(m instanceof GetBlocksMessage) {
+                    processGetBlocks((GetBlocksMessage)m);
+                } else if(m instanceof GetDataMessage) {
+                    processGetData((GetDataMessage)m);
+                } else if(m instanceof InventoryMessage) {
+                    GetDataMessage getdata = new GetDataMessage(params);
+                    for(InventoryItem item : ((InventoryMessage)m).getItems()) {
+                        if(item.type == InventoryItem.Type.Transaction && mempool.containsKey(item.hash) == false)
+                            getdata.addTransaction(item.hash);
+                    }
+                    if(getdata.getItems().isEmpty() == false)
+                        sendMessage(getdata);
+                } else {
+                    log.trace("Ignoring " + m.getClass().getSimpleName() + " from " + getAddress());
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @GuardedBy("lock")
+        private void processGetHeaders(GetHeadersMessage m) {
+            List<Block> list = new ArrayList<Block>();
+            StoredBlock fork = findForkPoint(m.getLocator());
+            for(int h = fork.getHeight() + 1; h < bestChain.size() && list.size() < HeadersMessage.MAX_HEADERS; h++) {
+                StoredBlock b = bestChain.get(h);
+                list.add(b.getHeader());
+                if(b.getHeader().getHash().equals(m.getStopHash()))
+                    break;
+            }
+            sendMessage(new HeadersMessage(params, list));
+        }
+
+        @GuardedBy("lock")
+        private void processGetBlocks(GetBlocksMessage m) {
+            InventoryMessage inv = new InventoryMessage(params);
+            StoredBlock fork = findForkPoint(m.getLocator());
+            for(int h = fork.getHeight() + 1; h < bestChain.size() && inv.getItems().size() < MAX_BLOCKS_PER_INV; h++) {
+                Sha256Hash hash = bestChain.get(h).getHeader().getHash();
+                inv.addItem(new InventoryItem(InventoryItem.Type.Block, hash));
+                if(hash.equals(m.getStopHash()))
+                    break;
+            }
+            if(inv.getItems().isEmpty() == false)
+                sendMessage(inv);
+        }
+
+        @GuardedBy("lock")
+        private void processGetData(GetDataMessage m) {
+            List<InventoryItem> notFound = new ArrayList<InventoryItem>();
+            for(InventoryItem item : m.getItems()) {
+                switch(item.type) {
+                case Transaction:
+                    Transaction tx = mempool.get(item.hash);
+                    if(tx != null)
+                        sendMessage(tx);
+                    else
+                        notFound.add(item);
+                    break;
+                case Block:
+                    Block block = blocks.get(item.hash);
+                    if(block != null)
+                        sendMessage(block);
+                    else
+                        notFound.add(item);
+                    break;
+                case FilteredBlock:
+                    block = blocks.get(item.hash);
+                    if(block == null) {
+                        notFound.add(item);
+                    } else if(filter != null) {
+                        sendFilteredBlock(block);
+                    }
+                    break;
+                default:
+                    notFound.add(item);
+                }
+            }
+            if(notFound.isEmpty() == false)
+                sendMessage(new NotFoundMessage(params, notFound));
+        }
+
+        /**
+         * Same as bitcoind: the merkleblock, then the TXs that matched the peer's filter, in block order. Same as
+         * BloomFilter::applyAndUpdate(Block), except that coinbases never match, since bitcoinj's BloomFilter chokes on
+         * the small numbers (e.g., OP_1) that low block heights are pushed as in them.
+         */
+        @GuardedBy("lock")
+        private void sendFilteredBlock(Block block) {
+            List<Transaction> txs = block.getTransactions();
+            List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(txs.size());
+            List<Transaction> matched = new ArrayList<Transaction>();
+            byte[] bits = new byte[(txs.size() + 7) / 8];
+            for(int i = 0; i < txs.size(); i++) {
+                Transaction tx = txs.get(i);
+                hashes.add(tx.getHash());
+                if(tx.isCoinBase() == false && filter.applyAndUpdate(tx)) {
+                    Utils.setBitLE(bits, i);
+                    matched.add(tx);
+                }
+            }
+
+            sendMessage(new FilteredBlock(params, block.cloneAsHeader(), 
+                    PartialMerkleTree.buildFromLeaves(params, bits, hashes)));
+            for(Transaction tx : matched)
+                sendMessage(tx);
+        }
+    }
+}
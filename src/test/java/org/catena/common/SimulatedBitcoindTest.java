@@ -0,0 +1,88 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionOutPoint;
+import org.bitcoinj.core.VerificationException;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests SimulatedBitcoind's mempool and forks on their own, without peers (ClientServerTest exercises it with a Catena
+ * server and clients when run with -Dcatena.simulatedBitcoind).
+ */
+public class SimulatedBitcoindTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SimulatedBitcoind bitcoind;
+
+    @Before
+    public void setUp() {
+        bitcoind = new SimulatedBitcoind(params);
+        bitcoind.startAsync().awaitRunning();
+        bitcoind.generate(101);
+    }
+
+    @After
+    public void tearDown() {
+        bitcoind.stopAsync().awaitTerminated();
+    }
+
+    @Test
+    public void testInvalidateAndReconsider() {
+        Transaction tx = bitcoind.sendToAddress(new ECKey().toAddress(params), Coin.COIN);
+        Block a = bitcoind.generate(1).get(0);
+        assertTrue(a.getTransactions().contains(tx));
+        assertTrue(bitcoind.getMempool().isEmpty());
+
+        // Like create-forks.sh: invalidating the block puts its TX back in the mempool...
+        bitcoind.invalidateBlock(a.getHash());
+        assertEquals(101, bitcoind.getBestHeight());
+        assertTrue(bitcoind.getMempool().contains(tx));
+
+        // ...and it gets mined again on the new branch, which is longer
+        Block b = bitcoind.generate(2).get(0);
+        assertTrue(b.getTransactions().contains(tx));
+        bitcoind.reconsiderBlock(a.getHash());
+        assertEquals(b.getHash(), bitcoind.getBestBlock().getHeader().getPrevBlockHash());
+        assertEquals(103, bitcoind.getBestHeight());
+
+        // Back to the first branch, with the TX in block 'a' rather than the mempool
+        bitcoind.invalidateBlock(b.getHash());
+        assertEquals(a.getHash(), bitcoind.getBestBlock().getHeader().getHash());
+        assertTrue(bitcoind.getMempool().isEmpty());
+    }
+
+    @Test
+    public void testDoubleSpendRejected() {
+        Transaction tx = bitcoind.sendToAddress(new ECKey().toAddress(params), Coin.COIN);
+        TransactionOutPoint spent = tx.getInput(0).getOutpoint();
+
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addOutput(Coin.COIN, new ECKey().toAddress(params));
+        doubleSpend.addInput(spent.getHash(), spent.getIndex(), new ScriptBuilder().build());
+        try {
+            bitcoind.sendRawTransaction(doubleSpend);
+            fail("double spend should have been rejected");
+        } catch(VerificationException e) {
+            assertEquals("txn-mempool-conflict", e.getMessage());
+        }
+
+        // Once mined, the output is gone for good
+        bitcoind.generate(1);
+        try {
+            bitcoind.sendRawTransaction(doubleSpend);
+            fail("double spend should have been rejected");
+        } catch(VerificationException e) {
+            assertEquals("missing-inputs", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.catena.common.StatementTracer.Stage;
+import org.junit.Test;
+
+public class StatementTracerTest extends SummarizedTest {
+
+    private static long millis(long ms) {
+        return TimeUnit.MILLISECONDS.toNanos(ms);
+    }
+
+    @Test
+    public void testStages() {
+        StatementTracer tracer = new StatementTracer();
+        Sha256Hash txid = Sha256Hash.of("s1".getBytes());
+
+        tracer.stamp(txid, Stage.COMMITTED, millis(1000));
+        tracer.stamp(txid, Stage.BROADCAST, millis(1100));
+        // Stages can be skipped and stamped out of order
+        tracer.stamp(txid, Stage.IN_BLOCK, millis(5000));
+        tracer.stamp(txid, Stage.SEEN_BY_PEERS, millis(1300));
+        tracer.stamp(txid, Stage.CLIENT_BUILDING, millis(6000));
+        // Only the first delivery counts
+        tracer.stamp(txid, Stage.CLIENT_DELIVERED, millis(6001));
+        tracer.stamp(txid, Stage.CLIENT_DELIVERED, millis(9000));
+        assertEquals(1, tracer.getNumTraced());
+
+        tracer.stamp(txid, Stage.FINALIZED, millis(60000));
+        assertEquals(0, tracer.getNumTraced());
+
+        assertEquals(0, tracer.getStageLatency().get("COMMITTED").getCount());
+        assertEquals(100.0, tracer.getStageLatency().get("BROADCAST").getMaxMillis(), 0.0);
+        assertEquals(200.0, tracer.getStageLatency().get("SEEN_BY_PEERS").getMaxMillis(), 0.0);
+        assertEquals(3900.0, tracer.getStageLatency().get("IN_BLOCK").getMaxMillis(), 0.0);
+        assertEquals(1000.0, tracer.getStageLatency().get("CLIENT_BUILDING").getMaxMillis(), 0.0);
+        assertEquals(1, tracer.getStageLatency().get("CLIENT_DELIVERED").getCount());
+        assertEquals(1.0, tracer.getStageLatency().get("CLIENT_DELIVERED").getMaxMillis(), 0.0);
+        assertEquals(53999.0, tracer.getStageLatency().get("FINALIZED").getMaxMillis(), 0.0);
+
+        assertEquals(5001.0, tracer.getEndToEndLatency().get("CLIENT_DELIVERED").getMaxMillis(), 0.0);
+        assertEquals(59000.0, tracer.getEndToEndLatency().get("FINALIZED").getMaxMillis(), 0.0);
+    }
+
+    @Test
+    public void testNanoTimeZeroAndNegative() {
+        StatementTracer tracer = new StatementTracer();
+        Sha256Hash txid = Sha256Hash.of("s1".getBytes());
+
+        // nanoTime() values are only meaningful as differences, so 0 and negative ones are stamps too
+        tracer.stamp(txid, Stage.COMMITTED, millis(-1000));
+        tracer.stamp(txid, Stage.BROADCAST, 0);
+        tracer.stamp(txid, Stage.BROADCAST, millis(500));
+        tracer.stamp(txid, Stage.IN_BLOCK, millis(2000));
+
+        assertEquals(1, tracer.getStageLatency().get("BROADCAST").getCount());
+        assertEquals(1000.0, tracer.getStageLatency().get("BROADCAST").getMaxMillis(), 0.0);
+        assertEquals(2000.0, tracer.getStageLatency().get("IN_BLOCK").getMaxMillis(), 0.0);
+        assertEquals(3000.0, tracer.getEndToEndLatency().get("IN_BLOCK").getMaxMillis(), 0.0);
+    }
+
+    @Test
+    public void testClientOnly() {
+        StatementTracer tracer = new StatementTracer(2);
+
+        // Without the server's stamps, there are no end-to-end latencies
+        for(int i = 0; i < 3; i++) {
+            Sha256Hash txid = Sha256Hash.of(("s" + i).getBytes());
+            tracer.stamp(txid, Stage.CLIENT_BUILDING, millis(1000 + i));
+            tracer.stamp(txid, Stage.CLIENT_DELIVERED, millis(1010 + i));
+        }
+
+        assertEquals(3, tracer.getStageLatency().get("CLIENT_DELIVERED").getCount());
+        assertEquals(0, tracer.getEndToEndLatency().get("CLIENT_DELIVERED").getCount());
+        // The oldest statements are evicted
+        assertEquals(2, tracer.getNumTraced());
+    }
+}
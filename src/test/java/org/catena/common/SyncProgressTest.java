@@ -0,0 +1,128 @@
+package org.catena.common;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds a SyncProgress the same events bitcoinj would during a block chain download, and checks the rates and the ETA
+ * it computes, and that it shows up over JMX.
+ */
+public class SyncProgressTest extends SummarizedTest {
+
+    private NetworkParameters params = RegTestParams.get();
+    private SyncProgress progress;
+    private long numVerified = 0;
+
+    @Before
+    public void setUp() {
+        Context.propagate(new Context(params));
+        org.bitcoinj.core.Utils.setMockClock();
+        progress = new SyncProgress();
+        progress.setCounters(new SyncProgress.Counters() {
+            @Override
+            public long getNumVerifiedStatements() { return numVerified; }
+
+            @Override
+            public int getBuildingQueueSize() { return (int)numVerified + 1; }
+
+            @Override
+            public int getPendingQueueSize() { return 0; }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        org.bitcoinj.core.Utils.mockTime = null;
+    }
+
+    @Test
+    public void testProgress() {
+        final List<Double> updates = new ArrayList<Double>();
+        progress.addListener(Threading.SAME_THREAD, new SyncProgressListener() {
+            @Override
+            public void onProgress(SyncProgress p) {
+                updates.add(p.getPercentDone());
+            }
+        });
+
+        // Statements verified from the wallet before the download do not count towards the rate
+        numVerified = 5;
+        progress.onChainDownloadStarted(null, 10);
+        assertEquals(1, updates.size());
+        assertEquals(10, progress.getBlocksBehind());
+        assertEquals(-1, progress.getEstimatedSecondsLeft());
+        assertEquals(-1, progress.getMillisSinceLastBlock());
+
+        // One block per second, with two statements in each
+        Block block = params.getGenesisBlock();
+        for(int left = 9; left >= 6; left--) {
+            org.bitcoinj.core.Utils.rollMockClock(1);
+            block = block.createNextBlock(null, Block.BLOCK_VERSION_GENESIS, block.getTimeSeconds() + 600, 10 - left);
+            numVerified += 2;
+            progress.onBlocksDownloaded(null, block, null, left);
+        }
+
+        assertFalse(progress.isDone());
+        assertEquals(6, progress.getBlocksBehind());
+        assertEquals(4, progress.getBlocksDownloaded());
+        assertEquals(40.0, progress.getPercentDone(), 0.001);
+        assertEquals(1.0, progress.getBlocksPerSecond(), 0.001);
+        assertEquals(6, progress.getEstimatedSecondsLeft());
+        assertEquals(13, progress.getNumVerifiedStatements());
+        assertEquals(2.0, progress.getStatementsPerSecond(), 0.001);
+        assertEquals(14, progress.getBuildingQueueSize());
+        assertEquals(block.getTimeSeconds(), progress.getLastBlockTimeSecs());
+        assertEquals(0, progress.getMillisSinceLastBlock());
+        // Once per percent
+        assertEquals(5, updates.size());
+
+        // A stalled sync
+        org.bitcoinj.core.Utils.rollMockClock(30);
+        assertEquals(30000, progress.getMillisSinceLastBlock());
+    }
+
+    @Test
+    public void testNothingToDownload() {
+        progress.setCounters(null);
+        // What onChainDownloadStarted() does when the peer has no new blocks for us
+        progress.doneDownload();
+        assertTrue(progress.isDone());
+        assertEquals(100.0, progress.getPercentDone(), 0.001);
+        assertEquals(0, progress.getEstimatedSecondsLeft());
+        assertEquals(0, progress.getNumVerifiedStatements());
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        ObjectName name = CatenaMBeans.register(progress, "SyncProgress", "test");
+        assertNotNull(name);
+        try {
+            progress.onChainDownloadStarted(null, 10);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(10, server.getAttribute(name, "BlocksBehind"));
+            assertEquals(false, server.getAttribute(name, "Done"));
+
+            // Registering again under the same name replaces the old bean
+            assertEquals(name, CatenaMBeans.register(new SyncProgress(), "SyncProgress", "test"));
+            assertEquals(-1, server.getAttribute(name, "BlocksBehind"));
+        } finally {
+            CatenaMBeans.unregister(name);
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+}
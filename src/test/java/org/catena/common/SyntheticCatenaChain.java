@@ -0,0 +1,277 @@
+package org.catena.common;
+
+import static com.google.common.base.Preconditions.*;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bitcoinj.core.Address;
+import org.bitcoinj.core.Block;
+import org.bitcoinj.core.BlockChain;
+import org.bitcoinj.core.Coin;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.core.TransactionInput;
+import org.bitcoinj.core.TransactionOutput;
+import org.bitcoinj.core.listeners.NewBestBlockListener;
+import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
+import org.bitcoinj.script.ScriptBuilder;
+import org.bitcoinj.wallet.Wallet;
+import org.bitcoinj.wallet.WalletTransaction;
+import org.bitcoinj.wallet.WalletTransaction.Pool;
+import org.catena.client.ClientWallet;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Builds properly signed Catena chains in-process (no bitcoind needed) and feeds them to wallets in fake blocks.
+ * Used by tests and benchmarks that exercise the Catena validation code and ClientWallet without a live network.
+ */
+public class SyntheticCatenaChain {
+
+    private static final Coin FEE = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
+    private static final Coin DUST = Transaction.MIN_NONDUST_OUTPUT;
+
+    private final NetworkParameters params;
+    private final ECKey chainKey;
+    private final Address chainAddr;
+
+    private final Transaction fundingTx;
+    private final Transaction rootOfTrustTx;
+
+    /**
+     * The Catena TXs after the root-of-trust TX, in chain order.
+     */
+    private final List<Transaction> txs = new ArrayList<Transaction>();
+
+    public SyntheticCatenaChain(NetworkParameters params, String chainName) {
+        this(params, new ECKey(), chainName);
+    }
+
+    public SyntheticCatenaChain(NetworkParameters params, ECKey chainKey, String chainName) {
+        this.params = params;
+        this.chainKey = chainKey;
+        this.chainAddr = chainKey.toAddress(params);
+
+        // The funding TX spends some made up outpoint, since nobody checks it
+        fundingTx = new Transaction(params);
+        fundingTx.addInput(Sha256Hash.of(chainName.getBytes()), 0, new ScriptBuilder().data(new byte[1]).build());
+        fundingTx.addOutput(Coin.valueOf(50, 0), chainAddr);
+
+        rootOfTrustTx = createCatenaTx(fundingTx.getOutput(0), chainKey, chainName.getBytes());
+    }
+
+    public NetworkParameters getParams() { return params; }
+
+    public ECKey getChainKey() { return chainKey; }
+
+    public Address getChainAddress() { return chainAddr; }
+
+    public Transaction getFundingTx() { return fundingTx; }
+
+    public Transaction getRootOfTrustTx() { return rootOfTrustTx; }
+
+    /**
+     * Returns the Catena TXs issued after the root-of-trust TX.
+     */
+    public List<Transaction> getTxs() { return txs; }
+
+    public Transaction getTip() {
+        return txs.isEmpty() ? rootOfTrustTx : txs.get(txs.size() - 1);
+    }
+
+    /**
+     * Issues a new statement at the end of the chain.
+     */
+    public Transaction append(byte[] data) {
+        Transaction tx = createCatenaTx(getTip().getOutput(0), chainKey, data);
+        txs.add(tx);
+        return tx;
+    }
+
+    public List<Transaction> append(String... stmts) {
+        List<Transaction> added = new ArrayList<Transaction>(stmts.length);
+        for(String s : stmts) {
+            added.add(append(s.getBytes()));
+        }
+        return added;
+    }
+
+    /**
+     * Drops the last num statements from the chain (e.g., before reissuing them in a fork).
+     */
+    public List<Transaction> truncate(int num) {
+        checkArgument(num <= txs.size());
+        List<Transaction> removed = new ArrayList<Transaction>(txs.subList(txs.size() - num, txs.size()));
+        txs.subList(txs.size() - num, txs.size()).clear();
+        return removed;
+    }
+
+    /**
+     * Reissues the last num statements with new TXs that pay extraFee on top of the usual fee (like a server would
+     * after a fork withdrew them) and returns the new TXs. Different extra fees give different TXs for the same data.
+     */
+    public List<Transaction> reissue(int num, Coin extraFee) {
+        List<Transaction> reissued = new ArrayList<Transaction>(num);
+        for(Transaction old : truncate(num)) {
+            Transaction tx = createCatenaTx(getTip().getOutput(0), chainKey, CatenaUtils.getCatenaTxData(old), 
+                    FEE.add(extraFee));
+            txs.add(tx);
+            reissued.add(tx);
+        }
+        return reissued;
+    }
+
+    /**
+     * Creates a TX that double spends the same output as the i-th statement (0-based), committing to the given data
+     * and signed by the given key. Does not modify the chain.
+     */
+    public Transaction doubleSpend(int i, byte[] data, ECKey key) {
+        TransactionOutput prev = (i == 0 ? rootOfTrustTx : txs.get(i - 1)).getOutput(0);
+        return createCatenaTx(prev, key, data);
+    }
+
+    /**
+     * Creates a Catena TX spending prev, with a P2PKH continuation output to the chain address and an OP_RETURN output
+     * with the data, signed by key.
+     */
+    public Transaction createCatenaTx(TransactionOutput prev, ECKey key, byte[] data) {
+        return createCatenaTx(prev, key, data, FEE);
+    }
+
+    private Transaction createCatenaTx(TransactionOutput prev, ECKey key, byte[] data, Coin fee) {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(prev.getValue().minus(fee).minus(DUST), chainAddr);
+        tx.addOutput(DUST, ScriptBuilder.createOpReturnScript(data));
+        tx.addSignedInput(prev, key);
+        return tx;
+    }
+
+    /**
+     * Returns the genesis block of the params, as a StoredBlock, to build fake blocks on top of.
+     */
+    public StoredBlock genesis() {
+        Block g = params.getGenesisBlock();
+        return new StoredBlock(g, g.getWork(), 0);
+    }
+
+    /**
+     * Creates a fake block on top of prev (does not include any TXs, we only need the header).
+     */
+    public StoredBlock nextBlock(StoredBlock prev) {
+        Block b = prev.getHeader().createNextBlock(chainAddr);
+        return new StoredBlock(b.cloneAsHeader(), prev.getChainWork().add(BigInteger.ONE), prev.getHeight() + 1);
+    }
+
+    /**
+     * Makes the wallet (or CatenaChainTracker) receive the TXs in a new best-chain block on top of prev and returns
+     * that block.
+     */
+    public <L extends TransactionReceivedInBlockListener & NewBestBlockListener> StoredBlock mine(L listener, 
+            StoredBlock prev, List<Transaction> blockTxs) {
+        StoredBlock block = nextBlock(prev);
+        int offset = 0;
+        for(Transaction tx : blockTxs) {
+            listener.receiveFromBlock(copy(tx), block, BlockChain.NewBlockType.BEST_CHAIN, offset++);
+        }
+        listener.notifyNewBestBlock(block);
+        return block;
+    }
+    
+    /**
+     * Adds the funding, root-of-trust and Catena TXs to the wallet as BUILDING, in blocks on top of prev with at most
+     * stmtsPerBlock statements each, like reading them from a wallet file would (so call this on a fresh wallet).
+     * Returns the last of these blocks, which the wallet has seen last.
+     *
+     * Much faster than mining the TXs for long chains, since bitcoinj checks the whole wallet for consistency after
+     * every TX it receives.
+     */
+    public StoredBlock load(Wallet wallet, StoredBlock prev, int stmtsPerBlock) {
+        checkArgument(stmtsPerBlock > 0);
+        
+        List<Transaction> all = new ArrayList<Transaction>(txs.size() + 2);
+        all.add(fundingTx);
+        all.add(rootOfTrustTx);
+        all.addAll(txs);
+        
+        // The funding and root-of-trust TXs go in the first block
+        StoredBlock block = prev;
+        Transaction prevTx = null;
+        int offset = 0;
+        for(int i = 0; i < all.size(); i++) {
+            if(i == 0 || (i >= 2 && (i - 2) % stmtsPerBlock == 0)) {
+                block = nextBlock(block);
+                offset = 0;
+            }
+            
+            Transaction tx = copy(all.get(i));
+            if(prevTx != null)
+                tx.getInput(0).connect(prevTx, TransactionInput.ConnectMode.ABORT_ON_CONFLICT);
+            tx.getConfidence().setAppearedAtChainHeight(block.getHeight());
+            tx.addBlockAppearance(block.getHeader().getHash(), offset++);
+            tx.setUpdateTime(block.getHeader().getTime());
+            wallet.addWalletTransaction(new WalletTransaction(i == all.size() - 1 ? Pool.UNSPENT : Pool.SPENT, tx));
+            prevTx = tx;
+        }
+        
+        // Depths are relative to the last block
+        for(Transaction tx : wallet.getTransactions(false))
+            tx.getConfidence().setDepthInBlocks(block.getHeight() - tx.getConfidence().getAppearedAtChainHeight() + 1);
+        wallet.setLastBlockSeenHash(block.getHeader().getHash());
+        wallet.setLastBlockSeenHeight(block.getHeight());
+        wallet.setLastBlockSeenTimeSecs(block.getHeader().getTimeSeconds());
+        return block;
+    }
+
+    /**
+     * Makes the listener receive the TXs in a new side-chain block on top of prev (e.g., the first blocks of a fork
+     * that has not overtaken the best chain yet) and returns that block.
+     */
+    public StoredBlock mineSideChain(TransactionReceivedInBlockListener listener, StoredBlock prev, 
+            List<Transaction> blockTxs) {
+        StoredBlock block = nextBlock(prev);
+        int offset = 0;
+        for(Transaction tx : blockTxs) {
+            listener.receiveFromBlock(copy(tx), block, BlockChain.NewBlockType.SIDE_CHAIN, offset++);
+        }
+        return block;
+    }
+
+    /**
+     * Sets up a freshly created Catena client wallet so that it follows this chain (i.e., like CatenaClient does on
+     * first boot).
+     */
+    public void watch(SimpleWallet wallet) {
+        CatenaWalletExtension ext = new CatenaWalletExtension();
+        ext.setRootOfTrustTxid(rootOfTrustTx.getHash());
+        wallet.addExtension(ext);
+        wallet.addWatchedAddress(chainAddr);
+    }
+
+    /**
+     * Returns a new client wallet that follows this chain (see watch()).
+     */
+    public ClientWallet newWatchingWallet() {
+        ClientWallet wallet = new ClientWallet(params);
+        watch(wallet);
+        return wallet;
+    }
+
+    /**
+     * Mines the funding and root-of-trust TXs in a block on top of the genesis block (see mine()) and returns it.
+     */
+    public <L extends TransactionReceivedInBlockListener & NewBestBlockListener> StoredBlock mineRoot(L listener) {
+        return mine(listener, genesis(), ImmutableList.of(fundingTx, rootOfTrustTx));
+    }
+
+    /**
+     * Returns a deserialized copy of a TX, just like the ones bitcoinj hands over to wallets from the network.
+     */
+    public Transaction copy(Transaction tx) {
+        return params.getDefaultSerializer().makeTransaction(tx.bitcoinSerialize());
+    }
+}
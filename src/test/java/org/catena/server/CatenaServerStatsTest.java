@@ -0,0 +1,55 @@
+package org.catena.server;
+
+import static org.junit.Assert.*;
+
+import org.bitcoinj.core.Context;
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.NetworkParameters;
+import org.bitcoinj.core.StoredBlock;
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.params.RegTestParams;
+import org.bitcoinj.utils.Threading;
+import org.catena.common.SimpleWallet;
+import org.catena.common.SummarizedTest;
+import org.catena.common.SyntheticCatenaChain;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Tests the server stats that are read from the wallet when a server restarts (without a network).
+ */
+public class CatenaServerStatsTest extends SummarizedTest {
+
+    @Test
+    public void testUnconfirmedDepthAfterRestart() throws Exception {
+        NetworkParameters params = RegTestParams.get();
+        Context.propagate(new Context(params));
+
+        SyntheticCatenaChain chain = new SyntheticCatenaChain(params, new ECKey(), "testchain");
+        chain.append("a", "b", "c");
+        SimpleWallet wallet = new SimpleWallet(params);
+        wallet.importKey(chain.getChainKey());
+        chain.watch(wallet);
+        StoredBlock block = chain.load(wallet, chain.genesis(), 1);
+
+        // Appended before the restart, but not confirmed yet
+        Transaction d = wallet.appendStatement("d".getBytes());
+        Transaction e = wallet.appendStatement("e".getBytes());
+
+        CatenaServerStats stats = new CatenaServerStats();
+        stats.init(wallet);
+        assertEquals(5, stats.getNumStatements());
+        assertEquals(2, stats.getUnconfirmedDepth());
+
+        block = chain.mine(wallet, block, ImmutableList.of(d));
+        Threading.waitForUserCode();
+        assertEquals(1, stats.getUnconfirmedDepth());
+
+        chain.mine(wallet, block, ImmutableList.of(e));
+        Threading.waitForUserCode();
+        assertEquals(0, stats.getUnconfirmedDepth());
+        // We don't know when they were appended
+        assertEquals(0, stats.getConfirmationLatency().getCount());
+    }
+}